@@ -0,0 +1,111 @@
+/*
+ * Benchmark.java - A benchmarked operation
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.benchmark;
+
+/**
+ * An operation measured by the {@link BenchmarkRunner}.<p>
+ *
+ * The runner calls {@link #setUp()} once, then repeatedly
+ * {@link #prepare()} and {@link #run()}, only the latter being timed.
+ * An operation should take from a millisecond to a few hundred
+ * milliseconds, so that timing it costs nothing in comparison; small
+ * operations are done in batches.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+public abstract class Benchmark
+{
+	//{{{ Benchmark constructor
+	/**
+	 * @param name The name of the benchmark, followed by the name of
+	 * the corpus it uses
+	 * @param corpus The text the benchmark works on
+	 */
+	protected Benchmark(String name, Corpus corpus)
+	{
+		this.name = name + ':' + corpus.getName();
+		this.corpus = corpus;
+	} //}}}
+
+	//{{{ getName() method
+	public String getName()
+	{
+		return name;
+	} //}}}
+
+	//{{{ getCorpus() method
+	public Corpus getCorpus()
+	{
+		return corpus;
+	} //}}}
+
+	//{{{ getCharsPerOperation() method
+	/**
+	 * Returns the number of characters an operation goes through,
+	 * used to report a chars/s figure, or 0 if it makes no sense for
+	 * this benchmark.
+	 */
+	public long getCharsPerOperation()
+	{
+		return corpus.getText().length();
+	} //}}}
+
+	//{{{ setUp() method
+	/**
+	 * Called once, before the warmup.
+	 */
+	public void setUp() throws Exception
+	{
+	} //}}}
+
+	//{{{ prepare() method
+	/**
+	 * Called before each operation, and not timed.
+	 */
+	public void prepare() throws Exception
+	{
+	} //}}}
+
+	//{{{ run() method
+	/**
+	 * Performs one operation.
+	 * @return A value computed from the result of the operation, so
+	 * that it can not be optimized away
+	 */
+	public abstract int run() throws Exception;
+	//}}}
+
+	//{{{ tearDown() method
+	/**
+	 * Called once, after the last operation.
+	 */
+	public void tearDown() throws Exception
+	{
+	} //}}}
+
+	//{{{ Private members
+	private final String name;
+	private final Corpus corpus;
+	//}}}
+}
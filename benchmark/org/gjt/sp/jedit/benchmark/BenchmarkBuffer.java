@@ -0,0 +1,83 @@
+/*
+ * BenchmarkBuffer.java - A buffer that can be loaded without a view
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.benchmark;
+
+//{{{ Imports
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+
+import javax.swing.text.Segment;
+
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.bufferio.TextLoader;
+import org.gjt.sp.util.IntegerArray;
+//}}}
+
+/**
+ * A buffer loaded the way buffer I/O requests load files, without
+ * needing a view or a running jEdit.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class BenchmarkBuffer extends JEditBuffer
+{
+	//{{{ load() method
+	/**
+	 * Decodes UTF-8 bytes, finds the line ends and loads the text.
+	 */
+	void load(byte[] bytes) throws IOException
+	{
+		CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder();
+		ReadableByteChannel in = Channels.newChannel(
+			new ByteArrayInputStream(bytes));
+		TextLoader loader = new TextLoader(
+			TextLoader.getCapacity(bytes.length,decoder));
+		while(loader.read(in,decoder))
+		{
+		}
+		IntegerArray endOffsets = loader.getEndOffsets();
+		endOffsets.add(loader.getText().count + 1);
+		loadText(loader.getText(),endOffsets);
+	} //}}}
+
+	//{{{ load() method
+	/**
+	 * Loads the given text.
+	 */
+	void load(String text)
+	{
+		IntegerArray endOffsets = new IntegerArray(
+			Math.max(1,text.length() / 50));
+		int index = 0;
+		while((index = text.indexOf('\n',index)) != -1)
+			endOffsets.add(++index);
+		endOffsets.add(text.length() + 1);
+		char[] chars = text.toCharArray();
+		loadText(new Segment(chars,0,chars.length),endOffsets);
+	} //}}}
+}
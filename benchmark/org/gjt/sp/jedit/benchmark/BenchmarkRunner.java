@@ -0,0 +1,594 @@
+/*
+ * BenchmarkRunner.java - Runs the text engine benchmarks
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.benchmark;
+
+//{{{ Imports
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.gjt.sp.jedit.Mode;
+import org.gjt.sp.jedit.buffer.DefaultFoldHandlerProvider;
+import org.gjt.sp.jedit.buffer.DummyFoldHandler;
+import org.gjt.sp.jedit.buffer.FoldHandler;
+import org.gjt.sp.jedit.buffer.KillRing;
+import org.gjt.sp.jedit.syntax.ModeProvider;
+import org.gjt.sp.util.IOUtilities;
+//}}}
+
+/**
+ * Runs the benchmarks of the text engine and writes their results as
+ * JSON, in a layout close to the one of JMH, so that the results of two
+ * revisions can be compared.<p>
+ *
+ * Each benchmark is run in its own JVM by default, so that the code
+ * compiled for one does not skew the next. Its operations are repeated
+ * for a number of warmup iterations, whose results are dropped, then
+ * for the measurement iterations. The score is the number of
+ * operations per second; the error is the half width of its 99.9%
+ * confidence interval.<p>
+ *
+ * Usage: <code>BenchmarkRunner [options] [name regexp...]</code>, see
+ * {@link #usage()} for the options; <code>ant benchmark</code> runs
+ * it with the results written in <code>build/benchmark</code>.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+public class BenchmarkRunner
+{
+	//{{{ main() method
+	public static void main(String[] args) throws Exception
+	{
+		BenchmarkRunner runner = new BenchmarkRunner();
+		if(!runner.parseArgs(args))
+		{
+			usage();
+			System.exit(1);
+		}
+		runner.run();
+		// some benchmarks leave timers and the like behind
+		System.exit(0);
+	} //}}}
+
+	//{{{ Private members
+
+	private File home = new File(".");
+	private int size = 4 << 20;
+	private int warmupIterations = 5;
+	private int iterations = 10;
+	private long iterationTime = 1000L;
+	private int forks = 1;
+	private File output;
+	private File compare;
+	/** Where a forked JVM writes its scores. */
+	private File raw;
+	private final List<Pattern> filters = new ArrayList<Pattern>();
+
+	/** Results of the benchmarks, so that they are not optimized out. */
+	private static volatile int sink;
+
+	//{{{ usage() method
+	private static void usage()
+	{
+		System.err.println("Usage: BenchmarkRunner [options] [name regexp...]");
+		System.err.println("  -home <dir>        jEdit source directory (.)");
+		System.err.println("  -size <chars>      length of each corpus (4194304)");
+		System.err.println("  -warmup <n>        warmup iterations (5)");
+		System.err.println("  -iterations <n>    measurement iterations (10)");
+		System.err.println("  -time <ms>         duration of an iteration (1000)");
+		System.err.println("  -forks <n>         JVMs per benchmark, 0 to run in this one (1)");
+		System.err.println("  -o <file>          write the results as JSON");
+		System.err.println("  -compare <file>    compare with earlier JSON results");
+		System.err.println("  -list              list the benchmarks");
+	} //}}}
+
+	//{{{ parseArgs() method
+	private boolean parseArgs(String[] args)
+	{
+		try
+		{
+			for(int i = 0; i < args.length; i++)
+			{
+				String arg = args[i];
+				if(arg.equals("-home"))
+					home = new File(args[++i]);
+				else if(arg.equals("-size"))
+					size = Integer.parseInt(args[++i]);
+				else if(arg.equals("-warmup"))
+					warmupIterations = Integer.parseInt(args[++i]);
+				else if(arg.equals("-iterations"))
+					iterations = Integer.parseInt(args[++i]);
+				else if(arg.equals("-time"))
+					iterationTime = Long.parseLong(args[++i]);
+				else if(arg.equals("-forks"))
+					forks = Integer.parseInt(args[++i]);
+				else if(arg.equals("-o"))
+					output = new File(args[++i]);
+				else if(arg.equals("-compare"))
+					compare = new File(args[++i]);
+				else if(arg.equals("-raw"))
+					raw = new File(args[++i]);
+				else if(arg.equals("-list"))
+					forks = -1;
+				else if(arg.startsWith("-"))
+					return false;
+				else
+					filters.add(Pattern.compile(arg));
+			}
+		}
+		catch(RuntimeException e)
+		{
+			return false;
+		}
+		return iterations > 0 && warmupIterations >= 0
+			&& iterationTime > 0;
+	} //}}}
+
+	//{{{ run() method
+	private void run() throws Exception
+	{
+		FoldHandler.foldHandlerProvider = new DefaultFoldHandlerProvider();
+		((DefaultFoldHandlerProvider)FoldHandler.foldHandlerProvider)
+			.addFoldHandler(new DummyFoldHandler());
+		KillRing.setInstance(new KillRing());
+		KillRing.getInstance().propertiesChanged(100);
+		loadModeCatalog();
+
+		List<Benchmark> benchmarks = createBenchmarks();
+		if(forks == -1)
+		{
+			for(Benchmark benchmark : benchmarks)
+				System.out.println(benchmark.getName());
+			return;
+		}
+
+		if(raw != null)
+		{
+			// forked by another runner
+			double[] scores = measure(benchmarks.get(0));
+			PrintWriter out = new PrintWriter(raw,"UTF-8");
+			for(double score : scores)
+				out.println(score);
+			out.close();
+			return;
+		}
+
+		List<Result> results = new ArrayList<Result>();
+		for(Benchmark benchmark : benchmarks)
+		{
+			System.out.println("# " + benchmark.getName());
+			List<double[]> scores = new ArrayList<double[]>();
+			if(forks == 0)
+				scores.add(measure(benchmark));
+			else
+			{
+				for(int i = 0; i < forks; i++)
+					scores.add(fork(benchmark));
+			}
+			Result result = new Result(benchmark,scores);
+			results.add(result);
+			System.out.println(result);
+		}
+
+		if(output != null)
+			writeJSON(results);
+		if(compare != null)
+			compare(results);
+	} //}}}
+
+	//{{{ loadModeCatalog() method
+	/**
+	 * Registers the edit modes of the catalog, so that the modes the
+	 * corpora use and the ones they import can be loaded.
+	 */
+	private void loadModeCatalog() throws IOException
+	{
+		File modes = new File(home,"modes");
+		Pattern pattern = Pattern.compile(
+			"<MODE\\s+NAME=\"([^\"]+)\"\\s+FILE=\"([^\"]+)\"");
+		Matcher matcher = pattern.matcher(
+			readFile(new File(modes,"catalog")));
+		while(matcher.find())
+		{
+			Mode mode = new Mode(matcher.group(1));
+			mode.setProperty("file",
+				new File(modes,matcher.group(2)).getPath());
+			ModeProvider.instance.addMode(mode);
+		}
+	} //}}}
+
+	//{{{ createBenchmarks() method
+	private List<Benchmark> createBenchmarks() throws IOException
+	{
+		List<Benchmark> all = new ArrayList<Benchmark>();
+		for(Corpus corpus : Corpus.createAll(home,size))
+		{
+			all.add(new LoadBenchmark(corpus));
+			all.add(new EditBenchmark(corpus));
+			all.add(new UndoBenchmark(corpus));
+			all.add(new LineBenchmark(corpus));
+			all.add(new SpreadEditBenchmark(corpus));
+			all.add(new TokenizeBenchmark(corpus));
+			all.add(new SearchBenchmark(corpus,false));
+			all.add(new SearchBenchmark(corpus,true));
+			all.add(new ReplaceAllBenchmark(corpus));
+		}
+
+		if(filters.isEmpty())
+			return all;
+
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+		for(Benchmark benchmark : all)
+		{
+			for(Pattern filter : filters)
+			{
+				if(filter.matcher(benchmark.getName()).find())
+				{
+					benchmarks.add(benchmark);
+					break;
+				}
+			}
+		}
+		return benchmarks;
+	} //}}}
+
+	//{{{ measure() method
+	/**
+	 * Runs the benchmark in this JVM.
+	 * @return The score of each measurement iteration, in operations
+	 * per second
+	 */
+	private double[] measure(Benchmark benchmark) throws Exception
+	{
+		benchmark.setUp();
+		try
+		{
+			for(int i = 0; i < warmupIterations; i++)
+				iteration(benchmark);
+			double[] scores = new double[iterations];
+			for(int i = 0; i < iterations; i++)
+				scores[i] = iteration(benchmark);
+			return scores;
+		}
+		finally
+		{
+			benchmark.tearDown();
+		}
+	} //}}}
+
+	//{{{ iteration() method
+	private double iteration(Benchmark benchmark) throws Exception
+	{
+		long deadline = System.nanoTime() + iterationTime * 1000000L;
+		long time = 0L;
+		int operations = 0;
+		int result = 0;
+		do
+		{
+			benchmark.prepare();
+			long start = System.nanoTime();
+			result += benchmark.run();
+			long end = System.nanoTime();
+			time += end - start;
+			operations++;
+			if(end >= deadline)
+				break;
+		} while(true);
+		sink += result;
+		return operations * 1e9 / Math.max(1L,time);
+	} //}}}
+
+	//{{{ fork() method
+	/**
+	 * Runs the benchmark in a new JVM with the same class path and
+	 * options as this one.
+	 */
+	private double[] fork(Benchmark benchmark) throws Exception
+	{
+		File scores = File.createTempFile("jedit-benchmark",".txt");
+		try
+		{
+			List<String> command = new ArrayList<String>();
+			command.add(new File(new File(System.getProperty("java.home"),
+				"bin"),"java").getPath());
+			command.addAll(ManagementFactory.getRuntimeMXBean()
+				.getInputArguments());
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(BenchmarkRunner.class.getName());
+			command.add("-home");
+			command.add(home.getPath());
+			command.add("-size");
+			command.add(String.valueOf(size));
+			command.add("-warmup");
+			command.add(String.valueOf(warmupIterations));
+			command.add("-iterations");
+			command.add(String.valueOf(iterations));
+			command.add("-time");
+			command.add(String.valueOf(iterationTime));
+			command.add("-raw");
+			command.add(scores.getPath());
+			command.add('^' + Pattern.quote(benchmark.getName()) + '$');
+
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectErrorStream(true);
+			Process process = builder.start();
+			process.getOutputStream().close();
+			String out = readStream(new InputStreamReader(
+				process.getInputStream()));
+			if(process.waitFor() != 0)
+			{
+				throw new IOException("Benchmark " + benchmark.getName()
+					+ " failed:\n" + out);
+			}
+
+			String[] lines = readFile(scores).trim().split("\n");
+			double[] values = new double[lines.length];
+			for(int i = 0; i < lines.length; i++)
+				values[i] = Double.parseDouble(lines[i].trim());
+			return values;
+		}
+		finally
+		{
+			scores.delete();
+		}
+	} //}}}
+
+	//{{{ writeJSON() method
+	private void writeJSON(List<Result> results) throws IOException
+	{
+		File dir = output.getAbsoluteFile().getParentFile();
+		if(dir != null)
+			dir.mkdirs();
+		Writer out = new OutputStreamWriter(
+			new FileOutputStream(output),"UTF-8");
+		try
+		{
+			out.write("[\n");
+			for(int i = 0; i < results.size(); i++)
+			{
+				if(i != 0)
+					out.write(",\n");
+				results.get(i).writeJSON(out);
+			}
+			out.write("\n]\n");
+		}
+		finally
+		{
+			IOUtilities.closeQuietly(out);
+		}
+		System.out.println("Results written to " + output);
+	} //}}}
+
+	//{{{ compare() method
+	/**
+	 * Prints the change of the score of each benchmark from the ones in
+	 * an earlier JSON results file.
+	 */
+	private void compare(List<Result> results) throws IOException
+	{
+		Map<String,Double> before = new LinkedHashMap<String,Double>();
+		Matcher matcher = Pattern.compile(
+			"\"benchmark\" : \"([^\"]+)\"[\\s\\S]*?\"primaryMetric\" : \\{"
+			+ "\\s*\"score\" : ([-+.0-9Ee]+)").matcher(readFile(compare));
+		while(matcher.find())
+		{
+			before.put(matcher.group(1),
+				Double.valueOf(matcher.group(2)));
+		}
+
+		System.out.println();
+		System.out.println(String.format(Locale.US,"%-30s %14s %14s %8s",
+			"Benchmark","Before","After","Change"));
+		for(Result result : results)
+		{
+			Double old = before.get(result.name);
+			if(old == null)
+				continue;
+			System.out.println(String.format(Locale.US,
+				"%-30s %14.3f %14.3f %+7.1f%%",result.name,old,
+				result.score,(result.score / old - 1.0) * 100.0));
+		}
+	} //}}}
+
+	//{{{ readFile() method
+	private static String readFile(File file) throws IOException
+	{
+		return readStream(new InputStreamReader(
+			new FileInputStream(file),"UTF-8"));
+	} //}}}
+
+	//{{{ readStream() method
+	private static String readStream(InputStreamReader in)
+		throws IOException
+	{
+		BufferedReader reader = new BufferedReader(in);
+		try
+		{
+			StringBuilder buf = new StringBuilder();
+			String line;
+			while((line = reader.readLine()) != null)
+				buf.append(line).append('\n');
+			return buf.toString();
+		}
+		finally
+		{
+			IOUtilities.closeQuietly(reader);
+		}
+	} //}}}
+
+	//}}}
+
+	//{{{ Result class
+	/**
+	 * The scores of a benchmark, over all the forks.
+	 */
+	private class Result
+	{
+		/** Student's t for a 99.9% confidence interval, by degrees of
+		 * freedom. */
+		private final double[] T_999 = { 636.62, 31.599, 12.924,
+			8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587, 4.437,
+			4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883,
+			3.850, 3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690,
+			3.674, 3.659, 3.646 };
+
+		final String name;
+		final String corpus;
+		final long chars;
+		final List<double[]> scores;
+		final double score;
+		final double error;
+		final double min;
+		final double max;
+
+		//{{{ Result constructor
+		Result(Benchmark benchmark, List<double[]> scores)
+		{
+			name = benchmark.getName();
+			corpus = benchmark.getCorpus().getName();
+			chars = benchmark.getCharsPerOperation();
+			this.scores = scores;
+
+			int n = 0;
+			double sum = 0.0;
+			double low = Double.MAX_VALUE;
+			double high = 0.0;
+			for(double[] fork : scores)
+			{
+				for(double value : fork)
+				{
+					n++;
+					sum += value;
+					low = Math.min(low,value);
+					high = Math.max(high,value);
+				}
+			}
+			score = sum / n;
+			min = low;
+			max = high;
+
+			double squares = 0.0;
+			for(double[] fork : scores)
+			{
+				for(double value : fork)
+					squares += (value - score) * (value - score);
+			}
+			if(n > 1)
+			{
+				double t = n - 1 <= T_999.length ? T_999[n - 2] : 3.291;
+				error = t * Math.sqrt(squares / (n - 1)) / Math.sqrt(n);
+			}
+			else
+				error = Double.NaN;
+		} //}}}
+
+		//{{{ writeJSON() method
+		void writeJSON(Writer out) throws IOException
+		{
+			out.write("    {\n");
+			out.write("        \"benchmark\" : \"" + name + "\",\n");
+			out.write("        \"mode\" : \"thrpt\",\n");
+			out.write("        \"forks\" : " + scores.size() + ",\n");
+			out.write("        \"warmupIterations\" : " + warmupIterations + ",\n");
+			out.write("        \"warmupTime\" : \"" + iterationTime + " ms\",\n");
+			out.write("        \"measurementIterations\" : " + iterations + ",\n");
+			out.write("        \"measurementTime\" : \"" + iterationTime + " ms\",\n");
+			out.write("        \"params\" : {\n");
+			out.write("            \"corpus\" : \"" + corpus + "\",\n");
+			out.write("            \"size\" : \"" + size + "\"\n");
+			out.write("        },\n");
+			out.write("        \"primaryMetric\" : {\n");
+			out.write("            \"score\" : " + number(score) + ",\n");
+			out.write("            \"scoreError\" : " + number(error) + ",\n");
+			out.write("            \"scoreConfidence\" : [ " + number(score - error)
+				+ ", " + number(score + error) + " ],\n");
+			out.write("            \"scoreMin\" : " + number(min) + ",\n");
+			out.write("            \"scoreMax\" : " + number(max) + ",\n");
+			out.write("            \"scoreUnit\" : \"ops/s\",\n");
+			out.write("            \"rawData\" : [\n");
+			for(int i = 0; i < scores.size(); i++)
+			{
+				out.write("                [ ");
+				double[] fork = scores.get(i);
+				for(int j = 0; j < fork.length; j++)
+				{
+					if(j != 0)
+						out.write(", ");
+					out.write(number(fork[j]));
+				}
+				out.write(i == scores.size() - 1 ? " ]\n" : " ],\n");
+			}
+			out.write("            ]\n");
+			out.write("        },\n");
+			out.write("        \"secondaryMetrics\" : {");
+			if(chars != 0L)
+			{
+				out.write("\n            \"chars\" : {\n");
+				out.write("                \"score\" : " + number(score * chars) + ",\n");
+				out.write("                \"scoreError\" : " + number(error * chars) + ",\n");
+				out.write("                \"scoreUnit\" : \"chars/s\"\n");
+				out.write("            }\n        ");
+			}
+			out.write("}\n");
+			out.write("    }");
+		} //}}}
+
+		//{{{ number() method
+		private String number(double value)
+		{
+			// NaN is not valid JSON
+			return Double.isNaN(value) ? "\"NaN\""
+				: String.format(Locale.US,"%.3f",value);
+		} //}}}
+
+		//{{{ toString() method
+		@Override
+		public String toString()
+		{
+			String str = String.format(Locale.US,
+				"%-30s %14.3f +- %.3f ops/s",name,score,error);
+			if(chars != 0L)
+			{
+				str += String.format(Locale.US,"  (%.1f Mchars/s)",
+					score * chars / 1e6);
+			}
+			return str;
+		} //}}}
+	} //}}}
+}
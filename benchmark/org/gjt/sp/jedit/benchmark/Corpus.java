@@ -0,0 +1,349 @@
+/*
+ * Corpus.java - A text benchmarks work on
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.benchmark;
+
+//{{{ Imports
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.gjt.sp.util.IOUtilities;
+//}}}
+
+/**
+ * A text of a given kind, with what to search and replace in it.<p>
+ *
+ * The Java and XML corpora are made of the jEdit sources and edit modes,
+ * repeated up to the requested size; the log and minified JavaScript
+ * ones are generated from a fixed seed. All of them are the same from
+ * one run to the next, so results of different revisions can be
+ * compared.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+public class Corpus
+{
+	//{{{ createAll() method
+	/**
+	 * Creates the corpora.
+	 * @param home The jEdit source directory
+	 * @param size The length of each corpus, in characters
+	 */
+	public static Corpus[] createAll(File home, int size) throws IOException
+	{
+		return new Corpus[] {
+			new Corpus("java","java",
+				concat(listFiles(new File(home,"org"),".java"),size),
+				"return","new\\s+\\w+\\(","yield"),
+			new Corpus("xml","xml",
+				concat(listFiles(new File(home,"modes"),".xml"),size),
+				"SEQ","<KEYWORD\\d>","SEQUENCE"),
+			new Corpus("log","logs",generateLog(size),
+				"ERROR","\\d+ms","FAILURE"),
+			new Corpus("minjs","javascript",generateMinifiedJS(size),
+				"function","\\w+\\.length","fn")
+		};
+	} //}}}
+
+	//{{{ Corpus constructor
+	public Corpus(String name, String modeName, String text,
+		String literal, String regexp, String replacement)
+	{
+		this.name = name;
+		this.modeName = modeName;
+		this.text = text;
+		this.literal = literal;
+		this.regexp = regexp;
+		this.replacement = replacement;
+	} //}}}
+
+	//{{{ getName() method
+	public String getName()
+	{
+		return name;
+	} //}}}
+
+	//{{{ getModeName() method
+	/**
+	 * Returns the name of the edit mode for this text.
+	 */
+	public String getModeName()
+	{
+		return modeName;
+	} //}}}
+
+	//{{{ getText() method
+	public String getText()
+	{
+		return text;
+	} //}}}
+
+	//{{{ getLiteral() method
+	/**
+	 * Returns a string found many times in the text.
+	 */
+	public String getLiteral()
+	{
+		return literal;
+	} //}}}
+
+	//{{{ getRegexp() method
+	/**
+	 * Returns a regular expression matching many times in the text.
+	 */
+	public String getRegexp()
+	{
+		return regexp;
+	} //}}}
+
+	//{{{ getReplacement() method
+	/**
+	 * Returns what to replace the literal with.
+	 */
+	public String getReplacement()
+	{
+		return replacement;
+	} //}}}
+
+	//{{{ getLines() method
+	/**
+	 * Returns the lines of the text, without their line separator.
+	 */
+	public char[][] getLines()
+	{
+		List<char[]> lines = new ArrayList<char[]>();
+		int start = 0;
+		for(;;)
+		{
+			int end = text.indexOf('\n',start);
+			if(end == -1)
+				end = text.length();
+			lines.add(text.substring(start,end).toCharArray());
+			if(end == text.length())
+				break;
+			start = end + 1;
+		}
+		return lines.toArray(new char[lines.size()][]);
+	} //}}}
+
+	//{{{ Private members
+	private final String name;
+	private final String modeName;
+	private final String text;
+	private final String literal;
+	private final String regexp;
+	private final String replacement;
+
+	private static final String[] LEVELS = { "DEBUG", "INFO ", "INFO ",
+		"INFO ", "WARN ", "ERROR" };
+	private static final String[] LOGGERS = {
+		"org.gjt.sp.jedit.io.VFSManager",
+		"org.gjt.sp.jedit.bufferio.BufferLoadRequest",
+		"org.gjt.sp.jedit.search.HyperSearchRequest",
+		"org.gjt.sp.util.WorkThreadPool",
+		"org.gjt.sp.jedit.EditBus" };
+
+	//{{{ listFiles() method
+	private static List<File> listFiles(File dir, String extension)
+	{
+		List<File> files = new ArrayList<File>();
+		File[] children = dir.listFiles();
+		if(children == null)
+			return files;
+		// the order of listFiles() depends on the file system
+		Arrays.sort(children);
+		for(File child : children)
+		{
+			if(child.isDirectory())
+				files.addAll(listFiles(child,extension));
+			else if(child.getName().endsWith(extension))
+				files.add(child);
+		}
+		return files;
+	} //}}}
+
+	//{{{ concat() method
+	private static String concat(List<File> files, int size)
+		throws IOException
+	{
+		if(files.isEmpty())
+			throw new IOException("No source files found, check -home");
+
+		StringBuilder buf = new StringBuilder(size);
+		char[] chars = new char[8192];
+loop:		for(;;)
+		{
+			for(File file : files)
+			{
+				Reader in = new InputStreamReader(
+					new FileInputStream(file),"UTF-8");
+				try
+				{
+					int len;
+					while((len = in.read(chars)) != -1)
+					{
+						for(int i = 0; i < len; i++)
+						{
+							// same line separators as a buffer
+							if(chars[i] != '\r')
+								buf.append(chars[i]);
+						}
+					}
+				}
+				finally
+				{
+					IOUtilities.closeQuietly(in);
+				}
+				if(buf.length() >= size)
+					break loop;
+			}
+		}
+		buf.setLength(size);
+		return buf.toString();
+	} //}}}
+
+	//{{{ generateLog() method
+	private static String generateLog(int size)
+	{
+		Random random = new Random(42);
+		StringBuilder buf = new StringBuilder(size + 256);
+		long time = 1336990000000L;
+		int request = 0;
+		while(buf.length() < size)
+		{
+			time += random.nextInt(500);
+			int seconds = (int)(time / 1000 % 86400);
+			buf.append("2012-05-14 ");
+			appendTwoDigits(buf,seconds / 3600);
+			buf.append(':');
+			appendTwoDigits(buf,seconds / 60 % 60);
+			buf.append(':');
+			appendTwoDigits(buf,seconds % 60);
+			buf.append(',').append(100 + (int)(time % 900)).append(' ');
+			String level = LEVELS[random.nextInt(LEVELS.length)];
+			buf.append(level).append(" [pool-1-thread-")
+				.append(1 + random.nextInt(8)).append("] ")
+				.append(LOGGERS[random.nextInt(LOGGERS.length)])
+				.append(" - Request ").append(request++)
+				.append(" done in ").append(random.nextInt(2000))
+				.append("ms\n");
+			if(level.equals("ERROR"))
+			{
+				buf.append("java.io.IOException: Connection reset\n");
+				for(int i = 0; i < 6; i++)
+				{
+					buf.append("\tat org.gjt.sp.jedit.io.VFS")
+						.append(".copy(VFS.java:")
+						.append(100 + random.nextInt(900))
+						.append(")\n");
+				}
+			}
+		}
+		buf.setLength(size);
+		return buf.toString();
+	} //}}}
+
+	//{{{ appendTwoDigits() method
+	private static void appendTwoDigits(StringBuilder buf, int n)
+	{
+		if(n < 10)
+			buf.append('0');
+		buf.append(n);
+	} //}}}
+
+	//{{{ generateMinifiedJS() method
+	/**
+	 * Generates minified looking JavaScript, on lines of 100000
+	 * characters like bundled scripts.
+	 */
+	private static String generateMinifiedJS(int size)
+	{
+		Random random = new Random(42);
+		StringBuilder buf = new StringBuilder(size + 256);
+		int lineStart = 0;
+		while(buf.length() < size)
+		{
+			String a = identifier(random);
+			String b = identifier(random);
+			String c = identifier(random);
+			switch(random.nextInt(4))
+			{
+			case 0:
+				buf.append("function ").append(a).append('(')
+					.append(b).append(',').append(c)
+					.append("){var i,n=").append(b)
+					.append(".length;for(i=0;i<n;i++)")
+					.append(c).append('(').append(b)
+					.append("[i],i);return n}");
+				break;
+			case 1:
+				buf.append("var ").append(a).append("={")
+					.append(b).append(":\"")
+					.append(c).append("\",").append(c)
+					.append(':').append(random.nextInt(10000))
+					.append("};");
+				break;
+			case 2:
+				buf.append("if(").append(a).append("&&")
+					.append(a).append('.').append(b)
+					.append("!==null){").append(c)
+					.append('=').append(a).append('.')
+					.append(b).append(".length}else{")
+					.append(c).append("=/[a-z]+/g.test(")
+					.append(b).append(")}");
+				break;
+			default:
+				buf.append(a).append(".prototype.").append(b)
+					.append("=function(){return this.")
+					.append(c).append("};");
+				break;
+			}
+			if(buf.length() - lineStart >= 100000)
+			{
+				buf.append('\n');
+				lineStart = buf.length();
+			}
+		}
+		buf.setLength(size);
+		return buf.toString();
+	} //}}}
+
+	//{{{ identifier() method
+	private static String identifier(Random random)
+	{
+		int len = 1 + random.nextInt(3);
+		char[] chars = new char[len];
+		for(int i = 0; i < len; i++)
+			chars[i] = (char)((i == 0 ? 'a' : 'A') + random.nextInt(26));
+		return new String(chars);
+	} //}}}
+
+	//}}}
+}
@@ -0,0 +1,98 @@
+/*
+ * EditBenchmark.java - Measures bursts of small edits
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.benchmark;
+
+//{{{ Imports
+import java.util.Random;
+
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+//}}}
+
+/**
+ * Types and deletes text one character at a time at places spread over
+ * the buffer, as a user editing a large file does.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class EditBenchmark extends Benchmark
+{
+	/** Number of places edited by an operation. */
+	static final int SITES = 50;
+	/** Number of characters typed at each place. */
+	static final int TYPED = 40;
+	/** Number of characters then deleted at each place. */
+	static final int DELETED = 20;
+
+	//{{{ EditBenchmark constructor
+	EditBenchmark(Corpus corpus)
+	{
+		super("edit",corpus);
+	} //}}}
+
+	//{{{ getCharsPerOperation() method
+	@Override
+	public long getCharsPerOperation()
+	{
+		return 0L;
+	} //}}}
+
+	//{{{ prepare() method
+	@Override
+	public void prepare() throws Exception
+	{
+		buffer = new BenchmarkBuffer();
+		buffer.load(getCorpus().getText());
+		buffer.setUndoLimit(Integer.MAX_VALUE);
+	} //}}}
+
+	//{{{ run() method
+	@Override
+	public int run() throws Exception
+	{
+		edit(buffer,new Random(42));
+		return buffer.getLength();
+	} //}}}
+
+	//{{{ edit() method
+	/**
+	 * Does the edits of one operation.
+	 */
+	static void edit(JEditBuffer buffer, Random random)
+	{
+		String typed = "insertedText(42); ";
+		for(int site = 0; site < SITES; site++)
+		{
+			int offset = random.nextInt(buffer.getLength());
+			for(int i = 0; i < TYPED; i++)
+			{
+				buffer.insert(offset++,
+					String.valueOf(typed.charAt(i % typed.length())));
+			}
+			for(int i = 0; i < DELETED; i++)
+				buffer.remove(--offset,1);
+		}
+	} //}}}
+
+	private BenchmarkBuffer buffer;
+}
@@ -0,0 +1,76 @@
+/*
+ * LineBenchmark.java - Measures finding the line of an offset
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.benchmark;
+
+import java.util.Random;
+
+/**
+ * Looks up the line of random offsets, as painting, caret moves and
+ * searches do all the time.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class LineBenchmark extends Benchmark
+{
+	/** Number of lookups done by an operation. */
+	static final int LOOKUPS = 100000;
+
+	//{{{ LineBenchmark constructor
+	LineBenchmark(Corpus corpus)
+	{
+		super("lineOfOffset",corpus);
+	} //}}}
+
+	//{{{ getCharsPerOperation() method
+	@Override
+	public long getCharsPerOperation()
+	{
+		return 0L;
+	} //}}}
+
+	//{{{ setUp() method
+	@Override
+	public void setUp() throws Exception
+	{
+		buffer = new BenchmarkBuffer();
+		buffer.load(getCorpus().getText());
+		offsets = new int[LOOKUPS];
+		Random random = new Random(42);
+		for(int i = 0; i < offsets.length; i++)
+			offsets[i] = random.nextInt(buffer.getLength() + 1);
+	} //}}}
+
+	//{{{ run() method
+	@Override
+	public int run()
+	{
+		int sum = 0;
+		for(int i = 0; i < offsets.length; i++)
+			sum += buffer.getLineOfOffset(offsets[i]);
+		return sum;
+	} //}}}
+
+	private BenchmarkBuffer buffer;
+	private int[] offsets;
+}
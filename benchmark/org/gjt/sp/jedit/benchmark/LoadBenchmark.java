@@ -0,0 +1,56 @@
+/*
+ * LoadBenchmark.java - Measures loading a buffer
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.benchmark;
+
+/**
+ * Decodes a file's bytes and loads them into a new buffer.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class LoadBenchmark extends Benchmark
+{
+	//{{{ LoadBenchmark constructor
+	LoadBenchmark(Corpus corpus)
+	{
+		super("load",corpus);
+	} //}}}
+
+	//{{{ setUp() method
+	@Override
+	public void setUp() throws Exception
+	{
+		bytes = getCorpus().getText().getBytes("UTF-8");
+	} //}}}
+
+	//{{{ run() method
+	@Override
+	public int run() throws Exception
+	{
+		BenchmarkBuffer buffer = new BenchmarkBuffer();
+		buffer.load(bytes);
+		return buffer.getLineCount();
+	} //}}}
+
+	private byte[] bytes;
+}
@@ -0,0 +1,97 @@
+/*
+ * ReplaceAllBenchmark.java - Measures replacing all matches in a buffer
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.benchmark;
+
+import org.gjt.sp.jedit.search.SearchMatcher;
+
+/**
+ * Replaces all the occurrences of a literal string in a buffer as a
+ * single compound edit, the way Replace All does.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class ReplaceAllBenchmark extends Benchmark
+{
+	//{{{ ReplaceAllBenchmark constructor
+	ReplaceAllBenchmark(Corpus corpus)
+	{
+		super("replaceAll",corpus);
+	} //}}}
+
+	//{{{ setUp() method
+	@Override
+	public void setUp() throws Exception
+	{
+		matcher = SearchBenchmark.createMatcher(getCorpus(),false);
+	} //}}}
+
+	//{{{ prepare() method
+	@Override
+	public void prepare() throws Exception
+	{
+		buffer = new BenchmarkBuffer();
+		buffer.load(getCorpus().getText());
+		buffer.setUndoLimit(Integer.MAX_VALUE);
+	} //}}}
+
+	//{{{ run() method
+	@Override
+	public int run() throws Exception
+	{
+		String replacement = getCorpus().getReplacement();
+		int count = 0;
+		int offset = 0;
+		int end = buffer.getLength();
+		buffer.beginCompoundEdit();
+		try
+		{
+			for(int counter = 0; offset < end; counter++)
+			{
+				boolean startOfLine = buffer.getLineStartOffset(
+					buffer.getLineOfOffset(offset)) == offset;
+				CharSequence text = buffer.getSegment(offset,
+					end - offset);
+				SearchMatcher.Match match = matcher.nextMatch(text,
+					startOfLine,true,counter == 0,false);
+				if(match == null)
+					break;
+				int start = offset + match.start;
+				int length = match.end - match.start;
+				buffer.remove(start,length);
+				buffer.insert(start,replacement);
+				offset = start + replacement.length();
+				end += replacement.length() - length;
+				count++;
+			}
+		}
+		finally
+		{
+			buffer.endCompoundEdit();
+		}
+		return count;
+	} //}}}
+
+	private SearchMatcher matcher;
+	private BenchmarkBuffer buffer;
+}
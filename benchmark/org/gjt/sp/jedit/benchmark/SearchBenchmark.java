@@ -0,0 +1,102 @@
+/*
+ * SearchBenchmark.java - Measures finding all matches in a buffer
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.benchmark;
+
+//{{{ Imports
+import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.search.BoyerMooreSearchMatcher;
+import org.gjt.sp.jedit.search.PatternSearchMatcher;
+import org.gjt.sp.jedit.search.SearchMatcher;
+//}}}
+
+/**
+ * Finds all the matches of a literal string or of a regular expression
+ * in a buffer, the way HyperSearch goes through a buffer.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class SearchBenchmark extends Benchmark
+{
+	//{{{ SearchBenchmark constructor
+	/**
+	 * @param regexp True to look for the regular expression of the
+	 * corpus, false for its literal
+	 */
+	SearchBenchmark(Corpus corpus, boolean regexp)
+	{
+		super(regexp ? "search.regexp" : "search.literal",corpus);
+		this.regexp = regexp;
+	} //}}}
+
+	//{{{ setUp() method
+	@Override
+	public void setUp() throws Exception
+	{
+		buffer = new BenchmarkBuffer();
+		buffer.load(getCorpus().getText());
+		matcher = createMatcher(getCorpus(),regexp);
+	} //}}}
+
+	//{{{ run() method
+	@Override
+	public int run() throws Exception
+	{
+		return countMatches(buffer,matcher);
+	} //}}}
+
+	//{{{ createMatcher() method
+	static SearchMatcher createMatcher(Corpus corpus, boolean regexp)
+	{
+		if(regexp)
+			return new PatternSearchMatcher(corpus.getRegexp(),false);
+		else
+			return new BoyerMooreSearchMatcher(corpus.getLiteral(),false);
+	} //}}}
+
+	//{{{ countMatches() method
+	static int countMatches(JEditBuffer buffer, SearchMatcher matcher)
+		throws InterruptedException
+	{
+		int count = 0;
+		int offset = 0;
+		int end = buffer.getLength();
+		for(int counter = 0; offset < end; counter++)
+		{
+			boolean startOfLine = buffer.getLineStartOffset(
+				buffer.getLineOfOffset(offset)) == offset;
+			CharSequence text = buffer.getSegment(offset,end - offset);
+			SearchMatcher.Match match = matcher.nextMatch(text,
+				startOfLine,true,counter == 0,false);
+			if(match == null)
+				break;
+			count++;
+			offset += Math.max(1,match.end);
+		}
+		return count;
+	} //}}}
+
+	private final boolean regexp;
+	private BenchmarkBuffer buffer;
+	private SearchMatcher matcher;
+}
@@ -0,0 +1,87 @@
+/*
+ * SpreadEditBenchmark.java - Measures edits alternating between two ends
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.benchmark;
+
+/**
+ * Types and deletes characters and line breaks alternately near the
+ * start and the end of the buffer, which is the worst case for line
+ * offsets updated lazily from the last edited line.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class SpreadEditBenchmark extends Benchmark
+{
+	/** Number of edits done at each end by an operation. */
+	static final int EDITS = 500;
+	/** One edit out of this many types a line break. */
+	static final int LINE_BREAKS = 10;
+
+	//{{{ SpreadEditBenchmark constructor
+	SpreadEditBenchmark(Corpus corpus)
+	{
+		super("spreadEdit",corpus);
+	} //}}}
+
+	//{{{ getCharsPerOperation() method
+	@Override
+	public long getCharsPerOperation()
+	{
+		return 0L;
+	} //}}}
+
+	//{{{ setUp() method
+	@Override
+	public void setUp() throws Exception
+	{
+		buffer = new BenchmarkBuffer();
+		// a gap buffer would spend its time moving the gap instead
+		buffer.setProperty("contentManager","pieceTable");
+		buffer.load(getCorpus().getText());
+	} //}}}
+
+	//{{{ run() method
+	/**
+	 * Types at both ends, then deletes what was typed in the same
+	 * order, leaving the buffer as it was.
+	 */
+	@Override
+	public int run()
+	{
+		int top = buffer.getLineStartOffset(1);
+		for(int i = 0; i < EDITS; i++)
+		{
+			String text = i % LINE_BREAKS == 0 ? "\n" : "x";
+			buffer.insert(top,text);
+			buffer.insert(buffer.getLength() - 1,text);
+		}
+		for(int i = 0; i < EDITS; i++)
+		{
+			buffer.remove(top,1);
+			buffer.remove(buffer.getLength() - 2,1);
+		}
+		return buffer.getLineCount();
+	} //}}}
+
+	private BenchmarkBuffer buffer;
+}
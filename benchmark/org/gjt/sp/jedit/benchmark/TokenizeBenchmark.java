@@ -0,0 +1,98 @@
+/*
+ * TokenizeBenchmark.java - Measures syntax highlighting
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.benchmark;
+
+//{{{ Imports
+import javax.swing.text.Segment;
+
+import org.gjt.sp.jedit.Mode;
+import org.gjt.sp.jedit.syntax.ModeProvider;
+import org.gjt.sp.jedit.syntax.TokenHandler;
+import org.gjt.sp.jedit.syntax.TokenMarker;
+//}}}
+
+/**
+ * Tokenizes all the lines of the text with the token marker of its
+ * edit mode, carrying the line context from one line to the next.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class TokenizeBenchmark extends Benchmark
+{
+	//{{{ TokenizeBenchmark constructor
+	TokenizeBenchmark(Corpus corpus)
+	{
+		super("tokenize",corpus);
+	} //}}}
+
+	//{{{ setUp() method
+	@Override
+	public void setUp() throws Exception
+	{
+		Mode mode = ModeProvider.instance.getMode(
+			getCorpus().getModeName());
+		if(mode == null)
+		{
+			throw new IllegalStateException("No "
+				+ getCorpus().getModeName() + " mode");
+		}
+		mode.loadIfNecessary();
+		tokenMarker = mode.getTokenMarker();
+
+		char[][] lines = getCorpus().getLines();
+		segments = new Segment[lines.length];
+		for(int i = 0; i < lines.length; i++)
+			segments[i] = new Segment(lines[i],0,lines[i].length);
+	} //}}}
+
+	//{{{ run() method
+	@Override
+	public int run()
+	{
+		CountingTokenHandler handler = new CountingTokenHandler();
+		TokenMarker.LineContext context = null;
+		for(int i = 0; i < segments.length; i++)
+			context = tokenMarker.markTokens(context,handler,segments[i]);
+		return handler.count;
+	} //}}}
+
+	private TokenMarker tokenMarker;
+	private Segment[] segments;
+
+	//{{{ CountingTokenHandler class
+	private static class CountingTokenHandler implements TokenHandler
+	{
+		int count;
+
+		public void handleToken(Segment seg, byte id, int offset,
+			int length, TokenMarker.LineContext context)
+		{
+			count++;
+		}
+
+		public void setLineContext(TokenMarker.LineContext lineContext)
+		{
+		}
+	} //}}}
+}
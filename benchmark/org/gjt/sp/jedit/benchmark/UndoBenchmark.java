@@ -0,0 +1,78 @@
+/*
+ * UndoBenchmark.java - Measures undoing and redoing
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.benchmark;
+
+import java.util.Random;
+
+/**
+ * Undoes all the edits done by an {@link EditBenchmark} operation, then
+ * redoes them.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class UndoBenchmark extends Benchmark
+{
+	//{{{ UndoBenchmark constructor
+	UndoBenchmark(Corpus corpus)
+	{
+		super("undoRedo",corpus);
+	} //}}}
+
+	//{{{ getCharsPerOperation() method
+	@Override
+	public long getCharsPerOperation()
+	{
+		return 0L;
+	} //}}}
+
+	//{{{ prepare() method
+	@Override
+	public void prepare() throws Exception
+	{
+		buffer = new BenchmarkBuffer();
+		buffer.load(getCorpus().getText());
+		buffer.setUndoLimit(Integer.MAX_VALUE);
+		EditBenchmark.edit(buffer,new Random(42));
+	} //}}}
+
+	//{{{ run() method
+	@Override
+	public int run() throws Exception
+	{
+		int edits = 0;
+		while(buffer.canUndo())
+		{
+			buffer.undo(null);
+			edits++;
+		}
+		while(buffer.canRedo())
+		{
+			buffer.redo(null);
+			edits++;
+		}
+		return edits;
+	} //}}}
+
+	private BenchmarkBuffer buffer;
+}
@@ -40,6 +40,7 @@ import org.gjt.sp.jedit.browser.VFSBrowser;
 import org.gjt.sp.jedit.buffer.BufferUndoListener;
 import org.gjt.sp.jedit.buffer.FoldHandler;
 import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.buffer.MappedText;
 import org.gjt.sp.jedit.bufferio.BufferAutosaveRequest;
 import org.gjt.sp.jedit.bufferio.BufferIORequest;
 import org.gjt.sp.jedit.bufferio.MarkersSaveRequest;
@@ -166,6 +167,20 @@ public class Buffer extends JEditBuffer
 		load(view,true);
 	} //}}}
 
+	//{{{ mappedTextTruncated() method
+	/**
+	 * Reloads the buffer when the memory mapped file it shows has been
+	 * truncated. A mapped buffer is read-only, so nothing is lost.
+	 */
+	@Override
+	protected void mappedTextTruncated()
+	{
+		super.mappedTextTruncated();
+		View view = jEdit.getActiveView();
+		if(view != null && !isPerformingIO())
+			reload(view);
+	} //}}}
+
 	//{{{ load() method
 	/**
 	 * Loads the buffer from disk.
@@ -242,20 +257,27 @@ public class Buffer extends JEditBuffer
 			{
 				String newPath = getStringProperty(
 					BufferIORequest.NEW_PATH);
-				Segment seg = (Segment)getProperty(
+				Object loadData = getProperty(
 					BufferIORequest.LOAD_DATA);
 				IntegerArray endOffsets = (IntegerArray)
 					getProperty(BufferIORequest.END_OFFSETS);
 
-				loadText(seg,endOffsets);
+				if(loadData instanceof MappedText)
+					loadMappedText((MappedText)loadData,endOffsets);
+				else
+					loadText((Segment)loadData,endOffsets);
 
 				unsetProperty(BufferIORequest.LOAD_DATA);
 				unsetProperty(BufferIORequest.END_OFFSETS);
 				unsetProperty(BufferIORequest.NEW_PATH);
 
+				// the journal would start over
+				setUndoJournal(null,null,false);
 				undoMgr.clear();
 				undoMgr.setLimit(jEdit.getIntegerProperty(
 					"buffer.undoCount",100));
+				undoMgr.setMemoryLimit(jEdit.getIntegerProperty(
+					"buffer.undoMemory",32) * 1024L * 1024L);
 
 				// If the buffer is temporary, we don't need to
 				// call finishLoading() because it sets the FoldHandler
@@ -286,6 +308,8 @@ public class Buffer extends JEditBuffer
 				// redundant autosave file
 				if(loadAutosave)
 					Buffer.super.setDirty(true);
+				else if(!getFlag(TEMPORARY))
+					openUndoJournal(true);
 
 				// send some EditBus messages
 				if(!getFlag(TEMPORARY))
@@ -1486,6 +1510,20 @@ public class Buffer extends JEditBuffer
 			+ ".marks";
 	} //}}}
 
+	//{{{ getUndoJournalPath() method
+	/**
+	 * Returns the path for this buffer's undo journal
+	 * @param vfs The appropriate VFS
+	 * @param path the path of the buffer
+	 * @since jEdit 5.1pre1
+	 */
+	public static String getUndoJournalPath(VFS vfs, String path)
+	{
+		return vfs.getParentOfPath(path)
+			+ '.' + vfs.getFileName(path)
+			+ ".undo";
+	} //}}}
+
 	//{{{ updateMarkersFile() method
 	/**
 	 * Save the markers file, or delete it when there are mo markers left
@@ -1674,6 +1712,7 @@ public class Buffer extends JEditBuffer
 	void close()
 	{
 		setFlag(CLOSED,true);
+		dispose();
 
 		if(autosaveFile != null)
 			autosaveFile.delete();
@@ -2081,6 +2120,25 @@ public class Buffer extends JEditBuffer
 		}
 	} //}}}
 
+	//{{{ openUndoJournal() method
+	/**
+	 * Starts keeping the undo history in a journal next to the file, if
+	 * enabled and the file is local.
+	 * @param restore If the history should be restored from the journal
+	 */
+	private void openUndoJournal(boolean restore)
+	{
+		File journal = null;
+		VFS vfs = VFSManager.getVFSForPath(path);
+		if(jEdit.getBooleanProperty("buffer.undoJournal")
+			&& vfs instanceof FileVFS && !isNewFile()
+			&& !isUntitled())
+		{
+			journal = new File(getUndoJournalPath(vfs,path));
+		}
+		setUndoJournal(journal,path,restore);
+	} //}}}
+
 	//{{{ finishSaving() method
 	private void finishSaving(View view, String oldPath,
 		String oldSymlinkPath, String path,
@@ -2143,6 +2201,11 @@ public class Buffer extends JEditBuffer
 
 			if(!error)
 			{
+				// the edits saved to the new file were
+				// never saved to the old one
+				if(!getPath().equals(oldPath))
+					setUndoJournal(null,null,false);
+
 				// we do a write lock so that the
 				// autosave, which grabs a read lock,
 				// is not executed between the
@@ -2172,6 +2235,9 @@ public class Buffer extends JEditBuffer
 
 				parseBufferLocalProperties();
 
+				if(getUndoJournal() == null && !isTemporary())
+					openUndoJournal(false);
+
 				if(!getPath().equals(oldPath))
 				{
 					if (!isTemporary())
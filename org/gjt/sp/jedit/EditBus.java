@@ -28,8 +28,15 @@ import java.lang.reflect.Method;
 import java.lang.reflect.InvocationTargetException;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import org.gjt.sp.jedit.msg.*;
 import org.gjt.sp.util.Log;
+import org.gjt.sp.util.StandardUtilities;
 import org.gjt.sp.util.ThreadUtilities;
 
 /**
@@ -117,6 +124,37 @@ public class EditBus
 		 * the parameter, instead of a compatible type.
 		 */
 		boolean exact() default false;
+
+		/**
+		 * Whether the messages should be delivered in a background
+		 * thread instead of the AWT thread, for handlers doing
+		 * work that doesn't touch the GUI. The handler gets the
+		 * messages one at a time, in the order they were sent; if
+		 * it falls too far behind, the oldest waiting messages
+		 * are dropped.
+		 *
+		 * @since jEdit 5.1pre1
+		 */
+		boolean async() default false;
+
+		/**
+		 * For asynchronous handlers, whether a message still
+		 * waiting to be delivered is dropped when a message of the
+		 * same class with the same source is sent, so that the
+		 * handler only gets the latest one. Messages telling what
+		 * happened, such as {@link BufferUpdate}, are only dropped
+		 * for a message telling the same thing, so that for
+		 * instance a load is not dropped for a later change of the
+		 * dirty flag. Likewise, {@link VFSUpdate} and
+		 * {@link VFSPathSelected} messages must be about the same
+		 * path, {@link DockableWindowUpdate} about the same
+		 * dockable, {@link RegisterChanged} about the same register,
+		 * {@link DynamicMenuChanged} about the same menu and
+		 * {@link PropertiesChanging} about the same state.
+		 *
+		 * @since jEdit 5.1pre1
+		 */
+		boolean coalesce() default false;
 	} //}}}
 
 	//{{{ addToBus() method
@@ -177,7 +215,9 @@ public class EditBus
 	 * Sends a message to all components on the bus in turn.
 	 * The message is delivered to components in the AWT thread,
 	 * and this method will wait until all handlers receive the
-	 * message before returning.
+	 * message before returning. Handlers annotated with
+	 * {@link EBHandler#async()} are the exception: the message is
+	 * only queued for them.
 	 * <p>
 	 * This method uses {@link ThreadUtilities#runInDispatchThreadNow},
 	 * read the notes there for possible deadlocks.
@@ -229,6 +269,7 @@ public class EditBus
 
 	//{{{ Private members
 	private static final HandlerList components = new HandlerList();
+	private static ExecutorService asyncPool;
 
 	// can't create new instances
 	private EditBus() {}
@@ -250,53 +291,165 @@ public class EditBus
 	//{{{ sendImpl() method
 	private static void sendImpl(EBMessage message)
 	{
-		boolean isExact = true;
-		Class<?> type = message.getClass();
-		while (!type.equals(Object.class))
+		Dispatch dispatch = components.getDispatch(message.getClass());
+		EBMessageHandler[] handlers = dispatch.handlers;
+		EditBusProfiler.Entry[] entries = null;
+		if (EditBusProfiler.isEnabled())
+			entries = dispatch.getProfilerEntries();
+		for (int i = 0; i < handlers.length; i++)
+		{
+			EBMessageHandler emh = handlers[i];
+			EditBusProfiler.Entry entry = entries == null
+				? null : entries[i];
+			if (emh.queue != null)
+				emh.queue.add(message, entry);
+			else
+				deliver(emh, message, entry);
+		}
+	} //}}}
+
+	//{{{ deliver() method
+	/**
+	 * Calls a handler, logging its exceptions.
+	 * @param entry Where to record the time spent, or null
+	 */
+	private static void deliver(EBMessageHandler emh, EBMessage message,
+		EditBusProfiler.Entry entry)
+	{
+		try
 		{
-			List<EBMessageHandler> handlers = components.get(type);
-			if (handlers != null)
+			if (entry != null)
 			{
+				long start = System.nanoTime();
 				try
 				{
-					for (EBMessageHandler emh : handlers)
-					{
-						if (!isExact &&
-						    emh.source != null &&
-						    emh.source.exact())
-						{
-							continue;
-						}
-						if(Debug.EB_TIMER)
-						{
-							long start = System.nanoTime();
-							dispatch(emh, message);
-							long time = System.nanoTime() - start;
-							if(time >= 1000000)
-							{
-								Log.log(Log.DEBUG,EditBus.class,emh.comp + ": " + time + " ns");
-							}
-						}
-						else
-							dispatch(emh, message);
-					}
+					dispatch(emh, message);
 				}
-				catch (InvocationTargetException t)
+				finally
 				{
-					Log.log(Log.ERROR,EditBus.class,"Exception"
-						+ " while sending message on EditBus:");
-					Log.log(Log.ERROR, EditBus.class, t.getCause());
+					entry.record(System.nanoTime() - start);
 				}
-				catch(Throwable t)
+			}
+			else if(Debug.EB_TIMER)
+			{
+				long start = System.nanoTime();
+				dispatch(emh, message);
+				long time = System.nanoTime() - start;
+				if(time >= 1000000)
 				{
-					Log.log(Log.ERROR,EditBus.class,"Exception"
-						+ " while sending message on EditBus:");
-					Log.log(Log.ERROR,EditBus.class,t);
+					Log.log(Log.DEBUG,EditBus.class,emh.comp + ": " + time + " ns");
 				}
 			}
-			type = type.getSuperclass();
-			isExact = false;
+			else
+				dispatch(emh, message);
+		}
+		catch (InvocationTargetException t)
+		{
+			Log.log(Log.ERROR,EditBus.class,"Exception"
+				+ " while sending message on EditBus:");
+			Log.log(Log.ERROR, EditBus.class, t.getCause());
+		}
+		catch(Throwable t)
+		{
+			Log.log(Log.ERROR,EditBus.class,"Exception"
+				+ " while sending message on EditBus:");
+			Log.log(Log.ERROR,EditBus.class,t);
+		}
+	} //}}}
+
+	//{{{ getAsyncPool() method
+	/**
+	 * Returns the threads delivering the messages to the asynchronous
+	 * handlers.
+	 */
+	private static synchronized ExecutorService getAsyncPool()
+	{
+		if (asyncPool == null)
+		{
+			int threads = Runtime.getRuntime().availableProcessors();
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(threads,
+				threads, 60L, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(),
+				new WorkerFactory());
+			pool.allowCoreThreadTimeOut(true);
+			asyncPool = pool;
+		}
+		return asyncPool;
+	} //}}}
+
+	//{{{ isRedundant() method
+	/**
+	 * Returns if a message waiting for a coalescing handler is
+	 * replaced by a newer one.
+	 * @see EBHandler#coalesce()
+	 */
+	private static boolean isRedundant(EBMessage waiting, EBMessage message)
+	{
+		if (waiting.getClass() != message.getClass()
+			|| waiting.getSource() != message.getSource())
+			return false;
+
+		if (message instanceof BufferUpdate)
+		{
+			return ((BufferUpdate)waiting).getWhat()
+				== ((BufferUpdate)message).getWhat();
 		}
+		else if (message instanceof BufferChanging)
+		{
+			return ((BufferChanging)waiting).getBuffer()
+				== ((BufferChanging)message).getBuffer();
+		}
+		else if (message instanceof EditPaneUpdate)
+		{
+			return ((EditPaneUpdate)waiting).getWhat()
+				== ((EditPaneUpdate)message).getWhat();
+		}
+		else if (message instanceof ViewUpdate)
+		{
+			return ((ViewUpdate)waiting).getWhat()
+				== ((ViewUpdate)message).getWhat();
+		}
+		else if (message instanceof PluginUpdate)
+		{
+			return ((PluginUpdate)waiting).getWhat()
+				== ((PluginUpdate)message).getWhat();
+		}
+		else if (message instanceof DockableWindowUpdate)
+		{
+			DockableWindowUpdate w = (DockableWindowUpdate)waiting;
+			DockableWindowUpdate m = (DockableWindowUpdate)message;
+			return w.getWhat() == m.getWhat()
+				&& StandardUtilities.objectsEqual(
+				w.getDockable(), m.getDockable());
+		}
+		else if (message instanceof VFSUpdate)
+		{
+			return ((VFSUpdate)waiting).getPath().equals(
+				((VFSUpdate)message).getPath());
+		}
+		else if (message instanceof VFSPathSelected)
+		{
+			return StandardUtilities.objectsEqual(
+				((VFSPathSelected)waiting).getPath(),
+				((VFSPathSelected)message).getPath());
+		}
+		else if (message instanceof RegisterChanged)
+		{
+			return ((RegisterChanged)waiting).getRegisterName()
+				== ((RegisterChanged)message).getRegisterName();
+		}
+		else if (message instanceof DynamicMenuChanged)
+		{
+			return StandardUtilities.objectsEqual(
+				((DynamicMenuChanged)waiting).getMenuName(),
+				((DynamicMenuChanged)message).getMenuName());
+		}
+		else if (message instanceof PropertiesChanging)
+		{
+			return ((PropertiesChanging)waiting).getState()
+				== ((PropertiesChanging)message).getState();
+		}
+		return true;
 	} //}}}
 
 	//}}}
@@ -312,11 +465,183 @@ public class EditBus
 			this.comp = comp;
 			this.handler = handler;
 			this.source = source;
+			queue = source != null && source.async()
+				? new AsyncQueue(this) : null;
+			if (handler != null)
+			{
+				// skips the access checks on every call, and
+				// allows public methods of non public classes
+				try
+				{
+					handler.setAccessible(true);
+				}
+				catch (SecurityException e)
+				{
+				}
+			}
 		}
 
-		Object comp;
-		Method handler;
-		EBHandler source;
+		final Object comp;
+		final Method handler;
+		final EBHandler source;
+		/** The waiting messages of an asynchronous handler. */
+		final AsyncQueue queue;
+	} //}}}
+
+	//{{{ AsyncQueue class
+	/**
+	 * The messages waiting for an asynchronous handler. A task of the
+	 * shared pool delivers them while the queue isn't empty, so the
+	 * handler gets them one at a time and in order.
+	 */
+	private static class AsyncQueue implements Runnable
+	{
+		/** Waiting messages beyond this drop the oldest one. */
+		private static final int MAX_PENDING = 1024;
+		/** Messages delivered before giving the thread to other queues. */
+		private static final int BATCH = 64;
+
+		AsyncQueue(EBMessageHandler emh)
+		{
+			this.emh = emh;
+		}
+
+		synchronized void add(EBMessage message,
+			EditBusProfiler.Entry entry)
+		{
+			if (closed)
+				return;
+
+			if (emh.source.coalesce())
+			{
+				// there is at most one, the others were dropped
+				// when it was added
+				for (Iterator<Pending> it = pending.iterator();
+				     it.hasNext(); )
+				{
+					if (isRedundant(it.next().message, message))
+					{
+						it.remove();
+						break;
+					}
+				}
+			}
+
+			if (pending.size() >= MAX_PENDING)
+			{
+				pending.removeFirst();
+				if (!overflowed)
+				{
+					overflowed = true;
+					Log.log(Log.WARNING, EditBus.class, emh.comp
+						+ " can't keep up with the EditBus, dropping"
+						+ " messages");
+				}
+			}
+			pending.addLast(new Pending(message, entry));
+
+			if (!scheduled)
+			{
+				scheduled = true;
+				getAsyncPool().execute(this);
+			}
+		}
+
+		synchronized void close()
+		{
+			closed = true;
+			pending.clear();
+		}
+
+		public void run()
+		{
+			for (int i = 0; i < BATCH; i++)
+			{
+				Pending next;
+				synchronized (this)
+				{
+					next = pending.poll();
+					if (next == null)
+					{
+						scheduled = false;
+						return;
+					}
+				}
+				deliver(emh, next.message, next.entry);
+			}
+
+			// still scheduled, let the other queues run first
+			getAsyncPool().execute(this);
+		}
+
+		private final EBMessageHandler emh;
+		private final LinkedList<Pending> pending = new LinkedList<Pending>();
+		private boolean scheduled;
+		private boolean closed;
+		private boolean overflowed;
+	} //}}}
+
+	//{{{ Pending class
+	private static class Pending
+	{
+		Pending(EBMessage message, EditBusProfiler.Entry entry)
+		{
+			this.message = message;
+			this.entry = entry;
+		}
+
+		final EBMessage message;
+		final EditBusProfiler.Entry entry;
+	} //}}}
+
+	//{{{ WorkerFactory class
+	private static class WorkerFactory implements ThreadFactory
+	{
+		private int count;
+
+		public synchronized Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r,"EditBus worker #" + ++count);
+			thread.setDaemon(true);
+			return thread;
+		}
+	} //}}}
+
+	//{{{ Dispatch class
+	/**
+	 * The handlers of a message class, in the order they are called.
+	 */
+	private static class Dispatch
+	{
+		Dispatch(Class<?> type, EBMessageHandler[] handlers)
+		{
+			this.type = type;
+			this.handlers = handlers;
+		}
+
+		/**
+		 * Returns the profiler entries of the handlers, in the
+		 * same order.
+		 */
+		EditBusProfiler.Entry[] getProfilerEntries()
+		{
+			EditBusProfiler.Entry[] entries = this.entries;
+			if (entries == null)
+			{
+				entries = new EditBusProfiler.Entry[handlers.length];
+				for (int i = 0; i < handlers.length; i++)
+				{
+					entries[i] = EditBusProfiler.getEntry(type,
+						handlers[i].comp, handlers[i].handler);
+				}
+				this.entries = entries;
+			}
+			return entries;
+		}
+
+		final Class<?> type;
+		final EBMessageHandler[] handlers;
+		private volatile EditBusProfiler.Entry[] entries;
 	} //}}}
 
 	//{{{ HandlerList class
@@ -324,7 +649,9 @@ public class EditBus
 	 * A "special" hash map that has some optimizations for use by
 	 * the EditBus. Notably, it allows setting a "read only" mode
 	 * where modifications to the map are postponed until the map
-	 * is unlocked.
+	 * is unlocked, and it caches the handlers of each message class
+	 * in the order they are called, so that sending a message doesn't
+	 * have to look up each of its superclasses.
 	 */
 	private static class HandlerList
 		extends HashMap<Class<?>, List<EBMessageHandler>>
@@ -341,6 +668,42 @@ public class EditBus
 		}
 
 
+		/**
+		 * Returns the handlers of a message class, followed by the
+		 * non exact handlers of its superclasses.
+		 */
+		public synchronized Dispatch getDispatch(Class<?> type)
+		{
+			Dispatch dispatch = dispatchCache.get(type);
+			if (dispatch != null)
+				return dispatch;
+
+			List<EBMessageHandler> all = new ArrayList<EBMessageHandler>();
+			boolean isExact = true;
+			for (Class<?> c = type; !c.equals(Object.class);
+			     c = c.getSuperclass())
+			{
+				List<EBMessageHandler> lst = get(c);
+				if (lst != null)
+				{
+					for (EBMessageHandler emh : lst)
+					{
+						if (isExact || emh.source == null ||
+						    !emh.source.exact())
+						{
+							all.add(emh);
+						}
+					}
+				}
+				isExact = false;
+			}
+			dispatch = new Dispatch(type,
+				all.toArray(new EBMessageHandler[all.size()]));
+			dispatchCache.put(type, dispatch);
+			return dispatch;
+		}
+
+
 		public synchronized void lock()
 		{
 			lock++;
@@ -370,6 +733,8 @@ public class EditBus
 				return;
 			}
 
+			dispatchCache.clear();
+
 			for (Map.Entry<Class<?>, List<EBMessageHandler>> entry: entrySet())
 			{
 				Class<?> msg = entry.getKey();
@@ -381,7 +746,11 @@ public class EditBus
 				{
 					EBMessageHandler emh = it.next();
 					if (emh.comp == comp)
+					{
 						it.remove();
+						if (emh.queue != null)
+							emh.queue.close();
+					}
 				}
 			}
 		}
@@ -395,6 +764,8 @@ public class EditBus
 				return;
 			}
 
+			dispatchCache.clear();
+
 			for (Method m : comp.getClass().getMethods())
 			{
 				EBHandler source = m.getAnnotation(EBHandler.class);
@@ -437,6 +808,8 @@ public class EditBus
 
 
 		private int lock;
+		private final Map<Class<?>, Dispatch> dispatchCache
+			= new HashMap<Class<?>, Dispatch>();
 		private List<Object> add = new LinkedList<Object>();
 		private List<Object> remove = new LinkedList<Object>();
 	} //}}}
@@ -0,0 +1,319 @@
+/*
+ * EditBusProfiler.java - Measures the EditBus handlers
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit;
+
+//{{{ Imports
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+//}}}
+
+/**
+ * Counts the messages delivered by the {@link EditBus} and measures the
+ * time spent in each handler, per message type and per subscriber class,
+ * to find out which component makes a message slow.<p>
+ *
+ * It is off by default. When it is on, each delivery costs two calls to
+ * {@link System#nanoTime()} and a few atomic updates; the times are kept
+ * in histograms with buckets about 12% wide, which give percentiles
+ * without storing each measure.
+ *
+ * @see org.gjt.sp.jedit.gui.EditBusProfilerPanel
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+public class EditBusProfiler
+{
+	//{{{ isEnabled() method
+	/**
+	 * Returns true if the deliveries are being measured.
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	} //}}}
+
+	//{{{ setEnabled() method
+	/**
+	 * Starts or stops measuring the deliveries. The measures taken so
+	 * far are kept.
+	 */
+	public static void setEnabled(boolean enabled)
+	{
+		EditBusProfiler.enabled = enabled;
+	} //}}}
+
+	//{{{ reset() method
+	/**
+	 * Forgets the measures taken so far.
+	 */
+	public static void reset()
+	{
+		for(Entry entry : entries.values())
+			entry.reset();
+	} //}}}
+
+	//{{{ getEntries() method
+	/**
+	 * Returns the message types and subscribers that got messages,
+	 * those taking the most time first.
+	 */
+	public static List<Entry> getEntries()
+	{
+		List<Entry> list = new ArrayList<Entry>();
+		for(Entry entry : entries.values())
+		{
+			if(entry.getCount() != 0)
+				list.add(entry);
+		}
+		Collections.sort(list,new Comparator<Entry>()
+		{
+			public int compare(Entry e1, Entry e2)
+			{
+				long t1 = e1.getTotalTime();
+				long t2 = e2.getTotalTime();
+				return t1 < t2 ? 1 : t1 == t2 ? 0 : -1;
+			}
+		});
+		return list;
+	} //}}}
+
+	//{{{ writeCSV() method
+	/**
+	 * Writes the measures as comma separated values, one line per
+	 * message type and subscriber, with times in microseconds.
+	 */
+	public static void writeCSV(Writer out) throws IOException
+	{
+		out.write("message,subscriber,count,total,mean,p50,p90,p99,max\n");
+		for(Entry entry : getEntries())
+		{
+			out.write(entry.getMessageType());
+			out.write(',');
+			out.write(entry.getSubscriber());
+			out.write(',');
+			out.write(String.valueOf(entry.getCount()));
+			out.write(',');
+			out.write(String.valueOf(entry.getTotalTime() / 1000L));
+			out.write(',');
+			out.write(String.valueOf(entry.getMeanTime() / 1000L));
+			out.write(',');
+			out.write(String.valueOf(entry.getPercentile(0.5) / 1000L));
+			out.write(',');
+			out.write(String.valueOf(entry.getPercentile(0.9) / 1000L));
+			out.write(',');
+			out.write(String.valueOf(entry.getPercentile(0.99) / 1000L));
+			out.write(',');
+			out.write(String.valueOf(entry.getMaxTime() / 1000L));
+			out.write('\n');
+		}
+	} //}}}
+
+	//{{{ Package-private members
+
+	//{{{ getEntry() method
+	/**
+	 * Returns the entry measuring the delivery of a message type to a
+	 * handler.
+	 * @param messageType The class of the message
+	 * @param comp The component
+	 * @param handler The annotated method, or null for
+	 * {@link EBComponent#handleMessage(EBMessage)}
+	 */
+	static Entry getEntry(Class<?> messageType, Object comp, Method handler)
+	{
+		String subscriber = comp.getClass().getName() + '.'
+			+ (handler == null ? "handleMessage" : handler.getName());
+		String key = messageType.getName() + ' ' + subscriber;
+		Entry entry = entries.get(key);
+		if(entry == null)
+		{
+			entry = new Entry(messageType.getName(),subscriber);
+			Entry old = entries.putIfAbsent(key,entry);
+			if(old != null)
+				entry = old;
+		}
+		return entry;
+	} //}}}
+
+	//}}}
+
+	//{{{ Private members
+	private static volatile boolean enabled;
+	private static final ConcurrentMap<String,Entry> entries
+		= new ConcurrentHashMap<String,Entry>();
+
+	/** Times below this are counted exactly. */
+	private static final int SUB_BUCKETS = 8;
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int BUCKETS = SUB_BUCKETS
+		+ (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private EditBusProfiler() {}
+
+	//{{{ getBucket() method
+	/**
+	 * Returns the histogram bucket of a time: each power of two is
+	 * split into {@link #SUB_BUCKETS} buckets.
+	 */
+	private static int getBucket(long time)
+	{
+		if(time < SUB_BUCKETS)
+			return (int)Math.max(0L,time);
+		int exp = 63 - Long.numberOfLeadingZeros(time);
+		int shift = exp - SUB_BUCKET_BITS;
+		return SUB_BUCKETS + shift * SUB_BUCKETS
+			+ (int)((time >>> shift) - SUB_BUCKETS);
+	} //}}}
+
+	//{{{ getBucketEnd() method
+	/**
+	 * Returns the highest time counted in a bucket.
+	 */
+	private static long getBucketEnd(int bucket)
+	{
+		if(bucket < SUB_BUCKETS)
+			return bucket;
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	} //}}}
+
+	//}}}
+
+	//{{{ Entry class
+	/**
+	 * The measures of the deliveries of one message type to one
+	 * subscriber. Times are in nanoseconds.
+	 */
+	public static class Entry
+	{
+		//{{{ getMessageType() method
+		/**
+		 * Returns the class name of the message.
+		 */
+		public String getMessageType()
+		{
+			return messageType;
+		} //}}}
+
+		//{{{ getSubscriber() method
+		/**
+		 * Returns the class name of the component followed by the
+		 * name of its handler method.
+		 */
+		public String getSubscriber()
+		{
+			return subscriber;
+		} //}}}
+
+		//{{{ getCount() method
+		public long getCount()
+		{
+			return count.get();
+		} //}}}
+
+		//{{{ getTotalTime() method
+		public long getTotalTime()
+		{
+			return totalTime.get();
+		} //}}}
+
+		//{{{ getMeanTime() method
+		public long getMeanTime()
+		{
+			long count = getCount();
+			return count == 0L ? 0L : getTotalTime() / count;
+		} //}}}
+
+		//{{{ getMaxTime() method
+		public long getMaxTime()
+		{
+			return maxTime.get();
+		} //}}}
+
+		//{{{ getPercentile() method
+		/**
+		 * Returns an upper bound of the time under which the given
+		 * fraction of the deliveries took.
+		 * @param fraction Between 0 and 1
+		 */
+		public long getPercentile(double fraction)
+		{
+			long total = 0L;
+			for(int i = 0; i < BUCKETS; i++)
+				total += histogram.get(i);
+			long rank = (long)Math.ceil(fraction * total);
+			long seen = 0L;
+			for(int i = 0; i < BUCKETS; i++)
+			{
+				seen += histogram.get(i);
+				if(seen >= rank && seen != 0L)
+					return Math.min(getBucketEnd(i),getMaxTime());
+			}
+			return 0L;
+		} //}}}
+
+		//{{{ record() method
+		void record(long time)
+		{
+			count.incrementAndGet();
+			totalTime.addAndGet(time);
+			histogram.incrementAndGet(getBucket(time));
+			long max = maxTime.get();
+			while(time > max && !maxTime.compareAndSet(max,time))
+				max = maxTime.get();
+		} //}}}
+
+		//{{{ Private members
+		private final String messageType;
+		private final String subscriber;
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalTime = new AtomicLong();
+		private final AtomicLong maxTime = new AtomicLong();
+		private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+		Entry(String messageType, String subscriber)
+		{
+			this.messageType = messageType;
+			this.subscriber = subscriber;
+		}
+
+		void reset()
+		{
+			count.set(0L);
+			totalTime.set(0L);
+			maxTime.set(0L);
+			for(int i = 0; i < BUCKETS; i++)
+				histogram.set(i,0L);
+		} //}}}
+	} //}}}
+}
@@ -147,11 +147,17 @@ public class Mode
 	 */
 	public void loadIfNecessary()
 	{
-		if(marker == null)
+		// temporary buffers can be loaded from several threads at
+		// once, and the token marker is set before the mode file is
+		// parsed, so modes are loaded one at a time
+		synchronized(ModeProvider.instance)
 		{
-			ModeProvider.instance.loadMode(this);
-			if (marker == null)
-				Log.log(Log.ERROR, this, "Mode not correctly loaded, token marker is still null");
+			if(marker == null)
+			{
+				ModeProvider.instance.loadMode(this);
+				if (marker == null)
+					Log.log(Log.ERROR, this, "Mode not correctly loaded, token marker is still null");
+			}
 		}
 	} //}}}
 
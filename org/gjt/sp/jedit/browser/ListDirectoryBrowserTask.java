@@ -66,6 +66,7 @@ class ListDirectoryBrowserTask extends AbstractBrowserTask
 		String canonPath = path;
 
 		VFSFile[] directory = null;
+		vfs.acquireRequestPermit();
 		try
 		{
 			setCancellable(true);
@@ -93,6 +94,7 @@ class ListDirectoryBrowserTask extends AbstractBrowserTask
 				String[] pp = { io.toString() };
 				VFSManager.error(browser, path,"ioerror.directory-error",pp);
 			}
+			vfs.releaseRequestPermit();
 		}
 
 		setCancellable(false);
@@ -0,0 +1,239 @@
+/*
+ * BufferSnapshot.java - An immutable view of a buffer's text
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.buffer;
+
+//{{{ Imports
+import javax.swing.text.Segment;
+//}}}
+
+/**
+ * The text and the line index of a buffer as they were when
+ * {@link JEditBuffer#getSnapshot()} was called.<p>
+ *
+ * A snapshot is never modified, so it can be read from any thread without
+ * holding the buffer's lock, for as long as needed: a search or a save
+ * working on one doesn't keep the dispatch thread from editing the buffer
+ * meanwhile. Taking a snapshot doesn't copy the text; the buffer copies
+ * the parts of its storage that the next edit changes instead.<p>
+ *
+ * Offsets found in a snapshot are only valid in the buffer as long as
+ * {@link #isCurrent()} returns true.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+public class BufferSnapshot
+{
+	//{{{ BufferSnapshot constructor
+	BufferSnapshot(JEditBuffer buffer, ContentManager contentMgr,
+		LineManager lineMgr)
+	{
+		this.buffer = buffer;
+		this.contentMgr = contentMgr.snapshot();
+		this.lineMgr = lineMgr.snapshot();
+		this.bufferLineMgr = lineMgr;
+		version = lineMgr.getVersion();
+	} //}}}
+
+	//{{{ getBuffer() method
+	/**
+	 * Returns the buffer this snapshot was taken of.
+	 */
+	public JEditBuffer getBuffer()
+	{
+		return buffer;
+	} //}}}
+
+	//{{{ isCurrent() method
+	/**
+	 * Returns true if the buffer hasn't changed since this snapshot was
+	 * taken. The answer only stays true while the buffer's read lock is
+	 * held, which is needed to use offsets found in the snapshot in the
+	 * buffer.
+	 */
+	public boolean isCurrent()
+	{
+		return bufferLineMgr.getVersion() == version;
+	} //}}}
+
+	//{{{ getLength() method
+	/**
+	 * Returns the number of characters in the snapshot.
+	 */
+	public int getLength()
+	{
+		return contentMgr.getLength();
+	} //}}}
+
+	//{{{ getLineCount() method
+	/**
+	 * Returns the number of physical lines in the snapshot.
+	 */
+	public int getLineCount()
+	{
+		return lineMgr.getLineCount();
+	} //}}}
+
+	//{{{ getLineOfOffset() method
+	/**
+	 * Returns the line containing the specified offset.
+	 * @param offset The offset
+	 */
+	public int getLineOfOffset(int offset)
+	{
+		if(offset < 0 || offset > getLength())
+			throw new ArrayIndexOutOfBoundsException(offset);
+
+		return lineMgr.getLineOfOffset(offset);
+	} //}}}
+
+	//{{{ getLineStartOffset() method
+	/**
+	 * Returns the start offset of the specified line.
+	 * @param line The line
+	 * @see JEditBuffer#getLineStartOffset(int)
+	 */
+	public int getLineStartOffset(int line)
+	{
+		if(line < 0 || line >= lineMgr.getLineCount())
+			throw new ArrayIndexOutOfBoundsException(line);
+
+		return line == 0 ? 0 : lineMgr.getLineEndOffset(line - 1);
+	} //}}}
+
+	//{{{ getLineEndOffset() method
+	/**
+	 * Returns the end offset of the specified line, after its end of
+	 * line character.
+	 * @param line The line
+	 * @see JEditBuffer#getLineEndOffset(int)
+	 */
+	public int getLineEndOffset(int line)
+	{
+		if(line < 0 || line >= lineMgr.getLineCount())
+			throw new ArrayIndexOutOfBoundsException(line);
+
+		return lineMgr.getLineEndOffset(line);
+	} //}}}
+
+	//{{{ getLineLength() method
+	/**
+	 * Returns the length of the specified line.
+	 * @param line The line
+	 */
+	public int getLineLength(int line)
+	{
+		return getLineEndOffset(line) - getLineStartOffset(line) - 1;
+	} //}}}
+
+	//{{{ getLineText() methods
+	/**
+	 * Returns the text on the specified line.
+	 * @param line The line
+	 */
+	public String getLineText(int line)
+	{
+		int start = getLineStartOffset(line);
+		return contentMgr.getText(start,
+			lineMgr.getLineEndOffset(line) - start - 1);
+	}
+
+	/**
+	 * Returns the specified line in a <code>Segment</code>.
+	 * @param line The line
+	 * @param segment The segment to point to the text
+	 */
+	public void getLineText(int line, Segment segment)
+	{
+		int start = getLineStartOffset(line);
+		contentMgr.getText(start,lineMgr.getLineEndOffset(line)
+			- start - 1,segment);
+	} //}}}
+
+	//{{{ getLineSegment() method
+	/**
+	 * Returns the text on the specified line, without copying it if
+	 * possible.
+	 * @param line The line
+	 */
+	public CharSequence getLineSegment(int line)
+	{
+		int start = getLineStartOffset(line);
+		return contentMgr.getSegment(start,
+			lineMgr.getLineEndOffset(line) - start - 1);
+	} //}}}
+
+	//{{{ getText() methods
+	/**
+	 * Returns the specified text range.
+	 * @param start The start offset
+	 * @param length The number of characters to get
+	 */
+	public String getText(int start, int length)
+	{
+		checkRange(start,length);
+		return contentMgr.getText(start,length);
+	}
+
+	/**
+	 * Returns the specified text range in a <code>Segment</code>.
+	 * @param start The start offset
+	 * @param length The number of characters to get
+	 * @param seg The segment to point to the text
+	 */
+	public void getText(int start, int length, Segment seg)
+	{
+		checkRange(start,length);
+		contentMgr.getText(start,length,seg);
+	} //}}}
+
+	//{{{ getSegment() method
+	/**
+	 * Returns the specified text range, without copying it if possible.
+	 * @param start The start offset
+	 * @param length The number of characters to get
+	 */
+	public CharSequence getSegment(int start, int length)
+	{
+		checkRange(start,length);
+		return contentMgr.getSegment(start,length);
+	} //}}}
+
+	//{{{ Private members
+	private final JEditBuffer buffer;
+	private final ContentManager contentMgr;
+	private final LineManager lineMgr;
+	/** The buffer's own line manager, to tell if it changed. */
+	private final LineManager bufferLineMgr;
+	private final int version;
+
+	//{{{ checkRange() method
+	private void checkRange(int start, int length)
+	{
+		if(start < 0 || length < 0
+			|| start + length > contentMgr.getLength())
+			throw new ArrayIndexOutOfBoundsException(start + ":" + length);
+	} //}}}
+
+	//}}}
+}
@@ -29,13 +29,18 @@ import javax.swing.text.Segment;
  * directly. To improve performance, none of the methods in this class
  * check for out of bounds access, nor are they thread-safe. The
  * <code>Buffer</code> class, through which these methods must be
- * called through, implements such protection.
+ * called through, implements such protection.<p>
+ *
+ * The actual storage is provided by subclasses; {@link GapContentManager}
+ * is the default, {@link PieceTableContentManager} is used for large
+ * files and {@link MappedContentManager} for huge files opened
+ * read-only.
  *
  * @author Slava Pestov
  * @version $Id$
  * @since jEdit 4.0pre1
  */
-class ContentManager
+abstract class ContentManager
 {
 	//{{{ getLength() method
 	public final int getLength()
@@ -43,19 +48,17 @@ class ContentManager
 		return length;
 	} //}}}
 
-	//{{{ getText() methods
-	public String getText(int start, int len)
+	//{{{ isReadOnly() method
+	/**
+	 * Returns true if this content manager cannot be modified.
+	 */
+	public boolean isReadOnly()
 	{
-		if(start >= gapStart)
-			return new String(text,start + gapLength(),len);
-		else if(start + len <= gapStart)
-			return new String(text,start,len);
-		else
-		{
-			return new String(text,start,gapStart - start)
-				.concat(new String(text,gapEnd(),start + len - gapStart));
-		}
-	}
+		return false;
+	} //}}}
+
+	//{{{ getText() methods
+	public abstract String getText(int start, int len);
 
 	/**
 	 * Returns the specified text range in a <code>Segment</code>.<p>
@@ -70,35 +73,8 @@ class ContentManager
 	 * @param seg The segment to copy the text to
 	 * @see JEditBuffer#getText(int, int, Segment)
 	 */
-	public void getText(int start, int len, Segment seg)
-	{
-		if(start >= gapStart)
-		{
-			seg.array = text;
-			seg.offset = start + gapLength();
-			seg.count = len;
-		}
-		else if(start + len <= gapStart)
-		{
-			seg.array = text;
-			seg.offset = start;
-			seg.count = len;
-		}
-		else
-		{
-			seg.array = new char[len];
-
-			// copy text before gap
-			System.arraycopy(text,start,seg.array,0,gapStart - start);
-
-			// copy text after gap
-			System.arraycopy(text,gapEnd(),seg.array,gapStart - start,
-				len + start - gapStart);
-
-			seg.offset = 0;
-			seg.count = len;
-		}
-	} //}}}
+	public abstract void getText(int start, int len, Segment seg);
+	//}}}
 
 	//{{{ getSegment() method
 	/**
@@ -111,136 +87,44 @@ class ContentManager
 	 * @return a CharSequence that contains the text wanted text
 	 * @since jEdit 4.3pre15
 	 */
-	public CharSequence getSegment(int start, int len)
-	{
-		if(start >= gapStart)
-			return new BufferSegment(text,start + gapLength(),len);
-		else if(start + len <= gapStart)
-			return new BufferSegment(text,start,len);
-		else
-		{
-			return new BufferSegment(text,start,gapStart - start,
-				new BufferSegment(text,gapEnd(),start + len - gapStart));
-		}
-	} //}}}
+	public abstract CharSequence getSegment(int start, int len);
+	//}}}
 
 	//{{{ insert() methods
-	public void insert(int start, String str)
-	{
-		int len = str.length();
-		prepareGapForInsertion(start, len);
-		str.getChars(0,len,text,start);
-		gapStart += len;
-		length += len;
-	}
+	public abstract void insert(int start, String str);
 
 	/**
 	 * Inserts the given data into the buffer.
 	 *
 	 * @since jEdit 4.3pre15
 	 */
-	public void insert(int start, CharSequence str)
-	{
-		int len = str.length();
-		prepareGapForInsertion(start, len);
-		for (int i = 0; i < len; i++)
-		{
-			text[start+i] = str.charAt(i);
-		}
-		gapStart += len;
-		length += len;
-	}
+	public abstract void insert(int start, CharSequence str);
 
-	public void insert(int start, Segment seg)
-	{
-		prepareGapForInsertion(start, seg.count);
-		System.arraycopy(seg.array,seg.offset,text,start,seg.count);
-		gapStart += seg.count;
-		length += seg.count;
-	} //}}}
+	public abstract void insert(int start, Segment seg);
+	//}}}
 
 	//{{{ _setContent() method
-	public void _setContent(char[] text, int length)
-	{
-		assert text != null;
-		assert text.length >= length;
-		this.text = text;
-		this.gapStart = length;
-		this.length = length;
-	} //}}}
+	/**
+	 * Replaces the whole content. The array is taken over by the
+	 * content manager and must not be modified by the caller afterwards.
+	 */
+	public abstract void _setContent(char[] text, int length);
+	//}}}
 
 	//{{{ remove() method
-	public void remove(int start, int len)
-	{
-		moveGapStart(start);
-		length -= len;
-	} //}}}
-
-	//{{{ Private members
-	private static final char[] EMPTY_TEXT = new char[0];
-	private char[] text = EMPTY_TEXT;
-	private int gapStart;
-	private int length;
-
-	//{{{ gapEnd() method
-	private int gapEnd()
-	{
-		return gapStart + gapLength();
-	} //}}}
-
-	//{{{ gapLength() method
-	private int gapLength()
-	{
-		return text.length - length;
-	} //}}}
-
-	//{{{ moveGapStart() method
-	private void moveGapStart(int newStart)
-	{
-		int gapEnd = gapEnd();
-		int newEnd = gapEnd + (newStart - gapStart);
-
-		if(newStart == gapStart)
-		{
-			// nothing to do
-		}
-		else if(newStart > gapStart)
-		{
-			System.arraycopy(text,gapEnd,text,gapStart,
-				newStart - gapStart);
-		}
-		else if(newStart < gapStart)
-		{
-			System.arraycopy(text,newStart,text,newEnd,
-				gapStart - newStart);
-		}
-
-		gapStart = newStart;
-	} //}}}
-
-	//{{{ ensureCapacity() method
-	private void ensureCapacity(int capacity)
-	{
-		if(capacity >= text.length)
-		{
-			int gapEndOld = gapEnd();
-
-			char[] textN = new char[capacity * 2];
-			System.arraycopy(text,0,textN,0,text.length);
-			text = textN;
-
-			int gapEndNew = gapEnd();
-			System.arraycopy(text,gapEndOld,text,gapEndNew,text.length - gapEndNew);
-		}
-	} //}}}
+	public abstract void remove(int start, int len);
+	//}}}
 
-	//{{{ prepareGapForInsertion() method
-	private void prepareGapForInsertion(int start, int len)
-	{
-		moveGapStart(start);
-		if(gapLength() < len)
-			ensureCapacity(length + len);
-	} //}}}
+	//{{{ snapshot() method
+	/**
+	 * Returns a content manager holding the current text, which later
+	 * changes to this one don't affect. It must not be modified.
+	 * @since jEdit 5.1pre1
+	 */
+	public abstract ContentManager snapshot();
+	//}}}
 
+	//{{{ Protected members
+	protected int length;
 	//}}}
 }
@@ -37,12 +37,16 @@ import org.gjt.sp.jedit.textarea.TextArea;
 import org.gjt.sp.util.IntegerArray;
 import org.gjt.sp.util.Log;
 import org.gjt.sp.util.StandardUtilities;
+import org.gjt.sp.util.Task;
+import org.gjt.sp.util.ThreadUtilities;
 
 import javax.swing.text.Position;
 import javax.swing.text.Segment;
 import java.awt.*;
+import java.io.File;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Pattern;
 //}}}
@@ -88,7 +92,7 @@ public class JEditBuffer
 	{
 		bufferListeners = new Vector<Listener>();
 		lock = new ReentrantReadWriteLock();
-		contentMgr = new ContentManager();
+		contentMgr = new GapContentManager();
 		lineMgr = new LineManager();
 		positionMgr = new PositionManager(this);
 		undoMgr = new UndoManager(this);
@@ -119,7 +123,7 @@ public class JEditBuffer
 	{
 		bufferListeners = new Vector<Listener>();
 		lock = new ReentrantReadWriteLock();
-		contentMgr = new ContentManager();
+		contentMgr = new GapContentManager();
 		lineMgr = new LineManager();
 		positionMgr = new PositionManager(this);
 		undoMgr = new UndoManager(this);
@@ -208,7 +212,7 @@ public class JEditBuffer
 	 */
 	public boolean isReadOnly()
 	{
-		return readOnly || readOnlyOverride;
+		return readOnly || readOnlyOverride || contentMgr.isReadOnly();
 	} //}}}
 
 	//{{{ setReadOnly() method
@@ -672,6 +676,30 @@ public class JEditBuffer
 		}
 	} //}}}
 
+	//{{{ getSnapshot() method
+	/**
+	 * Returns the current text and line index as a snapshot that later
+	 * edits don't affect. It can be read from any thread without holding
+	 * the lock, so tasks reading the whole buffer in the background
+	 * should use one instead of holding the read lock, which keeps the
+	 * dispatch thread from editing the buffer. This method is
+	 * thread-safe.
+	 * @since jEdit 5.1pre1
+	 */
+	public BufferSnapshot getSnapshot()
+	{
+		try
+		{
+			readLock();
+
+			return new BufferSnapshot(this,contentMgr,lineMgr);
+		}
+		finally
+		{
+			readUnlock();
+		}
+	} //}}}
+
 	//{{{ insert() methods
 	/**
 	 * Inserts a string into the buffer.
@@ -804,6 +832,112 @@ public class JEditBuffer
 		}
 	} //}}}
 
+	//{{{ replace() method
+	/**
+	 * Replaces several ranges of text at once. The text, the lines and
+	 * the positions are updated in one go for each run of ranges on
+	 * adjacent lines, listeners are told of one removal followed by one
+	 * insertion covering each run, and the whole is undone as a single
+	 * edit, which makes it much faster than removing and inserting the
+	 * ranges one by one. While they are told of a run, listeners can get
+	 * it from {@link #getReplacementsInProgress()}.
+	 * @param replacements The ranges to replace, in the offsets of the
+	 * current text
+	 * @since jEdit 5.1pre1
+	 */
+	public void replace(Replacements replacements)
+	{
+		int count = replacements.size();
+		if(count == 0)
+			return;
+
+		if(isReadOnly())
+			throw new RuntimeException("buffer read-only");
+
+		try
+		{
+			transaction = true;
+
+			writeLock();
+
+			int start = replacements.getOffset(0);
+			int end = replacements.getEnd();
+			if(end > contentMgr.getLength())
+				throw new ArrayIndexOutOfBoundsException(start + ":" + end);
+
+			if(!undoInProgress)
+			{
+				Segment seg = new Segment();
+				contentMgr.getText(start,end - start,seg);
+				StringBuilder removed = new StringBuilder();
+				for(int i = 0; i < count; i++)
+				{
+					removed.append(seg.array,seg.offset
+						+ replacements.getOffset(i) - start,
+						replacements.getLength(i));
+				}
+				undoMgr.contentReplaced(replacements,
+					removed.toString(),!dirty);
+			}
+
+			// the lines between the runs, with their folds, are
+			// left alone. The runs are replaced from the last one,
+			// so that the offsets of the others stay right
+			int runEnd = count;
+			while(runEnd > 0)
+			{
+				int runStart = runEnd - 1;
+				int startLine = lineMgr.getLineOfOffset(
+					replacements.getOffset(runStart));
+				while(runStart > 0 && lineMgr.getLineOfOffset(
+					replacements.getOffset(runStart - 1)
+					+ replacements.getLength(runStart - 1))
+					>= startLine)
+				{
+					runStart--;
+					startLine = lineMgr.getLineOfOffset(
+						replacements.getOffset(runStart));
+				}
+
+				if(runStart == 0 && runEnd == count)
+					replaceRun(replacements,startLine);
+				else
+				{
+					replaceRun(replacements.subList(runStart,
+						runEnd),startLine);
+				}
+				runEnd = runStart;
+			}
+
+			/* otherwise it will be delivered later */
+			if(!undoInProgress && !insideCompoundEdit())
+				fireTransactionComplete();
+		}
+		finally
+		{
+			transaction = false;
+			replacementsInProgress = null;
+
+			writeUnlock();
+		}
+	} //}}}
+
+	//{{{ getReplacementsInProgress() method
+	/**
+	 * While {@link #replace(Replacements)} tells the listeners of a run
+	 * of ranges, returns that run, in the offsets of the text before it
+	 * is replaced. Listeners keeping offsets, such as a caret, can move
+	 * them with {@link Replacements#getNewOffset(int)} as if each range
+	 * had been replaced on its own, since the removal and insertion they
+	 * are told of cover the text between the ranges too.
+	 * @return the run, or null if no replacement is in progress
+	 * @since jEdit 5.1pre1
+	 */
+	public Replacements getReplacementsInProgress()
+	{
+		return replacementsInProgress;
+	} //}}}
+
 	//}}}
 
 	//{{{ Indentation
@@ -1345,6 +1479,21 @@ loop:		for(int i = 0; i < seg.count; i++)
 		if(lineIndex < 0 || lineIndex >= lineMgr.getLineCount())
 			throw new ArrayIndexOutOfBoundsException(lineIndex);
 
+		contextLock.lock();
+		try
+		{
+			markTokens(lineIndex,tokenHandler,seg);
+		}
+		finally
+		{
+			contextLock.unlock();
+		}
+	} //}}}
+
+	//{{{ markTokens() method
+	private void markTokens(int lineIndex, TokenHandler tokenHandler,
+		Segment seg)
+	{
 		int firstInvalidLineContext = lineMgr.getFirstInvalidLineContext();
 		int start;
 		if(contextInsensitive || firstInvalidLineContext == -1)
@@ -1407,7 +1556,16 @@ loop:		for(int i = 0; i < seg.count; i++)
 		// don't do this on initial token marker
 		if(oldTokenMarker != null && tokenMarker != oldTokenMarker)
 		{
-			lineMgr.setFirstInvalidLineContext(0);
+			contextLock.lock();
+			try
+			{
+				lineMgr.setFirstInvalidLineContext(0);
+			}
+			finally
+			{
+				contextLock.unlock();
+			}
+			startTokenizer();
 		}
 	} //}}}
 
@@ -1460,6 +1618,69 @@ loop:		for(int i = 0; i < seg.count; i++)
 		}
 	} //}}}
 
+	//{{{ getWordIndex() method
+	/**
+	 * Returns the index of the words of this buffer. It is built the
+	 * first time it is requested, then kept up to date as the buffer
+	 * changes, looking only at the lines each edit changes. An index
+	 * is kept for each of the last few sets of word characters asked
+	 * for, so that completing from buffers of different modes does not
+	 * rebuild them every time.
+	 * This method is thread-safe.
+	 * @param noWordSep Characters that are non-alphanumeric, but
+	 * are treated as word characters
+	 * @since jEdit 5.1pre1
+	 */
+	public WordIndex getWordIndex(String noWordSep)
+	{
+		try
+		{
+			readLock();
+
+			String normalized = WordIndex.normalize(noWordSep);
+			synchronized(wordIndexLock)
+			{
+				WordIndex[] indexes = wordIndexes;
+				WordIndex index = null;
+				int found = -1;
+				for(int i = 0; i < indexes.length; i++)
+				{
+					if(indexes[i].getNoWordSep().equals(normalized))
+					{
+						index = indexes[i];
+						found = i;
+						break;
+					}
+				}
+				if(found == 0)
+					return index;
+
+				// the index used is moved to the front, the least
+				// recently used one is dropped
+				int count = indexes.length;
+				if(index == null)
+				{
+					index = new WordIndex(this,noWordSep);
+					count = Math.min(count + 1,MAX_WORD_INDEXES);
+				}
+				WordIndex[] newIndexes = new WordIndex[count];
+				newIndexes[0] = index;
+				int j = 1;
+				for(int i = 0; i < indexes.length && j < count; i++)
+				{
+					if(i != found)
+						newIndexes[j++] = indexes[i];
+				}
+				wordIndexes = newIndexes;
+				return index;
+			}
+		}
+		finally
+		{
+			readUnlock();
+		}
+	} //}}}
+
 	//{{{ getTabSize() method
 	/**
 	 * Returns the tab size used in this buffer. This is equivalent
@@ -1912,8 +2133,9 @@ loop:		for(int i = 0; i < seg.count; i++)
 	 */
 	public void invalidateCachedFoldLevels()
 	{
-		lineMgr.setFirstInvalidFoldLevel(0);
+		invalidateFoldLevels();
 		fireFoldLevelChanged(0,getLineCount());
+		startFoldUpdater();
 	} //}}}
 
 	//{{{ getFoldLevel() method
@@ -1932,63 +2154,27 @@ loop:		for(int i = 0; i < seg.count; i++)
 
 		int firstInvalidFoldLevel = lineMgr.getFirstInvalidFoldLevel();
 		if(firstInvalidFoldLevel == -1 || line < firstInvalidFoldLevel)
-		{
 			return lineMgr.getFoldLevel(line);
+
+		int firstUpdatedFoldLevel;
+		int newFoldLevel;
+		readLock();
+		foldLock.lock();
+		try
+		{
+			firstUpdatedFoldLevel = updateFoldLevels(line,0L);
+			newFoldLevel = lineMgr.getFoldLevel(line);
 		}
-		else
+		finally
 		{
-			if(Debug.FOLD_DEBUG)
-				Log.log(Log.DEBUG,this,"Invalid fold levels from " + firstInvalidFoldLevel + " to " + line);
-
-			int newFoldLevel = 0;
-			boolean changed = false;
-			int firstUpdatedFoldLevel = firstInvalidFoldLevel;
-
-			for(int i = firstInvalidFoldLevel; i <= line; i++)
-			{
-				Segment seg = new Segment();
-				newFoldLevel = foldHandler.getFoldLevel(this,i,seg);
-				if(newFoldLevel != lineMgr.getFoldLevel(i))
-				{
-					if(Debug.FOLD_DEBUG)
-						Log.log(Log.DEBUG,this,i + " fold level changed");
-					changed = true;
-					// Update preceding fold levels if necessary
-					if (i == firstInvalidFoldLevel)
-					{
-						List<Integer> precedingFoldLevels =
-							foldHandler.getPrecedingFoldLevels(
-								this,i,seg,newFoldLevel);
-						if (precedingFoldLevels != null)
-						{
-							int j = i;
-							for (Integer foldLevel: precedingFoldLevels)
-							{
-								j--;
-								lineMgr.setFoldLevel(j,foldLevel.intValue());
-							}
-							if (j < firstUpdatedFoldLevel)
-								firstUpdatedFoldLevel = j;
-						}
-					}
-				}
-				lineMgr.setFoldLevel(i,newFoldLevel);
-			}
-
-			if(line == lineMgr.getLineCount() - 1)
-				lineMgr.setFirstInvalidFoldLevel(-1);
-			else
-				lineMgr.setFirstInvalidFoldLevel(line + 1);
+			foldLock.unlock();
+			readUnlock();
+		}
 
-			if(changed)
-			{
-				if(Debug.FOLD_DEBUG)
-					Log.log(Log.DEBUG,this,"fold level changed: " + firstUpdatedFoldLevel + ',' + line);
-				fireFoldLevelChanged(firstUpdatedFoldLevel,line);
-			}
+		if(firstUpdatedFoldLevel != -1)
+			fireFoldLevelChanged(firstUpdatedFoldLevel,line);
 
-			return newFoldLevel;
-		}
+		return newFoldLevel;
 	} //}}}
 
 	//{{{ getFoldAtLine() method
@@ -2074,9 +2260,10 @@ loop:		for(int i = 0; i < seg.count; i++)
 
 		this.foldHandler = foldHandler;
 
-		lineMgr.setFirstInvalidFoldLevel(0);
+		invalidateFoldLevels();
 
 		fireFoldHandlerChanged();
+		startFoldUpdater();
 	} //}}}
 
 	//}}}
@@ -2087,6 +2274,8 @@ loop:		for(int i = 0; i < seg.count; i++)
 	/**
 	 * Undoes the most recent edit.
 	 *
+	 * @param textArea The text area whose caret is moved to the
+	 * edit, it can be null since jEdit 5.1pre1
 	 * @since jEdit 4.0pre1
 	 */
 	public void undo(TextArea textArea)
@@ -2096,7 +2285,7 @@ loop:		for(int i = 0; i < seg.count; i++)
 
 		if(!isEditable())
 		{
-			textArea.getToolkit().beep();
+			Toolkit.getDefaultToolkit().beep();
 			return;
 		}
 
@@ -2108,8 +2297,8 @@ loop:		for(int i = 0; i < seg.count; i++)
 			fireBeginUndo();
 			int caret = undoMgr.undo();
 			if(caret == -1)
-				textArea.getToolkit().beep();
-			else
+				Toolkit.getDefaultToolkit().beep();
+			else if(textArea != null)
 				textArea.setCaretPosition(caret);
 
 			fireEndUndo();
@@ -2127,6 +2316,8 @@ loop:		for(int i = 0; i < seg.count; i++)
 	/**
 	 * Redoes the most recently undone edit.
 	 *
+	 * @param textArea The text area whose caret is moved to the
+	 * edit, it can be null since jEdit 5.1pre1
 	 * @since jEdit 2.7pre2
 	 */
 	public void redo(TextArea textArea)
@@ -2148,8 +2339,8 @@ loop:		for(int i = 0; i < seg.count; i++)
 			fireBeginRedo();
 			int caret = undoMgr.redo();
 			if(caret == -1)
-				textArea.getToolkit().beep();
-			else
+				Toolkit.getDefaultToolkit().beep();
+			else if(textArea != null)
 				textArea.setCaretPosition(caret);
 
 			fireEndRedo();
@@ -2298,10 +2489,14 @@ loop:		for(int i = 0; i < seg.count; i++)
 			if(_l.priority < priority)
 			{
 				bufferListeners.add(i,l);
+				startTokenizer();
+				startFoldUpdater();
 				return;
 			}
 		}
 		bufferListeners.add(l);
+		startTokenizer();
+		startFoldUpdater();
 	}
 
 	/**
@@ -2349,6 +2544,68 @@ loop:		for(int i = 0; i < seg.count; i++)
 		return returnValue;
 	} //}}}
 
+	//{{{ setUndoJournal() method
+	/**
+	 * Keeps a journal of the undo history in a file, so that it can be
+	 * restored when the buffer is loaded again. The previous journal, if
+	 * any, is closed; the edits done since the buffer was last saved
+	 * are removed from it if the buffer is dirty.
+	 *
+	 * @param file The journal file, or null to stop keeping one
+	 * @param path The path of the buffer's file; a journal is only
+	 * restored for the path it was written for
+	 * @param restore If true and the file is the journal of a text the
+	 * buffer had when it was saved, the history is restored from it, and
+	 * the edits done after that save are done again. Otherwise, a new
+	 * journal is started with the current history
+	 * @return true if the history was restored
+	 * @since jEdit 5.1pre1
+	 */
+	public boolean setUndoJournal(File file, String path, boolean restore)
+	{
+		if(undoMgr == null)
+			return false;
+
+		try
+		{
+			writeLock();
+
+			UndoJournal journal = undoMgr.getJournal();
+			if(journal != null)
+			{
+				undoMgr.setJournal(null);
+				journal.close(isDirty());
+			}
+
+			if(file == null)
+				return false;
+
+			journal = new UndoJournal(file,path);
+			boolean restored = restore && journal.restore(this,undoMgr);
+			if(!restored)
+				journal.start(this,undoMgr);
+			undoMgr.setJournal(journal);
+			return restored;
+		}
+		finally
+		{
+			writeUnlock();
+		}
+	} //}}}
+
+	//{{{ getUndoJournal() method
+	/**
+	 * Returns the file the undo history is written to, or null.
+	 * @since jEdit 5.1pre1
+	 */
+	public File getUndoJournal()
+	{
+		if(undoMgr == null)
+			return null;
+		UndoJournal journal = undoMgr.getJournal();
+		return (journal == null ? null : journal.getFile());
+	} //}}}
+
 	//{{{ setUndoLimit() method
 	/**
 	 * Set the undo limit of the Undo Manager.
@@ -2410,6 +2667,7 @@ loop:		for(int i = 0; i < seg.count; i++)
 	public void setContextInsensitive(boolean contextInsensitive)
 	{
 		this.contextInsensitive = contextInsensitive;
+		startTokenizer();
 	}//}}}
 
 	//}}}
@@ -2451,6 +2709,10 @@ loop:		for(int i = 0; i < seg.count; i++)
 	protected void fireContentInserted(int startLine, int offset,
 		int numLines, int length)
 	{
+		WordIndex[] indexes = wordIndexes;
+		for(int i = 0; i < indexes.length; i++)
+			indexes[i].contentInserted(startLine,numLines);
+
 		for(int i = 0; i < bufferListeners.size(); i++)
 		{
 			BufferListener listener = getListener(i);
@@ -2471,6 +2733,10 @@ loop:		for(int i = 0; i < seg.count; i++)
 	protected void fireContentRemoved(int startLine, int offset,
 		int numLines, int length)
 	{
+		WordIndex[] indexes = wordIndexes;
+		for(int i = 0; i < indexes.length; i++)
+			indexes[i].contentRemoved(startLine,numLines);
+
 		for(int i = 0; i < bufferListeners.size(); i++)
 		{
 			BufferListener listener = getListener(i);
@@ -2563,6 +2829,8 @@ loop:		for(int i = 0; i < seg.count; i++)
 				Log.log(Log.ERROR,this,t);
 			}
 		}
+		startTokenizer();
+		startFoldUpdater();
 	} //}}}
 
 	//{{{ fireFoldHandlerChanged() method
@@ -2631,21 +2899,10 @@ loop:		for(int i = 0; i < seg.count; i++)
 		{
 			writeLock();
 
-			// For `reload' command
-			// contentMgr.remove() changes this!
-			int length = getLength();
-
-			firePreContentRemoved(0,0,getLineCount()
-				- 1,length);
-
-			contentMgr.remove(0,length);
-			lineMgr.contentRemoved(0,0,getLineCount()
-				- 1,length);
-			positionMgr.contentRemoved(0,length);
-			fireContentRemoved(0,0,getLineCount()
-				- 1,length);
+			removeAllText();
 
 			firePreContentInserted(0, 0, endOffsets.getSize() - 1, seg.count - 1);
+			contentMgr = createContentManager(seg.count);
 			// theoretically a segment could
 			// have seg.offset != 0 but
 			// SegmentBuffer never does that
@@ -2664,10 +2921,343 @@ loop:		for(int i = 0; i < seg.count; i++)
 		}
 	} //}}}
 
+	//{{{ loadMappedText() method
+	/**
+	 * Loads a memory mapped text. The buffer becomes read-only, and the
+	 * part of the text that has not been scanned yet is scanned in the
+	 * background and appended to the buffer as it goes.
+	 * @param text The text
+	 * @param endOffsets The line end offsets of the part of the text
+	 * that has already been scanned, followed by the scanned length
+	 * plus one
+	 * @since jEdit 5.1pre1
+	 */
+	protected void loadMappedText(MappedText text, IntegerArray endOffsets)
+	{
+		int length = endOffsets.get(endOffsets.getSize() - 1) - 1;
+		final MappedContentManager mgr = new MappedContentManager(text);
+		mgr.setTruncationHandler(new Runnable()
+		{
+			public void run()
+			{
+				if(contentMgr == mgr)
+					mappedTextTruncated();
+			}
+		});
+
+		try
+		{
+			writeLock();
+
+			removeAllText();
+
+			firePreContentInserted(0, 0, endOffsets.getSize() - 1, length);
+			contentMgr = mgr;
+			mgr.setLength(length);
+
+			lineMgr._contentInserted(endOffsets);
+			positionMgr.contentInserted(0,length);
+
+			fireContentInserted(0,0,
+				endOffsets.getSize() - 1,
+				length);
+		}
+		finally
+		{
+			writeUnlock();
+		}
+
+		if(!text.isScanned() || text.getScannedLength() != length)
+			ThreadUtilities.runInBackground(new MappedTextScanner(mgr));
+	} //}}}
+
+	//{{{ mappedTextTruncated() method
+	/**
+	 * Called in the dispatch thread when the memory mapped file this
+	 * buffer shows has been truncated on disk, for example by log
+	 * rotation. The parts of the text that were not read before show
+	 * as blanks until the buffer is reloaded.
+	 * @since jEdit 5.1pre1
+	 */
+	protected void mappedTextTruncated()
+	{
+		Log.log(Log.WARNING,this,"Mapped file truncated: "
+			+ ((MappedContentManager)contentMgr).getMappedText().getFile());
+	} //}}}
+
+	//{{{ dispose() method
+	/**
+	 * Stops the background work on this buffer. It is called when the
+	 * buffer is closed.
+	 * @since jEdit 5.1pre1
+	 */
+	protected void dispose()
+	{
+		if(contentMgr instanceof MappedContentManager)
+			((MappedContentManager)contentMgr).getMappedText().close();
+
+		// deletes the file old edits may have been written to
+		if(undoMgr != null)
+		{
+			setUndoJournal(null,null,false);
+			undoMgr.clear();
+		}
+
+		contextLock.lock();
+		try
+		{
+			disposed = true;
+			if(tokenizer != null)
+				tokenizer.stop();
+		}
+		finally
+		{
+			contextLock.unlock();
+		}
+
+		foldLock.lock();
+		try
+		{
+			if(foldUpdater != null)
+				foldUpdater.stop();
+		}
+		finally
+		{
+			foldLock.unlock();
+		}
+	} //}}}
+
+	//{{{ startTokenizer() method
+	/**
+	 * Starts computing the line contexts of the lines that don't have
+	 * a valid one in the background, if the buffer is large enough and
+	 * displayed. Painting a line far into the buffer then doesn't have
+	 * to tokenize all the lines before it in the dispatch thread.
+	 */
+	private void startTokenizer()
+	{
+		if(contextInsensitive || tokenMarker == null
+			|| bufferListeners.isEmpty()
+			|| lineMgr.getFirstInvalidLineContext() == -1)
+			return;
+
+		int minLines = getIntegerProperty("backgroundTokenizerLines",0);
+		if(minLines <= 0 || lineMgr.getLineCount() < minLines)
+			return;
+
+		Tokenizer newTokenizer;
+		contextLock.lock();
+		try
+		{
+			if(disposed || tokenizer != null)
+				return;
+			newTokenizer = tokenizer = new Tokenizer();
+		}
+		finally
+		{
+			contextLock.unlock();
+		}
+		ThreadUtilities.runInBackground(newTokenizer);
+	} //}}}
+
+	//{{{ tokenizeBatch() method
+	/**
+	 * Computes the line contexts from the first invalid one, for about
+	 * {@link Tokenizer#SLICE} nanoseconds. Must be called with the read
+	 * lock and the context lock held.
+	 * @return true if all the line contexts are valid
+	 */
+	private boolean tokenizeBatch(Segment seg)
+	{
+		int line = lineMgr.getFirstInvalidLineContext();
+		if(line == -1 || contextInsensitive || tokenMarker == null)
+			return true;
+
+		int lineCount = lineMgr.getLineCount();
+		long deadline = System.nanoTime() + Tokenizer.SLICE;
+		while(line < lineCount)
+		{
+			getLineText(line,seg);
+			TokenMarker.LineContext prevContext = line == 0
+				? null : lineMgr.getLineContext(line - 1);
+			lineMgr.setLineContext(line,markTokens(seg,prevContext,
+				DummyTokenHandler.INSTANCE));
+			line++;
+
+			if((line & 63) == 0 && System.nanoTime() > deadline)
+				break;
+		}
+
+		if(line == lineCount)
+		{
+			lineMgr.setFirstInvalidLineContext(-1);
+			return true;
+		}
+		lineMgr.setFirstInvalidLineContext(line);
+		return false;
+	} //}}}
+
+	//{{{ startFoldUpdater() method
+	/**
+	 * Starts computing the fold levels of the lines that don't have a
+	 * valid one in the background, if the buffer is large enough and
+	 * displayed. Expanding or collapsing a fold far into the buffer then
+	 * doesn't have to run the fold handler on all the lines before it in
+	 * the dispatch thread.
+	 */
+	private void startFoldUpdater()
+	{
+		if(foldHandler == null || foldHandler instanceof DummyFoldHandler
+			|| bufferListeners.isEmpty()
+			|| lineMgr.getFirstInvalidFoldLevel() == -1)
+			return;
+
+		int minLines = getIntegerProperty("backgroundFoldLines",0);
+		if(minLines <= 0 || lineMgr.getLineCount() < minLines)
+			return;
+
+		FoldUpdater newFoldUpdater;
+		foldLock.lock();
+		try
+		{
+			if(disposed || foldUpdater != null)
+				return;
+			newFoldUpdater = foldUpdater = new FoldUpdater();
+		}
+		finally
+		{
+			foldLock.unlock();
+		}
+		ThreadUtilities.runInBackground(newFoldUpdater);
+	} //}}}
+
+	//{{{ updateFoldLevels() method
+	/**
+	 * Computes the fold levels from the first invalid one up to the given
+	 * line, or until the deadline passes. Must be called with the read
+	 * lock and the fold lock held.
+	 * @param line The last line to compute
+	 * @param deadline A {@link System#nanoTime()} value, or 0 to compute
+	 * up to the line in any case
+	 * @return The first line whose fold level has to be repainted, or
+	 * -1 if no fold level changed
+	 */
+	private int updateFoldLevels(int line, long deadline)
+	{
+		int firstInvalidFoldLevel = lineMgr.getFirstInvalidFoldLevel();
+		if(firstInvalidFoldLevel == -1 || line < firstInvalidFoldLevel)
+			return -1;
+
+		if(Debug.FOLD_DEBUG)
+			Log.log(Log.DEBUG,this,"Invalid fold levels from " + firstInvalidFoldLevel + " to " + line);
+
+		boolean changed = false;
+		int firstUpdatedFoldLevel = firstInvalidFoldLevel;
+		int lineCount = lineMgr.getLineCount();
+		Segment seg = new Segment();
+
+		for(int i = firstInvalidFoldLevel; i <= line; i++)
+		{
+			int newFoldLevel = foldHandler.getFoldLevel(this,i,seg);
+			if(newFoldLevel != lineMgr.getFoldLevel(i))
+			{
+				if(Debug.FOLD_DEBUG)
+					Log.log(Log.DEBUG,this,i + " fold level changed");
+				changed = true;
+				// Update preceding fold levels if necessary
+				if (i == firstInvalidFoldLevel)
+				{
+					List<Integer> precedingFoldLevels =
+						foldHandler.getPrecedingFoldLevels(
+							this,i,seg,newFoldLevel);
+					if (precedingFoldLevels != null)
+					{
+						int j = i;
+						for (Integer foldLevel: precedingFoldLevels)
+						{
+							j--;
+							lineMgr.setFoldLevel(j,foldLevel.intValue());
+						}
+						if (j < firstUpdatedFoldLevel)
+							firstUpdatedFoldLevel = j;
+					}
+				}
+			}
+			lineMgr.setFoldLevel(i,newFoldLevel);
+
+			// the fold handler asks for the level of the previous
+			// line, which is then already valid
+			if(i == lineCount - 1)
+				lineMgr.setFirstInvalidFoldLevel(-1);
+			else
+				lineMgr.setFirstInvalidFoldLevel(i + 1);
+
+			if(deadline != 0L && ((i + 1) & 63) == 0
+				&& System.nanoTime() > deadline)
+				break;
+		}
+
+		if(changed)
+		{
+			if(Debug.FOLD_DEBUG)
+				Log.log(Log.DEBUG,this,"fold level changed: " + firstUpdatedFoldLevel + ',' + line);
+			return firstUpdatedFoldLevel;
+		}
+		return -1;
+	} //}}}
+
+	//{{{ createContentManager() method
+	/**
+	 * Returns the content manager to store a text of the given length.
+	 * The <code>contentManager</code> property selects it explicitly
+	 * (<code>gap</code> or <code>pieceTable</code>); otherwise texts of
+	 * at least <code>pieceTableThreshold</code> characters use a piece
+	 * table, which avoids copying the loaded text and moving large parts
+	 * of it on every edit.
+	 * @param length The length of the text that will be set
+	 */
+	private ContentManager createContentManager(int length)
+	{
+		String type = getStringProperty("contentManager");
+		boolean pieceTable;
+		if("pieceTable".equals(type))
+			pieceTable = true;
+		else if("gap".equals(type))
+			pieceTable = false;
+		else
+		{
+			int threshold = getIntegerProperty("pieceTableThreshold",0);
+			pieceTable = threshold > 0 && length >= threshold;
+		}
+
+		if(pieceTable)
+		{
+			if(contentMgr instanceof PieceTableContentManager)
+				return contentMgr;
+			return new PieceTableContentManager();
+		}
+		else
+		{
+			if(contentMgr instanceof GapContentManager)
+				return contentMgr;
+			return new GapContentManager();
+		}
+	} //}}}
+
 	//{{{ invalidateFoldLevels() method
 	protected void invalidateFoldLevels()
 	{
-		lineMgr.setFirstInvalidFoldLevel(0);
+		// the fold updater must not overwrite this with the end of
+		// the slice it is computing
+		foldLock.lock();
+		try
+		{
+			lineMgr.setFirstInvalidFoldLevel(0);
+		}
+		finally
+		{
+			foldLock.unlock();
+		}
 	} //}}}
 
 	//{{{ parseBufferLocalProperties() method
@@ -2738,9 +3328,14 @@ loop:		for(int i = 0; i < seg.count; i++)
 	//{{{ Private members
 	private final List<Listener> bufferListeners;
 	private final ReentrantReadWriteLock lock;
-	private final ContentManager contentMgr;
+	private ContentManager contentMgr;
 	private final LineManager lineMgr;
 	private final PositionManager positionMgr;
+	/** Word indexes, one per set of word characters, most recent first. */
+	private volatile WordIndex[] wordIndexes = new WordIndex[0];
+	private final Object wordIndexLock = new Object();
+	/** Number of word indexes kept. */
+	private static final int MAX_WORD_INDEXES = 4;
 	private FoldHandler foldHandler;
 	private final IntegerArray integerArray;
 	private boolean undoInProgress;
@@ -2748,6 +3343,8 @@ loop:		for(int i = 0; i < seg.count; i++)
 	private boolean readOnly;
 	private boolean readOnlyOverride;
 	private boolean transaction;
+	/** The run of replacements the listeners are told of. */
+	private Replacements replacementsInProgress;
 	private boolean loading;
 	private boolean io;
 	private final Map<Object, PropValue> properties;
@@ -2758,6 +3355,23 @@ loop:		for(int i = 0; i < seg.count; i++)
 	public boolean elasticTabstopsOn = false;
 	private ColumnBlock columnBlock;
 
+	/**
+	 * Guards the line contexts, which are computed both by
+	 * {@link #markTokens(int,TokenHandler)} and by the tokenizer.
+	 */
+	private final ReentrantLock contextLock = new ReentrantLock();
+	/** The background tokenizer, null if none is running. */
+	private Tokenizer tokenizer;
+	/**
+	 * Guards the fold levels, which are computed both by
+	 * {@link #getFoldLevel(int)} and by the fold updater. It is always
+	 * taken after the read lock.
+	 */
+	private final ReentrantLock foldLock = new ReentrantLock();
+	/** The background fold updater, null if none is running. */
+	private FoldUpdater foldUpdater;
+	private boolean disposed;
+
 	//{{{ getListener() method
 	private BufferListener getListener(int index)
 	{
@@ -2801,6 +3415,145 @@ loop:		for(int i = 0; i < seg.count; i++)
 		}
 	} //}}}
 
+	//{{{ removeAllText() method
+	private void removeAllText()
+	{
+		// For `reload' command
+		// contentMgr.remove() changes this!
+		int length = getLength();
+
+		firePreContentRemoved(0,0,getLineCount()
+			- 1,length);
+
+		contentMgr.remove(0,length);
+		lineMgr.contentRemoved(0,0,getLineCount()
+			- 1,length);
+		positionMgr.contentRemoved(0,length);
+		// the removal is reported after the lines are gone, as
+		// removing none, which the word indexes can't follow; they
+		// are built again from the new text when next asked for
+		synchronized(wordIndexLock)
+		{
+			wordIndexes = new WordIndex[0];
+		}
+		fireContentRemoved(0,0,getLineCount()
+			- 1,length);
+	} //}}}
+
+	//{{{ replaceRun() method
+	/**
+	 * Replaces a run of ranges on adjacent lines, telling the listeners
+	 * of one removal and one insertion covering them.
+	 */
+	private void replaceRun(Replacements run, int startLine)
+	{
+		int count = run.size();
+		int start = run.getOffset(0);
+		int end = run.getEnd();
+
+		// the new text of the range from the first replacement
+		// to the end of the last one
+		Segment seg = new Segment();
+		contentMgr.getText(start,end - start,seg);
+		StringBuilder texts = run.getTexts();
+		StringBuilder text = new StringBuilder(end - start
+			+ texts.length());
+		int pos = start;
+		for(int i = 0; i < count; i++)
+		{
+			int offset = run.getOffset(i);
+			text.append(seg.array,seg.offset + pos - start,
+				offset - pos);
+			text.append(texts,run.getTextStart(i),
+				run.getTextStart(i) + run.getTextLength(i));
+			pos = offset + run.getLength(i);
+		}
+
+		replacementsInProgress = run;
+
+		// positions move as if each range had been replaced on its
+		// own, those of the span are put back in place once the new
+		// text is inserted
+		if(end != start)
+		{
+			int numLines = lineMgr.getLineOfOffset(end) - startLine;
+			firePreContentRemoved(startLine,start,numLines,end - start);
+			contentMgr.remove(start,end - start);
+			lineMgr.contentRemoved(startLine,start,numLines,end - start);
+			positionMgr.contentReplaced(run);
+			fireContentRemoved(startLine,start,numLines,end - start);
+		}
+		else
+			positionMgr.contentReplaced(run);
+
+		int length = text.length();
+		integerArray.clear();
+		for(int i = 0; i < length; i++)
+		{
+			if(text.charAt(i) == '\n')
+				integerArray.add(i + 1);
+		}
+		int numLines = integerArray.getSize();
+		if(length != 0)
+		{
+			contentMgr.insert(start,text);
+			firePreContentInserted(startLine,start,numLines,length);
+			lineMgr.contentInserted(startLine,start,numLines,length,
+				integerArray);
+		}
+		positionMgr.replacedTextInserted(start,length);
+
+		setDirty(true);
+
+		if(length != 0)
+			fireContentInserted(startLine,start,numLines,length);
+
+		replacementsInProgress = null;
+	} //}}}
+
+	//{{{ mappedTextScanned() method
+	/**
+	 * Appends the newly scanned part of a mapped text to the buffer.
+	 * @return false if the buffer does not show that text anymore
+	 */
+	private boolean mappedTextScanned(MappedContentManager mgr,
+		int newLength, IntegerArray endOffsets)
+	{
+		try
+		{
+			writeLock();
+
+			if(contentMgr != mgr)
+				return false;
+
+			int offset = mgr.getLength();
+			int length = newLength - offset;
+			int numLines = endOffsets.getSize();
+			if(length == 0)
+				return true;
+
+			// the line manager wants offsets relative to the
+			// insertion
+			int[] ends = endOffsets.getArray();
+			for(int i = 0; i < numLines; i++)
+				ends[i] -= offset;
+
+			int startLine = lineMgr.getLineOfOffset(offset);
+			firePreContentInserted(startLine,offset,numLines,length);
+			mgr.setLength(newLength);
+			lineMgr.contentInserted(startLine,offset,numLines,length,
+				endOffsets);
+			positionMgr.contentInserted(offset,length);
+			fireContentInserted(startLine,offset,numLines,length);
+			fireTransactionComplete();
+			return true;
+		}
+		finally
+		{
+			writeUnlock();
+		}
+	} //}}}
+
 	//{{{ parseBufferLocalProperties() method
 	private void parseBufferLocalProperties(CharSequence prop)
 	{
@@ -2880,6 +3633,235 @@ loop:		for(int i = 0; i < seg.count; i++)
 		}
 	} //}}}
 
+	//{{{ MappedTextScanner class
+	/**
+	 * Scans a mapped text in the background and appends what it finds
+	 * to the buffer, a batch at a time.
+	 */
+	private class MappedTextScanner extends Task
+	{
+		MappedTextScanner(MappedContentManager mgr)
+		{
+			this.mgr = mgr;
+			MappedText text = mgr.getMappedText();
+			setLabel(text.getFile().getName());
+			setMaximum(text.getByteLength());
+		}
+
+		@Override
+		public void _run()
+		{
+			MappedText text = mgr.getMappedText();
+			boolean done = false;
+			while(!done && !text.isClosed()
+				&& !Thread.currentThread().isInterrupted())
+			{
+				final IntegerArray endOffsets = new IntegerArray();
+				done = text.scan(endOffsets,WINDOWS_PER_BATCH);
+				final int newLength = text.getScannedLength();
+				setValue(text.getScannedBytes());
+
+				final boolean[] alive = new boolean[1];
+				// waiting bounds the number of batches the
+				// dispatch thread lags behind
+				ThreadUtilities.runInDispatchThreadAndWait(new Runnable()
+				{
+					public void run()
+					{
+						alive[0] = mappedTextScanned(mgr,newLength,
+							endOffsets);
+					}
+				});
+				if(!alive[0])
+					return;
+			}
+			mgr.checkTruncated();
+		}
+
+		/** 16MB of a single byte encoding. */
+		private static final int WINDOWS_PER_BATCH = 256;
+
+		private final MappedContentManager mgr;
+	} //}}}
+
+	//{{{ Tokenizer class
+	/**
+	 * Computes the line contexts in the background, a time slice at a
+	 * time, so that the dispatch thread never waits long for it.
+	 */
+	private class Tokenizer extends Task
+	{
+		/** Time spent tokenizing before releasing the locks. */
+		static final long SLICE = 20000000L;
+
+		/** Time given to the other threads between two slices. */
+		static final long PAUSE = 5L;
+
+		private volatile boolean stopped;
+
+		Tokenizer()
+		{
+			setLabel(JEditBuffer.this.toString());
+		}
+
+		void stop()
+		{
+			stopped = true;
+			cancel();
+		}
+
+		@Override
+		public void _run()
+		{
+			Segment seg = new Segment();
+			try
+			{
+				while(!stopped)
+				{
+					readLock();
+					try
+					{
+						// markTokens() holds the context lock
+						// when it waits for the read lock, so
+						// we must not block on it here
+						if(contextLock.tryLock())
+						{
+							try
+							{
+								if(tokenizeBatch(seg))
+								{
+									tokenizer = null;
+									return;
+								}
+							}
+							finally
+							{
+								contextLock.unlock();
+							}
+						}
+					}
+					finally
+					{
+						readUnlock();
+					}
+
+					Thread.sleep(PAUSE);
+				}
+			}
+			catch(InterruptedException e)
+			{
+			}
+
+			contextLock.lock();
+			try
+			{
+				if(tokenizer == this)
+					tokenizer = null;
+			}
+			finally
+			{
+				contextLock.unlock();
+			}
+		}
+	} //}}}
+
+	//{{{ FoldUpdater class
+	/**
+	 * Computes the fold levels in the background, a time slice at a
+	 * time, and notifies the listeners of each batch in the dispatch
+	 * thread.
+	 */
+	private class FoldUpdater extends Task
+	{
+		private volatile boolean stopped;
+
+		FoldUpdater()
+		{
+			setLabel(JEditBuffer.this.toString());
+		}
+
+		void stop()
+		{
+			stopped = true;
+			cancel();
+		}
+
+		@Override
+		public void _run()
+		{
+			try
+			{
+				while(!stopped)
+				{
+					int firstUpdated;
+					int lastUpdated;
+					boolean done;
+					readLock();
+					try
+					{
+						foldLock.lock();
+						try
+						{
+							int lineCount = lineMgr.getLineCount();
+							firstUpdated = updateFoldLevels(
+								lineCount - 1,
+								System.nanoTime() + Tokenizer.SLICE);
+							int firstInvalid = lineMgr.getFirstInvalidFoldLevel();
+							done = firstInvalid == -1;
+							lastUpdated = done ? lineCount - 1
+								: firstInvalid - 1;
+							if(done)
+								foldUpdater = null;
+						}
+						finally
+						{
+							foldLock.unlock();
+						}
+					}
+					finally
+					{
+						readUnlock();
+					}
+
+					if(firstUpdated != -1)
+						publish(firstUpdated,lastUpdated);
+					if(done)
+						return;
+
+					Thread.sleep(Tokenizer.PAUSE);
+				}
+			}
+			catch(InterruptedException e)
+			{
+			}
+
+			foldLock.lock();
+			try
+			{
+				if(foldUpdater == this)
+					foldUpdater = null;
+			}
+			finally
+			{
+				foldLock.unlock();
+			}
+		}
+
+		private void publish(final int start, final int end)
+		{
+			ThreadUtilities.runInDispatchThread(new Runnable()
+			{
+				public void run()
+				{
+					// the buffer may have been edited since
+					int lastLine = getLineCount() - 1;
+					if(!stopped && start <= lastLine)
+						fireFoldLevelChanged(start,Math.min(end,lastLine));
+				}
+			});
+		}
+	} //}}}
+
 	//{{{ getIndentRules() method
 	private List<IndentRule> getIndentRules(int line)
 	{
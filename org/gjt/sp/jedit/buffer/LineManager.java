@@ -23,10 +23,10 @@
 package org.gjt.sp.jedit.buffer;
 
 //{{{ Imports
+import java.util.Arrays;
+
 import org.gjt.sp.jedit.syntax.*;
-import org.gjt.sp.jedit.Debug;
 import org.gjt.sp.util.IntegerArray;
-import org.gjt.sp.util.Log;
 //}}}
 
 /**
@@ -34,7 +34,16 @@ import org.gjt.sp.util.Log;
  * directly. To improve performance, none of the methods in this class
  * check for out of bounds access, nor are they thread-safe. The
  * <code>Buffer</code> class, through which these methods must be
- * called through, implements such protection.
+ * called through, implements such protection.<p>
+ *
+ * Line end offsets are kept in leaves of at most {@link #LEAF_SIZE}
+ * lines, relative to the start of their leaf, with two Fenwick trees
+ * counting the lines and characters of the leaves. An edit only updates
+ * its own leaf and O(log n) tree nodes, wherever it is in the buffer,
+ * and finding a line or the line of an offset is O(log n) too.<p>
+ *
+ * A {@link #snapshot()} shares the leaves with this line manager, which
+ * copies a leaf before changing it as long as the snapshot may use it.
  *
  * @author Slava Pestov
  * @version $Id$
@@ -45,13 +54,33 @@ public class LineManager
 	//{{{ LineManager constructor
 	public LineManager()
 	{
-		endOffsets = new int[1];
-		endOffsets[0] = 1;
+		leaves = new int[][] { new int[] { 1 } };
+		leafLines = new int[] { 1 };
+		leafCount = 1;
+		rebuildIndex();
 		foldLevels = new short[1];
 		lineContext = new TokenMarker.LineContext[1];
 		lineCount = 1;
 	} //}}}
 
+	//{{{ LineManager constructor
+	/**
+	 * Creates a read-only copy of the line end offsets of another line
+	 * manager, sharing its leaves.
+	 */
+	private LineManager(LineManager source)
+	{
+		leaves = source.leaves;
+		leafLines = source.leafLines;
+		leafCount = source.leafCount;
+		lineTree = source.lineTree;
+		lengthTree = source.lengthTree;
+		topBit = source.topBit;
+		version = source.version;
+		lineCount = source.lineCount;
+		shared = true;
+	} //}}}
+
 	//{{{ getLineCount() method
 	public final int getLineCount()
 	{
@@ -75,54 +104,56 @@ public class LineManager
 				return getLineOfOffsetLine;
 		}
 
-		int start = 0;
-		int end = lineCount - 1;
-
-		for(;;)
+		Cursor cursor = this.cursor;
+		if(cursor == null || cursor.version != version
+			|| offset < cursor.base
+			|| offset >= cursor.base + leafLength(cursor.leaf))
 		{
-			switch(end - start)
+			int leaf = 0;
+			int firstLine = 0;
+			int base = 0;
+			for(int step = topBit; step != 0; step >>= 1)
 			{
-			case 0:
-				if(getLineEndOffset(start) <= offset)
-					getLineOfOffsetLine = start + 1;
-				else
-					getLineOfOffsetLine = start;
-				return getLineOfOffsetLine;
-			case 1:
-				if(getLineEndOffset(start) <= offset)
-				{
-					if(getLineEndOffset(end) <= offset)
-						getLineOfOffsetLine = end + 1;
-					else
-						getLineOfOffsetLine = end;
-				}
-				else
-					getLineOfOffsetLine = start;
-				return getLineOfOffsetLine;
-			default:
-				int pivot = (end + start) / 2;
-				int value = getLineEndOffset(pivot);
-				if(value == offset)
+				int next = leaf + step;
+				if(next <= leafCount && base + lengthTree[next] <= offset)
 				{
-					getLineOfOffsetLine = pivot + 1; 
-					return getLineOfOffsetLine;
+					leaf = next;
+					firstLine += lineTree[next];
+					base += lengthTree[next];
 				}
-				else if(value < offset)
-					start = pivot + 1;
-				else
-					end = pivot - 1;
-				break;
 			}
+
+			if(leaf == leafCount)
+			{
+				getLineOfOffsetLine = lineCount;
+				return lineCount;
+			}
+
+			cursor = this.cursor = new Cursor(version,leaf,firstLine,base);
 		}
+
+		// first line of the leaf ending after the offset
+		int[] ends = leaves[cursor.leaf];
+		int start = 0;
+		int end = leafLines[cursor.leaf] - 1;
+		offset -= cursor.base;
+		while(start < end)
+		{
+			int pivot = (start + end) >>> 1;
+			if(ends[pivot] <= offset)
+				start = pivot + 1;
+			else
+				end = pivot;
+		}
+		getLineOfOffsetLine = cursor.firstLine + start;
+		return getLineOfOffsetLine;
 	} //}}}
 
 	//{{{ getLineEndOffset() method
 	public final int getLineEndOffset(int line)
 	{
-		if(gapLine != -1 && line >= gapLine)
-			return endOffsets[line] + gapWidth;
-		else
-			return endOffsets[line];
+		Cursor cursor = findLine(line);
+		return cursor.base + leaves[cursor.leaf][line - cursor.firstLine];
 	} //}}}
 
 	//{{{ getFoldLevel() method
@@ -180,14 +211,44 @@ public class LineManager
 		return firstInvalidLineContext;
 	} //}}}
 
+	//{{{ snapshot() method
+	/**
+	 * Returns a line manager holding the current line end offsets, which
+	 * later changes to this one don't affect. It doesn't have fold levels
+	 * nor line contexts, and must not be modified.
+	 */
+	LineManager snapshot()
+	{
+		shared = true;
+		return new LineManager(this);
+	} //}}}
+
+	//{{{ getVersion() method
+	/**
+	 * Returns a number that changes every time the line end offsets
+	 * change, that is every time the text changes.
+	 */
+	int getVersion()
+	{
+		return version;
+	} //}}}
+
 	//{{{ _contentInserted() method
 	public void _contentInserted(IntegerArray endOffsets)
 	{
-		gapLine = -1;
-		gapWidth = 0;
+		// a snapshot may use the index, which is replaced entirely
+		if(shared)
+		{
+			lineTree = lengthTree = null;
+			shared = false;
+		}
+		sharedLeaves = null;
 		firstInvalidLineContext = firstInvalidFoldLevel = 0;
 		lineCount = endOffsets.getSize();
-		this.endOffsets = endOffsets.getArray();
+		leaves = new int[0][];
+		leafLines = new int[0];
+		leafCount = 0;
+		replaceLeaves(0,0,endOffsets.getArray(),lineCount);
 		foldLevels = new short[lineCount];
 
 		lineContext = new TokenMarker.LineContext[lineCount];
@@ -202,18 +263,8 @@ public class LineManager
 		//{{{ Update line info and line context arrays
 		if(numLines > 0)
 		{
-			//moveGap(-1,0,"contentInserted");
-
 			lineCount += numLines;
 
-			if(this.endOffsets.length <= lineCount)
-			{
-				int[] endOffsetsN = new int[(lineCount + 1) * 2];
-				System.arraycopy(this.endOffsets,0,endOffsetsN,0,
-						 this.endOffsets.length);
-				this.endOffsets = endOffsetsN;
-			}
-
 			if(foldLevels.length <= lineCount)
 			{
 				short[] foldLevelsN = new short[(lineCount + 1) * 2];
@@ -231,31 +282,22 @@ public class LineManager
 				lineContext = lineContextN;
 			}
 
-			System.arraycopy(this.endOffsets,startLine,
-				this.endOffsets,endLine,lineCount - endLine);
 			System.arraycopy(foldLevels,startLine,foldLevels,
 				endLine,lineCount - endLine);
 			System.arraycopy(lineContext,startLine,lineContext,
 				endLine,lineCount - endLine);
 
-			if(startLine <= gapLine)
-				gapLine += numLines;
-			else if(gapLine != -1)
-				offset -= gapWidth;
-
 			if(startLine < firstInvalidLineContext)
 				firstInvalidLineContext += numLines;
 
 			for(int i = 0; i < numLines; i++)
-			{
-				this.endOffsets[startLine + i] = (offset + endOffsets.get(i));
 				foldLevels[startLine + i] = 0;
-			}
 		} //}}}
 
+		insertEndOffsets(startLine,offset,numLines,length,endOffsets);
+
 		if(firstInvalidFoldLevel == -1 || firstInvalidFoldLevel > startLine)
 			firstInvalidFoldLevel = startLine;
-		moveGap(endLine,length,"contentInserted");
 	} //}}}
 
 	//{{{ contentRemoved() method
@@ -267,13 +309,6 @@ public class LineManager
 		//{{{ Update line info and line context arrays
 		if(numLines > 0)
 		{
-			//moveGap(-1,0,"contentRemoved");
-
-			if(startLine + numLines < gapLine)
-				gapLine -= numLines;
-			else if(startLine < gapLine)
-				gapLine = startLine;
-
 			if(startLine + numLines < firstInvalidLineContext)
 				firstInvalidLineContext -= numLines;
 			else if(startLine < firstInvalidLineContext)
@@ -281,35 +316,66 @@ public class LineManager
 
 			lineCount -= numLines;
 
-			System.arraycopy(endOffsets,endLine,endOffsets,
-				startLine,lineCount - startLine);
 			System.arraycopy(foldLevels,endLine,foldLevels,
 				startLine,lineCount - startLine);
 			System.arraycopy(lineContext,endLine,lineContext,
 				startLine,lineCount - startLine);
 		} //}}}
 
+		removeEndOffsets(startLine,numLines,length);
+
 		if(firstInvalidFoldLevel == -1 || firstInvalidFoldLevel > startLine)
 			firstInvalidFoldLevel = startLine;
-		moveGap(startLine,-length,"contentRemoved");
 	} //}}}
 
 	//{{{ Private members
 
+	/** Maximum number of lines in a leaf. */
+	private static final int LEAF_SIZE = 512;
+	/** Leaves with fewer lines are merged with a neighbour. */
+	private static final int MIN_LEAF = LEAF_SIZE / 8;
+
 	//{{{ Instance variables
-	private int[] endOffsets;
-	private short[] foldLevels;
-	private TokenMarker.LineContext[] lineContext;
+	/**
+	 * The line end offsets of each leaf, relative to the end of the
+	 * previous leaf.
+	 */
+	private int[][] leaves;
+	private int[] leafLines;
+	private int leafCount;
 
-	private int lineCount;
+	/**
+	 * Fenwick trees over the leaves, starting at index 1, holding the
+	 * number of lines and characters.
+	 */
+	private int[] lineTree;
+	private int[] lengthTree;
+	/** The highest power of two not above leafCount. */
+	private int topBit;
+
+	/** Incremented by each change to the line end offsets. */
+	private int version;
 
 	/**
-	 * If -1, then there is no gap.
-	 * Otherwise, all lines from this line onwards need to have gapWidth
-	 * added to their end offsets.
+	 * True if a snapshot may use the leaf arrays and the index, which
+	 * must then be copied before they are changed.
 	 */
-	private int gapLine;
-	private int gapWidth;
+	private boolean shared;
+	/**
+	 * The leaves a snapshot may use, null if there are none. Only valid
+	 * while {@link #shared} is false.
+	 */
+	private boolean[] sharedLeaves;
+	/**
+	 * The last leaf looked up. Threads holding the buffer's read lock
+	 * share it, hence the immutable object.
+	 */
+	private Cursor cursor;
+
+	private short[] foldLevels;
+	private TokenMarker.LineContext[] lineContext;
+
+	private int lineCount;
 
 	/**
 	 * If -1, all contexts are valid. Otherwise, all lines after this have
@@ -321,7 +387,7 @@ public class LineManager
 	 * If -1, all fold levels are valid. Otherwise, all lines after this
 	 * have an invalid fold level.
 	 */
-	private int firstInvalidFoldLevel;
+	private volatile int firstInvalidFoldLevel;
 
 	/**
 	 * Performance helper for {@link #getLineOfOffset}. 
@@ -329,57 +395,337 @@ public class LineManager
 	private int getLineOfOffsetLine = -1;
 	//}}}
 
-	//{{{ setLineEndOffset() method
-	private final void setLineEndOffset(int line, int end)
+	//{{{ findLine() method
+	/**
+	 * Returns the leaf holding a line.
+	 */
+	private Cursor findLine(int line)
+	{
+		Cursor cursor = this.cursor;
+		if(cursor != null && cursor.version == version
+			&& line >= cursor.firstLine
+			&& line < cursor.firstLine + leafLines[cursor.leaf])
+		{
+			return cursor;
+		}
+
+		int leaf = 0;
+		int firstLine = 0;
+		int base = 0;
+		for(int step = topBit; step != 0; step >>= 1)
+		{
+			int next = leaf + step;
+			if(next <= leafCount && firstLine + lineTree[next] <= line)
+			{
+				leaf = next;
+				firstLine += lineTree[next];
+				base += lengthTree[next];
+			}
+		}
+
+		cursor = this.cursor = new Cursor(version,leaf,firstLine,base);
+		return cursor;
+	} //}}}
+
+	//{{{ leafLength() method
+	private int leafLength(int leaf)
 	{
-		endOffsets[line] = end;
+		return leaves[leaf][leafLines[leaf] - 1];
 	} //}}}
 
-	//{{{ moveGap() method
-	private final void moveGap(int newGapLine, int newGapWidth, String method)
+	//{{{ insertEndOffsets() method
+	private void insertEndOffsets(int startLine, int offset,
+		int numLines, int length, IntegerArray endOffsets)
 	{
-		if(gapLine == -1)
-			gapWidth = newGapWidth;
-		else if(newGapLine == -1)
+		unshare();
+		Cursor cursor = findLine(startLine);
+		int leaf = cursor.leaf;
+		int[] ends = leaves[leaf];
+		int count = leafLines[leaf];
+		int index = startLine - cursor.firstLine;
+		offset -= cursor.base;
+
+		if(count + numLines > LEAF_SIZE)
+		{
+			int[] all = new int[count + numLines];
+			System.arraycopy(ends,0,all,0,index);
+			for(int i = 0; i < numLines; i++)
+				all[index + i] = offset + endOffsets.get(i);
+			for(int i = index; i < count; i++)
+				all[i + numLines] = ends[i] + length;
+			replaceLeaves(leaf,leaf + 1,all,all.length);
+			return;
+		}
+
+		if(ends.length < count + numLines || isShared(leaf))
 		{
-			if(gapWidth != 0)
+			int[] endsN = new int[Math.min(LEAF_SIZE,
+				Math.max(ends.length * 2,count + numLines))];
+			System.arraycopy(ends,0,endsN,0,count);
+			ends = leaves[leaf] = endsN;
+			if(sharedLeaves != null)
+				sharedLeaves[leaf] = false;
+		}
+
+		System.arraycopy(ends,index,ends,index + numLines,count - index);
+		for(int i = 0; i < numLines; i++)
+			ends[index + i] = offset + endOffsets.get(i);
+		count += numLines;
+		for(int i = index + numLines; i < count; i++)
+			ends[i] += length;
+		leafLines[leaf] = count;
+		updateIndex(leaf,numLines,length);
+	} //}}}
+
+	//{{{ removeEndOffsets() method
+	private void removeEndOffsets(int startLine, int numLines, int length)
+	{
+		unshare();
+		Cursor cursor = findLine(startLine);
+		int leaf = cursor.leaf;
+		int index = startLine - cursor.firstLine;
+		int count = leafLines[leaf];
+
+		if(index + numLines < count)
+		{
+			int[] ends = leaves[leaf];
+			if(isShared(leaf))
 			{
-				if(Debug.OFFSET_DEBUG && gapLine != lineCount)
-					Log.log(Log.DEBUG,this,method + ": update from " + gapLine + " to " + lineCount + " width " + gapWidth);
-				for(int i = gapLine; i < lineCount; i++)
-					setLineEndOffset(i,getLineEndOffset(i));
+				ends = leaves[leaf] = ends.clone();
+				sharedLeaves[leaf] = false;
 			}
+			System.arraycopy(ends,index + numLines,ends,index,
+				count - index - numLines);
+			count -= numLines;
+			for(int i = index; i < count; i++)
+				ends[i] -= length;
+			leafLines[leaf] = count;
+			updateIndex(leaf,-numLines,-length);
+			if(numLines != 0)
+				mergeLeaf(leaf);
+			return;
+		}
+
+		// the removed lines span several leaves
+		int lastLeaf = findLine(startLine + numLines).leaf;
+		int[] all = gatherLeaves(leaf,lastLeaf + 1);
+		int[] ends = new int[all.length - numLines];
+		System.arraycopy(all,0,ends,0,index);
+		for(int i = index; i < ends.length; i++)
+			ends[i] = all[i + numLines] - length;
+		replaceLeaves(leaf,lastLeaf + 1,ends,ends.length);
+		mergeLeaf(leaf);
+	} //}}}
+
+	//{{{ mergeLeaf() method
+	/**
+	 * Merges a leaf with a neighbour if it got too small.
+	 */
+	private void mergeLeaf(int leaf)
+	{
+		if(leafLines[leaf] >= MIN_LEAF || leafCount == 1)
+			return;
+
+		if(leaf == leafCount - 1)
+			leaf--;
+		int[] ends = gatherLeaves(leaf,leaf + 2);
+		replaceLeaves(leaf,leaf + 2,ends,ends.length);
+	} //}}}
 
-			gapWidth = newGapWidth;
+	//{{{ gatherLeaves() method
+	/**
+	 * Returns the line end offsets of some leaves, relative to the start
+	 * of the first.
+	 */
+	private int[] gatherLeaves(int start, int end)
+	{
+		int count = 0;
+		for(int i = start; i < end; i++)
+			count += leafLines[i];
+
+		int[] all = new int[count];
+		int base = 0;
+		count = 0;
+		for(int i = start; i < end; i++)
+		{
+			int[] ends = leaves[i];
+			int lines = leafLines[i];
+			for(int j = 0; j < lines; j++)
+				all[count + j] = ends[j] + base;
+			count += lines;
+			base += ends[lines - 1];
 		}
-		else if(newGapLine < gapLine)
+		return all;
+	} //}}}
+
+	//{{{ replaceLeaves() method
+	/**
+	 * Replaces some leaves with new ones holding the given line end
+	 * offsets, relative to the start of the first replaced leaf.
+	 */
+	private void replaceLeaves(int start, int end, int[] ends, int count)
+	{
+		int newLeaves = (count + LEAF_SIZE - 1) / LEAF_SIZE;
+		int[][] replacement = new int[newLeaves][];
+		int[] replacementLines = new int[newLeaves];
+		int base = 0;
+		int from = 0;
+		for(int i = 0; i < newLeaves; i++)
 		{
-			if(gapWidth != 0)
+			// spread the lines evenly
+			int to = (int)((long)count * (i + 1) / newLeaves);
+			int lines = to - from;
+			int[] leaf = new int[Math.min(LEAF_SIZE,lines * 2)];
+			for(int j = 0; j < lines; j++)
+				leaf[j] = ends[from + j] - base;
+			base = ends[to - 1];
+			replacement[i] = leaf;
+			replacementLines[i] = lines;
+			from = to;
+		}
+
+		if(newLeaves == end - start)
+		{
+			for(int i = 0; i < newLeaves; i++)
 			{
-				if(Debug.OFFSET_DEBUG && newGapLine != gapLine)
-					Log.log(Log.DEBUG,this,method + ": update from " + newGapLine + " to " + gapLine + " width " + gapWidth);
-				for(int i = newGapLine; i < gapLine; i++)
-					setLineEndOffset(i,getLineEndOffset(i) - gapWidth);
+				int leaf = start + i;
+				int lines = leafLines[leaf];
+				int length = leafLength(leaf);
+				leaves[leaf] = replacement[i];
+				leafLines[leaf] = replacementLines[i];
+				if(sharedLeaves != null)
+					sharedLeaves[leaf] = false;
+				updateIndex(leaf,leafLines[leaf] - lines,
+					leafLength(leaf) - length);
 			}
-			gapWidth += newGapWidth;
+			return;
 		}
-		else //if(newGapLine >= gapLine)
+
+		int newCount = leafCount - (end - start) + newLeaves;
+		if(leaves.length < newCount)
 		{
-			if(gapWidth != 0)
+			int[][] leavesN = new int[newCount * 2][];
+			System.arraycopy(leaves,0,leavesN,0,leafCount);
+			leaves = leavesN;
+			int[] leafLinesN = new int[newCount * 2];
+			System.arraycopy(leafLines,0,leafLinesN,0,leafCount);
+			leafLines = leafLinesN;
+			if(sharedLeaves != null)
 			{
-				if(Debug.OFFSET_DEBUG && gapLine != newGapLine)
-					Log.log(Log.DEBUG,this,method + ": update from " + gapLine + " to " + newGapLine + " width " + gapWidth);
-				for(int i = gapLine; i < newGapLine; i++)
-					setLineEndOffset(i,getLineEndOffset(i));
+				boolean[] sharedLeavesN = new boolean[newCount * 2];
+				System.arraycopy(sharedLeaves,0,sharedLeavesN,0,
+					leafCount);
+				sharedLeaves = sharedLeavesN;
 			}
+		}
 
-			gapWidth += newGapWidth;
+		System.arraycopy(leaves,end,leaves,start + newLeaves,
+			leafCount - end);
+		System.arraycopy(leafLines,end,leafLines,start + newLeaves,
+			leafCount - end);
+		System.arraycopy(replacement,0,leaves,start,newLeaves);
+		System.arraycopy(replacementLines,0,leafLines,start,newLeaves);
+		if(sharedLeaves != null)
+		{
+			System.arraycopy(sharedLeaves,end,sharedLeaves,
+				start + newLeaves,leafCount - end);
+			for(int i = 0; i < newLeaves; i++)
+				sharedLeaves[start + i] = false;
+		}
+		for(int i = newCount; i < leafCount; i++)
+		{
+			leaves[i] = null;
+			if(sharedLeaves != null)
+				sharedLeaves[i] = false;
 		}
+		leafCount = newCount;
+		rebuildIndex();
+	} //}}}
+
+	//{{{ unshare() method
+	/**
+	 * Gives this line manager its own copy of the index before a change,
+	 * if a snapshot may be using it. The leaves themselves are only
+	 * copied when they are changed.
+	 */
+	private void unshare()
+	{
+		if(!shared)
+			return;
+
+		leaves = leaves.clone();
+		leafLines = leafLines.clone();
+		lineTree = lineTree.clone();
+		lengthTree = lengthTree.clone();
+		sharedLeaves = new boolean[leaves.length];
+		Arrays.fill(sharedLeaves,0,leafCount,true);
+		shared = false;
+	} //}}}
 
-		if(newGapLine == lineCount)
-			gapLine = -1;
-		else
-			gapLine = newGapLine;
+	//{{{ isShared() method
+	private boolean isShared(int leaf)
+	{
+		return sharedLeaves != null && sharedLeaves[leaf];
+	} //}}}
+
+	//{{{ updateIndex() method
+	private void updateIndex(int leaf, int lines, int length)
+	{
+		version++;
+		for(int i = leaf + 1; i <= leafCount; i += i & -i)
+		{
+			lineTree[i] += lines;
+			lengthTree[i] += length;
+		}
+	} //}}}
+
+	//{{{ rebuildIndex() method
+	private void rebuildIndex()
+	{
+		version++;
+		if(lineTree == null || lineTree.length <= leafCount)
+		{
+			lineTree = new int[leaves.length + 1];
+			lengthTree = new int[leaves.length + 1];
+		}
+
+		for(int i = 1; i <= leafCount; i++)
+		{
+			lineTree[i] = leafLines[i - 1];
+			lengthTree[i] = leafLength(i - 1);
+		}
+
+		for(int i = 1; i <= leafCount; i++)
+		{
+			int parent = i + (i & -i);
+			if(parent <= leafCount)
+			{
+				lineTree[parent] += lineTree[i];
+				lengthTree[parent] += lengthTree[i];
+			}
+		}
+
+		topBit = Integer.highestOneBit(leafCount);
+	} //}}}
+
+	//{{{ Cursor class
+	/**
+	 * A leaf with the number of its first line and its start offset.
+	 */
+	private static class Cursor
+	{
+		final int version;
+		final int leaf;
+		final int firstLine;
+		final int base;
+
+		Cursor(int version, int leaf, int firstLine, int base)
+		{
+			this.version = version;
+			this.leaf = leaf;
+			this.firstLine = firstLine;
+			this.base = base;
+		}
 	} //}}}
 
 	//}}}
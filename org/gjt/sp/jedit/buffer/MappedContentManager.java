@@ -0,0 +1,167 @@
+/*
+ * MappedContentManager.java - Read-only memory mapped text storage
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.buffer;
+
+import javax.swing.text.Segment;
+
+import org.gjt.sp.util.ThreadUtilities;
+
+/**
+ * A read-only {@link ContentManager} reading a {@link MappedText}.
+ * Its length grows as the text is scanned.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class MappedContentManager extends ContentManager
+{
+	//{{{ MappedContentManager constructor
+	MappedContentManager(MappedText text)
+	{
+		this.text = text;
+	} //}}}
+
+	//{{{ getMappedText() method
+	MappedText getMappedText()
+	{
+		return text;
+	} //}}}
+
+	//{{{ setLength() method
+	/**
+	 * Makes more of the scanned text visible.
+	 */
+	void setLength(int length)
+	{
+		this.length = length;
+	} //}}}
+
+	//{{{ setTruncationHandler() method
+	/**
+	 * Sets what to run once in the dispatch thread when the mapped
+	 * file turns out to have been truncated.
+	 */
+	void setTruncationHandler(Runnable truncationHandler)
+	{
+		this.truncationHandler = truncationHandler;
+	} //}}}
+
+	//{{{ checkTruncated() method
+	/**
+	 * Runs the truncation handler if the mapped file has been
+	 * truncated.
+	 */
+	void checkTruncated()
+	{
+		if(truncationHandler != null && text.isTruncated())
+		{
+			Runnable handler;
+			synchronized(this)
+			{
+				handler = truncationHandler;
+				truncationHandler = null;
+			}
+			if(handler != null)
+				ThreadUtilities.runInDispatchThread(handler);
+		}
+	} //}}}
+
+	//{{{ isReadOnly() method
+	@Override
+	public boolean isReadOnly()
+	{
+		return true;
+	} //}}}
+
+	//{{{ getText() methods
+	public String getText(int start, int len)
+	{
+		Segment seg = new Segment();
+		text.getText(start,len,seg);
+		checkTruncated();
+		return new String(seg.array,seg.offset,seg.count);
+	}
+
+	public void getText(int start, int len, Segment seg)
+	{
+		text.getText(start,len,seg);
+		checkTruncated();
+	} //}}}
+
+	//{{{ getSegment() method
+	public CharSequence getSegment(int start, int len)
+	{
+		Segment seg = new Segment();
+		text.getText(start,len,seg);
+		checkTruncated();
+		return new BufferSegment(seg.array,seg.offset,seg.count);
+	} //}}}
+
+	//{{{ insert() methods
+	// JEditBuffer refuses to edit a buffer whose content manager is
+	// read-only, so the methods changing the text are never called.
+	public void insert(int start, String str)
+	{
+		throw new RuntimeException("buffer read-only");
+	}
+
+	public void insert(int start, CharSequence str)
+	{
+		throw new RuntimeException("buffer read-only");
+	}
+
+	public void insert(int start, Segment seg)
+	{
+		throw new RuntimeException("buffer read-only");
+	} //}}}
+
+	//{{{ _setContent() method
+	public void _setContent(char[] text, int length)
+	{
+		throw new RuntimeException("buffer read-only");
+	} //}}}
+
+	//{{{ remove() method
+	public void remove(int start, int len)
+	{
+		// only removing everything is allowed, when reloading
+		if(start != 0 || len != length)
+			throw new RuntimeException("buffer read-only");
+		text.close();
+		length = 0;
+	} //}}}
+
+	//{{{ snapshot() method
+	public ContentManager snapshot()
+	{
+		// the mapped text never changes, only more of it is scanned
+		MappedContentManager snapshot = new MappedContentManager(text);
+		snapshot.length = length;
+		return snapshot;
+	} //}}}
+
+	//{{{ Private members
+	private final MappedText text;
+	private volatile Runnable truncationHandler;
+	//}}}
+}
@@ -0,0 +1,617 @@
+/*
+ * MappedText.java - Memory mapped, lazily decoded file contents
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.buffer;
+
+//{{{ Imports
+import javax.swing.text.Segment;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.gjt.sp.util.IOUtilities;
+import org.gjt.sp.util.IntegerArray;
+//}}}
+
+/**
+ * The contents of a local file, mapped in memory and decoded on demand.<p>
+ *
+ * The file is cut in windows of about {@link #WINDOW_SIZE} bytes, aligned
+ * on character boundaries. A sequential scan, usually done in the
+ * background, records the character offset each window starts at and
+ * the line ends, and only a small number of decoded windows is kept in
+ * memory, so the heap used does not depend on the size of the file.
+ * Line separators are converted to <code>\n</code> as in a regular
+ * load.<p>
+ *
+ * Only encodings where line separators are single ASCII bytes and
+ * character boundaries can be found without decoding from the start of
+ * the file are supported, see {@link #isSupported(Charset)}. The file
+ * must be shorter than 2GB.<p>
+ *
+ * If the file is truncated while it is mapped, for example when a log
+ * file is rotated in place, the windows that are not decoded yet read
+ * as blanks and {@link #isTruncated()} returns true; the buffer should
+ * then be reloaded.
+ *
+ * @see JEditBuffer#loadMappedText(MappedText, IntegerArray)
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+public class MappedText
+{
+	/** Approximate size of a window, in bytes. */
+	public static final int WINDOW_SIZE = 65536;
+
+	//{{{ isSupported() method
+	/**
+	 * Returns if files in the given charset can be mapped.
+	 */
+	public static boolean isSupported(Charset charset)
+	{
+		if(isUTF8(charset))
+			return true;
+		if(!charset.canEncode())
+			return false;
+		try
+		{
+			if(charset.newEncoder().maxBytesPerChar() != 1.0f)
+				return false;
+			ByteBuffer eol = charset.newEncoder().encode(
+				CharBuffer.wrap("\r\n"));
+			return eol.remaining() == 2 && eol.get(0) == '\r'
+				&& eol.get(1) == '\n';
+		}
+		catch(CharacterCodingException e)
+		{
+			return false;
+		}
+	} //}}}
+
+	//{{{ MappedText constructor
+	/**
+	 * Maps a file.
+	 * @param file The file
+	 * @param charset The encoding, it must be supported
+	 * @param stripTrailingEOL If true, a line separator at the end of
+	 * the file is not part of the text
+	 * @throws IOException if the file cannot be mapped
+	 */
+	public MappedText(File file, Charset charset, boolean stripTrailingEOL)
+		throws IOException
+	{
+		if(!isSupported(charset))
+			throw new IllegalArgumentException(charset.name());
+		this.file = file;
+		this.charset = charset;
+		utf8 = isUTF8(charset);
+
+		// the channel stays open so that truncation can be detected
+		raf = new RandomAccessFile(file,"r");
+		boolean mapped = false;
+		try
+		{
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if(size >= Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to be mapped");
+			bytes = channel.map(FileChannel.MapMode.READ_ONLY,0,size);
+			mapped = true;
+		}
+		finally
+		{
+			if(!mapped)
+				raf.close();
+		}
+
+		int end = bytes.limit();
+		// Chop trailing ^Z and newline as a regular load does
+		if(end != 0 && bytes.get(end - 1) == 0x1a)
+			end--;
+		if(stripTrailingEOL && end != 0)
+		{
+			byte last = bytes.get(end - 1);
+			if(last == '\n')
+			{
+				trailingEOL = true;
+				end--;
+				if(end != 0 && bytes.get(end - 1) == '\r')
+					end--;
+			}
+			else if(last == '\r')
+			{
+				trailingEOL = true;
+				end--;
+			}
+		}
+		byteEnd = end;
+
+		windowByteStart = new int[16];
+		windowCharStart = new int[16];
+		decoder = newDecoder(CodingErrorAction.REPLACE);
+		lineSeparator = detectLineSeparator();
+	} //}}}
+
+	//{{{ getFile() method
+	public File getFile()
+	{
+		return file;
+	} //}}}
+
+	//{{{ getCharset() method
+	public Charset getCharset()
+	{
+		return charset;
+	} //}}}
+
+	//{{{ getLineSeparator() method
+	/**
+	 * Returns the first line separator found in the file, or
+	 * <code>\n</code> if there is none.
+	 */
+	public String getLineSeparator()
+	{
+		return lineSeparator;
+	} //}}}
+
+	//{{{ hasTrailingEOL() method
+	/**
+	 * Returns true if a line separator was stripped from the end of the
+	 * file.
+	 */
+	public boolean hasTrailingEOL()
+	{
+		return trailingEOL;
+	} //}}}
+
+	//{{{ check() method
+	/**
+	 * Decodes the beginning of the file, reporting malformed input
+	 * instead of replacing it. Windows decoded later never fail.
+	 * @throws CharacterCodingException if the file does not look like
+	 * it is in this encoding
+	 */
+	public void check() throws CharacterCodingException
+	{
+		int end = alignWindowEnd(0);
+		ByteBuffer in = slice(0,end);
+		newDecoder(CodingErrorAction.REPORT).decode(in);
+	} //}}}
+
+	//{{{ scan() method
+	/**
+	 * Scans the next windows of the file.
+	 * @param endOffsets The offset following each line end found is
+	 * added to this array
+	 * @param maxWindows The maximum number of windows to scan
+	 * @return true if the whole file has been scanned, or if the file
+	 * has been truncated and cannot be scanned further
+	 */
+	public boolean scan(IntegerArray endOffsets, int maxWindows)
+	{
+		CharsetDecoder scanDecoder = newDecoder(CodingErrorAction.REPLACE);
+		for(int i = 0; i < maxWindows && !isScanned(); i++)
+		{
+			int byteStart;
+			int charStart;
+			synchronized(this)
+			{
+				byteStart = windowByteStart[windowCount];
+				charStart = windowCharStart[windowCount];
+			}
+
+			if(checkTruncated())
+				return true;
+			int windowEnd;
+			char[] chars;
+			try
+			{
+				windowEnd = alignWindowEnd(byteStart);
+				chars = decode(scanDecoder,byteStart,windowEnd);
+			}
+			catch(InternalError e)
+			{
+				// the file was truncated after the check
+				setTruncated();
+				return true;
+			}
+			for(int j = 0; j < chars.length; j++)
+			{
+				if(chars[j] == '\n')
+					endOffsets.add(charStart + j + 1);
+			}
+
+			synchronized(this)
+			{
+				if(windowCount + 2 > windowByteStart.length)
+				{
+					int[] byteStartN = new int[windowByteStart.length * 2];
+					System.arraycopy(windowByteStart,0,byteStartN,0,
+						windowCount + 1);
+					windowByteStart = byteStartN;
+					int[] charStartN = new int[windowCharStart.length * 2];
+					System.arraycopy(windowCharStart,0,charStartN,0,
+						windowCount + 1);
+					windowCharStart = charStartN;
+				}
+				windowCount++;
+				windowByteStart[windowCount] = windowEnd;
+				windowCharStart[windowCount] = charStart + chars.length;
+			}
+		}
+		return isScanned();
+	} //}}}
+
+	//{{{ isScanned() method
+	/**
+	 * Returns true if the whole file has been scanned.
+	 */
+	public synchronized boolean isScanned()
+	{
+		return windowByteStart[windowCount] >= byteEnd;
+	} //}}}
+
+	//{{{ getScannedLength() method
+	/**
+	 * Returns the number of characters scanned so far.
+	 */
+	public synchronized int getScannedLength()
+	{
+		return windowCharStart[windowCount];
+	} //}}}
+
+	//{{{ getScannedBytes() method
+	/**
+	 * Returns the number of bytes scanned so far.
+	 */
+	public synchronized long getScannedBytes()
+	{
+		return windowByteStart[windowCount];
+	} //}}}
+
+	//{{{ getByteLength() method
+	/**
+	 * Returns the number of bytes that will be scanned.
+	 */
+	public long getByteLength()
+	{
+		return byteEnd;
+	} //}}}
+
+	//{{{ getText() method
+	/**
+	 * Returns the specified text range in a <code>Segment</code>. The
+	 * range must have been scanned. The segment may share a decoded
+	 * window, which is never modified.
+	 */
+	public void getText(int start, int len, Segment seg)
+	{
+		if(len == 0)
+		{
+			seg.array = EMPTY_TEXT;
+			seg.offset = 0;
+			seg.count = 0;
+			return;
+		}
+
+		int window = getWindowOfOffset(start);
+		int windowStart = getWindowCharStart(window);
+		char[] chars = getWindow(window);
+		if(start + len <= windowStart + chars.length)
+		{
+			seg.array = chars;
+			seg.offset = start - windowStart;
+			seg.count = len;
+			return;
+		}
+
+		char[] copy = new char[len];
+		int copied = 0;
+		while(copied < len)
+		{
+			int from = start + copied - windowStart;
+			int count = Math.min(len - copied,chars.length - from);
+			System.arraycopy(chars,from,copy,copied,count);
+			copied += count;
+			if(copied < len)
+			{
+				window++;
+				windowStart = getWindowCharStart(window);
+				chars = getWindow(window);
+			}
+		}
+		seg.array = copy;
+		seg.offset = 0;
+		seg.count = len;
+	} //}}}
+
+	//{{{ close() method
+	/**
+	 * Drops the decoded windows. The text cannot be read anymore.
+	 */
+	public synchronized void close()
+	{
+		closed = true;
+		cache.clear();
+		IOUtilities.closeQuietly(raf);
+	} //}}}
+
+	//{{{ isClosed() method
+	public synchronized boolean isClosed()
+	{
+		return closed;
+	} //}}}
+
+	//{{{ isTruncated() method
+	/**
+	 * Returns true if the file was found to be shorter than when it was
+	 * mapped. The length is checked each time a window is decoded, since
+	 * reading the missing part of the mapping would crash; the windows
+	 * that were not decoded before read as blanks.
+	 */
+	public synchronized boolean isTruncated()
+	{
+		return truncated;
+	} //}}}
+
+	//{{{ checkTruncated() method
+	/**
+	 * Compares the file length with the mapped length.
+	 * @return true if the file has been truncated
+	 */
+	private synchronized boolean checkTruncated()
+	{
+		if(!truncated && !closed)
+		{
+			try
+			{
+				if(raf.getChannel().size() < bytes.limit())
+					truncated = true;
+			}
+			catch(IOException e)
+			{
+				truncated = true;
+			}
+		}
+		return truncated;
+	} //}}}
+
+	//{{{ Private members
+	private static final char[] EMPTY_TEXT = new char[0];
+
+	/** Number of decoded windows kept in memory. */
+	private static final int CACHED_WINDOWS = 32;
+
+	private final File file;
+	private final Charset charset;
+	private final boolean utf8;
+	private final RandomAccessFile raf;
+	private final MappedByteBuffer bytes;
+	private final int byteEnd;
+	private final String lineSeparator;
+	private boolean trailingEOL;
+	private boolean closed;
+	private boolean truncated;
+
+	/** Only used under the lock of this object. */
+	private final CharsetDecoder decoder;
+
+	/** Number of scanned windows. */
+	private int windowCount;
+	/** Start of each scanned window, plus the end of the last one. */
+	private int[] windowByteStart;
+	private int[] windowCharStart;
+
+	@SuppressWarnings("serial")
+	private final Map<Integer, char[]> cache
+		= new LinkedHashMap<Integer, char[]>(CACHED_WINDOWS,0.75f,true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, char[]> eldest)
+		{
+			return size() > CACHED_WINDOWS;
+		}
+	};
+
+	//{{{ isUTF8() method
+	private static boolean isUTF8(Charset charset)
+	{
+		return "UTF-8".equals(charset.name());
+	} //}}}
+
+	//{{{ newDecoder() method
+	private CharsetDecoder newDecoder(CodingErrorAction action)
+	{
+		return charset.newDecoder()
+			.onMalformedInput(action)
+			.onUnmappableCharacter(action);
+	} //}}}
+
+	//{{{ detectLineSeparator() method
+	private String detectLineSeparator()
+	{
+		int max = Math.min(byteEnd,WINDOW_SIZE);
+		for(int i = 0; i < max; i++)
+		{
+			byte b = bytes.get(i);
+			if(b == '\n')
+				return "\n";
+			if(b == '\r')
+			{
+				if(i + 1 < bytes.limit() && bytes.get(i + 1) == '\n')
+					return "\r\n";
+				return "\r";
+			}
+		}
+		return "\n";
+	} //}}}
+
+	//{{{ alignWindowEnd() method
+	/**
+	 * Returns the end of the window starting at the given byte, moved
+	 * forward so that it neither cuts a character nor a CR+LF pair.
+	 */
+	private int alignWindowEnd(int byteStart)
+	{
+		int end = Math.min(byteEnd,byteStart + WINDOW_SIZE);
+		if(utf8)
+		{
+			// skip continuation bytes
+			while(end < byteEnd && (bytes.get(end) & 0xc0) == 0x80)
+				end++;
+		}
+		if(end < byteEnd && end > 0 && bytes.get(end - 1) == '\r'
+			&& bytes.get(end) == '\n')
+		{
+			end++;
+		}
+		return end;
+	} //}}}
+
+	//{{{ slice() method
+	private ByteBuffer slice(int start, int end)
+	{
+		ByteBuffer in = bytes.duplicate();
+		in.limit(end);
+		in.position(start);
+		return in;
+	} //}}}
+
+	//{{{ decode() method
+	/**
+	 * Decodes a byte range, converting line separators to
+	 * <code>\n</code>.
+	 */
+	private char[] decode(CharsetDecoder decoder, int start, int end)
+	{
+		ByteBuffer in = slice(start,end);
+		CharBuffer out = CharBuffer.allocate(
+			(int)((end - start) * decoder.maxCharsPerByte()) + 1);
+		decoder.reset();
+		CoderResult result = decoder.decode(in,out,true);
+		if(!result.isUnderflow())
+			throw new IllegalStateException(result.toString());
+		decoder.flush(out);
+
+		char[] chars = out.array();
+		int len = out.position();
+		int dest = 0;
+		boolean lastWasCR = false;
+		for(int i = 0; i < len; i++)
+		{
+			char ch = chars[i];
+			if(ch == '\r')
+			{
+				chars[dest++] = '\n';
+				lastWasCR = true;
+			}
+			else if(ch == '\n' && lastWasCR)
+				lastWasCR = false;
+			else
+			{
+				chars[dest++] = ch;
+				lastWasCR = false;
+			}
+		}
+
+		if(dest == chars.length)
+			return chars;
+		char[] trimmed = new char[dest];
+		System.arraycopy(chars,0,trimmed,0,dest);
+		return trimmed;
+	} //}}}
+
+	//{{{ getWindowOfOffset() method
+	private synchronized int getWindowOfOffset(int offset)
+	{
+		int low = 0;
+		int high = windowCount - 1;
+		while(low < high)
+		{
+			int mid = (low + high + 1) >>> 1;
+			if(windowCharStart[mid] <= offset)
+				low = mid;
+			else
+				high = mid - 1;
+		}
+		return low;
+	} //}}}
+
+	//{{{ getWindowCharStart() method
+	private synchronized int getWindowCharStart(int window)
+	{
+		return windowCharStart[window];
+	} //}}}
+
+	//{{{ getWindow() method
+	private synchronized char[] getWindow(int window)
+	{
+		if(closed)
+			throw new IllegalStateException(file + " is closed");
+		Integer key = Integer.valueOf(window);
+		char[] chars = cache.get(key);
+		if(chars == null)
+		{
+			if(!checkTruncated())
+			{
+				try
+				{
+					chars = decode(decoder,windowByteStart[window],
+						windowByteStart[window + 1]);
+				}
+				catch(InternalError e)
+				{
+					// the file was truncated after the check
+					truncated = true;
+				}
+			}
+			if(chars == null)
+			{
+				chars = new char[windowCharStart[window + 1]
+					- windowCharStart[window]];
+				Arrays.fill(chars,' ');
+			}
+			cache.put(key,chars);
+		}
+		return chars;
+	} //}}}
+
+	//{{{ setTruncated() method
+	private synchronized void setTruncated()
+	{
+		truncated = true;
+	} //}}}
+
+	//}}}
+}
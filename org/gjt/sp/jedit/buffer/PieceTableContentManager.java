@@ -0,0 +1,499 @@
+/*
+ * PieceTableContentManager.java - Piece table text storage
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.buffer;
+
+import javax.swing.text.Segment;
+
+/**
+ * A {@link ContentManager} storing the text as a piece table.<p>
+ *
+ * The loaded text is kept as it is, inserted text is appended to
+ * add chunks that are never modified afterwards, and the document is
+ * described by a sequence of pieces referencing ranges of those
+ * arrays. The pieces are kept in a treap ordered by document position
+ * and augmented with subtree lengths, so inserting and removing cost
+ * O(log n) in the number of pieces regardless of where the edit lands,
+ * and nothing is ever moved or copied on load.<p>
+ *
+ * A {@link #snapshot()} shares the pieces, which are copied by the next
+ * change to this content manager.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class PieceTableContentManager extends ContentManager
+{
+	//{{{ getText() methods
+	public String getText(int start, int len)
+	{
+		Segment seg = new Segment();
+		getText(start,len,seg);
+		return new String(seg.array,seg.offset,seg.count);
+	}
+
+	public void getText(int start, int len, Segment seg)
+	{
+		// pieces never change the characters they refer to, so the
+		// array can be shared when the range lies within one piece
+		if(!findRange(root,start,len,seg))
+		{
+			seg.array = new char[len];
+			copy(root,0,start,start + len,seg.array);
+			seg.offset = 0;
+			seg.count = len;
+		}
+	} //}}}
+
+	//{{{ getSegment() method
+	public CharSequence getSegment(int start, int len)
+	{
+		Segment seg = new Segment();
+		getText(start,len,seg);
+		return new BufferSegment(seg.array,seg.offset,seg.count);
+	} //}}}
+
+	//{{{ insert() methods
+	public void insert(int start, String str)
+	{
+		int len = str.length();
+		if(len == 0)
+			return;
+		int addOffset = prepareAdd(len);
+		str.getChars(0,len,addChunk,addOffset);
+		addPiece(start,addOffset,len);
+	}
+
+	public void insert(int start, CharSequence str)
+	{
+		int len = str.length();
+		if(len == 0)
+			return;
+		int addOffset = prepareAdd(len);
+		for(int i = 0; i < len; i++)
+			addChunk[addOffset + i] = str.charAt(i);
+		addPiece(start,addOffset,len);
+	}
+
+	public void insert(int start, Segment seg)
+	{
+		if(seg.count == 0)
+			return;
+		int addOffset = prepareAdd(seg.count);
+		System.arraycopy(seg.array,seg.offset,addChunk,addOffset,seg.count);
+		addPiece(start,addOffset,seg.count);
+	} //}}}
+
+	//{{{ _setContent() method
+	public void _setContent(char[] text, int length)
+	{
+		assert text != null;
+		assert text.length >= length;
+		root = length == 0 ? null : new Piece(text,0,length,nextPriority());
+		this.length = length;
+		shared = false;
+	} //}}}
+
+	//{{{ remove() method
+	public void remove(int start, int len)
+	{
+		if(len == 0)
+			return;
+		unshare();
+		split(root,start);
+		Piece left = splitLeft;
+		split(splitRight,len);
+		root = merge(left,splitRight);
+		length -= len;
+	} //}}}
+
+	//{{{ snapshot() method
+	public ContentManager snapshot()
+	{
+		// the characters of the pieces never change, and the pieces
+		// are copied by the next change instead
+		PieceTableContentManager snapshot = new PieceTableContentManager();
+		snapshot.root = root;
+		snapshot.length = length;
+		snapshot.shared = true;
+		shared = true;
+		return snapshot;
+	} //}}}
+
+	//{{{ getPieceCount() method
+	/**
+	 * Returns the number of pieces the text is currently split into.
+	 */
+	int getPieceCount()
+	{
+		return count(root);
+	} //}}}
+
+	//{{{ Private members
+
+	private static final char[] EMPTY_TEXT = new char[0];
+
+	/** Size of the arrays inserted text is appended to. */
+	private static final int ADD_CHUNK_SIZE = 8192;
+
+	private Piece root;
+	/** True if a snapshot may use the pieces. */
+	private boolean shared;
+
+	/** The add chunk currently being filled. */
+	private char[] addChunk;
+	private int addUsed;
+
+	/** Document offset at which the last inserted piece ends. */
+	private int lastInsertEnd = -1;
+
+	/** Results of {@link #split(Piece, int)}. */
+	private Piece splitLeft;
+	private Piece splitRight;
+
+	private int seed = 0x2545f491;
+
+	//{{{ prepareAdd() method
+	/**
+	 * Makes room for <code>len</code> characters in the add chunk.
+	 * @return the offset in {@link #addChunk} to copy the text to
+	 */
+	private int prepareAdd(int len)
+	{
+		if(addChunk == null || addChunk.length - addUsed < len)
+		{
+			addChunk = new char[Math.max(ADD_CHUNK_SIZE,len)];
+			addUsed = 0;
+			lastInsertEnd = -1;
+		}
+		int addOffset = addUsed;
+		addUsed += len;
+		return addOffset;
+	} //}}}
+
+	//{{{ unshare() method
+	private void unshare()
+	{
+		if(shared)
+		{
+			root = copy(root);
+			shared = false;
+		}
+	} //}}}
+
+	//{{{ addPiece() method
+	private void addPiece(int start, int addOffset, int len)
+	{
+		unshare();
+		// typing appends to the piece created by the previous
+		// insert when possible, so the piece count stays low
+		if(start == lastInsertEnd && addOffset > 0)
+		{
+			Piece piece = findPieceEndingAt(root,start);
+			if(piece != null && piece.array == addChunk
+				&& piece.offset + piece.length == addOffset)
+			{
+				grow(root,start - 1,len);
+				length += len;
+				lastInsertEnd = start + len;
+				return;
+			}
+		}
+
+		split(root,start);
+		Piece left = splitLeft;
+		Piece right = splitRight;
+		Piece piece = new Piece(addChunk,addOffset,len,nextPriority());
+		root = merge(merge(left,piece),right);
+		length += len;
+		lastInsertEnd = start + len;
+	} //}}}
+
+	//{{{ grow() method
+	/**
+	 * Extends the piece containing <code>offset</code> by
+	 * <code>len</code> characters, updating subtree sizes on the way.
+	 */
+	private static void grow(Piece node, int offset, int len)
+	{
+		while(node != null)
+		{
+			node.size += len;
+			int leftSize = size(node.left);
+			if(offset < leftSize)
+				node = node.left;
+			else
+			{
+				offset -= leftSize;
+				if(offset < node.length)
+				{
+					node.length += len;
+					return;
+				}
+				offset -= node.length;
+				node = node.right;
+			}
+		}
+	} //}}}
+
+	//{{{ findRange() method
+	/**
+	 * If the given range lies within a single piece, points the segment
+	 * to it and returns true.
+	 */
+	private static boolean findRange(Piece node, int start, int len,
+		Segment seg)
+	{
+		if(len == 0)
+		{
+			seg.array = EMPTY_TEXT;
+			seg.offset = 0;
+			seg.count = 0;
+			return true;
+		}
+
+		int offset = start;
+		while(node != null)
+		{
+			int leftSize = size(node.left);
+			if(offset < leftSize)
+				node = node.left;
+			else
+			{
+				offset -= leftSize;
+				if(offset < node.length)
+				{
+					if(offset + len > node.length)
+						return false;
+					seg.array = node.array;
+					seg.offset = node.offset + offset;
+					seg.count = len;
+					return true;
+				}
+				offset -= node.length;
+				node = node.right;
+			}
+		}
+		return false;
+	} //}}}
+
+	//{{{ findPieceEndingAt() method
+	/**
+	 * Returns the piece whose last character is at
+	 * <code>end - 1</code>, or null.
+	 */
+	private static Piece findPieceEndingAt(Piece node, int end)
+	{
+		int offset = end - 1;
+		while(node != null)
+		{
+			int leftSize = size(node.left);
+			if(offset < leftSize)
+				node = node.left;
+			else
+			{
+				offset -= leftSize;
+				if(offset < node.length)
+					return offset == node.length - 1 ? node : null;
+				offset -= node.length;
+				node = node.right;
+			}
+		}
+		return null;
+	} //}}}
+
+	//{{{ copy() method
+	/**
+	 * Copies the characters of the document range
+	 * [<code>start</code>, <code>end</code>) found in the subtree
+	 * <code>node</code>, which begins at document offset
+	 * <code>nodeStart</code>, into <code>dest</code>.
+	 */
+	private static void copy(Piece node, int nodeStart, int start, int end,
+		char[] dest)
+	{
+		while(node != null)
+		{
+			int leftSize = size(node.left);
+			int pieceStart = nodeStart + leftSize;
+			int pieceEnd = pieceStart + node.length;
+			if(start < pieceStart)
+				copy(node.left,nodeStart,start,end,dest);
+			if(start < pieceEnd && end > pieceStart)
+			{
+				int from = Math.max(start,pieceStart);
+				int to = Math.min(end,pieceEnd);
+				System.arraycopy(node.array,
+					node.offset + from - pieceStart,
+					dest,from - start,to - from);
+			}
+			if(end <= pieceEnd)
+				return;
+			nodeStart = pieceEnd;
+			node = node.right;
+		}
+	} //}}}
+
+	//{{{ copy() method
+	/**
+	 * Returns a copy of the subtree, with the same characters.
+	 */
+	private static Piece copy(Piece node)
+	{
+		if(node == null)
+			return null;
+		Piece piece = new Piece(node.array,node.offset,node.length,
+			node.priority);
+		piece.left = copy(node.left);
+		piece.right = copy(node.right);
+		piece.size = node.size;
+		return piece;
+	} //}}}
+
+	//{{{ split() method
+	/**
+	 * Splits the subtree so that {@link #splitLeft} holds the first
+	 * <code>pos</code> characters and {@link #splitRight} the rest.
+	 * A piece straddling <code>pos</code> is cut in two.
+	 */
+	private void split(Piece node, int pos)
+	{
+		if(node == null)
+		{
+			splitLeft = splitRight = null;
+			return;
+		}
+
+		int leftSize = size(node.left);
+		if(pos <= leftSize)
+		{
+			split(node.left,pos);
+			node.left = splitRight;
+			node.update();
+			splitRight = node;
+		}
+		else if(pos >= leftSize + node.length)
+		{
+			split(node.right,pos - leftSize - node.length);
+			node.right = splitLeft;
+			node.update();
+			splitLeft = node;
+		}
+		else
+		{
+			int cut = pos - leftSize;
+			// the tail keeps the priority of the node it was cut
+			// from, so the heap order of its new child holds
+			Piece tail = new Piece(node.array,node.offset + cut,
+				node.length - cut,node.priority);
+			tail.right = node.right;
+			tail.update();
+			node.length = cut;
+			node.right = null;
+			node.update();
+			splitLeft = node;
+			splitRight = tail;
+		}
+	} //}}}
+
+	//{{{ merge() method
+	/**
+	 * Concatenates two subtrees, all characters of <code>left</code>
+	 * coming before those of <code>right</code>.
+	 */
+	private static Piece merge(Piece left, Piece right)
+	{
+		if(left == null)
+			return right;
+		if(right == null)
+			return left;
+		if(left.priority > right.priority)
+		{
+			left.right = merge(left.right,right);
+			left.update();
+			return left;
+		}
+		else
+		{
+			right.left = merge(left,right.left);
+			right.update();
+			return right;
+		}
+	} //}}}
+
+	//{{{ size() method
+	private static int size(Piece node)
+	{
+		return node == null ? 0 : node.size;
+	} //}}}
+
+	//{{{ count() method
+	private static int count(Piece node)
+	{
+		if(node == null)
+			return 0;
+		return count(node.left) + 1 + count(node.right);
+	} //}}}
+
+	//{{{ nextPriority() method
+	private int nextPriority()
+	{
+		// xorshift, we only need the priorities to be well spread
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		return seed;
+	} //}}}
+
+	//}}}
+
+	//{{{ Piece class
+	/**
+	 * A range of characters of one of the backing arrays, and a node of
+	 * the treap at the same time.
+	 */
+	private static class Piece
+	{
+		final char[] array;
+		final int offset;
+		int length;
+		final int priority;
+		/** Total length of the pieces in this subtree. */
+		int size;
+		Piece left;
+		Piece right;
+
+		Piece(char[] array, int offset, int length, int priority)
+		{
+			this.array = array;
+			this.offset = offset;
+			this.length = length;
+			this.priority = priority;
+			size = length;
+		}
+
+		void update()
+		{
+			size = size(left) + length + size(right);
+		}
+	} //}}}
+}
@@ -24,8 +24,10 @@ package org.gjt.sp.jedit.buffer;
 
 //{{{ Imports
 import javax.swing.text.Position;
-import java.util.*;
-import org.gjt.sp.util.Log;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
 //}}}
 
 /**
@@ -34,7 +36,14 @@ import org.gjt.sp.util.Log;
  * <p>Positions are created explicitly and removed implicitly, when
  * there are no more references to it. For this implicit removal to work
  * a top (referenced outside) and a bottom half (referenced internally)
- * of the position are implemented separately.
+ * of the position are implemented separately; the bottom halves of the
+ * positions that were garbage collected are removed the next time the
+ * positions are updated.
+ * <p>The bottom halves are kept in a treap ordered by offset, where
+ * moving all the positions after an edit is recorded once at the root
+ * of the subtree containing them and only applied to the children
+ * when the tree is walked, so that an edit costs O(log n) in the
+ * number of positions wherever it lands.
  *
  * @author Slava Pestov
  * @version $Id$
@@ -47,175 +56,487 @@ class PositionManager
 	{
 		this.buffer = buffer;
 	} //}}}
-	
+
 	//{{{ createPosition() method
 	/** No explicit removal is required. Unreferencing is enough. */
 	public synchronized Position createPosition(int offset)
 	{
-		PosBottomHalf bh = new PosBottomHalf(offset);
-		PosBottomHalf existing = positions.get(bh);
-		if(existing == null)
-		{
-			positions.put(bh,bh);
-			existing = bh;
-		}
+		expungeStaleEntries();
 
-		return new PosTopHalf(existing);
+		PosBottomHalf bh = new PosBottomHalf(offset,nextPriority());
+		split(root,offset);
+		setRoot(merge(merge(splitLeft,bh),splitRight));
+
+		PosTopHalf th = new PosTopHalf(bh);
+		bh.ref = new PosReference(th,bh,queue);
+		return th;
 	} //}}}
 
 	//{{{ contentInserted() method
 	public synchronized void contentInserted(int offset, int length)
 	{
-		if(positions.isEmpty())
+		expungeStaleEntries();
+		if(root == null)
 			return;
 
-		/* get all positions from offset to the end, inclusive */
-		Iterator<PosBottomHalf> iter = positions.tailMap(new PosBottomHalf(offset))
-			.keySet().iterator();
-
-		iteration = true;
-		while(iter.hasNext())
-		{
-			iter.next().contentInserted(offset,length);
-		}
-		iteration = false;
+		/* move all positions from offset to the end, inclusive */
+		split(root,offset);
+		Node left = splitLeft;
+		Node right = splitRight;
+		shift(right,length);
+		setRoot(merge(left,right));
 	} //}}}
 
 	//{{{ contentRemoved() method
 	public synchronized void contentRemoved(int offset, int length)
 	{
-		if(positions.isEmpty())
+		expungeStaleEntries();
+		if(root == null)
+			return;
+
+		/* positions in the removed text move to its start, the ones
+		 * after it move back */
+		split(root,offset);
+		Node left = splitLeft;
+		split(splitRight,offset + length + 1);
+		Node removed = splitLeft;
+		Node right = splitRight;
+		collapse(removed,offset);
+		shift(right,-length);
+		setRoot(merge(merge(left,removed),right));
+	} //}}}
+
+	//{{{ contentReplaced() method
+	/**
+	 * First half of a {@link JEditBuffer#replace(Replacements)}, called
+	 * once the span from the first range to the end of the last one
+	 * has been removed. The positions in the span move to its start,
+	 * as for a removal, and where each of them goes once the new text
+	 * is inserted is kept for {@link #replacedTextInserted(int,int)}.
+	 */
+	public synchronized void contentReplaced(Replacements replacements)
+	{
+		expungeStaleEntries();
+		replaced = null;
+		if(root == null)
 			return;
 
-		/* get all positions from offset to the end, inclusive */
-		Iterator<PosBottomHalf> iter = positions.tailMap(new PosBottomHalf(offset))
-			.keySet().iterator();
+		int start = replacements.getOffset(0);
+		int end = replacements.getEnd();
+		split(root,start);
+		Node left = splitLeft;
+		split(splitRight,end + 1);
+		Node removed = splitLeft;
+		Node right = splitRight;
 
-		iteration = true;
-		while(iter.hasNext())
+		if(removed != null)
 		{
-			iter.next().contentRemoved(offset,length);
+			List<PosBottomHalf> nodes = new ArrayList<PosBottomHalf>();
+			collect(removed,nodes);
+			replaced = nodes.toArray(new PosBottomHalf[nodes.size()]);
+			replacedOffsets = getReplacedOffsets(replacements,replaced);
 		}
-		iteration = false;
 
+		collapse(removed,start);
+		shift(right,start - end);
+		setRoot(merge(merge(left,removed),right));
 	} //}}}
 
-	boolean iteration;
+	//{{{ replacedTextInserted() method
+	/**
+	 * Second half of a {@link JEditBuffer#replace(Replacements)},
+	 * called once the new text has been inserted. The positions move
+	 * as if each range had been replaced on its own.
+	 */
+	public synchronized void replacedTextInserted(int offset, int length)
+	{
+		expungeStaleEntries();
+		PosBottomHalf[] nodes = replaced;
+		replaced = null;
+
+		// the positions of the span are taken out, and put back
+		// where they belong after the others moved
+		if(nodes != null)
+		{
+			for(int i = 0; i < nodes.length; i++)
+			{
+				if(nodes[i].ref != null)
+					remove(nodes[i]);
+			}
+		}
+
+		if(root != null)
+		{
+			split(root,offset);
+			Node left = splitLeft;
+			Node right = splitRight;
+			shift(right,length);
+			setRoot(merge(left,right));
+		}
+
+		if(nodes != null)
+		{
+			for(int i = 0; i < nodes.length; i++)
+			{
+				PosBottomHalf bh = nodes[i];
+				if(bh.ref == null)
+					continue;
+				bh.offset = replacedOffsets[i];
+				bh.move = 0;
+				bh.collapse = false;
+				bh.parent = bh.left = bh.right = null;
+				split(root,bh.offset);
+				setRoot(merge(merge(splitLeft,bh),splitRight));
+			}
+		}
+	} //}}}
 
 	//{{{ Private members
-	private JEditBuffer buffer;
-	private SortedMap<PosBottomHalf, PosBottomHalf> positions = new TreeMap<PosBottomHalf, PosBottomHalf>();
-	//}}}
+	private final JEditBuffer buffer;
+	private Node root;
 
-	//{{{ Inner classes
+	/** Positions of the span being replaced, and where they go. */
+	private PosBottomHalf[] replaced;
+	private int[] replacedOffsets;
+	private final ReferenceQueue<PosTopHalf> queue = new ReferenceQueue<PosTopHalf>();
 
-	//{{{ PosTopHalf class
-	/** A wrapper for real position handling done by
-	  * <code>PosBottomHalf</code>, so Top means the part that is
-	  * visible. When there are no more references
-	  * to <code>PosTopHalf</code> and garbage
-	  * collector eats it, the position is removed together with its
-	  * bottom half. */
-	class PosTopHalf implements Position
+	/** Results of {@link #split(Node, int)}. */
+	private Node splitLeft;
+	private Node splitRight;
+
+	private int seed = 0x2545f491;
+
+	//{{{ getOffset() method
+	private synchronized int getOffset(Node node)
 	{
-		final PosBottomHalf bh;
+		// the moves recorded by the ancestors have not been
+		// applied to this node yet, the nearest one being the
+		// oldest
+		int offset = node.offset;
+		for(Node p = node.parent; p != null; p = p.parent)
+			offset = p.collapse ? p.move : offset + p.move;
+		return offset;
+	} //}}}
 
-		//{{{ PosTopHalf constructor
-		PosTopHalf(PosBottomHalf bh)
+	//{{{ expungeStaleEntries() method
+	/**
+	 * Removes the bottom halves of the positions that are no longer
+	 * referenced.
+	 */
+	private void expungeStaleEntries()
+	{
+		PosReference ref;
+		while((ref = (PosReference)queue.poll()) != null)
 		{
-			this.bh = bh;
-			bh.ref();
-		} //}}}
+			remove(ref.bh);
+			ref.bh.ref = null;
+		}
+	} //}}}
 
-		//{{{ getOffset() method
-		public int getOffset()
+	//{{{ remove() method
+	private void remove(Node node)
+	{
+		pushPath(node);
+		Node replacement = merge(node.left,node.right);
+		Node parent = node.parent;
+		if(parent == null)
+			setRoot(replacement);
+		else if(parent.left == node)
+			parent.setLeft(replacement);
+		else
+			parent.setRight(replacement);
+	} //}}}
+
+	//{{{ pushPath() method
+	/**
+	 * Applies the pending moves of the ancestors of a node to it and
+	 * its children.
+	 */
+	private static void pushPath(Node node)
+	{
+		if(node.parent != null)
+			pushPath(node.parent);
+		node.push();
+	} //}}}
+
+	//{{{ setRoot() method
+	private void setRoot(Node node)
+	{
+		root = node;
+		if(node != null)
+			node.parent = null;
+	} //}}}
+
+	//{{{ shift() method
+	/** Moves all the positions of a subtree. */
+	private static void shift(Node node, int length)
+	{
+		if(node == null)
+			return;
+		node.offset += length;
+		// adds to the offset the subtree collapses to, if any
+		node.move += length;
+	} //}}}
+
+	//{{{ collapse() method
+	/** Moves all the positions of a subtree to the same offset. */
+	private static void collapse(Node node, int offset)
+	{
+		if(node == null)
+			return;
+		node.offset = offset;
+		node.collapse = true;
+		node.move = offset;
+	} //}}}
+
+	//{{{ split() method
+	/**
+	 * Splits the subtree so that {@link #splitLeft} holds the positions
+	 * before <code>offset</code> and {@link #splitRight} the others.
+	 */
+	private void split(Node node, int offset)
+	{
+		if(node == null)
 		{
-			return bh.offset;
-		} //}}}
+			splitLeft = splitRight = null;
+			return;
+		}
 
-		//{{{ finalize() method
-		@Override
-		protected void finalize()
+		node.push();
+		if(node.offset < offset)
 		{
-			synchronized(PositionManager.this)
+			split(node.right,offset);
+			node.setRight(splitLeft);
+			splitLeft = node;
+		}
+		else
+		{
+			split(node.left,offset);
+			node.setLeft(splitRight);
+			splitRight = node;
+		}
+	} //}}}
+
+	//{{{ merge() method
+	/**
+	 * Concatenates two subtrees, all positions of <code>left</code>
+	 * being before those of <code>right</code>.
+	 */
+	private static Node merge(Node left, Node right)
+	{
+		if(left == null)
+			return right;
+		if(right == null)
+			return left;
+		if(left.priority > right.priority)
+		{
+			left.push();
+			left.setRight(merge(left.right,right));
+			return left;
+		}
+		else
+		{
+			right.push();
+			right.setLeft(merge(left,right.left));
+			return right;
+		}
+	} //}}}
+
+	//{{{ collect() method
+	/** Adds the positions of a subtree to a list, in order. */
+	private static void collect(Node node, List<PosBottomHalf> nodes)
+	{
+		if(node == null)
+			return;
+		node.push();
+		collect(node.left,nodes);
+		nodes.add((PosBottomHalf)node);
+		collect(node.right,nodes);
+	} //}}}
+
+	//{{{ getReplacedOffsets() method
+	/**
+	 * Returns where positions in the replaced span are once all the
+	 * ranges are replaced, in order. A position in a range moves to the
+	 * end of its new text, as it would for a removal followed by an
+	 * insertion at the same offset, and on to the end of the next
+	 * range's if it starts there.
+	 * @param nodes The positions, in order
+	 */
+	private static int[] getReplacedOffsets(Replacements replacements,
+		PosBottomHalf[] nodes)
+	{
+		int[] offsets = new int[nodes.length];
+		int count = replacements.size();
+		// how much the ranges before the current one moved the text
+		int delta = 0;
+		int range = 0;
+		for(int i = 0; i < nodes.length; i++)
+		{
+			int offset = nodes[i].offset;
+			while(range + 1 < count
+				&& replacements.getOffset(range + 1) <= offset)
 			{
-				bh.unref();
+				delta += replacements.getTextLength(range)
+					- replacements.getLength(range);
+				range++;
 			}
-		} //}}}
+			int rangeStart = replacements.getOffset(range);
+			int rangeEnd = rangeStart + replacements.getLength(range);
+			if(offset <= rangeEnd)
+			{
+				// the end of the new text is where the range
+				// ended, the next range moves it again if it
+				// starts there
+				int last = range;
+				int lastDelta = delta;
+				while(last + 1 < count && replacements.getOffset(
+					last + 1) == replacements.getOffset(last)
+					+ replacements.getLength(last))
+				{
+					lastDelta += replacements.getTextLength(last)
+						- replacements.getLength(last);
+					last++;
+				}
+				offsets[i] = replacements.getOffset(last)
+					+ replacements.getTextLength(last) + lastDelta;
+			}
+			else
+			{
+				offsets[i] = offset + replacements.getTextLength(range)
+					- replacements.getLength(range) + delta;
+			}
+		}
+		return offsets;
 	} //}}}
 
-	//{{{ PosBottomHalf class
-	/** 'bottom' means the part
-	  * that is not visible outside and stays only here in
-	  * <code>positions</code> map.*/
-	class PosBottomHalf implements Comparable<PosBottomHalf>
+	//{{{ nextPriority() method
+	private int nextPriority()
 	{
+		// xorshift, we only need the priorities to be well spread
+		seed ^= seed << 13;
+		seed ^= seed >>> 17;
+		seed ^= seed << 5;
+		return seed;
+	} //}}}
+
+	//}}}
+
+	//{{{ Inner classes
+
+	//{{{ Node class
+	/**
+	 * A node of the treap.
+	 */
+	static class Node
+	{
+		final int priority;
+		/** The offset, not counting the moves pending in the
+		 * ancestors. */
 		int offset;
-		int ref;
+		/** Move pending for the descendants: an offset they all
+		 * collapse to if <code>collapse</code> is set, otherwise a
+		 * length they all move by. */
+		int move;
+		boolean collapse;
+		Node parent;
+		Node left;
+		Node right;
 
-		//{{{ PosBottomHalf constructor
-		PosBottomHalf(int offset)
+		//{{{ Node constructor
+		Node(int offset, int priority)
 		{
 			this.offset = offset;
+			this.priority = priority;
 		} //}}}
 
-		//{{{ ref() method
-		void ref()
+		//{{{ push() method
+		/** Applies the pending move to the children. */
+		void push()
 		{
-			ref++;
+			if(collapse)
+			{
+				collapse(left,move);
+				collapse(right,move);
+			}
+			else if(move != 0)
+			{
+				shift(left,move);
+				shift(right,move);
+			}
+			collapse = false;
+			move = 0;
 		} //}}}
 
-		//{{{ unref() method
-		void unref()
+		//{{{ setLeft() method
+		void setLeft(Node node)
 		{
-			if(--ref == 0)
-				positions.remove(this);
+			left = node;
+			if(node != null)
+				node.parent = this;
 		} //}}}
 
-		//{{{ contentInserted() method
-		void contentInserted(int offset, int length)
+		//{{{ setRight() method
+		void setRight(Node node)
 		{
-			if(offset > this.offset)
-				throw new ArrayIndexOutOfBoundsException();
-			this.offset += length;
-			checkInvariants();
+			right = node;
+			if(node != null)
+				node.parent = this;
 		} //}}}
+	} //}}}
+
+	//{{{ PosTopHalf class
+	/** A wrapper for real position handling done by
+	  * <code>PosBottomHalf</code>, so Top means the part that is
+	  * visible. When there are no more references
+	  * to <code>PosTopHalf</code> and garbage
+	  * collector eats it, the position is removed together with its
+	  * bottom half. */
+	class PosTopHalf implements Position
+	{
+		final PosBottomHalf bh;
 
-		//{{{ contentRemoved() method
-		void contentRemoved(int offset, int length)
+		//{{{ PosTopHalf constructor
+		PosTopHalf(PosBottomHalf bh)
 		{
-			if(offset > this.offset)
-				throw new ArrayIndexOutOfBoundsException();
-			if(this.offset <= offset + length)
-				this.offset = offset;
-			else
-				this.offset -= length;
-			checkInvariants();
+			this.bh = bh;
 		} //}}}
 
-		//{{{ equals() method
-		@Override
-		public boolean equals(Object o)
+		//{{{ getOffset() method
+		public int getOffset()
 		{
-			if(!(o instanceof PosBottomHalf))
-				return false;
-
-			return ((PosBottomHalf)o).offset == offset;
+			return PositionManager.this.getOffset(bh);
 		} //}}}
+	} //}}}
 
-		//{{{ compareTo() method
-		public int compareTo(PosBottomHalf posBottomHalf)
+	//{{{ PosBottomHalf class
+	/** 'bottom' means the part
+	  * that is not visible outside and stays only here in
+	  * the treap.*/
+	static class PosBottomHalf extends Node
+	{
+		/** Keeps the reference alive until it is enqueued. */
+		PosReference ref;
+
+		//{{{ PosBottomHalf constructor
+		PosBottomHalf(int offset, int priority)
 		{
-			if(iteration)
-				Log.log(Log.ERROR,this,"Consistency failure");
-			return offset - posBottomHalf.offset;
+			super(offset,priority);
 		} //}}}
-		
-		//{{{ checkInvariants() method
-		private void checkInvariants()
+	} //}}}
+
+	//{{{ PosReference class
+	/** Tells when a top half is garbage collected. */
+	static class PosReference extends WeakReference<PosTopHalf>
+	{
+		final PosBottomHalf bh;
+
+		//{{{ PosReference constructor
+		PosReference(PosTopHalf th, PosBottomHalf bh,
+			ReferenceQueue<PosTopHalf> queue)
 		{
-			if(offset < 0 || offset > buffer.getLength())
-				throw new ArrayIndexOutOfBoundsException();
+			super(th,queue);
+			this.bh = bh;
 		} //}}}
 	} //}}}
 
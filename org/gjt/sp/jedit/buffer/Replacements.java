@@ -0,0 +1,199 @@
+/*
+ * Replacements.java - Ranges of text to replace at once
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.buffer;
+
+import org.gjt.sp.util.IntegerArray;
+
+/**
+ * Ranges of a buffer's text, each with the text it is replaced with, for
+ * {@link JEditBuffer#replace(Replacements)}.<p>
+ *
+ * The ranges are given in the offsets of the text before any of them is
+ * replaced, and must be added in order, without overlapping. An empty
+ * range is an insertion, an empty text a removal.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+public class Replacements
+{
+	//{{{ Replacements constructor
+	public Replacements()
+	{
+		offsets = new IntegerArray(16);
+		lengths = new IntegerArray(16);
+		textEnds = new IntegerArray(16);
+		texts = new StringBuilder();
+	} //}}}
+
+	//{{{ add() method
+	/**
+	 * Adds a range to replace.
+	 * @param offset The start offset of the range
+	 * @param length The length of the range
+	 * @param text The text to replace it with
+	 * @throws IllegalArgumentException if the range starts before the
+	 * end of the previous one
+	 */
+	public void add(int offset, int length, CharSequence text)
+	{
+		if(offset < end || length < 0)
+		{
+			throw new IllegalArgumentException(offset + ":" + length
+				+ " is before " + end);
+		}
+
+		offsets.add(offset);
+		lengths.add(length);
+		texts.append(text);
+		textEnds.add(texts.length());
+		end = offset + length;
+	} //}}}
+
+	//{{{ size() method
+	/**
+	 * Returns the number of ranges.
+	 */
+	public int size()
+	{
+		return offsets.getSize();
+	} //}}}
+
+	//{{{ getOffset() method
+	public int getOffset(int index)
+	{
+		return offsets.get(index);
+	} //}}}
+
+	//{{{ getLength() method
+	public int getLength(int index)
+	{
+		return lengths.get(index);
+	} //}}}
+
+	//{{{ getText() method
+	public String getText(int index)
+	{
+		return texts.substring(getTextStart(index),textEnds.get(index));
+	} //}}}
+
+	//{{{ getNewOffset() method
+	/**
+	 * Returns where an offset of the text before the replacements is
+	 * once they are made. An offset in a range, or at either end of
+	 * it, moves to the end of its new text, as a caret does when the
+	 * range is removed and then its text inserted, and on to the end
+	 * of the next range's if it starts there.
+	 * @param offset The offset
+	 */
+	public int getNewOffset(int offset)
+	{
+		int delta = 0;
+		for(int i = 0; i < size(); i++)
+		{
+			int rangeStart = getOffset(i);
+			if(rangeStart > offset)
+				break;
+			int rangeEnd = rangeStart + getLength(i);
+			// the end of the new text is where the range ended,
+			// the next range moves it again if it starts there
+			if(offset <= rangeEnd)
+				offset = rangeEnd;
+			delta += getTextLength(i) - getLength(i);
+		}
+		return offset + delta;
+	} //}}}
+
+	//{{{ clear() method
+	public void clear()
+	{
+		offsets.clear();
+		lengths.clear();
+		textEnds.clear();
+		texts.setLength(0);
+		end = 0;
+	} //}}}
+
+	//{{{ Package-private members
+
+	//{{{ getEnd() method
+	/**
+	 * Returns the end offset of the last range.
+	 */
+	int getEnd()
+	{
+		return end;
+	} //}}}
+
+	//{{{ getTextStart() method
+	/**
+	 * Returns where the text of a range starts in {@link #getTexts()}.
+	 */
+	int getTextStart(int index)
+	{
+		return index == 0 ? 0 : textEnds.get(index - 1);
+	} //}}}
+
+	//{{{ getTextLength() method
+	int getTextLength(int index)
+	{
+		return textEnds.get(index) - getTextStart(index);
+	} //}}}
+
+	//{{{ subList() method
+	/**
+	 * Returns some of the ranges.
+	 * @param start The index of the first range
+	 * @param end The index after the last range
+	 */
+	Replacements subList(int start, int end)
+	{
+		Replacements sub = new Replacements();
+		for(int i = start; i < end; i++)
+		{
+			int textStart = getTextStart(i);
+			sub.add(getOffset(i),getLength(i),texts.subSequence(
+				textStart,textStart + getTextLength(i)));
+		}
+		return sub;
+	} //}}}
+
+	//{{{ getTexts() method
+	/**
+	 * Returns the texts of all the ranges, one after the other.
+	 */
+	StringBuilder getTexts()
+	{
+		return texts;
+	} //}}}
+
+	//}}}
+
+	//{{{ Private members
+	private final IntegerArray offsets;
+	private final IntegerArray lengths;
+	private final IntegerArray textEnds;
+	private final StringBuilder texts;
+	private int end;
+	//}}}
+}
@@ -0,0 +1,803 @@
+/*
+ * UndoJournal.java - A file recording the undo history of a buffer
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.buffer;
+
+//{{{ Imports
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.swing.text.Segment;
+
+import org.gjt.sp.util.IOUtilities;
+import org.gjt.sp.util.Log;
+//}}}
+
+/**
+ * Records the changes to the undo history of a buffer in a file, so
+ * that it can be restored when the file is opened again.<p>
+ *
+ * The journal is only ever appended to. Each record is a change passed
+ * to the {@link UndoManager}, an undo, a redo, or a save, the latter
+ * with a hash of the buffer's text. Replaying the records up to the last
+ * save of the text of a file gives back the history it had then; the
+ * records after it are edits that were never saved, which are redone on
+ * the buffer, so that they survive a crash.<p>
+ *
+ * Records are flushed at the end of each edit, but only synchronized to
+ * the disk once per second at most. When the journal has grown much
+ * larger than the history it holds, it is rewritten when saving.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class UndoJournal
+{
+	//{{{ UndoJournal constructor
+	/**
+	 * @param file The journal file
+	 * @param path The path of the buffer, which must be the same when
+	 * the journal is restored
+	 */
+	UndoJournal(File file, String path)
+	{
+		this.file = file;
+		this.path = path;
+		recordBytes = new ByteArrayOutputStream();
+		record = new DataOutputStream(recordBytes);
+	} //}}}
+
+	//{{{ getFile() method
+	File getFile()
+	{
+		return file;
+	} //}}}
+
+	//{{{ restore() method
+	/**
+	 * Replays the journal into the undo manager of a buffer, if its
+	 * text is one the journal has seen saved. The edits done after the
+	 * last such save are then done again on the buffer. The caller has
+	 * to hold the buffer's write lock.
+	 * @return false if there is nothing to restore, in which case the
+	 * undo manager is left untouched
+	 */
+	boolean restore(JEditBuffer buffer, UndoManager mgr)
+	{
+		if(!file.isFile())
+			return false;
+
+		byte[] hash = getContentHash(buffer);
+		DataInputStream in = null;
+		try
+		{
+			// first find where the history of this text ends
+			in = openForReading();
+			if(in == null)
+				return false;
+			long pos = HEADER_SIZE + path.length() * 2;
+			long restorePos = -1L;
+			long endPos = pos;
+			byte[] payload;
+			while((payload = readRecord(in)) != null)
+			{
+				pos += RECORD_HEADER_SIZE + payload.length;
+				if(recordType == SAVED && Arrays.equals(payload,hash))
+					restorePos = pos;
+				endPos = pos;
+			}
+			in.close();
+			if(restorePos == -1L)
+				return false;
+
+			in = openForReading();
+			if(in == null)
+				return false;
+			pos = HEADER_SIZE + path.length() * 2;
+			mgr.setReplaying(true);
+			try
+			{
+				while(pos < restorePos)
+				{
+					payload = readRecord(in);
+					if(payload == null)
+						throw new EOFException(file.getPath());
+					pos += RECORD_HEADER_SIZE + payload.length;
+					replay(mgr,new DataInputStream(
+						new ByteArrayInputStream(payload)));
+				}
+			}
+			finally
+			{
+				mgr.setReplaying(false);
+			}
+
+			// the journal is cut after the last edit that could
+			// be done again
+			long keepPos = restorePos;
+			int redone = 0;
+			int openEdits = 0;
+			if(buffer.isEditable())
+			{
+				try
+				{
+					while(pos < endPos)
+					{
+						payload = readRecord(in);
+						if(payload == null)
+							break;
+						pos += RECORD_HEADER_SIZE + payload.length;
+						if(!redo(buffer,new DataInputStream(
+							new ByteArrayInputStream(payload))))
+						{
+							Log.log(Log.WARNING,this,file
+								+ " does not match the text of "
+								+ path);
+							break;
+						}
+						if(recordType == BEGIN)
+							openEdits++;
+						else if(recordType == END)
+							openEdits--;
+						keepPos = pos;
+						redone++;
+					}
+				}
+				catch(RuntimeException e)
+				{
+					Log.log(Log.ERROR,this,e);
+				}
+			}
+			in.close();
+
+			openForAppending(keepPos);
+			lastSavedSize = restorePos;
+			compactSize = keepPos;
+			// compound edits cut short by a crash
+			for(; openEdits > 0; openEdits--)
+			{
+				buffer.endCompoundEdit();
+				endRecord(END);
+			}
+			if(redone != 0)
+			{
+				Log.log(Log.NOTICE,this,"Redone " + redone
+					+ " unsaved changes to " + path);
+			}
+			return true;
+		}
+		catch(IOException e)
+		{
+			Log.log(Log.ERROR,this,e);
+			return false;
+		}
+		finally
+		{
+			IOUtilities.closeQuietly(in);
+		}
+	} //}}}
+
+	//{{{ start() method
+	/**
+	 * Replaces the journal with one holding the current history of the
+	 * buffer, which is expected not to be dirty.
+	 */
+	void start(JEditBuffer buffer, UndoManager mgr)
+	{
+		closeStream();
+		File temp = new File(file.getPath() + ".tmp");
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(path.length());
+			out.writeChars(path);
+			size = HEADER_SIZE + path.length() * 2;
+			mgr.writeHistory(this);
+			record.write(getContentHash(buffer));
+			endRecord(SAVED);
+			out.close();
+			out = null;
+
+			file.delete();
+			if(!temp.renameTo(file))
+				throw new IOException("Cannot rename " + temp);
+			openForAppending(size);
+			lastSavedSize = size;
+			compactSize = size;
+		}
+		catch(IOException e)
+		{
+			fail(e);
+			temp.delete();
+		}
+	} //}}}
+
+	//{{{ close() method
+	/**
+	 * Closes the journal.
+	 * @param discardUnsaved If true, the edits done since the text of
+	 * the file was last saved or loaded are removed from the journal, so
+	 * that they are not redone when it is opened again
+	 */
+	void close(boolean discardUnsaved)
+	{
+		if(out == null)
+			return;
+
+		try
+		{
+			out.flush();
+			if(discardUnsaved && lastSavedSize < size)
+				channelOut.getChannel().truncate(lastSavedSize);
+			channelOut.getChannel().force(false);
+		}
+		catch(IOException e)
+		{
+			Log.log(Log.ERROR,this,e);
+		}
+		closeStream();
+	} //}}}
+
+	//{{{ contentInserted() method
+	void contentInserted(int offset, String text, boolean clearDirty)
+	{
+		writeChange(INSERT,offset,text,clearDirty);
+	} //}}}
+
+	//{{{ contentRemoved() method
+	void contentRemoved(int offset, String text, boolean clearDirty)
+	{
+		writeChange(REMOVE,offset,text,clearDirty);
+	} //}}}
+
+	//{{{ contentReplaced() method
+	void contentReplaced(Replacements replacements, String removed,
+		boolean clearDirty)
+	{
+		if(out == null)
+			return;
+
+		try
+		{
+			record.writeBoolean(clearDirty);
+			writeReplacements(record,replacements,removed);
+			endRecord(REPLACE);
+		}
+		catch(IOException e)
+		{
+			fail(e);
+		}
+	} //}}}
+
+	//{{{ beginCompoundEdit() method
+	void beginCompoundEdit()
+	{
+		depth++;
+		writeRecord(BEGIN);
+	} //}}}
+
+	//{{{ endCompoundEdit() method
+	void endCompoundEdit()
+	{
+		depth--;
+		writeRecord(END);
+	} //}}}
+
+	//{{{ undo() method
+	void undo()
+	{
+		writeRecord(UNDO);
+	} //}}}
+
+	//{{{ redo() method
+	void redo()
+	{
+		writeRecord(REDO);
+	} //}}}
+
+	//{{{ saved() method
+	/**
+	 * Records that the buffer's text is now the one of its file.
+	 */
+	void saved(JEditBuffer buffer, UndoManager mgr)
+	{
+		if(out == null)
+			return;
+
+		if(size > compactSize * 2 + COMPACT_SIZE && depth == 0)
+		{
+			// most of it is history that has been dropped
+			start(buffer,mgr);
+			return;
+		}
+
+		try
+		{
+			record.write(getContentHash(buffer));
+			endRecord(SAVED);
+			lastSavedSize = size;
+			sync();
+		}
+		catch(IOException e)
+		{
+			fail(e);
+		}
+	} //}}}
+
+	//{{{ beginEdit() method
+	/**
+	 * Starts writing an edit of the history. It is written to the
+	 * returned stream and the record is ended by {@link #endRecord()}.
+	 */
+	DataOutput beginEdit()
+	{
+		return record;
+	} //}}}
+
+	//{{{ endRecord() method
+	void endRecord() throws IOException
+	{
+		endRecord(EDIT);
+	} //}}}
+
+	//{{{ writeText() method
+	static void writeText(DataOutput out, String text) throws IOException
+	{
+		out.writeInt(text.length());
+		out.writeChars(text);
+	} //}}}
+
+	//{{{ readText() method
+	static String readText(DataInput in) throws IOException
+	{
+		int length = in.readInt();
+		byte[] bytes = new byte[length * 2];
+		in.readFully(bytes);
+		char[] chars = new char[length];
+		for(int i = 0; i < length; i++)
+		{
+			chars[i] = (char)((bytes[i * 2] & 0xff) << 8
+				| bytes[i * 2 + 1] & 0xff);
+		}
+		return new String(chars);
+	} //}}}
+
+	//{{{ writeReplacements() method
+	/**
+	 * Writes the ranges of a bulk replace, followed by the text they
+	 * had and the one they are replaced with.
+	 */
+	static void writeReplacements(DataOutput out,
+		Replacements replacements, String removed) throws IOException
+	{
+		int count = replacements.size();
+		out.writeInt(count);
+		for(int i = 0; i < count; i++)
+		{
+			out.writeInt(replacements.getOffset(i));
+			out.writeInt(replacements.getLength(i));
+			out.writeInt(replacements.getTextLength(i));
+		}
+		writeText(out,removed);
+		writeText(out,replacements.getTexts().toString());
+	} //}}}
+
+	//{{{ readReplacements() method
+	/**
+	 * Reads what {@link #writeReplacements(DataOutput,Replacements,String)}
+	 * wrote.
+	 * @param removed Receives the text of the ranges
+	 */
+	static Replacements readReplacements(DataInput in,
+		StringBuilder removed) throws IOException
+	{
+		int count = in.readInt();
+		int[] ranges = new int[count * 3];
+		for(int i = 0; i < ranges.length; i++)
+			ranges[i] = in.readInt();
+		removed.append(readText(in));
+		String inserted = readText(in);
+
+		Replacements replacements = new Replacements();
+		int pos = 0;
+		for(int i = 0; i < count; i++)
+		{
+			int length = ranges[i * 3 + 2];
+			if(pos + length > inserted.length()
+				|| ranges[i * 3] < replacements.getEnd()
+				|| ranges[i * 3 + 1] < 0)
+				throw new IOException("Corrupt replacements");
+			replacements.add(ranges[i * 3],ranges[i * 3 + 1],
+				inserted.subSequence(pos,pos + length));
+			pos += length;
+		}
+		return replacements;
+	} //}}}
+
+	//{{{ getContentHash() method
+	/**
+	 * Returns the MD5 hash of the buffer's text.
+	 */
+	static byte[] getContentHash(JEditBuffer buffer)
+	{
+		MessageDigest digest;
+		try
+		{
+			digest = MessageDigest.getInstance("MD5");
+		}
+		catch(NoSuchAlgorithmException e)
+		{
+			throw new InternalError(e.toString());
+		}
+
+		Segment seg = new Segment();
+		byte[] bytes = new byte[HASH_CHUNK * 2];
+		int length = buffer.getLength();
+		for(int start = 0; start < length; start += HASH_CHUNK)
+		{
+			int len = Math.min(HASH_CHUNK,length - start);
+			buffer.getText(start,len,seg);
+			for(int i = 0; i < len; i++)
+			{
+				char ch = seg.array[seg.offset + i];
+				bytes[i * 2] = (byte)(ch >> 8);
+				bytes[i * 2 + 1] = (byte)ch;
+			}
+			digest.update(bytes,0,len * 2);
+		}
+		return digest.digest();
+	} //}}}
+
+	//{{{ Private members
+
+	private static final int MAGIC = 0x6a456455;
+	private static final int VERSION = 1;
+	/** Not counting the path. */
+	private static final int HEADER_SIZE = 12;
+	private static final int RECORD_HEADER_SIZE = 5;
+	private static final int HASH_CHUNK = 65536;
+	private static final long SYNC_INTERVAL = 1000L;
+	private static final long COMPACT_SIZE = 1 << 20;
+
+	// record types
+	private static final byte INSERT = 0;
+	private static final byte REMOVE = 1;
+	private static final byte BEGIN = 2;
+	private static final byte END = 3;
+	private static final byte UNDO = 4;
+	private static final byte REDO = 5;
+	private static final byte SAVED = 6;
+	private static final byte EDIT = 7;
+	private static final byte REPLACE = 8;
+
+	private final File file;
+	private final String path;
+	private final ByteArrayOutputStream recordBytes;
+	private final DataOutputStream record;
+
+	private FileOutputStream channelOut;
+	private DataOutputStream out;
+	/** The size of the journal. */
+	private long size;
+	/** Its size after the last save. */
+	private long lastSavedSize;
+	/** Its size after it was last rewritten or opened. */
+	private long compactSize;
+	private long lastSync;
+	private int depth;
+	/** The type of the last record read. */
+	private byte recordType;
+
+	//{{{ openForReading() method
+	/**
+	 * Returns a stream positioned after the header, or null if the
+	 * journal is not one of this buffer.
+	 */
+	private DataInputStream openForReading() throws IOException
+	{
+		DataInputStream in = new DataInputStream(
+			new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			if(in.readInt() != MAGIC || in.readInt() != VERSION
+				|| in.readInt() != path.length())
+			{
+				in.close();
+				return null;
+			}
+			char[] chars = new char[path.length()];
+			for(int i = 0; i < chars.length; i++)
+				chars[i] = in.readChar();
+			if(!path.equals(new String(chars)))
+			{
+				in.close();
+				return null;
+			}
+			return in;
+		}
+		catch(EOFException e)
+		{
+			in.close();
+			return null;
+		}
+	} //}}}
+
+	//{{{ readRecord() method
+	/**
+	 * Reads a record, setting {@link #recordType}.
+	 * @return Its payload, or null at the end of the journal, or if the
+	 * last record was not completely written
+	 */
+	private byte[] readRecord(DataInputStream in) throws IOException
+	{
+		try
+		{
+			recordType = in.readByte();
+			byte[] payload = new byte[in.readInt()];
+			in.readFully(payload);
+			return payload;
+		}
+		catch(EOFException e)
+		{
+			return null;
+		}
+	} //}}}
+
+	//{{{ replay() method
+	/**
+	 * Replays a record into the undo manager, without changing the
+	 * buffer.
+	 */
+	private void replay(UndoManager mgr, DataInputStream in)
+		throws IOException
+	{
+		switch(recordType)
+		{
+		case INSERT:
+			int offset = in.readInt();
+			boolean clearDirty = in.readBoolean();
+			String text = readText(in);
+			mgr.contentInserted(offset,text.length(),text,clearDirty);
+			break;
+		case REMOVE:
+			offset = in.readInt();
+			clearDirty = in.readBoolean();
+			text = readText(in);
+			mgr.contentRemoved(offset,text.length(),text,clearDirty);
+			break;
+		case REPLACE:
+			clearDirty = in.readBoolean();
+			StringBuilder removed = new StringBuilder();
+			Replacements replacements = readReplacements(in,removed);
+			mgr.contentReplaced(replacements,removed.toString(),
+				clearDirty);
+			break;
+		case BEGIN:
+			mgr.beginCompoundEdit();
+			break;
+		case END:
+			mgr.endCompoundEdit();
+			break;
+		case UNDO:
+			mgr.undo();
+			break;
+		case REDO:
+			mgr.redo();
+			break;
+		case SAVED:
+			mgr.resetClearDirty();
+			break;
+		case EDIT:
+			mgr.replayEdit(in);
+			break;
+		default:
+			throw new IOException("Unknown record type " + recordType);
+		}
+	} //}}}
+
+	//{{{ redo() method
+	/**
+	 * Does again on the buffer an edit that was not saved.
+	 * @return false if the buffer's text does not match the journal
+	 */
+	private boolean redo(JEditBuffer buffer, DataInputStream in)
+		throws IOException
+	{
+		switch(recordType)
+		{
+		case INSERT:
+			int offset = in.readInt();
+			in.readBoolean();
+			String text = readText(in);
+			if(offset > buffer.getLength())
+				return false;
+			buffer.insert(offset,text);
+			return true;
+		case REMOVE:
+			offset = in.readInt();
+			in.readBoolean();
+			text = readText(in);
+			if(offset + text.length() > buffer.getLength()
+				|| !text.equals(buffer.getText(offset,
+				text.length())))
+				return false;
+			buffer.remove(offset,text.length());
+			return true;
+		case REPLACE:
+			in.readBoolean();
+			StringBuilder removed = new StringBuilder();
+			Replacements replacements = readReplacements(in,removed);
+			if(replacements.getEnd() > buffer.getLength())
+				return false;
+			int pos = 0;
+			for(int i = 0; i < replacements.size(); i++)
+			{
+				int length = replacements.getLength(i);
+				if(!removed.substring(pos,pos + length).equals(
+					buffer.getText(replacements.getOffset(i),length)))
+					return false;
+				pos += length;
+			}
+			buffer.replace(replacements);
+			return true;
+		case BEGIN:
+			buffer.beginCompoundEdit();
+			return true;
+		case END:
+			buffer.endCompoundEdit();
+			return true;
+		case UNDO:
+			if(!buffer.canUndo())
+				return false;
+			buffer.undo(null);
+			return true;
+		case REDO:
+			if(!buffer.canRedo())
+				return false;
+			buffer.redo(null);
+			return true;
+		default:
+			// saves of another text
+			return true;
+		}
+	} //}}}
+
+	//{{{ openForAppending() method
+	private void openForAppending(long size) throws IOException
+	{
+		channelOut = new FileOutputStream(file,true);
+		// drop what remains of a record that was not completely
+		// written
+		if(channelOut.getChannel().size() > size)
+			channelOut.getChannel().truncate(size);
+		out = new DataOutputStream(new BufferedOutputStream(channelOut));
+		this.size = size;
+		lastSync = System.currentTimeMillis();
+	} //}}}
+
+	//{{{ writeChange() method
+	private void writeChange(byte type, int offset, String text,
+		boolean clearDirty)
+	{
+		if(out == null)
+			return;
+
+		try
+		{
+			record.writeInt(offset);
+			record.writeBoolean(clearDirty);
+			writeText(record,text);
+			endRecord(type);
+		}
+		catch(IOException e)
+		{
+			fail(e);
+		}
+	} //}}}
+
+	//{{{ writeRecord() method
+	private void writeRecord(byte type)
+	{
+		if(out == null)
+			return;
+
+		try
+		{
+			endRecord(type);
+		}
+		catch(IOException e)
+		{
+			fail(e);
+		}
+	} //}}}
+
+	//{{{ endRecord() method
+	/**
+	 * Writes a record whose payload has been written to
+	 * {@link #record}, and flushes the journal unless it is in the
+	 * middle of a compound edit.
+	 */
+	private void endRecord(byte type) throws IOException
+	{
+		out.writeByte(type);
+		out.writeInt(recordBytes.size());
+		recordBytes.writeTo(out);
+		size += RECORD_HEADER_SIZE + recordBytes.size();
+		recordBytes.reset();
+
+		if(depth == 0 && channelOut != null)
+		{
+			out.flush();
+			if(System.currentTimeMillis() - lastSync > SYNC_INTERVAL)
+				sync();
+		}
+	} //}}}
+
+	//{{{ sync() method
+	private void sync() throws IOException
+	{
+		out.flush();
+		channelOut.getChannel().force(false);
+		lastSync = System.currentTimeMillis();
+	} //}}}
+
+	//{{{ fail() method
+	/**
+	 * Stops writing the journal after an error, and deletes it since
+	 * it no longer matches the history.
+	 */
+	private void fail(IOException e)
+	{
+		Log.log(Log.ERROR,this,e);
+		recordBytes.reset();
+		closeStream();
+		file.delete();
+	} //}}}
+
+	//{{{ closeStream() method
+	private void closeStream()
+	{
+		IOUtilities.closeQuietly(out);
+		out = null;
+		channelOut = null;
+		depth = 0;
+	} //}}}
+
+	//}}}
+}
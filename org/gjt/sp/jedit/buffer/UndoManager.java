@@ -23,6 +23,11 @@
 package org.gjt.sp.jedit.buffer;
 
 //{{{ Imports
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+
 import org.gjt.sp.util.IntegerArray;
 import org.gjt.sp.util.Log;
 //}}}
@@ -44,6 +49,20 @@ public class UndoManager
 	public UndoManager(JEditBuffer buffer)
 	{
 		this.buffer = buffer;
+		store = new UndoStore();
+	} //}}}
+
+	//{{{ setSpillDirectory() method
+	/**
+	 * Sets the directory where the text of old edits is written when
+	 * a buffer's undo history takes more memory than its limit. If it
+	 * is null, which is the default, the oldest edits are discarded
+	 * instead.
+	 * @since jEdit 5.1pre1
+	 */
+	public static void setSpillDirectory(File dir)
+	{
+		UndoStore.setSpillDirectory(dir);
 	} //}}}
 
 	//{{{ setLimit() method
@@ -52,11 +71,37 @@ public class UndoManager
 		this.limit = limit;
 	} //}}}
 
+	//{{{ setMemoryLimit() method
+	/**
+	 * Sets the memory the text of the edits may take before it is
+	 * written to disk or the oldest edits are discarded.
+	 * @param memoryLimit The limit in bytes, or 0 for no limit
+	 * @since jEdit 5.1pre1
+	 */
+	public void setMemoryLimit(long memoryLimit)
+	{
+		store.setMemoryLimit(memoryLimit);
+	} //}}}
+
+	//{{{ getMemory() method
+	/**
+	 * Returns the memory the text of the edits takes, in bytes, not
+	 * counting what was written to disk.
+	 * @since jEdit 5.1pre1
+	 */
+	public long getMemory()
+	{
+		return store.getMemory();
+	} //}}}
+
 	//{{{ clear() method
 	public void clear()
 	{
 		undosFirst = undosLast = redosFirst = null;
 		undoCount = 0;
+		store.clear();
+		if(journal != null)
+			journal.start(buffer,this);
 	} //}}}
 
 	//{{{ canUndo() method
@@ -78,11 +123,13 @@ public class UndoManager
 			reviseUndoId();
 			undoCount--;
 
-			int caret = undosLast.undo(this);
+			int caret = (replaying ? -1 : undosLast.undo(this));
 			redosFirst = undosLast;
 			undosLast = undosLast.prev;
 			if(undosLast == null)
 				undosFirst = null;
+			if(journal != null)
+				journal.undo();
 			return caret;
 		}
 	} //}}}
@@ -106,11 +153,13 @@ public class UndoManager
 			reviseUndoId();
 			undoCount++;
 
-			int caret = redosFirst.redo(this);
+			int caret = (replaying ? -1 : redosFirst.redo(this));
 			undosLast = redosFirst;
 			if(undosFirst == null)
 				undosFirst = undosLast;
 			redosFirst = redosFirst.next;
+			if(journal != null)
+				journal.redo();
 			return caret;
 		}
 	} //}}}
@@ -125,6 +174,9 @@ public class UndoManager
 		}
 
 		compoundEditCount++;
+
+		if(journal != null)
+			journal.beginCompoundEdit();
 	} //}}}
 
 	//{{{ endCompoundEdit() method
@@ -135,7 +187,11 @@ public class UndoManager
 			Log.log(Log.WARNING,this,new Exception("Unbalanced begin/endCompoundEdit()"));
 			return;
 		}
-		else if(compoundEditCount == 1)
+
+		if(journal != null)
+			journal.endCompoundEdit();
+
+		if(compoundEditCount == 1)
 		{
 			if(compoundEdit.first == null)
 				/* nothing done between begin/end calls */;
@@ -165,6 +221,9 @@ public class UndoManager
 	//{{{ contentInserted() method
 	public void contentInserted(int offset, int length, String text, boolean clearDirty)
 	{
+		if(journal != null)
+			journal.contentInserted(offset,text,clearDirty);
+
 		Edit toMerge = getMergeEdit();
 
 		if(!clearDirty && toMerge instanceof Insert
@@ -173,17 +232,20 @@ public class UndoManager
 			Insert ins = (Insert)toMerge;
 			if(ins.offset == offset)
 			{
-				ins.str = text.concat(ins.str);
+				ins.setText(store,text.concat(ins.getText(store)));
+				store.trim();
 				return;
 			}
-			else if(ins.offset + ins.str.length() == offset)
+			else if(ins.offset + ins.length == offset)
 			{
-				ins.str = ins.str.concat(text);
+				ins.appendText(store,text);
+				store.trim();
 				return;
 			}
 		}
 
-		Insert ins = new Insert(offset,text);
+		Insert ins = new Insert(offset);
+		ins.setText(store,text);
 
 		if(clearDirty)
 		{
@@ -192,7 +254,10 @@ public class UndoManager
 		}
 
 		if(compoundEdit != null)
+		{
 			compoundEdit.add(this, ins);
+			store.trim();
+		}
 		else
 		{
 			reviseUndoId();
@@ -203,6 +268,9 @@ public class UndoManager
 	//{{{ contentRemoved() method
 	public void contentRemoved(int offset, int length, String text, boolean clearDirty)
 	{
+		if(journal != null)
+			journal.contentRemoved(offset,text,clearDirty);
+
 		Edit toMerge = getMergeEdit();
 
 		if(!clearDirty && toMerge instanceof Remove
@@ -211,24 +279,33 @@ public class UndoManager
 			Remove rem = (Remove)toMerge;
 			if(rem.offset == offset)
 			{
-				String newStr = rem.str.concat(text);
-				KillRing.getInstance().changed(rem.str, newStr);
-				rem.str = newStr;
+				String oldStr = rem.getText(store);
+				rem.appendText(store,text);
+				if(!replaying)
+				{
+					KillRing.getInstance().changed(oldStr,
+						oldStr.concat(text));
+				}
+				store.trim();
 				return;
 			}
 			else if(offset + length == rem.offset)
 			{
-				String newStr = text.concat(rem.str);
-				KillRing.getInstance().changed(rem.str, newStr);
- 				rem.offset = offset;
-				rem.str = newStr;
+				String oldStr = rem.getText(store);
+				String newStr = text.concat(oldStr);
+				if(!replaying)
+					KillRing.getInstance().changed(oldStr, newStr);
+				rem.offset = offset;
+				rem.setText(store,newStr);
+				store.trim();
 				return;
 			}
 		}
 
-		// use String.intern() here as new Strings are created in
-		// JEditBuffer.remove() via undoMgr.contentRemoved(... getText() ...);
-		Remove rem = new Remove(offset,text.intern());
+		// the text is copied to the store, so the kill ring holds
+		// the only reference to the string
+		Remove rem = new Remove(offset);
+		rem.setText(store,text);
 
 		if(clearDirty)
 		{
@@ -237,14 +314,73 @@ public class UndoManager
 		}
 
 		if(compoundEdit != null)
+		{
 			compoundEdit.add(this, rem);
+			store.trim();
+		}
 		else
 		{
 			reviseUndoId();
 			addEdit(rem);
 		}
 
-		KillRing.getInstance().add(rem.str);
+		if(!replaying)
+			KillRing.getInstance().add(text);
+	} //}}}
+
+	//{{{ contentReplaced() method
+	/**
+	 * Records a {@link JEditBuffer#replace(Replacements)}.
+	 * @param removed The text of the replaced ranges, one after the
+	 * other
+	 * @since jEdit 5.1pre1
+	 */
+	public void contentReplaced(Replacements replacements, String removed,
+		boolean clearDirty)
+	{
+		if(journal != null)
+			journal.contentReplaced(replacements,removed,clearDirty);
+
+		BulkReplace rep = new BulkReplace(store,replacements,removed);
+
+		if(clearDirty)
+		{
+			redoClearDirty = getLastEdit();
+			undoClearDirty = rep;
+		}
+
+		if(compoundEdit != null)
+		{
+			compoundEdit.add(this, rep);
+			store.trim();
+		}
+		else
+		{
+			reviseUndoId();
+			addEdit(rep);
+		}
+
+		// the kill ring gets the replaced texts as if each range
+		// had been removed on its own
+		if(!replaying)
+		{
+			KillRing killRing = KillRing.getInstance();
+			String last = null;
+			int pos = 0;
+			for(int i = 0; i < replacements.size(); i++)
+			{
+				int length = replacements.getLength(i);
+				if(length == 0)
+					continue;
+				String text = removed.substring(pos,pos + length);
+				pos += length;
+				// skips the duplicate lookup for the common
+				// case of replacing the same text everywhere
+				if(!text.equals(last))
+					killRing.add(text);
+				last = text;
+			}
+		}
 	} //}}}
 
 	//{{{ resetClearDirty method
@@ -255,12 +391,92 @@ public class UndoManager
 			undoClearDirty = ((CompoundEdit)redosFirst).first;
 		else
 			undoClearDirty = redosFirst;
+
+		if(journal != null)
+			journal.saved(buffer,this);
+	} //}}}
+
+	//{{{ Package-private members
+
+	//{{{ getJournal() method
+	UndoJournal getJournal()
+	{
+		return journal;
 	} //}}}
 
+	//{{{ setJournal() method
+	/**
+	 * Sets the journal edits are written to. It is not closed when
+	 * another one is set.
+	 */
+	void setJournal(UndoJournal journal)
+	{
+		this.journal = journal;
+	} //}}}
+
+	//{{{ setReplaying() method
+	/**
+	 * While replaying a journal, undo and redo only move through the
+	 * history, without changing the buffer, and removed text is not
+	 * added to the kill ring.
+	 */
+	void setReplaying(boolean replaying)
+	{
+		this.replaying = replaying;
+	} //}}}
+
+	//{{{ writeHistory() method
+	/**
+	 * Writes the edits to a new journal, followed by as many undos as
+	 * there are edits to redo.
+	 */
+	void writeHistory(UndoJournal journal) throws IOException
+	{
+		for(Edit edit = undosFirst; edit != null; edit = edit.next)
+		{
+			edit.write(this,journal.beginEdit());
+			journal.endRecord();
+			if(edit == undosLast)
+				break;
+		}
+
+		int redos = 0;
+		for(Edit edit = redosFirst; edit != null; edit = edit.next)
+		{
+			edit.write(this,journal.beginEdit());
+			journal.endRecord();
+			redos++;
+		}
+
+		for(int i = 0; i < redos; i++)
+			journal.undo();
+	} //}}}
+
+	//{{{ replayEdit() method
+	/**
+	 * Adds an edit read from a journal.
+	 */
+	void replayEdit(DataInput in) throws IOException
+	{
+		reviseUndoId();
+		addEdit(readEdit(in));
+	} //}}}
+
+	//}}}
+
 	//{{{ Private members
 
+	// edit types in journals
+	private static final byte INSERT = 0;
+	private static final byte REMOVE = 1;
+	private static final byte REPLACE = 2;
+	private static final byte COMPRESSED_REPLACE = 3;
+	private static final byte COMPOUND = 4;
+	private static final byte BULK_REPLACE = 5;
+
 	//{{{ Instance variables
 	private JEditBuffer buffer;
+	private final UndoStore store;
 
 	// queue of undos. last is most recent, first is oldest
 	private Edit undosFirst;
@@ -275,6 +491,8 @@ public class UndoManager
 	private CompoundEdit compoundEdit;
 	private Edit undoClearDirty, redoClearDirty;
 	private Object undoId;
+	private UndoJournal journal;
+	private boolean replaying;
 	//}}}
 
 	//{{{ addEdit() method
@@ -289,14 +507,18 @@ public class UndoManager
 			undosLast = edit;
 		}
 
+		for(Edit redo = redosFirst; redo != null; redo = redo.next)
+			redo.release(store);
 		redosFirst = null;
 
 		undoCount++;
 
-		while(undoCount > limit)
+		while(undosFirst != null && (undoCount > limit
+			|| !store.trim() && undosFirst != undosLast))
 		{
 			undoCount--;
 
+			Edit first = undosFirst;
 			if(undosFirst == undosLast)
 				undosFirst = undosLast = null;
 			else
@@ -304,6 +526,7 @@ public class UndoManager
 				undosFirst.next.prev = null;
 				undosFirst = undosFirst.next;
 			}
+			first.release(store);
 		}
 	} //}}}
 
@@ -374,7 +597,7 @@ public class UndoManager
 		
 			if(rem.offset == ins.offset)
 			{
-				return new Replace(rem.offset, rem.str, ins.str);
+				return new Replace(rem, ins);
 			}
 		}
 		return null;
@@ -392,21 +615,67 @@ public class UndoManager
 			if(lastElement instanceof CompressedReplace)
 			{
 				rep = (CompressedReplace) lastElement;
-				rep.add((Replace) newElement);
-				return rep;
+				return rep.add(store, (Replace) newElement);
 			}
 	
 			// try to create a compressed Replace
 			if(lastElement instanceof Replace)
 			{
 				rep = new CompressedReplace((Replace)lastElement);
-				rep.add((Replace) newElement);
-				return rep;
+				return rep.add(store, (Replace) newElement);
 			}
 		}
 		return null;
 	} //}}}
 
+	//{{{ readEdit() method
+	private Edit readEdit(DataInput in) throws IOException
+	{
+		byte type = in.readByte();
+		switch(type)
+		{
+		case INSERT:
+		case REMOVE:
+			TextEdit edit;
+			if(type == INSERT)
+				edit = new Insert(in.readInt());
+			else
+				edit = new Remove(in.readInt());
+			edit.setText(store,UndoJournal.readText(in));
+			return edit;
+		case REPLACE:
+		case COMPRESSED_REPLACE:
+			int[] offsets = new int[in.readInt()];
+			for(int i = 0; i < offsets.length; i++)
+				offsets[i] = in.readInt();
+			Remove rem = new Remove(offsets[0]);
+			rem.setText(store,UndoJournal.readText(in));
+			Insert ins = new Insert(offsets[0]);
+			ins.setText(store,UndoJournal.readText(in));
+			Replace rep = new Replace(rem,ins);
+			if(type == REPLACE)
+				return rep;
+			CompressedReplace compressed = new CompressedReplace(rep);
+			for(int i = 1; i < offsets.length; i++)
+				compressed.offsets.add(offsets[i]);
+			return compressed;
+		case COMPOUND:
+			CompoundEdit compound = new CompoundEdit();
+			int count = in.readInt();
+			for(int i = 0; i < count; i++)
+				compound._add(readEdit(in));
+			return compound;
+		case BULK_REPLACE:
+			StringBuilder removed = new StringBuilder();
+			Replacements replacements = UndoJournal.readReplacements(
+				in,removed);
+			return new BulkReplace(store,replacements,
+				removed.toString());
+		default:
+			throw new IOException("Unknown edit type " + type);
+		}
+	} //}}}
+
 	//{{{ Inner classes
 
 	//{{{ Edit class
@@ -421,22 +690,86 @@ public class UndoManager
 		//{{{ redo() method
 		abstract int redo(UndoManager mgr);
 		//}}}
+
+		//{{{ release() method
+		/**
+		 * Called when the edit is discarded, to free its text.
+		 */
+		abstract void release(UndoStore store);
+		//}}}
+
+		//{{{ write() method
+		/**
+		 * Writes the edit to a journal, to be read back by
+		 * {@link UndoManager#readEdit(DataInput)}.
+		 */
+		abstract void write(UndoManager mgr, DataOutput out)
+			throws IOException;
+		//}}}
+	} //}}}
+
+	//{{{ TextEdit class
+	/**
+	 * An edit with one text, kept in the undo store.
+	 */
+	private abstract static class TextEdit extends Edit
+	{
+		//{{{ TextEdit constructor
+		TextEdit(int offset)
+		{
+			this.offset = offset;
+		} //}}}
+
+		//{{{ getText() method
+		String getText(UndoStore store)
+		{
+			return store.getText(block,start,length);
+		} //}}}
+
+		//{{{ setText() method
+		void setText(UndoStore store, String text)
+		{
+			if(block != null)
+				store.release(block,length);
+			block = store.add(text);
+			length = text.length();
+			start = block.size - length;
+		} //}}}
+
+		//{{{ appendText() method
+		void appendText(UndoStore store, String text)
+		{
+			if(store.append(block,start + length,text))
+				length += text.length();
+			else
+				setText(store,getText(store).concat(text));
+		} //}}}
+
+		//{{{ release() method
+		void release(UndoStore store)
+		{
+			store.release(block,length);
+		} //}}}
+
+		int offset;
+		UndoStore.Block block;
+		int start;
+		int length;
 	} //}}}
 
 	//{{{ Insert class
-	private static class Insert extends Edit
+	private static class Insert extends TextEdit
 	{
 		//{{{ Insert constructor
-		Insert(int offset, String str)
+		Insert(int offset)
 		{
-			this.offset = offset;
-			this.str = str;
+			super(offset);
 		} //}}}
 
 		//{{{ undo() method
 		int undo(UndoManager mgr)
 		{
-			mgr.buffer.remove(offset,str.length());
+			mgr.buffer.remove(offset,length);
 			if(mgr.undoClearDirty == this)
 				mgr.buffer.setDirty(false);
 			return offset;
@@ -445,80 +778,154 @@ public class UndoManager
 		//{{{ redo() method
 		int redo(UndoManager mgr)
 		{
-			mgr.buffer.insert(offset,str);
+			mgr.buffer.insert(offset,getText(mgr.store));
 			if(mgr.redoClearDirty == this)
 				mgr.buffer.setDirty(false);
-			return offset + str.length();
+			return offset + length;
 		} //}}}
 
-		int offset;
-		String str;
+		//{{{ write() method
+		void write(UndoManager mgr, DataOutput out) throws IOException
+		{
+			out.writeByte(INSERT);
+			out.writeInt(offset);
+			UndoJournal.writeText(out,getText(mgr.store));
+		} //}}}
 	} //}}}
 
 	//{{{ Remove class
-	private static class Remove extends Edit
+	private static class Remove extends TextEdit
 	{
 		//{{{ Remove constructor
-		Remove(int offset, String str)
+		Remove(int offset)
 		{
-			this.offset = offset;
-			this.str = str;
+			super(offset);
 		} //}}}
 
 		//{{{ undo() method
 		int undo(UndoManager mgr)
 		{
-			mgr.buffer.insert(offset,str);
+			mgr.buffer.insert(offset,getText(mgr.store));
 			if(mgr.undoClearDirty == this)
 				mgr.buffer.setDirty(false);
-			return offset + str.length();
+			return offset + length;
 		} //}}}
 
 		//{{{ redo() method
 		int redo(UndoManager mgr)
 		{
-			mgr.buffer.remove(offset,str.length());
+			mgr.buffer.remove(offset,length);
 			if(mgr.redoClearDirty == this)
 				mgr.buffer.setDirty(false);
 			return offset;
 		} //}}}
 
-		int offset;
-		String str;
+		//{{{ write() method
+		void write(UndoManager mgr, DataOutput out) throws IOException
+		{
+			out.writeByte(REMOVE);
+			out.writeInt(offset);
+			UndoJournal.writeText(out,getText(mgr.store));
+		} //}}}
 	} //}}}
 
 	//{{{ Replace class
 	private static class Replace extends Edit
 	{
 		//{{{ Replace constructor
-		Replace(int offset, String strRemove, String strInsert)
+		Replace(Remove rem, Insert ins)
 		{
-			this.offset = offset;
-			this.strRemove = strRemove;
-			this.strInsert = strInsert;
+			offset = rem.offset;
+			removeBlock = rem.block;
+			removeStart = rem.start;
+			removeLength = rem.length;
+			insertBlock = ins.block;
+			insertStart = ins.start;
+			insertLength = ins.length;
+		} //}}}
+
+		//{{{ Replace constructor
+		Replace(Replace rep)
+		{
+			offset = rep.offset;
+			removeBlock = rep.removeBlock;
+			removeStart = rep.removeStart;
+			removeLength = rep.removeLength;
+			insertBlock = rep.insertBlock;
+			insertStart = rep.insertStart;
+			insertLength = rep.insertLength;
 		} //}}}
 
 		//{{{ undo() method
 		int undo(UndoManager mgr)
 		{
-			mgr.buffer.remove(offset,strInsert.length());
+			return undo(mgr,offset,getRemoveText(mgr.store));
+		} //}}}
+
+		//{{{ redo() method
+		int redo(UndoManager mgr)
+		{
+			return redo(mgr,offset,getInsertText(mgr.store));
+		} //}}}
+
+		//{{{ release() method
+		void release(UndoStore store)
+		{
+			store.release(removeBlock,removeLength);
+			store.release(insertBlock,insertLength);
+		} //}}}
+
+		//{{{ write() method
+		void write(UndoManager mgr, DataOutput out) throws IOException
+		{
+			out.writeByte(REPLACE);
+			out.writeInt(1);
+			out.writeInt(offset);
+			writeTexts(mgr,out);
+		} //}}}
+
+		//{{{ writeTexts() method
+		void writeTexts(UndoManager mgr, DataOutput out) throws IOException
+		{
+			UndoJournal.writeText(out,getRemoveText(mgr.store));
+			UndoJournal.writeText(out,getInsertText(mgr.store));
+		} //}}}
+
+		//{{{ getRemoveText() method
+		String getRemoveText(UndoStore store)
+		{
+			return store.getText(removeBlock,removeStart,removeLength);
+		} //}}}
+
+		//{{{ getInsertText() method
+		String getInsertText(UndoStore store)
+		{
+			return store.getText(insertBlock,insertStart,insertLength);
+		} //}}}
+
+		//{{{ undo() method
+		int undo(UndoManager mgr, int offset, String strRemove)
+		{
+			mgr.buffer.remove(offset,insertLength);
 			mgr.buffer.insert(offset,strRemove);
 			assert mgr.undoClearDirty != this;
-			return offset + strRemove.length();
+			return offset + removeLength;
 		} //}}}
 
 		//{{{ redo() method
-		int redo(UndoManager mgr)
+		int redo(UndoManager mgr, int offset, String strInsert)
 		{
-			mgr.buffer.remove(offset,strRemove.length());
+			mgr.buffer.remove(offset,removeLength);
 			mgr.buffer.insert(offset,strInsert);
 			if(mgr.redoClearDirty == this)
 				mgr.buffer.setDirty(false);
-			return offset + strInsert.length();
+			return offset + insertLength;
 		} //}}}
 
 		int offset;
-		String strRemove, strInsert;
+		UndoStore.Block removeBlock, insertBlock;
+		int removeStart, insertStart;
+		int removeLength, insertLength;
 	} //}}}
 
 	//{{{ CompressedReplace class
@@ -527,17 +934,23 @@ public class UndoManager
 		//{{{ CompressedReplace constructor
 		CompressedReplace(Replace r1)
 		{
-			super(r1.offset, r1.strRemove, r1.strInsert);
+			super(r1);
 			offsets = new IntegerArray(4);
 			offsets.add(r1.offset);
 		} //}}}
 
 		//{{{ add() method
-		CompressedReplace add(Replace rep)
+		CompressedReplace add(UndoStore store, Replace rep)
 		{
-			if(this.strInsert.equals(rep.strInsert) && this.strRemove.equals(rep.strRemove))
+			if(store.textEquals(insertBlock,insertStart,insertLength,
+				rep.insertBlock,rep.insertStart,rep.insertLength)
+				&& store.textEquals(removeBlock,removeStart,
+				removeLength,rep.removeBlock,rep.removeStart,
+				rep.removeLength))
 			{
 				offsets.add(rep.offset);
+				// only the text of the first one is kept
+				rep.release(store);
 				return this;
 			}
 			return null;
@@ -546,30 +959,146 @@ public class UndoManager
 		//{{{ undo() method
 		int undo(UndoManager mgr)
 		{
+			String strRemove = getRemoveText(mgr.store);
 			int caret = -1;
 			for(int i = offsets.getSize() - 1; i >= 0; i--)
-			{
-				offset = offsets.get(i);
-				caret = super.undo(mgr);
-			}
+				caret = undo(mgr,offsets.get(i),strRemove);
 			return caret;
 		} //}}}
 
 		//{{{ redo() method
 		int redo(UndoManager mgr)
 		{
+			String strInsert = getInsertText(mgr.store);
 			int caret = -1;
 			for(int i = 0; i < offsets.getSize(); i++)
-			{
-				offset = offsets.get(i);
-				caret = super.redo(mgr);
-			}
+				caret = redo(mgr,offsets.get(i),strInsert);
 			return caret;
 		} //}}}
 
+		//{{{ write() method
+		void write(UndoManager mgr, DataOutput out) throws IOException
+		{
+			out.writeByte(COMPRESSED_REPLACE);
+			out.writeInt(offsets.getSize());
+			for(int i = 0; i < offsets.getSize(); i++)
+				out.writeInt(offsets.get(i));
+			writeTexts(mgr,out);
+		} //}}}
+
 		IntegerArray offsets;
 	} //}}}
 
+	//{{{ BulkReplace class
+	/**
+	 * A {@link JEditBuffer#replace(Replacements)}, undone and redone
+	 * the same way.
+	 */
+	private static class BulkReplace extends Edit
+	{
+		//{{{ BulkReplace constructor
+		BulkReplace(UndoStore store, Replacements replacements,
+			String removed)
+		{
+			int count = replacements.size();
+			offsets = new int[count];
+			removeLengths = new int[count];
+			insertLengths = new int[count];
+			for(int i = 0; i < count; i++)
+			{
+				offsets[i] = replacements.getOffset(i);
+				removeLengths[i] = replacements.getLength(i);
+				insertLengths[i] = replacements.getTextLength(i);
+			}
+
+			removeBlock = store.add(removed);
+			removeLength = removed.length();
+			removeStart = removeBlock.size - removeLength;
+			String inserted = replacements.getTexts().toString();
+			insertBlock = store.add(inserted);
+			insertLength = inserted.length();
+			insertStart = insertBlock.size - insertLength;
+		} //}}}
+
+		//{{{ undo() method
+		int undo(UndoManager mgr)
+		{
+			String removed = getRemoveText(mgr.store);
+			Replacements replacements = new Replacements();
+			int delta = 0;
+			int pos = 0;
+			for(int i = 0; i < offsets.length; i++)
+			{
+				replacements.add(offsets[i] + delta,insertLengths[i],
+					removed.subSequence(pos,pos + removeLengths[i]));
+				pos += removeLengths[i];
+				delta += insertLengths[i] - removeLengths[i];
+			}
+			mgr.buffer.replace(replacements);
+			if(mgr.undoClearDirty == this)
+				mgr.buffer.setDirty(false);
+			return offsets[0] + removeLengths[0];
+		} //}}}
+
+		//{{{ redo() method
+		int redo(UndoManager mgr)
+		{
+			Replacements replacements = getReplacements(mgr.store);
+			mgr.buffer.replace(replacements);
+			if(mgr.redoClearDirty == this)
+				mgr.buffer.setDirty(false);
+			int last = offsets.length - 1;
+			return offsets[last] + removeLengths[last]
+				+ insertLength - removeLength;
+		} //}}}
+
+		//{{{ release() method
+		void release(UndoStore store)
+		{
+			store.release(removeBlock,removeLength);
+			store.release(insertBlock,insertLength);
+		} //}}}
+
+		//{{{ write() method
+		void write(UndoManager mgr, DataOutput out) throws IOException
+		{
+			out.writeByte(BULK_REPLACE);
+			UndoJournal.writeReplacements(out,
+				getReplacements(mgr.store),
+				getRemoveText(mgr.store));
+		} //}}}
+
+		//{{{ getRemoveText() method
+		private String getRemoveText(UndoStore store)
+		{
+			return store.getText(removeBlock,removeStart,removeLength);
+		} //}}}
+
+		//{{{ getReplacements() method
+		private Replacements getReplacements(UndoStore store)
+		{
+			String inserted = store.getText(insertBlock,insertStart,
+				insertLength);
+			Replacements replacements = new Replacements();
+			int pos = 0;
+			for(int i = 0; i < offsets.length; i++)
+			{
+				replacements.add(offsets[i],removeLengths[i],
+					inserted.subSequence(pos,pos + insertLengths[i]));
+				pos += insertLengths[i];
+			}
+			return replacements;
+		} //}}}
+
+		// offsets before the replacement
+		private final int[] offsets;
+		private final int[] removeLengths;
+		private final int[] insertLengths;
+		private final UndoStore.Block removeBlock, insertBlock;
+		private final int removeStart, insertStart;
+		private final int removeLength, insertLength;
+	} //}}}
+
 	//{{{ CompoundEdit class
 	private static class CompoundEdit extends Edit
 	{
@@ -599,6 +1128,25 @@ public class UndoManager
 			return retVal;
 		} //}}}
 
+		//{{{ release() method
+		void release(UndoStore store)
+		{
+			for(Edit edit = first; edit != null; edit = edit.next)
+				edit.release(store);
+		} //}}}
+
+		//{{{ write() method
+		void write(UndoManager mgr, DataOutput out) throws IOException
+		{
+			out.writeByte(COMPOUND);
+			int count = 0;
+			for(Edit edit = first; edit != null; edit = edit.next)
+				count++;
+			out.writeInt(count);
+			for(Edit edit = first; edit != null; edit = edit.next)
+				edit.write(mgr,out);
+		} //}}}
+
 		//{{{ _add() method
 		private void _add(Edit edit)
 		{
@@ -0,0 +1,518 @@
+/*
+ * UndoStore.java - Storage for the text of undoable edits
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.buffer;
+
+//{{{ Imports
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.gjt.sp.util.IOUtilities;
+import org.gjt.sp.util.Log;
+//}}}
+
+/**
+ * Keeps the text of the edits of an {@link UndoManager}.<p>
+ *
+ * Texts are appended to large blocks of characters, instead of each
+ * being a string of its own. Blocks older than the few most recent ones
+ * are compressed, and when the blocks take more memory than the limit,
+ * the oldest ones are written to a temporary file and read back from it
+ * if an undo needs them. A block is forgotten once all the edits using
+ * it have been released.<p>
+ *
+ * Like the undo manager, this class is not thread-safe.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class UndoStore
+{
+	//{{{ setSpillDirectory() method
+	/**
+	 * Sets the directory where blocks are written when over the memory
+	 * limit. If it is null, the oldest edits are discarded instead.
+	 */
+	static void setSpillDirectory(File spillDirectory)
+	{
+		UndoStore.spillDirectory = spillDirectory;
+	} //}}}
+
+	//{{{ UndoStore constructor
+	UndoStore()
+	{
+		blocks = new ArrayDeque<Block>();
+	} //}}}
+
+	//{{{ setMemoryLimit() method
+	/**
+	 * @param memoryLimit The memory blocks may take, in bytes, or 0 for
+	 * no limit
+	 */
+	void setMemoryLimit(long memoryLimit)
+	{
+		this.memoryLimit = memoryLimit;
+	} //}}}
+
+	//{{{ getMemory() method
+	/**
+	 * Returns the memory taken by the blocks, in bytes.
+	 */
+	long getMemory()
+	{
+		return memory;
+	} //}}}
+
+	//{{{ add() method
+	/**
+	 * Stores a text. It is the last text of the returned block, so it
+	 * starts at <code>block.size - text.length()</code>.
+	 */
+	Block add(String text)
+	{
+		int length = text.length();
+		if(length > BLOCK_SIZE / 4)
+		{
+			// large texts get a block of their own
+			Block block = new Block(length);
+			blocks.add(block);
+			memory += block.getMemory();
+			append(block,text);
+			return block;
+		}
+
+		if(current == null || current.size + length > BLOCK_SIZE)
+		{
+			if(current != null && current.live == 0)
+				remove(current);
+			current = new Block(Math.max(length,INITIAL_SIZE));
+			blocks.add(current);
+			memory += current.getMemory();
+			packOldBlocks();
+		}
+		append(current,text);
+		return current;
+	} //}}}
+
+	//{{{ append() method
+	/**
+	 * Appends a text to the one ending at the given position of a
+	 * block, if it is the last one of the current block and there is
+	 * room for it.
+	 * @return false if the text could not be appended
+	 */
+	boolean append(Block block, int end, String text)
+	{
+		if(block != current || block.size != end
+			|| end + text.length() > BLOCK_SIZE)
+			return false;
+
+		append(block,text);
+		return true;
+	} //}}}
+
+	//{{{ getText() method
+	String getText(Block block, int start, int length)
+	{
+		if(length == 0)
+			return "";
+		return new String(getChars(block),start,length);
+	} //}}}
+
+	//{{{ textEquals() method
+	/**
+	 * Returns if two stored texts are the same.
+	 */
+	boolean textEquals(Block block1, int start1, int length1,
+		Block block2, int start2, int length2)
+	{
+		if(length1 != length2)
+			return false;
+		if(block1 == block2 && start1 == start2)
+			return true;
+
+		char[] chars1 = getChars(block1);
+		char[] chars2 = getChars(block2);
+		for(int i = 0; i < length1; i++)
+		{
+			if(chars1[start1 + i] != chars2[start2 + i])
+				return false;
+		}
+		return true;
+	} //}}}
+
+	//{{{ release() method
+	/**
+	 * Tells that a text is no longer used by an edit.
+	 */
+	void release(Block block, int length)
+	{
+		// an empty text may be in a block that is already gone
+		if(length == 0)
+			return;
+
+		block.live -= length;
+		if(block.live == 0 && block != current)
+			remove(block);
+	} //}}}
+
+	//{{{ trim() method
+	/**
+	 * Writes the oldest blocks to the spill file until the memory taken
+	 * is within the limit again.
+	 * @return false if the memory taken is still over the limit
+	 */
+	boolean trim()
+	{
+		if(memoryLimit <= 0 || memory <= memoryLimit)
+			return true;
+
+		// leave some room so that this is not done on every edit
+		long target = memoryLimit / 4 * 3;
+		Iterator<Block> iter = blocks.iterator();
+		while(memory > target && iter.hasNext())
+		{
+			Block block = iter.next();
+			if(block == current || block.spillOffset != -1)
+				continue;
+			if(!spill(block))
+				break;
+		}
+		return memory <= memoryLimit;
+	} //}}}
+
+	//{{{ clear() method
+	/**
+	 * Forgets all the blocks and deletes the spill file.
+	 */
+	void clear()
+	{
+		blocks.clear();
+		current = null;
+		memory = 0L;
+		spilledBlocks = 0;
+		spillFailed = false;
+		if(spillFile != null)
+		{
+			IOUtilities.closeQuietly(spillFile);
+			spillFile = null;
+			spillPath.delete();
+			spillPath = null;
+		}
+	} //}}}
+
+	//{{{ Block class
+	/**
+	 * Stored texts, in one of three forms: characters, compressed
+	 * characters, or a range of the spill file.
+	 */
+	static class Block
+	{
+		//{{{ Block constructor
+		Block(int capacity)
+		{
+			chars = new char[capacity];
+		} //}}}
+
+		//{{{ getMemory() method
+		int getMemory()
+		{
+			if(chars != null)
+				return chars.length * 2;
+			else if(packed != null)
+				return packed.length;
+			else
+				return 0;
+		} //}}}
+
+		/** Null once packed or spilled. */
+		char[] chars;
+		/** The deflated characters, null unless packed. */
+		byte[] packed;
+		/** The characters read back from a packed or spilled block. */
+		SoftReference<char[]> cache;
+		/** The number of characters. */
+		int size;
+		/** The number of characters in texts still in use. */
+		int live;
+		/** Not worth packing. */
+		boolean incompressible;
+		long spillOffset = -1L;
+		int spillLength;
+		boolean spilledPacked;
+	} //}}}
+
+	//{{{ Private members
+
+	/** The maximum size of a block shared by several texts. */
+	private static final int BLOCK_SIZE = 32768;
+
+	private static final int INITIAL_SIZE = 256;
+
+	/** The number of most recent blocks never compressed. */
+	private static final int KEEP_RAW = 4;
+
+	private static volatile File spillDirectory;
+
+	/** Oldest first. */
+	private final ArrayDeque<Block> blocks;
+	/** The block new texts are appended to. */
+	private Block current;
+	private long memory;
+	private long memoryLimit;
+
+	private File spillPath;
+	private RandomAccessFile spillFile;
+	private int spilledBlocks;
+	private boolean spillFailed;
+
+	//{{{ append() method
+	private void append(Block block, String text)
+	{
+		int length = text.length();
+		if(block.size + length > block.chars.length)
+		{
+			memory -= block.getMemory();
+			block.chars = Arrays.copyOf(block.chars,Math.min(BLOCK_SIZE,
+				Math.max(block.size + length,block.chars.length * 2)));
+			memory += block.getMemory();
+		}
+		text.getChars(0,length,block.chars,block.size);
+		block.size += length;
+		block.live += length;
+	} //}}}
+
+	//{{{ remove() method
+	private void remove(Block block)
+	{
+		blocks.remove(block);
+		memory -= block.getMemory();
+		if(block.spillOffset != -1 && --spilledBlocks == 0)
+		{
+			// nothing left in it
+			try
+			{
+				spillFile.setLength(0L);
+			}
+			catch(IOException e)
+			{
+				Log.log(Log.ERROR,this,e);
+			}
+		}
+	} //}}}
+
+	//{{{ getChars() method
+	private char[] getChars(Block block)
+	{
+		if(block.chars != null)
+			return block.chars;
+
+		char[] chars = (block.cache == null ? null : block.cache.get());
+		if(chars == null)
+		{
+			if(block.packed != null)
+				chars = inflate(block.packed,block.size);
+			else
+			{
+				byte[] bytes = readSpilled(block);
+				if(block.spilledPacked)
+					chars = inflate(bytes,block.size);
+				else
+					chars = toChars(bytes,block.size);
+			}
+			block.cache = new SoftReference<char[]>(chars);
+		}
+		return chars;
+	} //}}}
+
+	//{{{ packOldBlocks() method
+	/**
+	 * Compresses the blocks that are no longer among the most recent.
+	 */
+	private void packOldBlocks()
+	{
+		int recent = 0;
+		Iterator<Block> iter = blocks.descendingIterator();
+		while(iter.hasNext())
+		{
+			Block block = iter.next();
+			// older blocks have already been looked at
+			if(block.chars == null || block.incompressible)
+				break;
+			if(++recent > KEEP_RAW)
+				pack(block);
+		}
+	} //}}}
+
+	//{{{ pack() method
+	private void pack(Block block)
+	{
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		deflater.setInput(toBytes(block.chars,block.size));
+		deflater.finish();
+		// only worth it if it saves a quarter of the memory
+		byte[] out = new byte[block.getMemory() / 4 * 3];
+		int length = 0;
+		while(!deflater.finished() && length < out.length)
+			length += deflater.deflate(out,length,out.length - length);
+		boolean finished = deflater.finished();
+		deflater.end();
+
+		if(!finished)
+		{
+			block.incompressible = true;
+			return;
+		}
+
+		memory -= block.getMemory();
+		block.packed = Arrays.copyOf(out,length);
+		block.chars = null;
+		memory += block.getMemory();
+	} //}}}
+
+	//{{{ spill() method
+	private boolean spill(Block block)
+	{
+		if(spillFailed)
+			return false;
+
+		try
+		{
+			if(spillFile == null)
+			{
+				File dir = spillDirectory;
+				if(dir == null)
+				{
+					spillFailed = true;
+					return false;
+				}
+				dir.mkdirs();
+				spillPath = File.createTempFile("undo",".tmp",dir);
+				spillPath.deleteOnExit();
+				spillFile = new RandomAccessFile(spillPath,"rw");
+			}
+
+			byte[] bytes;
+			if(block.packed != null)
+				bytes = block.packed;
+			else
+				bytes = toBytes(block.chars,block.size);
+			long offset = spillFile.length();
+			spillFile.seek(offset);
+			spillFile.write(bytes);
+
+			memory -= block.getMemory();
+			block.spillOffset = offset;
+			block.spillLength = bytes.length;
+			block.spilledPacked = (block.packed != null);
+			block.chars = null;
+			block.packed = null;
+			spilledBlocks++;
+			return true;
+		}
+		catch(IOException e)
+		{
+			Log.log(Log.ERROR,this,e);
+			spillFailed = true;
+			return false;
+		}
+	} //}}}
+
+	//{{{ readSpilled() method
+	private byte[] readSpilled(Block block)
+	{
+		byte[] bytes = new byte[block.spillLength];
+		try
+		{
+			spillFile.seek(block.spillOffset);
+			spillFile.readFully(bytes);
+		}
+		catch(IOException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		return bytes;
+	} //}}}
+
+	//{{{ inflate() method
+	private static char[] inflate(byte[] packed, int size)
+	{
+		Inflater inflater = new Inflater();
+		inflater.setInput(packed);
+		byte[] bytes = new byte[size * 2];
+		try
+		{
+			int length = 0;
+			while(length < bytes.length)
+			{
+				int n = inflater.inflate(bytes,length,
+					bytes.length - length);
+				if(n == 0)
+					throw new DataFormatException("Truncated block");
+				length += n;
+			}
+		}
+		catch(DataFormatException e)
+		{
+			throw new IllegalStateException(e);
+		}
+		finally
+		{
+			inflater.end();
+		}
+		return toChars(bytes,size);
+	} //}}}
+
+	//{{{ toBytes() method
+	private static byte[] toBytes(char[] chars, int size)
+	{
+		byte[] bytes = new byte[size * 2];
+		for(int i = 0; i < size; i++)
+		{
+			bytes[i * 2] = (byte)(chars[i] >> 8);
+			bytes[i * 2 + 1] = (byte)chars[i];
+		}
+		return bytes;
+	} //}}}
+
+	//{{{ toChars() method
+	private static char[] toChars(byte[] bytes, int size)
+	{
+		char[] chars = new char[size];
+		for(int i = 0; i < size; i++)
+		{
+			chars[i] = (char)((bytes[i * 2] & 0xff) << 8
+				| bytes[i * 2 + 1] & 0xff);
+		}
+		return chars;
+	} //}}}
+
+	//}}}
+}
@@ -0,0 +1,244 @@
+/*
+ * WordIndex.java - Index of the words of a buffer
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.buffer;
+
+//{{{ Imports
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.swing.text.Segment;
+//}}}
+
+/**
+ * The words found in a buffer, with the number of times each occurs,
+ * sorted so that the words starting with a prefix can be listed
+ * without going through the text.<p>
+ *
+ * A word is a run of letters, digits and <code>noWordSep</code>
+ * characters. The index is kept up to date by the buffer, which only
+ * passes it the lines changed by each edit.
+ *
+ * @see JEditBuffer#getWordIndex(String)
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+public class WordIndex
+{
+	//{{{ WordIndex constructor
+	/**
+	 * Indexes all the lines of the buffer.
+	 */
+	WordIndex(JEditBuffer buffer, String noWordSep)
+	{
+		this.buffer = buffer;
+		this.noWordSep = normalize(noWordSep);
+		int lineCount = buffer.getLineCount();
+		lines = new ArrayList<Word[]>(lineCount);
+		for(int i = 0; i < lineCount; i++)
+			lines.add(null);
+		indexLines(0,lineCount);
+	} //}}}
+
+	//{{{ getNoWordSep() method
+	/**
+	 * Returns the non alphanumeric word characters, sorted.
+	 */
+	public String getNoWordSep()
+	{
+		return noWordSep;
+	} //}}}
+
+	//{{{ getWords() method
+	/**
+	 * Returns the words starting with the given prefix, in
+	 * alphabetical order.
+	 */
+	public synchronized List<String> getWords(String prefix)
+	{
+		List<String> result = new ArrayList<String>();
+		for(String text : words.tailMap(prefix).keySet())
+		{
+			if(!text.startsWith(prefix))
+				break;
+			result.add(text);
+		}
+		return result;
+	} //}}}
+
+	//{{{ getCount() method
+	/**
+	 * Returns the number of occurrences of a word.
+	 */
+	public synchronized int getCount(String word)
+	{
+		Word w = words.get(word);
+		return w == null ? 0 : w.count;
+	} //}}}
+
+	//{{{ normalize() method
+	/**
+	 * Returns the given characters sorted and without duplicates, so
+	 * that equal sets of word characters have the same string.
+	 */
+	static String normalize(String noWordSep)
+	{
+		if(noWordSep == null)
+			return "";
+		char[] chars = noWordSep.toCharArray();
+		Arrays.sort(chars);
+		StringBuilder buf = new StringBuilder(chars.length);
+		for(int i = 0; i < chars.length; i++)
+		{
+			if(i == 0 || chars[i] != chars[i - 1])
+				buf.append(chars[i]);
+		}
+		return buf.toString();
+	} //}}}
+
+	//{{{ contentInserted() method
+	/**
+	 * Called by the buffer after text was inserted at line
+	 * <code>startLine</code>, adding <code>numLines</code> lines.
+	 */
+	synchronized void contentInserted(int startLine, int numLines)
+	{
+		unindex(lines.get(startLine));
+		if(numLines != 0)
+		{
+			lines.addAll(startLine + 1,
+				Arrays.asList(new Word[numLines][]));
+		}
+		indexLines(startLine,startLine + numLines + 1);
+	} //}}}
+
+	//{{{ contentRemoved() method
+	/**
+	 * Called by the buffer after text was removed from line
+	 * <code>startLine</code>, removing <code>numLines</code> lines.
+	 */
+	synchronized void contentRemoved(int startLine, int numLines)
+	{
+		List<Word[]> removed = lines.subList(startLine,
+			startLine + numLines + 1);
+		for(Word[] lineWords : removed)
+			unindex(lineWords);
+		removed.clear();
+		lines.add(startLine,null);
+		indexLines(startLine,startLine + 1);
+	} //}}}
+
+	//{{{ Private members
+	private static final Word[] NO_WORDS = new Word[0];
+
+	private final JEditBuffer buffer;
+	private final String noWordSep;
+	/** The words of each line. */
+	private final List<Word[]> lines;
+	private final SortedMap<String,Word> words = new TreeMap<String,Word>();
+	private final Segment seg = new Segment();
+	private final List<Word> lineWords = new ArrayList<Word>();
+
+	//{{{ indexLines() method
+	private void indexLines(int start, int end)
+	{
+		for(int i = start; i < end; i++)
+		{
+			buffer.getLineText(i,seg);
+			char[] array = seg.array;
+			int lineEnd = seg.offset + seg.count;
+			int wordStart = -1;
+			for(int j = seg.offset; j <= lineEnd; j++)
+			{
+				if(j != lineEnd && isWordChar(array[j]))
+				{
+					if(wordStart == -1)
+						wordStart = j;
+				}
+				else if(wordStart != -1)
+				{
+					lineWords.add(add(array,wordStart,
+						j - wordStart));
+					wordStart = -1;
+				}
+			}
+			if(lineWords.isEmpty())
+				lines.set(i,NO_WORDS);
+			else
+			{
+				lines.set(i,lineWords.toArray(
+					new Word[lineWords.size()]));
+				lineWords.clear();
+			}
+		}
+	} //}}}
+
+	//{{{ isWordChar() method
+	private boolean isWordChar(char ch)
+	{
+		return !Character.isWhitespace(ch)
+			&& (Character.isLetterOrDigit(ch)
+			|| noWordSep.indexOf(ch) != -1);
+	} //}}}
+
+	//{{{ add() method
+	private Word add(char[] array, int offset, int length)
+	{
+		// a copy, not to keep a whole line alive
+		String text = new String(array,offset,length);
+		Word word = words.get(text);
+		if(word == null)
+		{
+			word = new Word(text);
+			words.put(text,word);
+		}
+		word.count++;
+		return word;
+	} //}}}
+
+	//{{{ unindex() method
+	private void unindex(Word[] lineWords)
+	{
+		for(Word word : lineWords)
+		{
+			if(--word.count == 0)
+				words.remove(word.text);
+		}
+	} //}}}
+
+	//}}}
+
+	//{{{ Word class
+	private static class Word
+	{
+		final String text;
+		int count;
+
+		Word(String text)
+		{
+			this.text = text;
+		}
+	} //}}}
+}
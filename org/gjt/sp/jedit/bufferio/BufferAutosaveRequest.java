@@ -51,6 +51,16 @@ public class BufferAutosaveRequest extends BufferIORequest
 		super(view,buffer,session,vfs,path);
 	} //}}}
 
+	//{{{ getPriority() method
+	/**
+	 * Autosaves run after any pending interactive I/O.
+	 */
+	@Override
+	public int getPriority()
+	{
+		return LOW_PRIORITY;
+	} //}}}
+
 	//{{{ run() method
 	public void run()
 	{
@@ -66,8 +76,6 @@ public class BufferAutosaveRequest extends BufferIORequest
 
 			try
 			{
-				//buffer.readLock();
-
 				if(!buffer.isDirty())
 				{
 					// buffer has been saved while we
@@ -106,10 +114,6 @@ public class BufferAutosaveRequest extends BufferIORequest
 					}
 				}
 			}
-			//finally
-			//{
-				//buffer.readUnlock();
-			//}
 		}
 		catch(WorkThread.Abort a)
 		{
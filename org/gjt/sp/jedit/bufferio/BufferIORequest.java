@@ -30,7 +30,11 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
 
 import javax.swing.text.Segment;
 
@@ -38,6 +42,7 @@ import org.gjt.sp.jedit.Buffer;
 import org.gjt.sp.jedit.MiscUtilities;
 import org.gjt.sp.jedit.View;
 import org.gjt.sp.jedit.jEdit;
+import org.gjt.sp.jedit.buffer.BufferSnapshot;
 import org.gjt.sp.jedit.buffer.JEditBuffer;
 import org.gjt.sp.jedit.io.VFS;
 import org.gjt.sp.jedit.io.Encoding;
@@ -145,143 +150,171 @@ public abstract class BufferIORequest extends WorkRequest
 	protected SegmentBuffer read(Reader in, long length,
 		boolean insert) throws IOException
 	{
-		/* we guess an initial size for the array */
-		IntegerArray endOffsets = new IntegerArray(
-			Math.max(1,(int)(length / 50)));
+		// if the file size is not known, start with a resonable
+		// default buffer size
+		TextLoader loader = new TextLoader(length == 0 ? IOBUFSIZE
+			: (int)Math.min(length + 1,Integer.MAX_VALUE - 8));
 
 		// only true if the file size is known
-		boolean trackProgress = !buffer.isTemporary() && length != 0;
-
-		if(trackProgress)
+		boolean trackProgress = startProgress(length);
+		while(loader.read(in))
 		{
-			setMaximum(length);
-			setValue(0);
+			if(trackProgress)
+				setValue(loader.getText().count);
 		}
 
-		// if the file size is not known, start with a resonable
-		// default buffer size
-		if(length == 0)
-			length = IOBUFSIZE;
+		return endRead(loader,insert);
+	} //}}}
 
-		SegmentBuffer seg = new SegmentBuffer((int)length + 1);
+	//{{{ read() method
+	/**
+	 * Decodes the bytes of a channel straight into the array the buffer
+	 * will keep, without going through a reader.
+	 * @param in The channel
+	 * @param decoder The decoder, which reports errors unless set
+	 * otherwise
+	 * @param length The number of bytes to read, or 0 if unknown
+	 * @param insert If false, the text is stored in the buffer
+	 * properties to be loaded
+	 * @since jEdit 5.1pre1
+	 */
+	protected SegmentBuffer read(ReadableByteChannel in,
+		CharsetDecoder decoder, long length, boolean insert)
+		throws IOException
+	{
+		TextLoader loader = new TextLoader(length == 0 ? IOBUFSIZE
+			: TextLoader.getCapacity(length,decoder));
 
-		char[] buf = new char[IOBUFSIZE];
+		boolean trackProgress = startProgress(length);
+		while(loader.read(in,decoder))
+		{
+			if(trackProgress)
+				setValue(loader.getText().count);
+		}
 
-		/* Number of characters in 'buf' array.
-		 InputStream.read() doesn't always fill the
-		 array (eg, the file size is not a multiple of
-		 IOBUFSIZE, or it is a GZipped file, etc) */
- 		int len;
+		return endRead(loader,insert);
+	} //}}}
 
-		// True if a \n was read after a \r. Usually
-		// means this is a DOS/Windows file
-		boolean CRLF = false;
+	//{{{ read() method
+	/**
+	 * Decodes a local file in chunks on several threads, straight into
+	 * the array the buffer will keep.
+	 * @param in The file
+	 * @param charset Its encoding, for which
+	 * {@link #isParallelReadSupported(Charset)} must be true
+	 * @param length The length of the file
+	 * @param threads The number of threads to use
+	 * @param insert If false, the text is stored in the buffer
+	 * properties to be loaded
+	 * @since jEdit 5.1pre1
+	 */
+	protected SegmentBuffer read(FileChannel in, Charset charset,
+		long length, int threads, boolean insert) throws IOException
+	{
+		boolean trackProgress = startProgress(length);
+		TextLoader loader = new ParallelTextLoader(in,length,charset,
+			threads).load(trackProgress ? this : null);
+		return endRead(loader,insert);
+	} //}}}
+
+	//{{{ isParallelReadSupported() method
+	/**
+	 * Returns if files in the given encoding can be decoded on several
+	 * threads: UTF-8, UTF-16 and single byte encodings.
+	 * @since jEdit 5.1pre1
+	 */
+	protected static boolean isParallelReadSupported(Charset charset)
+	{
+		return ParallelTextLoader.isSupported(charset);
+	} //}}}
+
+	//{{{ write() method
+	/**
+	 * Writes a snapshot of the buffer, which doesn't need the buffer to
+	 * be locked.
+	 */
+	protected void write(Buffer buffer, OutputStream out)
+		throws IOException
+	{
+		BufferSnapshot snapshot = buffer.getSnapshot();
 
-		// A \r was read, hence a MacOS file
-		boolean CROnly = false;
+		String encodingName
+			= buffer.getStringProperty(JEditBuffer.ENCODING);
+		Encoding encoding = EncodingServer.getEncoding(encodingName);
+		Writer writer = encoding.getTextWriter(
+			new BufferedOutputStream(out, getByteIOBufferSize()));
 
-		// Was the previous read character a \r?
-		// If we read a \n and this is true, we assume
-		// we have a DOS/Windows file
-		boolean lastWasCR = false;
+		Segment lineSegment = new Segment();
+		String newline = buffer.getStringProperty(JEditBuffer.LINESEP);
+		if(newline == null)
+			newline = System.getProperty("line.separator");
 
-		// Number of lines read. Every 100 lines, we update the
-		// progress bar
-		int lineCount = 0;
+		final int bufferLineCount = snapshot.getLineCount();
+		setMaximum(bufferLineCount / PROGRESS_INTERVAL);
+		setValue(0);
 
-		while((len = in.read(buf,0,buf.length)) != -1)
+		int i = 0;
+		while(i < bufferLineCount)
 		{
-			// Offset of previous line, relative to
-			// the start of the I/O buffer (NOT
-			// relative to the start of the document)
-			int lastLine = 0;
-
-			for(int i = 0; i < len; i++)
+			snapshot.getLineText(i,lineSegment);
+			try
 			{
-				// Look for line endings.
-				switch(buf[i])
+				writer.write(lineSegment.array,
+					lineSegment.offset,
+					lineSegment.count);
+				if(i < bufferLineCount - 1
+					|| (jEdit.getBooleanProperty("stripTrailingEOL")
+						&& buffer.getBooleanProperty(Buffer.TRAILING_EOL)))
 				{
-				case '\r':
-					// If we read a \r and
-					// lastWasCR is also true,
-					// it is probably a Mac file
-					// (\r\r in stream)
-					if(lastWasCR)
-					{
-						CROnly = true;
-						CRLF = false;
-					}
-					// Otherwise set a flag,
-					// so that \n knows that last
-					// was a \r
-					else
-					{
-						lastWasCR = true;
-					}
-
-					// Insert a line
-					seg.append(buf,lastLine,i -
-						lastLine);
-					seg.append('\n');
-					endOffsets.add(seg.count);
-					if(trackProgress && lineCount++ % PROGRESS_INTERVAL == 0)
-						setValue(seg.count);
-
-					// This is i+1 to take the
-					// trailing \n into account
-					lastLine = i + 1;
-					break;
-				case '\n':
-					/* If lastWasCR is true, we just read a \r followed
-					 by a \n. We specify that this is a Windows file,
-					 but take no further action and just ignore the \r. */
-					if(lastWasCR)
-					{
-						CROnly = false;
-						CRLF = true;
-						lastWasCR = false;
-						/* Bump lastLine so that the next line doesn't erronously
-						  pick up the \r */
-						lastLine = i + 1;
-					}
-					/* Otherwise, we found a \n that follows some other
-					 *  character, hence we have a Unix file */
-					else
-					{
-						CROnly = false;
-						CRLF = false;
-						seg.append(buf,lastLine,
-							i - lastLine);
-						seg.append('\n');
-						endOffsets.add(seg.count);
-						if(trackProgress && lineCount++ % PROGRESS_INTERVAL == 0)
-							setValue(seg.count);
-						lastLine = i + 1;
-					}
-					break;
-				default:
-					/*  If we find some other character that follows
-					 a \r, so it is not a Windows file, and probably
-					 a Mac file */
-					if(lastWasCR)
-					{
-						CROnly = true;
-						CRLF = false;
-						lastWasCR = false;
-					}
-					break;
+					writer.write(newline);
 				}
 			}
+			catch(CharacterCodingException e)
+			{
+				String message = getWriteEncodingErrorMessage(
+					encodingName, encoding,
+					lineSegment, i);
+				IOException wrapping = new CharConversionException(message);
+				wrapping.initCause(e);
+				throw wrapping;
+			}
 
-			if(trackProgress)
-				setValue(seg.count);
+			if(++i % PROGRESS_INTERVAL == 0)
+				setValue(i / PROGRESS_INTERVAL);
+		}
+		writer.flush();
+	} //}}}
 
-			// Add remaining stuff from buffer
-			seg.append(buf,lastLine,len - lastLine);
+	//{{{ Private members
+
+	//{{{ startProgress() method
+	/**
+	 * Sets up the progress bar for reading a file.
+	 * @return true if the length of the file is known
+	 */
+	private boolean startProgress(long length)
+	{
+		boolean trackProgress = !buffer.isTemporary() && length != 0;
+		if(trackProgress)
+		{
+			setMaximum(length);
+			setValue(0);
 		}
+		return trackProgress;
+	} //}}}
 
+	//{{{ endRead() method
+	/**
+	 * Chops the end of a text read, and stores it in the buffer
+	 * properties unless it is being inserted.
+	 */
+	private SegmentBuffer endRead(TextLoader loader, boolean insert)
+	{
 		setAbortable(false);
 
+		SegmentBuffer seg = loader.getText();
+		IntegerArray endOffsets = loader.getEndOffsets();
+
 		String lineSeparator;
 		if(seg.count == 0)
 		{
@@ -291,12 +324,8 @@ public abstract class BufferIORequest extends WorkRequest
 				"buffer.lineSeparator",
 				System.getProperty("line.separator"));
 		}
-		else if(CRLF)
-			lineSeparator = "\r\n";
-		else if(CROnly)
-			lineSeparator = "\r";
 		else
-			lineSeparator = "\n";
+			lineSeparator = loader.getLineSeparator();
 
 		// Chop trailing newline and/or ^Z (if any)
 		int bufferLength = seg.count;
@@ -331,67 +360,13 @@ public abstract class BufferIORequest extends WorkRequest
 			buffer.setProperty(LOAD_DATA,seg);
 			buffer.setProperty(END_OFFSETS,endOffsets);
 			buffer.setProperty(NEW_PATH,path);
-			if(lineSeparator != null)
-				buffer.setProperty(JEditBuffer.LINESEP,lineSeparator);
+			buffer.setProperty(JEditBuffer.LINESEP,lineSeparator);
 		}
 
 		// used in insert()
 		return seg;
 	} //}}}
 
-	//{{{ write() method
-	protected void write(Buffer buffer, OutputStream out)
-		throws IOException
-	{
-		String encodingName
-			= buffer.getStringProperty(JEditBuffer.ENCODING);
-		Encoding encoding = EncodingServer.getEncoding(encodingName);
-		Writer writer = encoding.getTextWriter(
-			new BufferedOutputStream(out, getByteIOBufferSize()));
-
-		Segment lineSegment = new Segment();
-		String newline = buffer.getStringProperty(JEditBuffer.LINESEP);
-		if(newline == null)
-			newline = System.getProperty("line.separator");
-
-		final int bufferLineCount = buffer.getLineCount();
-		setMaximum(bufferLineCount / PROGRESS_INTERVAL);
-		setValue(0);
-
-		int i = 0;
-		while(i < bufferLineCount)
-		{
-			buffer.getLineText(i,lineSegment);
-			try
-			{
-				writer.write(lineSegment.array,
-					lineSegment.offset,
-					lineSegment.count);
-				if(i < bufferLineCount - 1
-					|| (jEdit.getBooleanProperty("stripTrailingEOL")
-						&& buffer.getBooleanProperty(Buffer.TRAILING_EOL)))
-				{
-					writer.write(newline);
-				}
-			}
-			catch(CharacterCodingException e)
-			{
-				String message = getWriteEncodingErrorMessage(
-					encodingName, encoding,
-					lineSegment, i);
-				IOException wrapping = new CharConversionException(message);
-				wrapping.initCause(e);
-				throw wrapping;
-			}
-
-			if(++i % PROGRESS_INTERVAL == 0)
-				setValue(i / PROGRESS_INTERVAL);
-		}
-		writer.flush();
-	} //}}}
-
-	//{{{ Private members
-
 	//{{{ createEncodingErrorMessage() method
 	private static String getWriteEncodingErrorMessage(
 		String encodingName, Encoding encoding,
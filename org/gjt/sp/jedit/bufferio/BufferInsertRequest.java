@@ -55,6 +55,8 @@ public class BufferInsertRequest extends BufferIORequest
 	public void run()
 	{
 		InputStream in = null;
+		// waits while too many requests use this VFS
+		vfs.acquireRequestPermit();
 		try
 		{
 			String[] args = { vfs.getFileName(path) };
@@ -120,6 +122,7 @@ public class BufferInsertRequest extends BufferIORequest
 			{
 				buffer.setBooleanProperty(ERROR_OCCURRED,true);
 			}
+			vfs.releaseRequestPermit();
 		}
 	} //}}}
 }
@@ -33,6 +33,7 @@ import java.util.zip.GZIPInputStream;
 import org.gjt.sp.jedit.io.*;
 import org.gjt.sp.jedit.*;
 import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.buffer.MappedText;
 import org.gjt.sp.util.*;
 //}}}
 
@@ -58,9 +59,17 @@ public class BufferLoadRequest extends BufferIORequest
 		super(view,buffer,session,vfs,path);
 	} //}}}
 	
+	/**
+	 * Number of windows of a mapped file scanned before the buffer is
+	 * shown, enough for the first screens.
+	 */
+	private static final int MAPPED_INITIAL_WINDOWS = 16;
+
 	//{{{ run() method
 	public void run()
 	{
+		// waits while too many requests use this VFS
+		vfs.acquireRequestPermit();
 		try
 		{
 			setAbortable(true);
@@ -138,6 +147,7 @@ public class BufferLoadRequest extends BufferIORequest
 			{
 				buffer.setBooleanProperty(ERROR_OCCURRED,true);
 			}
+			vfs.releaseRequestPermit();
 		}
 	} //}}}
 
@@ -266,6 +276,11 @@ public class BufferLoadRequest extends BufferIORequest
 				markedStream = AutoDetection.getMarkedStream(
 					new GZIPInputStream(markedStream));
 			}
+			else if(readMappedContents(length,markedStream,
+				encodingProviders,autodetect))
+			{
+				return;
+			}
 
 			Set<String> failedEncodings = new HashSet<String>();
 			Exception encodingError = null;
@@ -292,11 +307,14 @@ public class BufferLoadRequest extends BufferIORequest
 					continue;
 				}
 
-				markedStream = rewindContentsStream(markedStream, gzipped);
 				try
 				{
-					read(EncodingServer.getTextReader(markedStream, encoding)
-						, length, false);
+					if(gzipped || !readChannel(encoding,length))
+					{
+						markedStream = rewindContentsStream(markedStream, gzipped);
+						read(EncodingServer.getTextReader(markedStream, encoding)
+							, length, false);
+					}
 					if(autodetect)
 					{
 						// Store the successful properties.
@@ -355,6 +373,157 @@ public class BufferLoadRequest extends BufferIORequest
 		}
 	} //}}}
 
+	//{{{ readChannel() method
+	/**
+	 * Decodes a local file from its channel straight into the buffer
+	 * contents, for encodings provided by Java. Large files are decoded
+	 * on several threads when the encoding allows it.
+	 * @return false if the file has to be read through a reader
+	 */
+	private boolean readChannel(String encoding, long length)
+		throws IOException
+	{
+		if(!(vfs instanceof FileVFS))
+			return false;
+
+		Charset charset;
+		try
+		{
+			charset = Charset.forName(encoding);
+		}
+		catch(IllegalArgumentException e)
+		{
+			// provided by a plugin
+			return false;
+		}
+
+		int threshold = jEdit.getIntegerProperty("parallelLoadSize",0);
+		int threads = jEdit.getIntegerProperty("parallelLoad.threads",0);
+		if(threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+
+		FileInputStream in = new FileInputStream(path);
+		try
+		{
+			if(threshold > 0 && length >= threshold && threads > 1
+				&& isParallelReadSupported(charset))
+			{
+				read(in.getChannel(),charset,length,threads,false);
+			}
+			else
+				read(in.getChannel(),charset.newDecoder(),length,false);
+		}
+		finally
+		{
+			in.close();
+		}
+		return true;
+	} //}}}
+
+	//{{{ readMappedContents() method
+	/**
+	 * Maps huge local files in memory instead of reading them. Only
+	 * the beginning of the file is scanned here, the buffer scans the
+	 * rest in the background.
+	 * @return true if the file was mapped
+	 */
+	private boolean readMappedContents(long length,
+		BufferedInputStream markedStream, List<Object> encodingProviders,
+		boolean autodetect) throws IOException
+	{
+		int threshold = jEdit.getIntegerProperty("largeBufferMapSize",0);
+		// files of 2 GB or more can't be mapped at once, a regular
+		// load deals with them
+		if(threshold <= 0 || length < threshold
+			|| length >= Integer.MAX_VALUE
+			|| !(vfs instanceof FileVFS) || buffer.isTemporary())
+		{
+			return false;
+		}
+
+		for(Object encodingProvider: encodingProviders)
+		{
+			String encoding = null;
+			if(encodingProvider instanceof String)
+			{
+				encoding = (String)encodingProvider;
+			}
+			else if(encodingProvider instanceof EncodingDetector)
+			{
+				try
+				{
+					markedStream.reset();
+				}
+				catch(IOException e)
+				{
+					// the regular load reopens the stream
+					return false;
+				}
+				encoding = ((EncodingDetector)encodingProvider).detectEncoding(new BufferedInputStream(markedStream));
+			}
+
+			if(encoding == null || encoding.length() <= 0)
+				continue;
+
+			Charset charset;
+			try
+			{
+				charset = Charset.forName(encoding);
+			}
+			catch(IllegalArgumentException e)
+			{
+				// not a java charset, let the regular load
+				// deal with it
+				return false;
+			}
+			if(!MappedText.isSupported(charset))
+				return false;
+
+			MappedText text = new MappedText(new File(path),charset,
+				jEdit.getBooleanProperty("stripTrailingEOL"));
+			IntegerArray endOffsets = new IntegerArray();
+			// the text is closed unless it is handed to the buffer
+			boolean handed = false;
+			try
+			{
+				try
+				{
+					text.check();
+				}
+				catch(CharacterCodingException e)
+				{
+					Log.log(Log.NOTICE, this, path + ": "
+						+ encoding + ": " + e);
+					continue;
+				}
+
+				Log.log(Log.DEBUG, this, path + ": mapped in memory");
+				text.scan(endOffsets,MAPPED_INITIAL_WINDOWS);
+				// add a line marker at the end for proper
+				// offset manager operation
+				endOffsets.add(text.getScannedLength() + 1);
+				handed = true;
+			}
+			finally
+			{
+				if(!handed)
+					text.close();
+			}
+
+			setAbortable(false);
+			buffer.setBooleanProperty(Buffer.TRAILING_EOL,
+				text.hasTrailingEOL());
+			buffer.setProperty(LOAD_DATA,text);
+			buffer.setProperty(END_OFFSETS,endOffsets);
+			buffer.setProperty(NEW_PATH,path);
+			buffer.setProperty(JEditBuffer.LINESEP,text.getLineSeparator());
+			if(autodetect)
+				buffer.setProperty(JEditBuffer.ENCODING, encoding);
+			return true;
+		}
+		return false;
+	} //}}}
+
 	//{{{ readMarkers() method
 	private static void readMarkers(Buffer buffer, InputStream _in)
 		throws IOException
@@ -73,6 +73,8 @@ public class BufferSaveRequest extends BufferIORequest
 		boolean wantTwoStage = wantTwoStageSave(buffer);
 		boolean twoStageSave = vfsRenameCap && wantTwoStage;
 
+		// waits while too many requests use this VFS
+		vfs.acquireRequestPermit();
 		try
 		{
 			String[] args = { vfs.getFileName(path) };
@@ -110,34 +112,26 @@ public class BufferSaveRequest extends BufferIORequest
 			}
 			try
 			{
-				// this must be after the stream is created or
-				// we deadlock with SSHTools.
-				buffer.readLock();
-				try
+				// Can't use buffer.getName() here because
+				// it is not changed until the save is
+				// complete
+				if(path.endsWith(".gz"))
+					buffer.setBooleanProperty(Buffer.GZIPPED,true);
+				else if (buffer.getName().endsWith(".gz"))
 				{
-					// Can't use buffer.getName() here because
-					// it is not changed until the save is
-					// complete
-					if(path.endsWith(".gz"))
-						buffer.setBooleanProperty(Buffer.GZIPPED,true);
-					else if (buffer.getName().endsWith(".gz"))
-					{
-						// The path do not ends with gz.
-						// The buffer name was .gz.
-						// So it means it's blabla.txt.gz -> blabla.txt, I remove
-						// the gz property
-						buffer.setBooleanProperty(Buffer.GZIPPED, false);
-					}
-
-					if(buffer.getBooleanProperty(Buffer.GZIPPED))
-						out = new GZIPOutputStream(out);
-
-					write(buffer,out);
-				}
-				finally
-				{
-					buffer.readUnlock();
+					// The path do not ends with gz.
+					// The buffer name was .gz.
+					// So it means it's blabla.txt.gz -> blabla.txt, I remove
+					// the gz property
+					buffer.setBooleanProperty(Buffer.GZIPPED, false);
 				}
+
+				if(buffer.getBooleanProperty(Buffer.GZIPPED))
+					out = new GZIPOutputStream(out);
+
+				// a snapshot is written, the buffer isn't
+				// locked during the save
+				write(buffer,out);
 			}
 			finally
 			{
@@ -208,6 +202,7 @@ public class BufferSaveRequest extends BufferIORequest
 			{
 				buffer.setBooleanProperty(ERROR_OCCURRED,true);
 			}
+			vfs.releaseRequestPermit();
 		}
 	} //}}}
 
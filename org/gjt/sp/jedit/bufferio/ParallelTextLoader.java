@@ -0,0 +1,368 @@
+/*
+ * ParallelTextLoader.java - Decodes a file in chunks on several threads
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.bufferio;
+
+//{{{ Imports
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.gjt.sp.util.ProgressObserver;
+//}}}
+
+/**
+ * Decodes a local file in chunks on several threads, each chunk into
+ * its own part of the array that will hold the text, then moves the
+ * chunks next to each other.<p>
+ *
+ * This works for the encodings in which a character boundary can be
+ * found from the bytes around any position: UTF-8, UTF-16 and single
+ * byte encodings.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class ParallelTextLoader
+{
+	//{{{ isSupported() method
+	/**
+	 * Returns if files in the given encoding can be decoded in chunks.
+	 */
+	static boolean isSupported(Charset charset)
+	{
+		String name = charset.name();
+		if(name.equals("UTF-8") || name.equals("UTF-16")
+			|| name.equals("UTF-16BE") || name.equals("UTF-16LE"))
+		{
+			return true;
+		}
+
+		// stateless single byte encodings
+		return charset.canEncode()
+			&& charset.newEncoder().maxBytesPerChar() == 1f
+			&& charset.newDecoder().maxCharsPerByte() == 1f;
+	} //}}}
+
+	//{{{ ParallelTextLoader constructor
+	/**
+	 * @param channel The file
+	 * @param length The length of the file
+	 * @param charset Its encoding, which must be supported
+	 * @param threads The number of threads to use
+	 */
+	ParallelTextLoader(FileChannel channel, long length, Charset charset,
+		int threads) throws IOException
+	{
+		this.channel = channel;
+		this.length = length;
+		this.threads = threads;
+
+		if(charset.name().equals("UTF-16"))
+		{
+			// as the UTF-16 decoder does, use the byte order
+			// mark at the start and default to big endian
+			ByteBuffer bom = readBytes(0L,2);
+			int first = bom.remaining() == 2 ? bom.getShort(0) & 0xffff : 0;
+			if(first == 0xfffe)
+				charset = Charset.forName("UTF-16LE");
+			else
+				charset = Charset.forName("UTF-16BE");
+			if(first == 0xfeff || first == 0xfffe)
+				start = 2L;
+		}
+
+		this.charset = charset;
+		String name = charset.name();
+		utf8 = name.equals("UTF-8");
+		if(name.startsWith("UTF-16"))
+		{
+			unitSize = 2;
+			bigEndian = name.equals("UTF-16BE");
+			cr = 0;
+		}
+		else
+		{
+			unitSize = 1;
+			bigEndian = false;
+			cr = "\r".getBytes(charset)[0];
+		}
+	} //}}}
+
+	//{{{ load() method
+	/**
+	 * Decodes the file.
+	 * @param observer Told of the number of bytes done, may be null
+	 * @return The text and its line ends
+	 */
+	TextLoader load(ProgressObserver observer) throws IOException
+	{
+		// a few chunks per thread, in case some are slower
+		long chunkSize = Math.max(MIN_CHUNK_SIZE,
+			(length - start) / (threads * 4));
+		int chunks = (int)Math.max(1L,(length - start) / chunkSize);
+		long[] bounds = new long[chunks + 1];
+		bounds[0] = start;
+		for(int i = 1; i < chunks; i++)
+			bounds[i] = findBoundary(start + i * chunkSize);
+		bounds[chunks] = length;
+
+		CharsetDecoder decoder = charset.newDecoder();
+		long capacity = 0L;
+		int[] starts = new int[chunks + 1];
+		for(int i = 0; i < chunks; i++)
+		{
+			starts[i] = (int)capacity;
+			capacity += TextLoader.getCapacity(
+				bounds[i + 1] - bounds[i],decoder);
+			if(capacity > Integer.MAX_VALUE - 8)
+				throw new IOException("File too large");
+		}
+		starts[chunks] = (int)capacity;
+
+		char[] array = new char[(int)capacity];
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads,
+			threads,0L,TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			new WorkerFactory());
+		try
+		{
+			TextLoader[] parts = new TextLoader[chunks];
+			List<Future<Object>> done
+				= new ArrayList<Future<Object>>(chunks);
+			for(int i = 0; i < chunks; i++)
+			{
+				parts[i] = new TextLoader(array,starts[i],
+					starts[i + 1],i != 0 && endsWithCR(bounds[i]));
+				done.add(pool.submit(new Chunk(parts[i],
+					bounds[i],bounds[i + 1])));
+			}
+
+			for(int i = 0; i < chunks; i++)
+			{
+				waitFor(done.get(i));
+				if(i != 0)
+					parts[0].append(parts[i]);
+				if(observer != null)
+					observer.setValue(bounds[i + 1]);
+			}
+			return parts[0];
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+	} //}}}
+
+	//{{{ Private members
+
+	/** Chunks are not made smaller than this, in bytes. */
+	private static final long MIN_CHUNK_SIZE = 1 << 20;
+
+	private final FileChannel channel;
+	private final long length;
+	private final int threads;
+	private final Charset charset;
+	/** Where the text starts, after the byte order mark. */
+	private long start;
+	private final boolean utf8;
+	private final int unitSize;
+	private final boolean bigEndian;
+	/** \r in single byte encodings. */
+	private final byte cr;
+
+	//{{{ findBoundary() method
+	/**
+	 * Returns the first character boundary at or after a position.
+	 */
+	private long findBoundary(long position) throws IOException
+	{
+		if(unitSize == 2)
+		{
+			position -= (position - start) % 2;
+			// don't split surrogate pairs
+			ByteBuffer unit = readBytes(position,2);
+			if(unit.remaining() == 2)
+			{
+				char ch = getChar(unit);
+				if(Character.isLowSurrogate(ch))
+					position += 2;
+			}
+		}
+		else if(utf8)
+		{
+			// skip continuation bytes
+			ByteBuffer bytes = readBytes(position,3);
+			while(bytes.hasRemaining()
+				&& (bytes.get() & 0xc0) == 0x80)
+			{
+				position++;
+			}
+		}
+		return position;
+	} //}}}
+
+	//{{{ endsWithCR() method
+	/**
+	 * Returns if the character before a boundary is a \r.
+	 */
+	private boolean endsWithCR(long position) throws IOException
+	{
+		ByteBuffer unit = readBytes(position - unitSize,unitSize);
+		if(unit.remaining() != unitSize)
+			return false;
+		else if(unitSize == 2)
+			return getChar(unit) == '\r';
+		else
+			return unit.get(0) == cr;
+	} //}}}
+
+	//{{{ getChar() method
+	private char getChar(ByteBuffer unit)
+	{
+		int b1 = unit.get(0) & 0xff;
+		int b2 = unit.get(1) & 0xff;
+		return (char)(bigEndian ? b1 << 8 | b2 : b2 << 8 | b1);
+	} //}}}
+
+	//{{{ readBytes() method
+	private ByteBuffer readBytes(long position, int count)
+		throws IOException
+	{
+		ByteBuffer bytes = ByteBuffer.allocate(count);
+		while(bytes.hasRemaining())
+		{
+			if(channel.read(bytes,position + bytes.position()) == -1)
+				break;
+		}
+		bytes.flip();
+		return bytes;
+	} //}}}
+
+	//{{{ waitFor() method
+	private static void waitFor(Future<Object> chunk) throws IOException
+	{
+		try
+		{
+			chunk.get();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		catch(ExecutionException e)
+		{
+			Throwable cause = e.getCause();
+			if(cause instanceof IOException)
+				throw (IOException)cause;
+			else if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			throw (Error)cause;
+		}
+	} //}}}
+
+	//{{{ Chunk class
+	/**
+	 * Decodes the bytes of a chunk, reading them at their position in
+	 * the file.
+	 */
+	private class Chunk implements Callable<Object>, ReadableByteChannel
+	{
+		Chunk(TextLoader loader, long position, long end)
+		{
+			this.loader = loader;
+			this.position = position;
+			this.end = end;
+		}
+
+		public Object call() throws IOException
+		{
+			CharsetDecoder decoder = charset.newDecoder();
+			while(loader.read(this,decoder))
+			{
+			}
+			return null;
+		}
+
+		public int read(ByteBuffer bytes) throws IOException
+		{
+			if(position >= end)
+				return -1;
+			int limit = bytes.limit();
+			if(bytes.remaining() > end - position)
+				bytes.limit(bytes.position() + (int)(end - position));
+			try
+			{
+				int count = channel.read(bytes,position);
+				if(count > 0)
+					position += count;
+				return count;
+			}
+			finally
+			{
+				bytes.limit(limit);
+			}
+		}
+
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		public void close()
+		{
+		}
+
+		private final TextLoader loader;
+		private long position;
+		private final long end;
+	} //}}}
+
+	//{{{ WorkerFactory class
+	private static class WorkerFactory implements ThreadFactory
+	{
+		private int count;
+
+		public synchronized Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r,"Load worker #" + ++count);
+			thread.setDaemon(true);
+			return thread;
+		}
+	} //}}}
+
+	//}}}
+}
@@ -0,0 +1,356 @@
+/*
+ * TextLoader.java - Reads text and finds its line ends
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.bufferio;
+
+//{{{ Imports
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+
+import org.gjt.sp.util.IntegerArray;
+import org.gjt.sp.util.SegmentBuffer;
+//}}}
+
+/**
+ * Reads a text straight into the array the buffer will keep, finding
+ * the line ends and turning <code>\r\n</code> and <code>\r</code>
+ * into <code>\n</code> in place as it goes.<p>
+ *
+ * The text is read a chunk at a time with {@link #read(Reader)} or
+ * {@link #read(ReadableByteChannel,CharsetDecoder)}, so that the caller
+ * can report progress in between.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+public class TextLoader
+{
+	//{{{ TextLoader constructor
+	/**
+	 * @param capacity The expected length of the text, in characters.
+	 * The text array grows if it is longer.
+	 */
+	public TextLoader(int capacity)
+	{
+		text = new SegmentBuffer(Math.max(1,capacity));
+		endOffsets = new IntegerArray(Math.max(1,capacity / 50));
+		limit = text.array.length;
+		shared = false;
+	} //}}}
+
+	//{{{ TextLoader constructor
+	/**
+	 * Reads a chunk of a text into its part of an array shared with the
+	 * other chunks.
+	 * @param array The array
+	 * @param start Where the part starts
+	 * @param limit Where the part ends; it must be large enough
+	 * @param lastWasCR If the previous chunk ends with a \r
+	 */
+	TextLoader(char[] array, int start, int limit, boolean lastWasCR)
+	{
+		text = new SegmentBuffer(0);
+		text.array = array;
+		text.count = start;
+		endOffsets = new IntegerArray(Math.max(1,(limit - start) / 50));
+		this.start = start;
+		this.limit = limit;
+		this.lastWasCR = lastWasCR;
+		shared = true;
+	} //}}}
+
+	//{{{ getCapacity() method
+	/**
+	 * Returns the number of characters to expect from a number of bytes
+	 * in the given encoding, at most.
+	 */
+	public static int getCapacity(long length, CharsetDecoder decoder)
+	{
+		long capacity = (long)Math.ceil(length * (double)decoder.maxCharsPerByte());
+		return (int)Math.min(capacity + 1,MAX_CAPACITY);
+	} //}}}
+
+	//{{{ read() method
+	/**
+	 * Reads the next chunk of text.
+	 * @return false if the end of the text was reached
+	 */
+	public boolean read(Reader in) throws IOException
+	{
+		if(limit - text.count < CHUNK / 2)
+			grow();
+		int len = in.read(text.array,text.count,
+			Math.min(CHUNK,limit - text.count));
+		if(len == -1)
+			return false;
+		scan(text.count,text.count + len);
+		return true;
+	} //}}}
+
+	//{{{ read() method
+	/**
+	 * Reads and decodes the next chunk of bytes.
+	 * @param decoder The decoder, which must be used for this channel
+	 * only. Decoding errors are thrown as
+	 * <code>CharacterCodingException</code>s, unless it was set to
+	 * replace them.
+	 * @return false if the end of the text was reached
+	 */
+	public boolean read(ReadableByteChannel in, CharsetDecoder decoder)
+		throws IOException
+	{
+		if(bytes == null)
+			bytes = ByteBuffer.allocate(BufferIORequest.getByteIOBufferSize());
+
+		boolean eof = in.read(bytes) == -1;
+		bytes.flip();
+		boolean flushing = false;
+		for(;;)
+		{
+			int start = text.count;
+			CharBuffer out = CharBuffer.wrap(text.array,start,
+				limit - start);
+			CoderResult result;
+			if(flushing)
+				result = decoder.flush(out);
+			else
+			{
+				result = decoder.decode(bytes,out,eof);
+				if(eof && result.isUnderflow())
+				{
+					flushing = true;
+					result = decoder.flush(out);
+				}
+			}
+			scan(start,out.position());
+
+			if(result.isOverflow())
+			{
+				if(limit - text.count < CHUNK / 2)
+					grow();
+			}
+			else if(result.isError())
+				result.throwException();
+			else
+				break;
+		}
+		bytes.compact();
+		return !eof;
+	} //}}}
+
+	//{{{ append() method
+	/**
+	 * Appends the chunk read after this one, moving it next to this one
+	 * in their shared array.
+	 */
+	void append(TextLoader next)
+	{
+		int length = next.text.count - next.start;
+		int shift = text.count - next.start;
+		System.arraycopy(text.array,next.start,text.array,text.count,
+			length);
+		text.count += length;
+
+		IntegerArray nextEndOffsets = next.endOffsets;
+		for(int i = 0; i < nextEndOffsets.getSize(); i++)
+			endOffsets.add(nextEndOffsets.get(i) + shift);
+
+		if(next.separatorFound)
+		{
+			CRLF = next.CRLF;
+			CROnly = next.CROnly;
+			separatorFound = true;
+		}
+		lastWasCR = next.lastWasCR;
+	} //}}}
+
+	//{{{ getText() method
+	/**
+	 * Returns the text read so far, with <code>\n</code> line
+	 * separators.
+	 */
+	public SegmentBuffer getText()
+	{
+		return text;
+	} //}}}
+
+	//{{{ getEndOffsets() method
+	/**
+	 * Returns the end offsets of the lines read so far, the last line
+	 * excepted.
+	 */
+	public IntegerArray getEndOffsets()
+	{
+		return endOffsets;
+	} //}}}
+
+	//{{{ getLineSeparator() method
+	/**
+	 * Returns the line separator the text used, <code>\n</code> if it
+	 * had no line break.
+	 */
+	public String getLineSeparator()
+	{
+		if(CRLF)
+			return "\r\n";
+		else if(CROnly)
+			return "\r";
+		else
+			return "\n";
+	} //}}}
+
+	//{{{ Private members
+
+	/** Number of characters read at once. */
+	private static final int CHUNK = BufferIORequest.IOBUFSIZE;
+	/** Largest array most virtual machines can allocate. */
+	private static final int MAX_CAPACITY = Integer.MAX_VALUE - 8;
+
+	private final SegmentBuffer text;
+	private final IntegerArray endOffsets;
+	private ByteBuffer bytes;
+
+	/** Where this chunk starts in a shared array. */
+	private int start;
+	/** The end of the part of the array that can be filled. */
+	private int limit;
+	/** If the array is shared with other chunks. */
+	private final boolean shared;
+
+	// True if a \n was read after a \r. Usually
+	// means this is a DOS/Windows file
+	private boolean CRLF;
+
+	// A \r was read, hence a MacOS file
+	private boolean CROnly;
+
+	// Was the previous read character a \r?
+	// If we read a \n and this is true, we assume
+	// we have a DOS/Windows file
+	private boolean lastWasCR;
+
+	// If one of the above was decided by this chunk
+	private boolean separatorFound;
+
+	//{{{ scan() method
+	/**
+	 * Finds the line ends among characters just appended to the text,
+	 * dropping the \n of \r\n and replacing other \r with \n.
+	 */
+	private void scan(int start, int end)
+	{
+		char[] array = text.array;
+		boolean lastWasCR = this.lastWasCR;
+		int count = start;
+		for(int i = start; i < end; i++)
+		{
+			char ch = array[i];
+			if(ch > '\r')
+			{
+				// a \r followed by something else is
+				// probably a Mac file
+				if(lastWasCR)
+				{
+					CROnly = true;
+					CRLF = false;
+					separatorFound = true;
+					lastWasCR = false;
+				}
+				// the text only moves after a \r\n
+				if(count != i)
+					array[count] = ch;
+				count++;
+				continue;
+			}
+
+			switch(ch)
+			{
+			case '\r':
+				// \r\r is probably a Mac file
+				if(lastWasCR)
+				{
+					CROnly = true;
+					CRLF = false;
+					separatorFound = true;
+				}
+				else
+					lastWasCR = true;
+				array[count++] = '\n';
+				endOffsets.add(count);
+				break;
+			case '\n':
+				separatorFound = true;
+				// the line was ended by the \r already
+				if(lastWasCR)
+				{
+					CROnly = false;
+					CRLF = true;
+					lastWasCR = false;
+				}
+				else
+				{
+					CROnly = false;
+					CRLF = false;
+					array[count++] = '\n';
+					endOffsets.add(count);
+				}
+				break;
+			default:
+				if(lastWasCR)
+				{
+					CROnly = true;
+					CRLF = false;
+					separatorFound = true;
+					lastWasCR = false;
+				}
+				if(count != i)
+					array[count] = ch;
+				count++;
+				break;
+			}
+		}
+		this.lastWasCR = lastWasCR;
+		text.count = count;
+	} //}}}
+
+	//{{{ grow() method
+	private void grow()
+	{
+		if(shared)
+			throw new IllegalStateException("Chunk too long");
+		int length = text.array.length;
+		if(length == MAX_CAPACITY)
+			throw new OutOfMemoryError("Text too long");
+		char[] arrayN = new char[(int)Math.min(
+			length + (long)length / 2 + CHUNK,MAX_CAPACITY)];
+		System.arraycopy(text.array,0,arrayN,0,text.count);
+		text.array = arrayN;
+		limit = arrayN.length;
+	} //}}}
+
+	//}}}
+}
@@ -47,6 +47,8 @@ import org.gjt.sp.jedit.MiscUtilities;
 import org.gjt.sp.jedit.TextUtilities;
 import org.gjt.sp.jedit.View;
 
+import org.gjt.sp.jedit.buffer.WordIndex;
+
 import org.gjt.sp.jedit.syntax.KeywordMap;
 
 import org.gjt.sp.jedit.textarea.JEditTextArea;
@@ -273,47 +275,32 @@ public class CompleteWord extends CompletionPopup
 			}
 		} //}}}
 
-		//{{{ loop through all lines of current buffer
-		for(int i = 0; i < buffer.getLineCount(); i++)
+		//{{{ look up the words of the buffer
+		WordIndex index = buffer.getWordIndex(noWordSep);
+
+		// the word being completed only completes itself if it is
+		// also found somewhere else
+		String current = null;
+		if(caret >= wordLen)
 		{
-			CharSequence line = buffer.getLineSegment(i);
-			int start = buffer.getLineStartOffset(i);
+			int start = caret - wordLen;
+			int line = buffer.getLineOfOffset(start);
+			int lineStart = buffer.getLineStartOffset(line);
+			current = completeWord(buffer.getLineSegment(line),
+				start - lineStart,noWordSep);
+		}
 
-			// check for match at start of line
+		for(String _word : index.getWords(word))
+		{
+			if(_word.equals(current) && index.getCount(_word) == 1)
+				continue;
 
-			if (StandardUtilities.startsWith(line, word) &&
-			    caret != start + word.length())
-			{
-				String _word = completeWord(line,0,noWordSep);
-				Completion comp = new Completion(_word,false);
+			Completion comp = new Completion(_word,false);
 
-				// remove duplicates
-				if(!completions.contains(comp))
-				{
-					completions.add(comp);
-				}
-			}
-
-			// check for match inside line
-			int len = line.length() - word.length();
-			for(int j = 0; j < len; j++)
+			// remove duplicates
+			if(!completions.contains(comp))
 			{
-				char c = line.charAt(j);
-				if(!Character.isLetterOrDigit(c) && noWordSep.indexOf(c) == -1)
-				{
-					if (StandardUtilities.regionMatches(line,j + 1,word,0,wordLen)
-						&& caret != start + j + word.length() + 1)
-					{
-						String _word = completeWord(line,j + 1,noWordSep);
-						Completion comp = new Completion(_word,false);
-
-						// remove duplicates
-						if(!completions.contains(comp))
-						{
-							completions.add(comp);
-						}
-					}
-				}
+				completions.add(comp);
 			}
 		} //}}}
 	} //}}}
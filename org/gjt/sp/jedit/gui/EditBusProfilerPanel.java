@@ -0,0 +1,242 @@
+/*
+ * EditBusProfilerPanel.java - Shows the EditBus profiler measures
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.gui;
+
+//{{{ Imports
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.swing.*;
+import javax.swing.table.AbstractTableModel;
+
+import org.gjt.sp.jedit.Buffer;
+import org.gjt.sp.jedit.EditBusProfiler;
+import org.gjt.sp.jedit.View;
+import org.gjt.sp.jedit.jEdit;
+import org.gjt.sp.util.Log;
+//}}}
+
+/**
+ * Dockable showing the time spent by each EditBus subscriber in each
+ * message type, as measured by the {@link EditBusProfiler}.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+@SuppressWarnings("serial")
+public class EditBusProfilerPanel extends JPanel implements ActionListener
+{
+	//{{{ EditBusProfilerPanel constructor
+	public EditBusProfilerPanel(View view)
+	{
+		super(new BorderLayout());
+		this.view = view;
+
+		Box toolBar = new Box(BoxLayout.X_AXIS);
+
+		record = new JCheckBox(jEdit.getProperty(
+			"editbus-profiler.record"));
+		record.setSelected(EditBusProfiler.isEnabled());
+		record.addActionListener(this);
+		toolBar.add(record);
+
+		toolBar.add(Box.createGlue());
+
+		reset = new JButton(jEdit.getProperty("editbus-profiler.reset"));
+		reset.addActionListener(this);
+		toolBar.add(reset);
+
+		export = new JButton(jEdit.getProperty("editbus-profiler.export"));
+		export.setToolTipText(jEdit.getProperty(
+			"editbus-profiler.export.tooltip"));
+		export.addActionListener(this);
+		toolBar.add(export);
+
+		add(BorderLayout.NORTH,toolBar);
+
+		model = new EntryTableModel();
+		JTable table = new JTable(model);
+		table.setAutoCreateRowSorter(true);
+		add(BorderLayout.CENTER,new JScrollPane(table));
+
+		timer = new Timer(REFRESH_DELAY,this);
+	} //}}}
+
+	//{{{ addNotify() method
+	@Override
+	public void addNotify()
+	{
+		super.addNotify();
+		model.refresh();
+		timer.start();
+	} //}}}
+
+	//{{{ removeNotify() method
+	@Override
+	public void removeNotify()
+	{
+		timer.stop();
+		super.removeNotify();
+	} //}}}
+
+	//{{{ actionPerformed() method
+	public void actionPerformed(ActionEvent evt)
+	{
+		Object source = evt.getSource();
+		if(source == record)
+			EditBusProfiler.setEnabled(record.isSelected());
+		else if(source == reset)
+			EditBusProfiler.reset();
+		else if(source == export)
+		{
+			exportCSV();
+			return;
+		}
+		model.refresh();
+	} //}}}
+
+	//{{{ Private members
+	/** Milliseconds between two updates of the table. */
+	private static final int REFRESH_DELAY = 1000;
+
+	private final View view;
+	private final JCheckBox record;
+	private final JButton reset;
+	private final JButton export;
+	private final EntryTableModel model;
+	private final Timer timer;
+
+	//{{{ exportCSV() method
+	/**
+	 * Opens the measures in a new buffer, from where they can be saved.
+	 */
+	private void exportCSV()
+	{
+		StringWriter out = new StringWriter();
+		try
+		{
+			EditBusProfiler.writeCSV(out);
+		}
+		catch(IOException e)
+		{
+			// can't happen with a StringWriter
+			Log.log(Log.ERROR,this,e);
+			return;
+		}
+
+		Buffer buffer = jEdit.newFile(view);
+		if(buffer != null)
+			buffer.insert(0,out.toString());
+	} //}}}
+
+	//}}}
+
+	//{{{ EntryTableModel class
+	private static class EntryTableModel extends AbstractTableModel
+	{
+		private static final String[] COLUMNS = { "message",
+			"subscriber", "count", "total", "mean", "p50", "p99",
+			"max" };
+
+		private List<EditBusProfiler.Entry> entries
+			= new ArrayList<EditBusProfiler.Entry>();
+
+		void refresh()
+		{
+			entries = EditBusProfiler.getEntries();
+			fireTableDataChanged();
+		}
+
+		public int getRowCount()
+		{
+			return entries.size();
+		}
+
+		public int getColumnCount()
+		{
+			return COLUMNS.length;
+		}
+
+		@Override
+		public String getColumnName(int column)
+		{
+			return jEdit.getProperty("editbus-profiler.column."
+				+ COLUMNS[column]);
+		}
+
+		@Override
+		public Class<?> getColumnClass(int column)
+		{
+			return column < 2 ? String.class : Long.class;
+		}
+
+		public Object getValueAt(int row, int column)
+		{
+			EditBusProfiler.Entry entry = entries.get(row);
+			switch(column)
+			{
+			case 0:
+				return shortName(entry.getMessageType());
+			case 1:
+				return shortName(entry.getSubscriber());
+			case 2:
+				return entry.getCount();
+			// times in microseconds
+			case 3:
+				return entry.getTotalTime() / 1000L;
+			case 4:
+				return entry.getMeanTime() / 1000L;
+			case 5:
+				return entry.getPercentile(0.5) / 1000L;
+			case 6:
+				return entry.getPercentile(0.99) / 1000L;
+			default:
+				return entry.getMaxTime() / 1000L;
+			}
+		}
+
+		/**
+		 * Strips the package from a class name, the CSV export has
+		 * the full names.
+		 */
+		private static String shortName(String name)
+		{
+			int dot = name.lastIndexOf('.');
+			if(dot != -1)
+			{
+				// keep the method name after the class name
+				int classDot = name.lastIndexOf('.',dot - 1);
+				if(Character.isLowerCase(name.charAt(dot + 1))
+					&& classDot != -1)
+					dot = classDot;
+				return name.substring(dot + 1);
+			}
+			return name;
+		}
+	} //}}}
+}
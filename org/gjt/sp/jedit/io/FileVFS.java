@@ -119,6 +119,18 @@ public class FileVFS extends VFS
 			: null;
 	} //}}}
 
+	//{{{ getMaxConcurrentRequests() method
+	/**
+	 * Local files are not limited by <code>vfs.maxConcurrentRequests</code>,
+	 * which is meant for remote filesystems, only by
+	 * <code>vfs.file.maxConcurrentRequests</code>.
+	 */
+	@Override
+	public int getMaxConcurrentRequests()
+	{
+		return jEdit.getIntegerProperty("vfs.file.maxConcurrentRequests",0);
+	} //}}}
+
 	//{{{ save() method
 	@Override
 	public boolean save(View view, Buffer buffer, String path)
@@ -27,6 +27,7 @@ import java.awt.Color;
 import java.awt.Component;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.Semaphore;
 
 import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
@@ -1102,6 +1103,53 @@ public abstract class VFS
 	{
 	} //}}}
 
+	//{{{ getMaxConcurrentRequests() method
+	/**
+	 * Returns how many I/O requests may access this filesystem at the
+	 * same time. The default implementation returns the
+	 * <code>vfs.<i>name</i>.maxConcurrentRequests</code> property, or
+	 * <code>vfs.maxConcurrentRequests</code> if that is not set, neither
+	 * being set by default.
+	 * Filesystems backed by a server that limits the number of
+	 * connections should override this method.
+	 * @return the request limit, or 0 if there is no limit
+	 * @since jEdit 5.1pre1
+	 */
+	public int getMaxConcurrentRequests()
+	{
+		return jEdit.getIntegerProperty("vfs." + name + ".maxConcurrentRequests",
+			jEdit.getIntegerProperty("vfs.maxConcurrentRequests",0));
+	} //}}}
+
+	//{{{ acquireRequestPermit() method
+	/**
+	 * Waits until fewer than {@link #getMaxConcurrentRequests()}
+	 * requests are accessing this filesystem. Every call must be
+	 * followed by a call to {@link #releaseRequestPermit()}, and
+	 * calls must not be nested. The limit is read the first time this
+	 * method is called.
+	 * @since jEdit 5.1pre1
+	 */
+	public void acquireRequestPermit()
+	{
+		Semaphore permits = getRequestPermits();
+		if(permits != null)
+			permits.acquireUninterruptibly();
+	} //}}}
+
+	//{{{ releaseRequestPermit() method
+	/**
+	 * Lets the next request waiting in {@link #acquireRequestPermit()}
+	 * access this filesystem.
+	 * @since jEdit 5.1pre1
+	 */
+	public void releaseRequestPermit()
+	{
+		Semaphore permits = getRequestPermits();
+		if(permits != null)
+			permits.release();
+	} //}}}
+
 	//{{{ getDefaultColorFor() method
 	/**
 	 * Returns color of the specified file name, by matching it against
@@ -1167,6 +1215,9 @@ public abstract class VFS
 	private String name;
 	private int caps;
 	private String[] extAttrs;
+	private final Object permitLock = new Object();
+	private volatile boolean permitsCreated;
+	private Semaphore requestPermits;
 	private static List<ColorEntry> colors;
 	private static final Object lock = new Object();
 
@@ -1188,6 +1239,26 @@ public abstract class VFS
 		});
 	} //}}}
 
+	//{{{ getRequestPermits() method
+	/** @return the request limiter, or null if there is no limit */
+	private Semaphore getRequestPermits()
+	{
+		if(!permitsCreated)
+		{
+			synchronized(permitLock)
+			{
+				if(!permitsCreated)
+				{
+					int max = getMaxConcurrentRequests();
+					if(max > 0)
+						requestPermits = new Semaphore(max,true);
+					permitsCreated = true;
+				}
+			}
+		}
+		return requestPermits;
+	} //}}}
+
 	//{{{ recursive listFiles() method
 	private void listFiles(Object session, Collection<String> stack,
 		List<String> files, String directory, VFSFileFilter filter, boolean recursive,
@@ -29,7 +29,10 @@ import java.awt.EventQueue;
 import java.awt.Frame;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 
 import org.gjt.sp.jedit.gui.ErrorListDialog;
 import org.gjt.sp.jedit.msg.VFSUpdate;
@@ -75,6 +78,21 @@ public class VFSManager
 		{
 			ioThreadPool.getThread(i).setContextClassLoader(classLoader);
 		}
+
+		// on a JVM with virtual threads, this gives every I/O request
+		// its own thread so that slow filesystems do not hold up each
+		// other. Requests then start at once, so their priorities
+		// don't apply and only VFS.getMaxConcurrentRequests() bounds
+		// them, which is why it is off by default
+		if(count != 0 && jEdit.getBooleanProperty("ioVirtualThreads"))
+		{
+			Executor executor = createVirtualThreadExecutor(classLoader);
+			if(executor != null)
+			{
+				Log.log(Log.MESSAGE,VFSManager.class,"Running I/O requests in virtual threads");
+				ioThreadPool.setExecutor(executor);
+			}
+		}
 	} //}}}
 
 	//{{{ start() method
@@ -238,6 +256,23 @@ public class VFSManager
 	public static void runInWorkThread(Runnable run)
 	{
 		ioThreadPool.addWorkRequest(run,false);
+	}
+
+	/**
+	 * Executes the specified runnable in one of the I/O threads, ahead
+	 * of any queued requests with a lower priority.
+	 * @param run The runnable
+	 * @param priority The priority, for example
+	 * {@link org.gjt.sp.util.WorkRequest#HIGH_PRIORITY}
+	 * @since jEdit 5.1pre1
+	 * @deprecated You should not use this method, this threadpool
+	 * links the AWT Threads and Work threads.
+	 * @see org.gjt.sp.util.ThreadUtilities#runInBackground(org.gjt.sp.util.Task)
+	 */
+	@Deprecated
+	public static void runInWorkThread(Runnable run, int priority)
+	{
+		ioThreadPool.addWorkRequest(run,false,priority);
 	} //}}}
 
 	//}}}
@@ -394,6 +429,54 @@ public class VFSManager
 	private static boolean errorDisplayerActive = false;
 	//}}}
 
+	//{{{ createVirtualThreadExecutor() method
+	/**
+	 * Looks up <code>Executors.newThreadPerTaskExecutor()</code> and
+	 * <code>Thread.ofVirtual()</code> by reflection, since they only
+	 * exist on Java 21 and later.
+	 * @return an executor running each task in a new virtual thread,
+	 * or null if the JVM does not have virtual threads
+	 */
+	private static Executor createVirtualThreadExecutor(final ClassLoader classLoader)
+	{
+		try
+		{
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name",String.class,long.class)
+				.invoke(builder,"jEdit I/O (virtual) #",1L);
+			final ThreadFactory virtualFactory = (ThreadFactory)builderClass
+				.getMethod("factory").invoke(builder);
+
+			ThreadFactory factory = new ThreadFactory()
+			{
+				public Thread newThread(Runnable run)
+				{
+					Thread thread = virtualFactory.newThread(run);
+					thread.setContextClassLoader(classLoader);
+					return thread;
+				}
+			};
+
+			Method newExecutor = java.util.concurrent.Executors.class
+				.getMethod("newThreadPerTaskExecutor",ThreadFactory.class);
+			return (Executor)newExecutor.invoke(null,factory);
+		}
+		catch(NoSuchMethodException e)
+		{
+			return null;
+		}
+		catch(ClassNotFoundException e)
+		{
+			return null;
+		}
+		catch(Exception e)
+		{
+			Log.log(Log.ERROR,VFSManager.class,e);
+			return null;
+		}
+	} //}}}
+
 	//{{{ Class initializer
 	static
 	{
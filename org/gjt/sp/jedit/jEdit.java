@@ -48,6 +48,7 @@ import org.gjt.sp.jedit.bufferio.BufferIORequest;
 import org.gjt.sp.jedit.buffer.KillRing;
 import org.gjt.sp.jedit.buffer.JEditBuffer;
 import org.gjt.sp.jedit.buffer.FoldHandler;
+import org.gjt.sp.jedit.buffer.UndoManager;
 import org.gjt.sp.jedit.msg.*;
 import org.gjt.sp.jedit.gui.*;
 import org.gjt.sp.jedit.help.HelpViewer;
@@ -1699,14 +1700,18 @@ public class jEdit
 			Buffer buffer = getBuffer(path);
 			if(buffer != null)
 				return buffer;
-
-			buffer = new Buffer(path,newFile,true,props);
-			buffer.setBooleanProperty(Buffer.ENCODING_AUTODETECT, true);
-			if(!buffer.load(view,false))
-				return null;
-			else
-				return buffer;
 		}
+
+		// temporary buffers are not added to the buffer list, so
+		// they can be loaded without holding the lock; this lets
+		// several threads, e.g. HyperSearch workers, read files
+		// at the same time
+		Buffer buffer = new Buffer(path,newFile,true,props);
+		buffer.setBooleanProperty(Buffer.ENCODING_AUTODETECT, true);
+		if(!buffer.load(view,false))
+			return null;
+		else
+			return buffer;
 	} //}}}
 
 	//{{{ commitTemporary() method
@@ -3441,6 +3446,8 @@ public class jEdit
 			jarCacheDirectory = MiscUtilities.constructPath(
 				settingsDirectory,"jars-cache");
 			new File(jarCacheDirectory).mkdirs();
+			UndoManager.setSpillDirectory(
+				new File(settingsDirectory,"undo"));
 		}
 
 		//if(jEditHome == null)
@@ -155,6 +155,13 @@ public class EditingOptionPane extends AbstractOptionPane
 		undoCount = new JTextField(jEdit.getProperty("buffer.undoCount"));
 		addComponent(jEdit.getProperty("options.editing.undoCount"),undoCount);
 
+		undoMemory = new JTextField(jEdit.getProperty("buffer.undoMemory"));
+		addComponent(jEdit.getProperty("options.editing.undoMemory"),undoMemory);
+
+		undoJournal = new JCheckBox(jEdit.getProperty("options.editing.undoJournal"));
+		undoJournal.setSelected(jEdit.getBooleanProperty("buffer.undoJournal"));
+		addComponent(undoJournal);
+
 		//{{{ Reset Undo Manager On Save
 		resetUndoOnSave = new JCheckBox(jEdit.getProperty("options.general.resetUndo"));
 		resetUndoOnSave.setSelected(jEdit.getBooleanProperty("resetUndoOnSave"));
@@ -201,6 +208,8 @@ public class EditingOptionPane extends AbstractOptionPane
 		jEdit.setProperty("buffer.defaultMode",
 			((Mode)defaultMode.getSelectedItem()).getName());
 		jEdit.setProperty("buffer.undoCount",undoCount.getText());
+		jEdit.setProperty("buffer.undoMemory",undoMemory.getText());
+		jEdit.setBooleanProperty("buffer.undoJournal",undoJournal.isSelected());
 		jEdit.setBooleanProperty("resetUndoOnSave", resetUndoOnSave.isSelected());
 
 		saveMode();
@@ -235,6 +244,8 @@ public class EditingOptionPane extends AbstractOptionPane
 	//{{{ Instance variables
 	private JComboBox defaultMode;
 	private JTextField undoCount;
+	private JTextField undoMemory;
+	private JCheckBox undoJournal;
 	private JCheckBox resetUndoOnSave;
 	private ModeProperties global;
 	private ModeProperties[] modeProps;
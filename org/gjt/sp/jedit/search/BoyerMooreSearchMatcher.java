@@ -203,6 +203,21 @@ public class BoyerMooreSearchMatcher extends SearchMatcher
 		return -1;
 	} //}}}
 
+	//{{{ getPattern() method
+	/**
+	 * Returns the search string, in upper case if the case is ignored.
+	 */
+	String getPattern()
+	{
+		return new String(pattern);
+	} //}}}
+
+	//{{{ isIgnoreCase() method
+	boolean isIgnoreCase()
+	{
+		return ignoreCase;
+	} //}}}
+
 	//{{{ toString() method
 	public String toString()
 	{
@@ -0,0 +1,673 @@
+/*
+ * DirectoryReplace.java - Replaces in local files without loading them
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.search;
+
+//{{{ Imports
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.swing.text.Segment;
+
+import org.gjt.sp.jedit.Buffer;
+import org.gjt.sp.jedit.BufferHistory;
+import org.gjt.sp.jedit.Mode;
+import org.gjt.sp.jedit.jEdit;
+import org.gjt.sp.jedit.buffer.Replacements;
+import org.gjt.sp.jedit.io.AutoDetection;
+import org.gjt.sp.jedit.io.EncodingServer;
+import org.gjt.sp.jedit.io.FileVFS;
+import org.gjt.sp.jedit.io.VFS;
+import org.gjt.sp.jedit.io.VFSManager;
+import org.gjt.sp.jedit.syntax.ModeProvider;
+import org.gjt.sp.util.IOUtilities;
+import org.gjt.sp.util.Log;
+import org.gjt.sp.util.ThreadUtilities;
+//}}}
+
+/**
+ * Replaces the occurrences of the search string in local files, without
+ * loading them into buffers.<p>
+ *
+ * Each file is decoded the way it would be when opened, with its line
+ * separators normalized, and if anything is replaced, written with the
+ * same encoding and line separator to a temporary file next to it, which
+ * is then renamed over it. The files are done in parallel by a pool of
+ * worker threads, but the temporary files are renamed one at a time on
+ * the event dispatch thread, where buffers are opened, after checking
+ * again that the file has not been opened meanwhile.<p>
+ *
+ * Files open in a buffer, not on the local file system, compressed, or
+ * that can't be decoded, are left to the caller, to be replaced in a
+ * buffer. BeanShell replacements can't be used, since they may need the
+ * view and the buffer.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class DirectoryReplace
+{
+	//{{{ DirectoryReplace constructor
+	/**
+	 * @param matcher The matcher, copied for each worker
+	 * @param smartCaseReplace See user's guide
+	 * @param dryRun If true, the occurrences are only counted
+	 */
+	DirectoryReplace(SearchMatcher matcher, boolean smartCaseReplace,
+		boolean dryRun)
+	{
+		this.matcher = matcher;
+		this.smartCaseReplace = smartCaseReplace;
+		this.dryRun = dryRun;
+		prefilter = FilePrefilter.create(matcher);
+	} //}}}
+
+	//{{{ replace() method
+	/**
+	 * Replaces in the given files, and waits for all of them to be done.
+	 * @param files The paths of the files
+	 * @param notDone Receives the paths of the files that must be
+	 * replaced in a buffer instead
+	 * @return What was done to each of the other files, in the order of
+	 * the file list
+	 */
+	List<FileResult> replace(String[] files, List<String> notDone)
+		throws InterruptedException
+	{
+		int threads = jEdit.getIntegerProperty("hypersearch.threads",0);
+		if(threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+		threads = Math.max(1,Math.min(threads,files.length));
+
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads,
+			threads,0L,TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			new WorkerFactory());
+
+		List<FileResult> results = new ArrayList<FileResult>();
+		// as in HyperSearch, the workers are kept a few files ahead
+		// of the results collected, so that the texts waiting to be
+		// collected don't pile up
+		int window = threads * 4;
+		LinkedList<Future<FileResult>> pending
+			= new LinkedList<Future<FileResult>>();
+		int submitted = 0;
+		try
+		{
+			for(int current = 0; current < files.length; current++)
+			{
+				while(submitted < files.length
+					&& submitted - current < window)
+				{
+					pending.add(pool.submit(new FileReplace(
+						files[submitted++])));
+				}
+
+				FileResult result;
+				try
+				{
+					result = pending.removeFirst().get();
+				}
+				catch(ExecutionException e)
+				{
+					Throwable cause = e.getCause();
+					if(cause instanceof RuntimeException)
+						throw (RuntimeException)cause;
+					throw (Error)cause;
+				}
+
+				if(result != null && result.temp != null)
+					result = rename(result);
+
+				if(result == null)
+					notDone.add(files[current]);
+				else
+					results.add(result);
+			}
+		}
+		finally
+		{
+			pool.shutdownNow();
+			// don't leave the temporary files of the files not
+			// renamed after an error
+			for(Future<FileResult> future : pending)
+			{
+				if(!future.isDone() || future.isCancelled())
+					continue;
+				try
+				{
+					FileResult result = future.get();
+					if(result != null && result.temp != null)
+						result.temp.delete();
+				}
+				catch(ExecutionException e)
+				{
+				}
+			}
+		}
+		return results;
+	} //}}}
+
+	//{{{ FileResult class
+	/**
+	 * What was done to a file.
+	 */
+	static class FileResult
+	{
+		//{{{ FileResult constructor
+		FileResult(String path, int count, Exception error)
+		{
+			this(path,count,error,null);
+		}
+
+		FileResult(String path, int count, Exception error, File temp)
+		{
+			this.path = path;
+			this.count = count;
+			this.error = error;
+			this.temp = temp;
+		} //}}}
+
+		/** The path of the file. */
+		final String path;
+		/** The number of occurrences replaced, or found. */
+		final int count;
+		/** Why the file could not be read or written, or null. */
+		final Exception error;
+		/** The replaced text, still to be renamed over the file. */
+		final File temp;
+	} //}}}
+
+	//{{{ Private members
+
+	/** Larger files are left to buffers, which can map them. */
+	private static final int MAX_FILE_SIZE = 64 << 20;
+
+	private final SearchMatcher matcher;
+	private final boolean smartCaseReplace;
+	private final boolean dryRun;
+	private final FilePrefilter prefilter;
+
+	/** Modes may be loaded by looking up their properties. */
+	private static final Object modeLock = new Object();
+
+	/** Each worker thread matches with its own copy of the matcher. */
+	private final ThreadLocal<SearchMatcher> workerMatcher
+		= new ThreadLocal<SearchMatcher>()
+	{
+		@Override
+		protected SearchMatcher initialValue()
+		{
+			return matcher.copy();
+		}
+	};
+
+	//{{{ replace() method
+	/**
+	 * Replaces in a file.
+	 * @return null if the file must be replaced in a buffer
+	 */
+	private FileResult replace(String path)
+	{
+		VFS vfs = VFSManager.getVFSForPath(path);
+		if(!(vfs instanceof FileVFS) || jEdit.getBuffer(path) != null)
+			return null;
+
+		File file = new File(path);
+		if(!file.isFile() || file.length() > MAX_FILE_SIZE)
+			return null;
+
+		byte[] bytes;
+		try
+		{
+			bytes = read(file);
+		}
+		catch(IOException e)
+		{
+			return new FileResult(path,0,e);
+		}
+
+		if(bytes.length >= 2 && (bytes[0] & 0xff) == 0x1f
+			&& (bytes[1] & 0xff) == 0x8b)
+			return null;
+
+		if(prefilter != null)
+		{
+			ByteBuffer buf = ByteBuffer.wrap(bytes);
+			if(FilePrefilter.isAsciiCompatible(buf,bytes.length)
+				&& !prefilter.contains(buf,bytes.length))
+				return new FileResult(path,0,null);
+		}
+
+		BufferHistory.Entry entry = BufferHistory.getEntry(path);
+		Text text = decode(path,bytes,entry);
+		if(text == null)
+			return null;
+
+		SearchMatcher matcher = workerMatcher.get();
+		matcher.setNoWordSep(getNoWordSep(file,text,entry));
+		Replacements replacements = new Replacements();
+		int count;
+		try
+		{
+			count = SearchAndReplace.findReplacements(null,null,
+				matcher,text.chars,0,true,true,
+				smartCaseReplace,replacements);
+		}
+		catch(Exception e)
+		{
+			return new FileResult(path,0,e);
+		}
+
+		File temp = null;
+		if(count != 0 && !dryRun)
+		{
+			try
+			{
+				temp = write(vfs,path,text,replacements);
+			}
+			catch(IOException e)
+			{
+				return new FileResult(path,0,e);
+			}
+		}
+		return new FileResult(path,count,null,temp);
+	} //}}}
+
+	//{{{ read() method
+	private static byte[] read(File file) throws IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(file,"r");
+		try
+		{
+			byte[] bytes = new byte[(int)in.length()];
+			in.readFully(bytes);
+			return bytes;
+		}
+		finally
+		{
+			IOUtilities.closeQuietly(in);
+		}
+	} //}}}
+
+	//{{{ decode() method
+	/**
+	 * Decodes a file with the encoding it would be opened with.
+	 * @return null if no encoding could decode it
+	 */
+	private static Text decode(String path, byte[] bytes,
+		BufferHistory.Entry entry)
+	{
+		List<String> encodings = new ArrayList<String>();
+		if(jEdit.getBooleanProperty("buffer."
+			+ Buffer.ENCODING_AUTODETECT))
+		{
+			try
+			{
+				String detected = AutoDetection.getDetectedEncoding(
+					AutoDetection.getMarkedStream(
+					new ByteArrayInputStream(bytes)));
+				if(detected != null)
+					encodings.add(detected);
+			}
+			catch(IOException e)
+			{
+				Log.log(Log.DEBUG,DirectoryReplace.class,e);
+			}
+		}
+		if(entry != null && entry.encoding != null)
+			encodings.add(entry.encoding);
+		encodings.add(jEdit.getProperty("buffer.encoding"));
+		String fallbackEncodings = jEdit.getProperty("fallbackEncodings");
+		if(fallbackEncodings != null && fallbackEncodings.length() > 0)
+		{
+			for(String encoding : fallbackEncodings.split("\\s+"))
+				encodings.add(encoding);
+		}
+
+		for(String encoding : encodings)
+		{
+			try
+			{
+				Reader in = EncodingServer.getTextReader(
+					new ByteArrayInputStream(bytes),encoding);
+				Text text = read(in,bytes.length);
+				text.encoding = encoding;
+				return text;
+			}
+			catch(CharConversionException e)
+			{
+			}
+			catch(CharacterCodingException e)
+			{
+			}
+			catch(UnsupportedEncodingException e)
+			{
+			}
+			catch(UnsupportedCharsetException e)
+			{
+			}
+			catch(IOException e)
+			{
+				Log.log(Log.ERROR,DirectoryReplace.class,e);
+				return null;
+			}
+			Log.log(Log.DEBUG,DirectoryReplace.class,path
+				+ " is not in " + encoding);
+		}
+		return null;
+	} //}}}
+
+	//{{{ read() method
+	/**
+	 * Reads a text, replacing its line separators with newlines, and
+	 * telling which one it uses the way a buffer does.
+	 */
+	private static Text read(Reader in, int length) throws IOException
+	{
+		char[] chars = new char[length + 1];
+		int count = 0;
+		boolean CRLF = false;
+		boolean CROnly = false;
+		boolean lastWasCR = false;
+		char[] buf = new char[8192];
+		int len;
+		while((len = in.read(buf,0,buf.length)) != -1)
+		{
+			if(count + len > chars.length)
+			{
+				char[] newChars = new char[Math.max(count + len,
+					chars.length * 2)];
+				System.arraycopy(chars,0,newChars,0,count);
+				chars = newChars;
+			}
+			for(int i = 0; i < len; i++)
+			{
+				char ch = buf[i];
+				if(ch == '\r')
+				{
+					if(lastWasCR)
+					{
+						CROnly = true;
+						CRLF = false;
+					}
+					else
+						lastWasCR = true;
+					chars[count++] = '\n';
+				}
+				else if(ch == '\n')
+				{
+					if(lastWasCR)
+					{
+						CROnly = false;
+						CRLF = true;
+						lastWasCR = false;
+					}
+					else
+					{
+						CROnly = false;
+						CRLF = false;
+						chars[count++] = '\n';
+					}
+				}
+				else
+				{
+					if(lastWasCR)
+					{
+						CROnly = true;
+						CRLF = false;
+						lastWasCR = false;
+					}
+					chars[count++] = ch;
+				}
+			}
+		}
+
+		Text text = new Text();
+		text.chars = new Segment(chars,0,count);
+		if(count == 0)
+		{
+			text.lineSeparator = jEdit.getProperty(
+				"buffer.lineSeparator",
+				System.getProperty("line.separator"));
+		}
+		else if(CRLF)
+			text.lineSeparator = "\r\n";
+		else if(CROnly)
+			text.lineSeparator = "\r";
+		else
+			text.lineSeparator = "\n";
+		return text;
+	} //}}}
+
+	//{{{ getNoWordSep() method
+	/**
+	 * Returns the characters the file's edit mode considers part of
+	 * words, as a buffer would.
+	 */
+	private static String getNoWordSep(File file, Text text,
+		BufferHistory.Entry entry)
+	{
+		Segment chars = text.chars;
+		int end = 0;
+		while(end < chars.count && chars.array[end] != '\n')
+			end++;
+		String firstLine = new String(chars.array,0,end);
+
+		Object noWordSep = null;
+		synchronized(modeLock)
+		{
+			Mode mode = null;
+			if(entry != null && entry.mode != null)
+				mode = ModeProvider.instance.getMode(entry.mode);
+			if(mode == null)
+			{
+				mode = ModeProvider.instance.getModeForFile(
+					file.getPath(),file.getName(),firstLine);
+			}
+			if(mode != null)
+				noWordSep = mode.getProperty("noWordSep");
+		}
+		if(noWordSep == null)
+			return jEdit.getProperty("buffer.noWordSep");
+		return noWordSep.toString();
+	} //}}}
+
+	//{{{ write() method
+	/**
+	 * Writes the replaced text to a temporary file, to be renamed over
+	 * the file.
+	 * @return The temporary file
+	 */
+	private static File write(VFS vfs, String path, Text text,
+		Replacements replacements) throws IOException
+	{
+		File temp = new File(vfs.getTwoStageSaveName(path));
+
+		Writer out = EncodingServer.getTextWriter(
+			new BufferedOutputStream(new FileOutputStream(temp)),
+			text.encoding);
+		boolean written = false;
+		try
+		{
+			char[] chars = text.chars.array;
+			int pos = 0;
+			for(int i = 0; i < replacements.size(); i++)
+			{
+				int offset = replacements.getOffset(i);
+				writeLines(out,chars,pos,offset,text.lineSeparator);
+				String subst = replacements.getText(i);
+				char[] substChars = subst.toCharArray();
+				writeLines(out,substChars,0,substChars.length,
+					text.lineSeparator);
+				pos = offset + replacements.getLength(i);
+			}
+			writeLines(out,chars,pos,text.chars.count,
+				text.lineSeparator);
+			out.close();
+			written = true;
+		}
+		finally
+		{
+			if(!written)
+			{
+				IOUtilities.closeQuietly(out);
+				temp.delete();
+			}
+		}
+		return temp;
+	} //}}}
+
+	//{{{ rename() method
+	/**
+	 * Renames the replaced text written by a worker over its file. This
+	 * is done on the event dispatch thread, where buffers are opened,
+	 * so that the file can't be opened between checking it is not and
+	 * renaming.
+	 * @return null if the file has been opened in a buffer meanwhile,
+	 * and must be replaced there instead
+	 */
+	private static FileResult rename(final FileResult result)
+	{
+		final FileResult[] renamed = new FileResult[1];
+		ThreadUtilities.runInDispatchThreadAndWait(new Runnable()
+		{
+			public void run()
+			{
+				if(jEdit.getBuffer(result.path) != null)
+				{
+					result.temp.delete();
+					return;
+				}
+
+				try
+				{
+					rename(result.path,result.temp);
+					renamed[0] = new FileResult(result.path,
+						result.count,null);
+				}
+				catch(IOException e)
+				{
+					result.temp.delete();
+					renamed[0] = new FileResult(result.path,0,e);
+				}
+			}
+		});
+		return renamed[0];
+	} //}}}
+
+	//{{{ rename() method
+	private static void rename(String path, File temp) throws IOException
+	{
+		VFS vfs = VFSManager.getVFSForPath(path);
+		File file = new File(path);
+		int permissions = FileVFS.getPermissions(path);
+
+		if(jEdit.getIntegerProperty("backups",1) > 0)
+			vfs._backup(null,path,null);
+		// renaming over a file replaces it at once on Unix, other
+		// systems need it removed first
+		if(!temp.renameTo(file) && !(file.delete()
+			&& temp.renameTo(file)))
+		{
+			throw new IOException(jEdit.getProperty(
+				"ioerror.rename-error",new String[] { path }));
+		}
+		// as when saving a buffer, the permissions are set once the
+		// file is in place, since chmod isn't waited for
+		FileVFS.setPermissions(path,permissions);
+		VFSManager.sendVFSUpdate(vfs,path,true);
+	} //}}}
+
+	//{{{ writeLines() method
+	private static void writeLines(Writer out, char[] chars, int start,
+		int end, String lineSeparator) throws IOException
+	{
+		if(lineSeparator.equals("\n"))
+		{
+			out.write(chars,start,end - start);
+			return;
+		}
+
+		int lineStart = start;
+		for(int i = start; i < end; i++)
+		{
+			if(chars[i] == '\n')
+			{
+				out.write(chars,lineStart,i - lineStart);
+				out.write(lineSeparator);
+				lineStart = i + 1;
+			}
+		}
+		out.write(chars,lineStart,end - lineStart);
+	} //}}}
+
+	//{{{ Text class
+	private static class Text
+	{
+		Segment chars;
+		String encoding;
+		String lineSeparator;
+	} //}}}
+
+	//{{{ FileReplace class
+	private class FileReplace implements Callable<FileResult>
+	{
+		private final String path;
+
+		FileReplace(String path)
+		{
+			this.path = path;
+		}
+
+		public FileResult call()
+		{
+			return replace(path);
+		}
+	} //}}}
+
+	//{{{ WorkerFactory class
+	private static class WorkerFactory implements ThreadFactory
+	{
+		private int count;
+
+		public synchronized Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r,"Replace worker #" + ++count);
+			thread.setDaemon(true);
+			return thread;
+		}
+	} //}}}
+
+	//}}}
+}
@@ -0,0 +1,325 @@
+/*
+ * FilePrefilter.java - Skips files that can not contain a match
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.search;
+
+//{{{ Imports
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+import org.gjt.sp.jedit.jEdit;
+import org.gjt.sp.jedit.io.FileVFS;
+import org.gjt.sp.jedit.io.VFSManager;
+import org.gjt.sp.util.Log;
+//}}}
+
+/**
+ * Looks for a literal part of the search string in the raw bytes of a
+ * local file, so that HyperSearch only loads files into a buffer when
+ * they may contain a match.<p>
+ *
+ * Only ASCII text is looked for, which is encoded the same way by all
+ * the ASCII compatible encodings; files looking like they are in
+ * another encoding, or compressed, are always loaded.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class FilePrefilter
+{
+	//{{{ create() method
+	/**
+	 * Returns a prefilter for the given matcher, or null if no literal
+	 * text can be found in the matches it finds.
+	 */
+	static FilePrefilter create(SearchMatcher matcher)
+	{
+		byte[] needle = getNeedle(matcher);
+		if(needle == null)
+			return null;
+		return new FilePrefilter(needle,isIgnoreCase(matcher));
+	} //}}}
+
+	//{{{ getNeedle() method
+	/**
+	 * Returns ASCII text found in every match of the given matcher, or
+	 * null if there is none.
+	 */
+	static byte[] getNeedle(SearchMatcher matcher)
+	{
+		String literal;
+		// line separators are normalized when loading a buffer
+		String unsafe = "\r\n";
+		if(matcher.getClass() == BoyerMooreSearchMatcher.class)
+		{
+			BoyerMooreSearchMatcher bm = (BoyerMooreSearchMatcher)matcher;
+			literal = bm.getPattern();
+			// Character.toUpperCase() maps the dotless i and the
+			// long s to I and S, so these can match non ASCII text
+			if(bm.isIgnoreCase())
+				unsafe = "\r\nIiSs";
+		}
+		else if(matcher.getClass() == PatternSearchMatcher.class)
+		{
+			PatternSearchMatcher pm = (PatternSearchMatcher)matcher;
+			if((pm.getFlags() & (Pattern.COMMENTS | Pattern.LITERAL
+				| Pattern.UNICODE_CASE | Pattern.CANON_EQ)) != 0)
+				return null;
+			literal = pm.getLiteralPrefix();
+		}
+		else
+			return null;
+
+		// the longest run of characters that can be looked for
+		int bestStart = 0;
+		int bestLength = 0;
+		int start = 0;
+		for(int i = 0; i <= literal.length(); i++)
+		{
+			if(i == literal.length() || !isSafe(literal.charAt(i),unsafe))
+			{
+				if(i - start > bestLength)
+				{
+					bestStart = start;
+					bestLength = i - start;
+				}
+				start = i + 1;
+			}
+		}
+		if(bestLength == 0)
+			return null;
+
+		Charset charset;
+		try
+		{
+			charset = Charset.forName(jEdit.getProperty("buffer.encoding"));
+		}
+		catch(Exception e)
+		{
+			return null;
+		}
+		// the ASCII bytes must also be how the default encoding,
+		// and hopefully the detected one, encodes the text
+		String needle = literal.substring(bestStart,bestStart + bestLength);
+		byte[] ascii = new byte[needle.length()];
+		for(int i = 0; i < ascii.length; i++)
+			ascii[i] = (byte)needle.charAt(i);
+		if(!Arrays.equals(ascii,needle.getBytes(charset)))
+			return null;
+		return ascii;
+	} //}}}
+
+	//{{{ isIgnoreCase() method
+	private static boolean isIgnoreCase(SearchMatcher matcher)
+	{
+		if(matcher instanceof BoyerMooreSearchMatcher)
+			return ((BoyerMooreSearchMatcher)matcher).isIgnoreCase();
+		else
+			return (((PatternSearchMatcher)matcher).getFlags()
+				& Pattern.CASE_INSENSITIVE) != 0;
+	} //}}}
+
+	//{{{ read() method
+	/**
+	 * Returns the first <code>length</code> bytes of the file, read in
+	 * an array reused by the calling thread, or mapped for large files.
+	 */
+	static ByteBuffer read(RandomAccessFile in, int length)
+		throws IOException
+	{
+		if(length <= MAX_READ_SIZE)
+		{
+			byte[] array = readBuffer.get();
+			if(array.length < length)
+			{
+				array = new byte[Math.max(length,array.length * 2)];
+				readBuffer.set(array);
+			}
+			in.readFully(array,0,length);
+			return ByteBuffer.wrap(array,0,length);
+		}
+		else
+		{
+			return in.getChannel().map(
+				FileChannel.MapMode.READ_ONLY,0,length);
+		}
+	} //}}}
+
+	//{{{ isAsciiCompatible() method
+	/**
+	 * Returns false for files starting with a byte order mark or a gzip
+	 * header, or containing null bytes, which text in UTF-16 and UTF-32
+	 * does.
+	 */
+	static boolean isAsciiCompatible(ByteBuffer bytes, int len)
+	{
+		if(len >= 2)
+		{
+			int b0 = bytes.get(0) & 0xff;
+			int b1 = bytes.get(1) & 0xff;
+			if(b0 == 0xfe && b1 == 0xff || b0 == 0xff && b1 == 0xfe
+				|| b0 == 0x1f && b1 == 0x8b)
+				return false;
+		}
+		int probe = Math.min(len,PROBE_SIZE);
+		for(int i = 0; i < probe; i++)
+		{
+			if(bytes.get(i) == 0)
+				return false;
+		}
+		return true;
+	} //}}}
+
+	//{{{ mayMatch() method
+	/**
+	 * Returns false if the file at the given path is known not to
+	 * contain a match, without loading it into a buffer. This method
+	 * is thread-safe.
+	 */
+	boolean mayMatch(String path)
+	{
+		if(!(VFSManager.getVFSForPath(path) instanceof FileVFS)
+			|| jEdit.getBuffer(path) != null)
+			return true;
+
+		File file = new File(path);
+		if(!file.isFile())
+			return true;
+		long length = file.length();
+		if(length < needle.length)
+			return false;
+
+		RandomAccessFile in = null;
+		try
+		{
+			in = new RandomAccessFile(file,"r");
+			if(length > Integer.MAX_VALUE)
+				return true;
+			int len = (int)length;
+			ByteBuffer bytes = read(in,len);
+			return !isAsciiCompatible(bytes,len) || contains(bytes,len);
+		}
+		catch(IOException e)
+		{
+			// let the buffer report it
+			Log.log(Log.DEBUG,this,e);
+			return true;
+		}
+		finally
+		{
+			if(in != null)
+			{
+				try
+				{
+					in.close();
+				}
+				catch(IOException e)
+				{
+				}
+			}
+		}
+	} //}}}
+
+	//{{{ contains() method
+	/**
+	 * Returns true if the first <code>len</code> bytes contain the
+	 * needle.
+	 */
+	boolean contains(ByteBuffer bytes, int len)
+	{
+		int last = needle.length - 1;
+		int pos = 0;
+		while(pos <= len - needle.length)
+		{
+			int i = last;
+			while(fold[bytes.get(pos + i) & 0xff] == needle[i])
+			{
+				if(i == 0)
+					return true;
+				i--;
+			}
+			pos += skip[fold[bytes.get(pos + last) & 0xff] & 0xff];
+		}
+		return false;
+	} //}}}
+
+	//{{{ Private members
+
+	/** Files up to this size are read, larger ones are mapped. */
+	private static final int MAX_READ_SIZE = 1 << 20;
+
+	/** Bytes checked for signs of a non ASCII compatible file. */
+	private static final int PROBE_SIZE = 4096;
+
+	private static final ThreadLocal<byte[]> readBuffer = new ThreadLocal<byte[]>()
+	{
+		@Override
+		protected byte[] initialValue()
+		{
+			return new byte[8192];
+		}
+	};
+
+	private final byte[] needle;
+	private final byte[] fold;
+	private final int[] skip;
+
+	//{{{ FilePrefilter constructor
+	private FilePrefilter(byte[] needle, boolean ignoreCase)
+	{
+		fold = new byte[256];
+		for(int i = 0; i < fold.length; i++)
+		{
+			if(ignoreCase && i >= 'a' && i <= 'z')
+				fold[i] = (byte)(i - 'a' + 'A');
+			else
+				fold[i] = (byte)i;
+		}
+
+		this.needle = new byte[needle.length];
+		for(int i = 0; i < needle.length; i++)
+			this.needle[i] = fold[needle[i] & 0xff];
+
+		// Horspool bad character shifts
+		skip = new int[256];
+		int last = needle.length - 1;
+		for(int i = 0; i < skip.length; i++)
+			skip[i] = needle.length;
+		for(int i = 0; i < last; i++)
+			skip[this.needle[i] & 0xff] = last - i;
+	} //}}}
+
+	//{{{ isSafe() method
+	private static boolean isSafe(char ch, String unsafe)
+	{
+		return (ch >= 0x20 && ch < 0x7f || ch == '\t')
+			&& unsafe.indexOf(ch) == -1;
+	} //}}}
+
+	//}}}
+}
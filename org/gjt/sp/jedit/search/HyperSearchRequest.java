@@ -23,12 +23,24 @@
 package org.gjt.sp.jedit.search;
 
 //{{{ Imports
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import javax.swing.tree.*;
 import javax.swing.*;
 
 import org.gjt.sp.jedit.textarea.Selection;
 import org.gjt.sp.jedit.textarea.JEditTextArea;
 import org.gjt.sp.jedit.Buffer;
+import org.gjt.sp.jedit.buffer.BufferSnapshot;
+import org.gjt.sp.jedit.buffer.JEditBuffer;
 import org.gjt.sp.jedit.GUIUtilities;
 import org.gjt.sp.jedit.jEdit;
 import org.gjt.sp.jedit.View;
@@ -87,6 +99,10 @@ class HyperSearchRequest extends Task
 				new String[] { SearchAndReplace.getSearchString() }) + ' ';
 		try
 		{
+			JEditTextArea textArea = jEdit.getActiveView().getTextArea();
+			caretBuffer = textArea.getBuffer();
+			caretLine = textArea.getCaretLine();
+
 			if(selection != null)
 			{
 				Buffer buffer = view.getBuffer();
@@ -95,51 +111,8 @@ class HyperSearchRequest extends Task
 			}
 			else
 			{
-				int current = 0;
-
-				long lastStatusTime = 0L;
-				int resultCount = 0;
-				boolean asked = false;
-				int maxResults = jEdit.getIntegerProperty("hypersearch.maxWarningResults");
-				for(int i = 0; i < files.length; i++)
-				{
-					if(jEdit.getBooleanProperty("hyperSearch-stopButton") ||
-						Thread.currentThread().isInterrupted())
-					{
-						jEdit.setTemporaryProperty("hyperSearch-stopButton", "false");
-						Log.log(Log.MESSAGE, this, "Search stopped by user action (stop button)");
-						break;
-					}
-					if (!asked && resultCount > maxResults && maxResults != 0)
-					{
-						Log.log(Log.DEBUG, this, "Search in progress, " + resultCount +
-									 " occurrences found, asking the user to stop");
-						asked = true;
-						int ret = GUIUtilities.confirm(view, "hypersearch.tooManyResults",
-									       new Object[]{resultCount},
-									       JOptionPane.YES_NO_OPTION,
-									       JOptionPane.QUESTION_MESSAGE);
-						if (ret == JOptionPane.YES_OPTION)
-						{
-							Log.log(Log.MESSAGE, this, "Search stopped by user action");
-							break;
-						}
-					}
-					String file = files[i];
-					current++;
-
-					long currentTime = System.currentTimeMillis();
-					if(currentTime - lastStatusTime > 250L)
-					{
-						setValue(current);
-						lastStatusTime = currentTime;
-						results.setSearchStatus(searchingCaption + file);
-					}
-
-					Buffer buffer = jEdit.openTemporary(null,null,file,false);
-					if(buffer != null)
-						resultCount += doHyperSearch(buffer, 0, buffer.getLength());
-				}
+				int resultCount = searchInFiles(fileset,files,
+					searchingCaption);
 				Log.log(Log.MESSAGE, this, resultCount +" OCCURENCES");
 			}
 		}
@@ -176,8 +149,174 @@ class HyperSearchRequest extends Task
 	private final Selection[] selection;
 	private final String searchString;
 	private DefaultMutableTreeNode selectNode;
+	private JEditBuffer caretBuffer;
+	private int caretLine;
+
+	/** Skips files without a match, null if it can't be used. */
+	private SearchIndex.Query indexQuery;
+	private FilePrefilter prefilter;
+
+	/** Set once the workers should stop searching. */
+	private volatile boolean cancelled;
+
+	/** Each worker thread matches with its own copy of the matcher. */
+	private final ThreadLocal<SearchMatcher> workerMatcher
+		= new ThreadLocal<SearchMatcher>()
+	{
+		@Override
+		protected SearchMatcher initialValue()
+		{
+			return matcher.copy();
+		}
+	};
 	//}}}
 
+	//{{{ searchInFiles() method
+	/**
+	 * Searches the files using a pool of worker threads, each of them
+	 * loading and matching one file at a time. The results are
+	 * collected, and shown, in the order of the file list.
+	 */
+	private int searchInFiles(SearchFileSet fileset, String[] files,
+		String searchingCaption) throws Exception
+	{
+		int threads = jEdit.getIntegerProperty("hypersearch.threads",0);
+		if(threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+		threads = Math.max(1,Math.min(threads,files.length));
+
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads,
+			threads,0L,TimeUnit.MILLISECONDS,
+			new LinkedBlockingQueue<Runnable>(),
+			new WorkerFactory());
+
+		indexQuery = SearchIndex.createQuery(fileset,matcher);
+		if(jEdit.getBooleanProperty("hypersearch.prefilter"))
+			prefilter = FilePrefilter.create(matcher);
+
+		// the workers are kept at most this many files ahead of
+		// the results already collected, which bounds the memory
+		// used by results waiting for a slow file
+		int window = threads * 4;
+		LinkedList<Future<FileResult>> pending
+			= new LinkedList<Future<FileResult>>();
+		List<DefaultMutableTreeNode> found
+			= new ArrayList<DefaultMutableTreeNode>();
+
+		int submitted = 0;
+		int current = 0;
+		long lastStatusTime = 0L;
+		int resultCount = 0;
+		boolean asked = false;
+		int maxResults = jEdit.getIntegerProperty("hypersearch.maxWarningResults");
+		try
+		{
+			while(current < files.length)
+			{
+				while(submitted < files.length
+					&& submitted - current < window)
+				{
+					pending.add(pool.submit(new FileSearch(
+						files[submitted++])));
+				}
+
+				if(jEdit.getBooleanProperty("hyperSearch-stopButton") ||
+					Thread.currentThread().isInterrupted())
+				{
+					jEdit.setTemporaryProperty("hyperSearch-stopButton", "false");
+					Log.log(Log.MESSAGE, this, "Search stopped by user action (stop button)");
+					break;
+				}
+				if (!asked && resultCount > maxResults && maxResults != 0)
+				{
+					Log.log(Log.DEBUG, this, "Search in progress, " + resultCount +
+								 " occurrences found, asking the user to stop");
+					asked = true;
+					found = publish(found);
+					int ret = GUIUtilities.confirm(view, "hypersearch.tooManyResults",
+								       new Object[]{resultCount},
+								       JOptionPane.YES_NO_OPTION,
+								       JOptionPane.QUESTION_MESSAGE);
+					if (ret == JOptionPane.YES_OPTION)
+					{
+						Log.log(Log.MESSAGE, this, "Search stopped by user action");
+						break;
+					}
+				}
+
+				FileResult result;
+				try
+				{
+					result = pending.removeFirst().get();
+				}
+				catch(InterruptedException e)
+				{
+					Log.log(Log.MESSAGE, this, "Search stopped by user action (stop button)");
+					break;
+				}
+				catch(ExecutionException e)
+				{
+					// a file that cannot be searched does not
+					// stop the search of the other files
+					Log.log(Log.ERROR,this,"Error searching "
+						+ files[current],e.getCause());
+					result = null;
+				}
+				current++;
+
+				if(result != null && result.count != 0)
+				{
+					resultCount += result.count;
+					found.add(result.node);
+					if(result.selectNode != null)
+						selectNode = result.selectNode;
+				}
+
+				long currentTime = System.currentTimeMillis();
+				if(currentTime - lastStatusTime > 250L)
+				{
+					setValue(current);
+					lastStatusTime = currentTime;
+					if(current < files.length)
+						results.setSearchStatus(searchingCaption + files[current]);
+					found = publish(found);
+				}
+			}
+		}
+		finally
+		{
+			cancelled = true;
+			pool.shutdown();
+			publish(found);
+			if(indexQuery != null)
+				indexQuery.done();
+		}
+
+		return resultCount;
+	} //}}}
+
+	//{{{ publish() method
+	/**
+	 * Hands the file nodes found since the last call to the results
+	 * window.
+	 * @return the list to collect the next file nodes in
+	 */
+	private List<DefaultMutableTreeNode> publish(
+		final List<DefaultMutableTreeNode> found)
+	{
+		if(found.isEmpty())
+			return found;
+
+		ThreadUtilities.runInDispatchThread(new Runnable()
+		{
+			public void run()
+			{
+				results.searchProgress(rootSearchNode,found);
+			}
+		});
+		return new ArrayList<DefaultMutableTreeNode>();
+	} //}}}
+
 	//{{{ searchInSelection() method
 	private int searchInSelection(Buffer buffer) throws Exception
 	{
@@ -224,13 +363,14 @@ class HyperSearchRequest extends Task
 	{
 		setCancellable(false);
 
-		HyperSearchFileNode hyperSearchFileNode = new HyperSearchFileNode(buffer.getPath());
-		DefaultMutableTreeNode bufferNode = new DefaultMutableTreeNode(hyperSearchFileNode);
-
-		int resultCount = doHyperSearch(buffer,start,end,bufferNode);
-		hyperSearchFileNode.setCount(resultCount);
+		FileResult result = new FileResult(buffer);
+		int resultCount = doHyperSearch(matcher,buffer,start,end,result);
 		if(resultCount != 0)
-			rootSearchNode.insert(bufferNode,rootSearchNode.getChildCount());
+		{
+			rootSearchNode.insert(result.node,rootSearchNode.getChildCount());
+			if(result.selectNode != null)
+				selectNode = result.selectNode;
+		}
 
 		setCancellable(true);
 
@@ -238,63 +378,168 @@ class HyperSearchRequest extends Task
 	} //}}}
 
 	//{{{ doHyperSearch() method
-	private int doHyperSearch(Buffer buffer, int start, int end,
-		DefaultMutableTreeNode bufferNode)
+	/**
+	 * Searches a snapshot of the buffer, so that it can be edited
+	 * meanwhile. The occurrences are then attached to the buffer, which
+	 * is searched again with the read lock held if it was edited.
+	 * @param end The end offset, or -1 to search to the end
+	 */
+	private int doHyperSearch(SearchMatcher matcher, Buffer buffer,
+		int start, int end, FileResult result)
 	{
 		String noWordSep = buffer.getStringProperty("noWordSep");
 		matcher.setNoWordSep(noWordSep);
-		int resultCount = 0;
-		JEditTextArea textArea = jEdit.getActiveView().getTextArea();
-		int caretLine = textArea.getBuffer() == buffer ? textArea.getCaretLine() : -1;
-		try
-		{
-			buffer.readLock();
-
-			boolean endOfLine = buffer.getLineEndOffset(
-				buffer.getLineOfOffset(end)) - 1 == end;
 
-			int offset = start;
+		BufferSnapshot snapshot = buffer.getSnapshot();
+		int resultCount = doHyperSearch(matcher,buffer,snapshot,
+			start,end,result);
 
-			HyperSearchResult lastResult = null;
-			for(int counter = 0; ; counter++)
+		if(!buffer.isTemporary())
+		{
+			try
 			{
-				boolean startOfLine = buffer.getLineStartOffset(
-					buffer.getLineOfOffset(offset)) == offset;
-
-				SearchMatcher.Match match = matcher.nextMatch(
-					buffer.getSegment(offset, end - offset),
-					startOfLine,endOfLine,counter == 0,
-					false);
-				if(match == null)
-					break;
+				buffer.readLock();
 
-				int newLine = buffer.getLineOfOffset(
-					offset + match.start);
-				if(lastResult == null || lastResult.line != newLine)
+				if(!snapshot.isCurrent())
 				{
-					lastResult = new HyperSearchResult(
-						buffer,newLine);
-					DefaultMutableTreeNode child = new DefaultMutableTreeNode(
-						lastResult, false);
-					if (lastResult.line == caretLine)
-						selectNode = child;
-					bufferNode.add(child);
+					result.node.removeAllChildren();
+					result.selectNode = null;
+					snapshot = buffer.getSnapshot();
+					resultCount = doHyperSearch(matcher,buffer,
+						snapshot,start,end,result);
 				}
 
-				lastResult.addOccur(offset + match.start,
-					offset + match.end);
-
-				offset += match.end;
-				resultCount++;
+				for(int i = 0; i < result.node.getChildCount(); i++)
+				{
+					DefaultMutableTreeNode child = (DefaultMutableTreeNode)
+						result.node.getChildAt(i);
+					((HyperSearchResult)child.getUserObject())
+						.bufferOpened(buffer);
+				}
+			}
+			finally
+			{
+				buffer.readUnlock();
 			}
 		}
-		finally
+
+		result.count = resultCount;
+		result.fileNode.setCount(resultCount);
+		return resultCount;
+	} //}}}
+
+	//{{{ doHyperSearch() method
+	private int doHyperSearch(SearchMatcher matcher, Buffer buffer,
+		BufferSnapshot snapshot, int start, int end, FileResult result)
+	{
+		if(end == -1)
+			end = snapshot.getLength();
+
+		int resultCount = 0;
+		int caretLine = caretBuffer == buffer ? this.caretLine : -1;
+
+		boolean endOfLine = snapshot.getLineEndOffset(
+			snapshot.getLineOfOffset(end)) - 1 == end;
+
+		int offset = start;
+
+		HyperSearchResult lastResult = null;
+		for(int counter = 0; !cancelled; counter++)
 		{
-			buffer.readUnlock();
+			boolean startOfLine = snapshot.getLineStartOffset(
+				snapshot.getLineOfOffset(offset)) == offset;
+
+			SearchMatcher.Match match = matcher.nextMatch(
+				snapshot.getSegment(offset, end - offset),
+				startOfLine,endOfLine,counter == 0,
+				false);
+			if(match == null)
+				break;
+
+			int newLine = snapshot.getLineOfOffset(
+				offset + match.start);
+			if(lastResult == null || lastResult.line != newLine)
+			{
+				lastResult = new HyperSearchResult(
+					buffer,snapshot,newLine);
+				DefaultMutableTreeNode child = new DefaultMutableTreeNode(
+					lastResult, false);
+				if (lastResult.line == caretLine)
+					result.selectNode = child;
+				result.node.add(child);
+			}
+
+			lastResult.addOccur(offset + match.start,
+				offset + match.end);
+
+			offset += match.end;
+			resultCount++;
 		}
 
 		return resultCount;
 	} //}}}
 
 	//}}}
+
+	//{{{ FileResult class
+	/** The occurrences found in one file. */
+	private static class FileResult
+	{
+		final HyperSearchFileNode fileNode;
+		final DefaultMutableTreeNode node;
+		DefaultMutableTreeNode selectNode;
+		int count;
+
+		FileResult(Buffer buffer)
+		{
+			fileNode = new HyperSearchFileNode(buffer.getPath());
+			node = new DefaultMutableTreeNode(fileNode);
+		}
+	} //}}}
+
+	//{{{ FileSearch class
+	/** Loads and searches one file, in a worker thread. */
+	private class FileSearch implements Callable<FileResult>
+	{
+		private final String path;
+
+		FileSearch(String path)
+		{
+			this.path = path;
+		}
+
+		public FileResult call()
+		{
+			if(cancelled)
+				return null;
+
+			// most files of a directory usually don't match,
+			// avoid loading them in a buffer
+			if(indexQuery != null && !indexQuery.mayMatch(path))
+				return null;
+			if(prefilter != null && !prefilter.mayMatch(path))
+				return null;
+
+			Buffer buffer = jEdit.openTemporary(null,null,path,false);
+			if(buffer == null || cancelled)
+				return null;
+
+			FileResult result = new FileResult(buffer);
+			doHyperSearch(workerMatcher.get(),buffer,0,-1,result);
+			return result;
+		}
+	} //}}}
+
+	//{{{ WorkerFactory class
+	private static class WorkerFactory implements ThreadFactory
+	{
+		private int count;
+
+		public synchronized Thread newThread(Runnable r)
+		{
+			Thread thread = new Thread(r,"HyperSearch worker #" + ++count);
+			thread.setDaemon(true);
+			return thread;
+		}
+	} //}}}
 }
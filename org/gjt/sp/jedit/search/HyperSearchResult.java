@@ -25,6 +25,7 @@ package org.gjt.sp.jedit.search;
 //{{{ Imports
 import javax.swing.text.Position;
 
+import org.gjt.sp.jedit.buffer.BufferSnapshot;
 import org.gjt.sp.jedit.msg.BufferUpdate;
 import org.gjt.sp.jedit.textarea.*;
 import org.gjt.sp.jedit.*;
@@ -97,16 +98,18 @@ public class HyperSearchResult implements HyperSearchNode
 	//{{{ Package-private members
 
 	//{{{ HyperSearchResult constructor
-	HyperSearchResult(Buffer buffer, int line)
+	/**
+	 * Creates a result for a line of a snapshot of the buffer. The
+	 * occurrences only track the edits of the buffer once
+	 * {@link #bufferOpened(Buffer)} is called.
+	 */
+	HyperSearchResult(Buffer buffer, BufferSnapshot snapshot, int line)
 	{
 		path = buffer.getPath();
 
-		if(!buffer.isTemporary())
-			bufferOpened(buffer);
-
 		this.line = line;
 
-		str = (line + 1) + ": " + buffer.getLineText(line)
+		str = (line + 1) + ": " + snapshot.getLineText(line)
 			.replace('\t',' ').trim();
 	} //}}}
 
@@ -254,6 +254,34 @@ public class HyperSearchResults extends JPanel implements DefaultFocusComponent
 		}
 	} //}}}
 
+	//{{{ searchProgress() method
+	/**
+	 * Shows the results found so far by a search that is still
+	 * running. Must be called from the event dispatch thread.
+	 * @param searchNode the result node of the running search
+	 * @param fileNodes the file nodes to append to it
+	 * @since jEdit 5.1pre1
+	 */
+	public void searchProgress(DefaultMutableTreeNode searchNode,
+		List<DefaultMutableTreeNode> fileNodes)
+	{
+		if(searchNode.getParent() != resultTreeRoot)
+		{
+			if(!multiStatus)
+				resultTreeRoot.removeAllChildren();
+			resultTreeRoot.add(searchNode);
+			resultTreeModel.reload(resultTreeRoot);
+		}
+
+		int[] indices = new int[fileNodes.size()];
+		for(int i = 0; i < indices.length; i++)
+		{
+			indices[i] = searchNode.getChildCount();
+			searchNode.add(fileNodes.get(i));
+		}
+		resultTreeModel.nodesWereInserted(searchNode,indices);
+	} //}}}
+
 	//{{{ searchDone() method
 	/**
 	 * @param searchNode the result node
@@ -278,15 +306,20 @@ public class HyperSearchResults extends JPanel implements DefaultFocusComponent
 			@Override
 			public void run()
 			{
-				if(!multiStatus)
+				// results streamed by searchProgress() are
+				// already shown
+				if(searchNode.getParent() != resultTreeRoot)
 				{
-					for(int i = 0; i < resultTreeRoot.getChildCount(); i++)
+					if(!multiStatus)
 					{
-						resultTreeRoot.remove(0);
+						for(int i = 0; i < resultTreeRoot.getChildCount(); i++)
+						{
+							resultTreeRoot.remove(0);
+						}
 					}
-				}
 
-				resultTreeRoot.add(searchNode);
+					resultTreeRoot.add(searchNode);
+				}
 				resultTreeModel.reload(resultTreeRoot);
 
 
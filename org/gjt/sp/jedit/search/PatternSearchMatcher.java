@@ -225,6 +225,80 @@ public class PatternSearchMatcher extends SearchMatcher
 		return returnValue;
 	} //}}}
 
+	//{{{ getFlags() method
+	/**
+	 * Returns the flags the expression is compiled with.
+	 */
+	int getFlags()
+	{
+		return re == null ? flags : re.flags();
+	} //}}}
+
+	//{{{ getLiteralPrefix() method
+	/**
+	 * Returns the literal text every match of the expression starts
+	 * with, or an empty string if it could not be determined. Only
+	 * simple prefixes are recognized, alternatives, classes, groups
+	 * and quantified characters end the prefix.
+	 */
+	String getLiteralPrefix()
+	{
+		int length = pattern.length();
+
+		// with an alternative at the top level there is no
+		// common prefix
+		int depth = 0;
+		boolean inClass = false;
+		for(int i = 0; i < length; i++)
+		{
+			char ch = pattern.charAt(i);
+			if(ch == '\\')
+				i++;
+			else if(inClass)
+			{
+				if(ch == ']')
+					inClass = false;
+			}
+			else if(ch == '[')
+				inClass = true;
+			else if(ch == '(')
+				depth++;
+			else if(ch == ')')
+				depth--;
+			else if(ch == '|' && depth == 0)
+				return "";
+		}
+
+		StringBuilder prefix = new StringBuilder();
+		int i = pattern.startsWith("^") ? 1 : 0;
+		while(i < length)
+		{
+			char ch = pattern.charAt(i);
+			int next;
+			if(ch == '\\')
+			{
+				// escaped letters and digits are classes,
+				// references or quotes
+				if(i + 1 == length || Character.isLetterOrDigit(
+					pattern.charAt(i + 1)))
+					break;
+				ch = pattern.charAt(i + 1);
+				next = i + 2;
+			}
+			else if(".[]{}()*+?^$|".indexOf(ch) != -1)
+				break;
+			else
+				next = i + 1;
+
+			if(next < length && "*+?{".indexOf(pattern.charAt(next)) != -1)
+				break;
+
+			prefix.append(ch);
+			i = next;
+		}
+		return prefix.toString();
+	} //}}}
+
 	//{{{ toString() method
 	@Override
 	public String toString()
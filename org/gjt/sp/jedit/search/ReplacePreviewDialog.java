@@ -0,0 +1,241 @@
+/*
+ * ReplacePreviewDialog.java - Shows the occurrences to replace in each file
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.search;
+
+//{{{ Imports
+import javax.swing.border.*;
+import javax.swing.table.*;
+import javax.swing.*;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.gjt.sp.jedit.gui.EnhancedDialog;
+import org.gjt.sp.jedit.*;
+//}}}
+
+/**
+ * Shows how many occurrences a dry run of
+ * {@link SearchAndReplace#replaceAllInFiles(View,boolean)} found in each
+ * file, and replaces them if asked to, showing then how many were
+ * replaced in each file.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+@SuppressWarnings("serial")
+class ReplacePreviewDialog extends EnhancedDialog
+{
+	//{{{ ReplacePreviewDialog constructor
+	ReplacePreviewDialog(Dialog parent, View view,
+		Map<String,Integer> counts)
+	{
+		super(parent,jEdit.getProperty("replace-preview.title"),true);
+
+		this.view = view;
+
+		JPanel content = new JPanel(new BorderLayout(12,12));
+		content.setBorder(new EmptyBorder(12,12,12,12));
+		setContentPane(content);
+
+		caption = new JLabel();
+		content.add(BorderLayout.NORTH,caption);
+
+		model = new CountsModel();
+		JTable table = new JTable(model);
+		table.getTableHeader().setReorderingAllowed(false);
+		table.getColumnModel().getColumn(0).setPreferredWidth(400);
+		table.getColumnModel().getColumn(1).setPreferredWidth(80);
+		table.setPreferredScrollableViewportSize(new Dimension(480,
+			table.getRowHeight() * 12));
+		content.add(BorderLayout.CENTER,new JScrollPane(table));
+
+		ActionHandler actionHandler = new ActionHandler();
+
+		Box buttons = new Box(BoxLayout.X_AXIS);
+		buttons.add(Box.createGlue());
+		buttons.add(replace = new JButton(jEdit.getProperty(
+			"replace-preview.replace")));
+		replace.setMnemonic(jEdit.getProperty(
+			"replace-preview.replace.mnemonic").charAt(0));
+		replace.addActionListener(actionHandler);
+		buttons.add(Box.createHorizontalStrut(6));
+		buttons.add(cancel = new JButton(jEdit.getProperty(
+			"common.cancel")));
+		cancel.addActionListener(actionHandler);
+		buttons.add(Box.createGlue());
+		content.add(BorderLayout.SOUTH,buttons);
+
+		setCounts(counts,"replace-preview.caption");
+
+		getRootPane().setDefaultButton(cancel);
+		pack();
+		setLocationRelativeTo(parent);
+		setVisible(true);
+	} //}}}
+
+	//{{{ isReplaced() method
+	/**
+	 * Returns if the occurrences have been replaced.
+	 */
+	boolean isReplaced()
+	{
+		return replaced;
+	} //}}}
+
+	//{{{ ok() method
+	@Override
+	public void ok()
+	{
+		if(replaced)
+			dispose();
+		else
+			replace();
+	} //}}}
+
+	//{{{ cancel() method
+	@Override
+	public void cancel()
+	{
+		dispose();
+	} //}}}
+
+	//{{{ Private members
+	private final View view;
+	private final JLabel caption;
+	private final CountsModel model;
+	private final JButton replace;
+	private final JButton cancel;
+	private boolean replaced;
+
+	//{{{ replace() method
+	private void replace()
+	{
+		setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+		Map<String,Integer> counts;
+		try
+		{
+			counts = SearchAndReplace.replaceAllInFiles(view,false);
+		}
+		finally
+		{
+			setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+		}
+		replaced = true;
+
+		setCounts(counts,"replace-preview.done");
+		view.getStatus().setMessageAndClear(jEdit.getProperty(
+			"view.status.replace-all",new Object[] {
+			Integer.valueOf(getTotal(counts)),
+			Integer.valueOf(counts.size()) }));
+
+		replace.setVisible(false);
+		cancel.setText(jEdit.getProperty("common.close"));
+	} //}}}
+
+	//{{{ setCounts() method
+	private void setCounts(Map<String,Integer> counts, String captionProp)
+	{
+		model.set(counts);
+		caption.setText(jEdit.getProperty(captionProp,new Object[] {
+			Integer.valueOf(getTotal(counts)),
+			Integer.valueOf(counts.size()) }));
+	} //}}}
+
+	//{{{ getTotal() method
+	private static int getTotal(Map<String,Integer> counts)
+	{
+		int total = 0;
+		for(int count : counts.values())
+			total += count;
+		return total;
+	} //}}}
+
+	//}}}
+
+	//{{{ CountsModel class
+	private static class CountsModel extends AbstractTableModel
+	{
+		private final List<String> paths = new ArrayList<String>();
+		private final List<Integer> counts = new ArrayList<Integer>();
+
+		void set(Map<String,Integer> counts)
+		{
+			paths.clear();
+			this.counts.clear();
+			for(Map.Entry<String,Integer> entry : counts.entrySet())
+			{
+				paths.add(entry.getKey());
+				this.counts.add(entry.getValue());
+			}
+			fireTableDataChanged();
+		}
+
+		public int getRowCount()
+		{
+			return paths.size();
+		}
+
+		public int getColumnCount()
+		{
+			return 2;
+		}
+
+		public Object getValueAt(int row, int col)
+		{
+			if(col == 0)
+				return paths.get(row);
+			else
+				return counts.get(row);
+		}
+
+		@Override
+		public Class<?> getColumnClass(int col)
+		{
+			return col == 0 ? String.class : Integer.class;
+		}
+
+		@Override
+		public String getColumnName(int col)
+		{
+			return jEdit.getProperty(col == 0
+				? "replace-preview.file"
+				: "replace-preview.count");
+		}
+	} //}}}
+
+	//{{{ ActionHandler class
+	private class ActionHandler implements ActionListener
+	{
+		public void actionPerformed(ActionEvent evt)
+		{
+			if(evt.getSource() == replace)
+				replace();
+			else
+				dispose();
+		}
+	} //}}}
+}
@@ -26,10 +26,16 @@ package org.gjt.sp.jedit.search;
 //{{{ Imports
 import org.gjt.sp.jedit.bsh.*;
 import java.awt.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.regex.Pattern;
 import javax.swing.JOptionPane;
 import org.gjt.sp.jedit.*;
 import org.gjt.sp.jedit.buffer.JEditBuffer;
+import org.gjt.sp.jedit.buffer.Replacements;
 import org.gjt.sp.jedit.gui.TextAreaDialog;
 import org.gjt.sp.jedit.io.VFSManager;
 import org.gjt.sp.jedit.msg.PositionChanging;
@@ -883,6 +889,7 @@ loop:			for(;;)
 
 		int fileCount = 0;
 		int occurCount = 0;
+		SearchIndex.Query indexQuery = null;
 		try
 		{
 			SearchMatcher matcher = getSearchMatcher();
@@ -891,9 +898,34 @@ loop:			for(;;)
 
 			initReplace();
 
-			String path = fileset.getFirstFile(view);
+			String path;
+			if(dontOpenChangedFiles
+				&& fileset instanceof DirectoryListSet)
+			{
+				// the changed files are not opened, so they
+				// don't need to be loaded into buffers
+				Map<String,Integer> counts
+					= new LinkedHashMap<String,Integer>();
+				replaceAllInFiles(view,comp,matcher,
+					smartCaseReplace,false,counts);
+				fileCount = counts.size();
+				for(int count : counts.values())
+					occurCount += count;
+				path = null;
+			}
+			else
+			{
+				indexQuery = SearchIndex.createQuery(fileset,matcher);
+				path = fileset.getFirstFile(view);
+			}
 loop:			while(path != null)
 			{
+				if(indexQuery != null && !indexQuery.mayMatch(path))
+				{
+					path = fileset.getNextFile(view,path);
+					continue loop;
+				}
+
 				Buffer buffer = jEdit.openTemporary(
 					view,null,path,false);
 
@@ -955,6 +987,8 @@ loop:			while(path != null)
 		}
 		finally
 		{
+			if(indexQuery != null)
+				indexQuery.done();
 			view.hideWaitCursor();
 		}
 
@@ -972,6 +1006,53 @@ loop:			while(path != null)
 		return (fileCount != 0);
 	} //}}}
 
+	//{{{ replaceAllInFiles() method
+	/**
+	 * Replaces all occurrences of the search string with the replacement
+	 * string in the files of the current file set, without opening them.
+	 * Local files that are not open are replaced by several threads at
+	 * once, without loading them into buffers; the other files are
+	 * replaced in a buffer, which is then saved.
+	 * @param view The view
+	 * @param dryRun If true, the occurrences are only counted, and no
+	 * file is changed
+	 * @return The number of occurrences in each file having some
+	 * @since jEdit 5.1pre1
+	 */
+	public static Map<String,Integer> replaceAllInFiles(View view,
+		boolean dryRun)
+	{
+		Component comp = SearchDialog.getSearchDialog(view);
+		if(comp == null)
+			comp = view;
+
+		Map<String,Integer> counts = new LinkedHashMap<String,Integer>();
+		if(!dryRun)
+			record(view,"replaceAllInFiles(view,false)",true,true);
+
+		view.showWaitCursor();
+		try
+		{
+			SearchMatcher matcher = getSearchMatcher();
+			if(matcher == null)
+				return counts;
+
+			initReplace();
+
+			replaceAllInFiles(view,comp,matcher,getSmartCaseReplace(),
+				dryRun,counts);
+		}
+		catch(Exception e)
+		{
+			handleError(comp,e);
+		}
+		finally
+		{
+			view.hideWaitCursor();
+		}
+		return counts;
+	} //}}}
+
 	//}}}
 
 	//{{{ escapeRegexp() method
@@ -1129,6 +1210,103 @@ loop:			while(path != null)
 		}
 	} //}}}
 
+	//{{{ replaceAllInFiles() method
+	private static void replaceAllInFiles(View view, Component comp,
+		SearchMatcher matcher, boolean smartCaseReplace, boolean dryRun,
+		Map<String,Integer> counts) throws Exception
+	{
+		SearchIndex.Query indexQuery = SearchIndex.createQuery(
+			fileset,matcher);
+		try
+		{
+			List<String> files = new ArrayList<String>();
+			for(String path : fileset.getFiles(view))
+			{
+				if(indexQuery == null || indexQuery.mayMatch(path))
+					files.add(path);
+			}
+
+			List<String> bufferFiles;
+			if(replaceMethod == null)
+			{
+				bufferFiles = new ArrayList<String>();
+				DirectoryReplace replace = new DirectoryReplace(
+					matcher,smartCaseReplace,dryRun);
+				for(DirectoryReplace.FileResult result : replace.replace(
+					files.toArray(new String[files.size()]),
+					bufferFiles))
+				{
+					if(result.error instanceof IOException)
+					{
+						VFSManager.error((IOException)result.error,
+							result.path,comp);
+					}
+					else if(result.error != null)
+					{
+						Log.log(Log.ERROR,SearchAndReplace.class,
+							result.error);
+						VFSManager.error(comp,result.path,"ioerror",
+							new String[] { result.error.toString() });
+					}
+					else if(result.count != 0)
+						counts.put(result.path,result.count);
+				}
+			}
+			else
+				bufferFiles = files;
+
+			for(String path : bufferFiles)
+			{
+				Buffer buffer = jEdit.openTemporary(
+					view,null,path,false);
+				if(buffer == null)
+					continue;
+
+				// Wait for buffer to finish loading
+				if(buffer.isPerformingIO())
+					VFSManager.waitForRequests();
+
+				int count;
+				if(dryRun)
+				{
+					matcher.setNoWordSep(buffer.getStringProperty(
+						"noWordSep"));
+					count = findReplacements(view,buffer,matcher,
+						buffer.getSegment(0,buffer.getLength()),0,
+						true,true,smartCaseReplace,
+						new Replacements());
+				}
+				else
+				{
+					if(!buffer.isEditable())
+						continue;
+
+					try
+					{
+						buffer.beginCompoundEdit();
+						count = _replace(view,buffer,matcher,
+							0,buffer.getLength(),
+							smartCaseReplace);
+					}
+					finally
+					{
+						buffer.endCompoundEdit();
+					}
+					if(count != 0)
+						buffer.save(null,null);
+				}
+
+				if(count != 0)
+					counts.put(path,count);
+			}
+		}
+		finally
+		{
+			if(indexQuery != null)
+				indexQuery.done();
+		}
+	} //}}}
+
 	//{{{ replaceInSelection() method
 	private static int replaceInSelection(View view, TextArea textArea,
 		Buffer buffer, SearchMatcher matcher, boolean smartCaseReplace,
@@ -1196,48 +1374,83 @@ loop:			while(path != null)
 	{
 		String noWordSep = buffer.getStringProperty("noWordSep");
 		matcher.setNoWordSep(noWordSep);
-		int occurCount = 0;
 
+		boolean startOfLine = (buffer.getLineStartOffset(
+			buffer.getLineOfOffset(start)) == start);
 		boolean endOfLine = (buffer.getLineEndOffset(
 			buffer.getLineOfOffset(end)) - 1 == end);
 
-		int offset = start;
+		// the matches are all found in the text as it is, then
+		// replaced at once
+		Replacements replacements = new Replacements();
+		int occurCount = findReplacements(view,buffer,matcher,
+			buffer.getSegment(start,end - start),start,
+			startOfLine,endOfLine,smartCaseReplace,replacements);
+		buffer.replace(replacements);
+		return occurCount;
+	} //}}}
+
+	//{{{ findReplacements() method
+	/**
+	 * Finds the occurrences of the search string in a text, and what
+	 * they are replaced with. Unless a BeanShell snippet is used for
+	 * the replacement, the view and the buffer may be null, and this
+	 * method may be called from several threads at once, each with
+	 * its own matcher.<p>
+	 *
+	 * Nothing is replaced until all the occurrences are found, so a
+	 * BeanShell snippet is run for each of them on the text as it was
+	 * before the replace; if it reads the buffer, it does not see the
+	 * earlier occurrences replaced.
+	 * @param text The text to search in
+	 * @param start The offset added to the ones of the replacements
+	 * @param startOfLine True if the text starts a line
+	 * @param endOfLine True if the text ends a line
+	 * @param replacements Receives the replacements
+	 * @return The number of replacements found
+	 */
+	static int findReplacements(View view, JEditBuffer buffer,
+		SearchMatcher matcher, CharSequence text, int start,
+		boolean startOfLine, boolean endOfLine,
+		boolean smartCaseReplace, Replacements replacements)
+		throws Exception
+	{
+		int occurCount = 0;
+		int offset = 0;
 loop:		for(int counter = 0; ; counter++)
 		{
-			boolean startOfLine = (buffer.getLineStartOffset(
-				buffer.getLineOfOffset(offset)) == offset);
+			if(offset != 0)
+				startOfLine = (text.charAt(offset - 1) == '\n');
 
-			CharSequence text = buffer.getSegment(offset,end - offset);
 			SearchMatcher.Match occur = matcher.nextMatch(
-				text,startOfLine,endOfLine,counter == 0,false);
+				text.subSequence(offset,text.length()),
+				startOfLine,endOfLine,counter == 0,false);
 			if(occur == null)
 				break loop;
 
 			CharSequence found = text.subSequence(
-				occur.start, occur.end);
+				offset + occur.start, offset + occur.end);
 
-			int length = replaceOne(view,buffer,occur,offset,
+			String subst = replaceOne(view,buffer,occur,
 				found,smartCaseReplace);
-			if(length == -1)
-				offset += occur.end;
-			else
+			if(subst != null)
 			{
-				offset += occur.start + length;
-				end += (length - found.length());
+				replacements.add(start + offset + occur.start,
+					found.length(),subst);
 				occurCount++;
 			}
+			offset += occur.end;
 		}
-
 		return occurCount;
 	} //}}}
 
 	//{{{ replaceOne() method
 	/**
-	 * Replace one occurrence of the search string with the
-	 * replacement string.
+	 * Returns what an occurrence of the search string is replaced
+	 * with, or null if it is to be left alone.
 	 */
-	private static int replaceOne(View view, JEditBuffer buffer,
-		SearchMatcher.Match occur, int offset, CharSequence found,
+	private static String replaceOne(View view, JEditBuffer buffer,
+		SearchMatcher.Match occur, CharSequence found,
 		boolean smartCaseReplace)
 		throws Exception
 	{
@@ -1253,18 +1466,7 @@ loop:		for(int counter = 0; ; counter++)
 				subst = TextUtilities.toTitleCase(subst);
 		}
 
-		if(subst != null)
-		{
-			int start = offset + occur.start;
-			int end = offset + occur.end;
-
-			if (end - start > 0)
-				buffer.remove(start,end - start);
-			buffer.insert(start,subst);
-			return subst.length();
-		}
-		else
-			return -1;
+		return subst;
 	} //}}}
 
 	//{{{ replaceOne() method
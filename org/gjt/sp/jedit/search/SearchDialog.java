@@ -299,7 +299,7 @@ public class SearchDialog extends EnhancedDialog
 
 	// buttons
 	private JButton findBtn, replaceBtn, replaceAndFindBtn, replaceAllBtn,
-		closeBtn;
+		previewBtn, closeBtn;
 
 	private boolean saving;
 	//}}}
@@ -661,7 +661,7 @@ public class SearchDialog extends EnhancedDialog
 
 		box.add(Box.createVerticalStrut(12));
 
-		JPanel grid = new JPanel(new GridLayout(5,1,0,12));
+		JPanel grid = new JPanel(new GridLayout(6,1,0,12));
 
 		findBtn = new JButton(jEdit.getProperty("search.findBtn"));
 		/* findBtn.setMnemonic(jEdit.getProperty("search.findBtn.mnemonic")
@@ -688,6 +688,13 @@ public class SearchDialog extends EnhancedDialog
 		grid.add(replaceAllBtn);
 		replaceAllBtn.addActionListener(actionHandler);
 
+		previewBtn = new JButton(jEdit.getProperty("search.previewBtn"));
+		previewBtn.setMnemonic(jEdit.getProperty("search.previewBtn.mnemonic")
+			.charAt(0));
+		previewBtn.setToolTipText(jEdit.getProperty("search.previewBtn.tooltip"));
+		grid.add(previewBtn);
+		previewBtn.addActionListener(actionHandler);
+
 		closeBtn = new JButton(jEdit.getProperty("common.close"));
 		grid.add(closeBtn);
 		closeBtn.addActionListener(actionHandler);
@@ -732,6 +739,7 @@ public class SearchDialog extends EnhancedDialog
 			&& !searchSelection.isSelected());
 		replaceAndFindBtn.setEnabled(!hyperSearch.isSelected()
 			&& !searchSelection.isSelected());
+		previewBtn.setEnabled(searchDirs);
 	} //}}}
 
 	//{{{ save() method
@@ -1098,6 +1106,37 @@ public class SearchDialog extends EnhancedDialog
 
 				setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
 			}
+			else if(source == previewBtn)
+			{
+				setCursor(Cursor.getPredefinedCursor(Cursor.WAIT_CURSOR));
+
+				Map<String,Integer> counts = null;
+				if(save(false))
+				{
+					counts = SearchAndReplace.replaceAllInFiles(
+						view,true);
+				}
+
+				setCursor(Cursor.getPredefinedCursor(Cursor.DEFAULT_CURSOR));
+
+				if(counts == null || counts.isEmpty())
+				{
+					if(counts != null)
+					{
+						view.getStatus().setMessageAndClear(
+							jEdit.getProperty(
+							"view.status.search-not-found"));
+					}
+					getToolkit().beep();
+					return;
+				}
+
+				if(new ReplacePreviewDialog(SearchDialog.this,
+					view,counts).isReplaced())
+				{
+					closeOrKeepDialog();
+				}
+			}
 		}
 	} //}}}
 
@@ -0,0 +1,522 @@
+/*
+ * SearchIndex.java - Persistent trigram index of a directory
+ * :tabSize=4:indentSize=4:noTabs=false:
+ * :folding=explicit:collapseFolds=1:
+ *
+ * Copyright (C) 2012 jEdit contributors
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation; either version 2
+ * of the License, or any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+
+package org.gjt.sp.jedit.search;
+
+//{{{ Imports
+import java.io.*;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.gjt.sp.jedit.EBComponent;
+import org.gjt.sp.jedit.EBMessage;
+import org.gjt.sp.jedit.EditBus;
+import org.gjt.sp.jedit.MiscUtilities;
+import org.gjt.sp.jedit.jEdit;
+import org.gjt.sp.jedit.io.FileVFS;
+import org.gjt.sp.jedit.io.VFSManager;
+import org.gjt.sp.jedit.msg.VFSUpdate;
+import org.gjt.sp.util.IOUtilities;
+import org.gjt.sp.util.Log;
+import org.gjt.sp.util.Task;
+import org.gjt.sp.util.ThreadUtilities;
+//}}}
+
+/**
+ * An index of the trigrams found in the files of a directory, used to
+ * skip the files that can't match without opening them.<p>
+ *
+ * For each file, the index keeps its modification time, its length,
+ * and a Bloom filter of the trigrams of its bytes, ASCII letters being
+ * folded to lower case. A file whose time or length changed, or that
+ * a {@link VFSUpdate} was sent for, is indexed again the next time it
+ * is looked up. A file rewritten with the same length within the
+ * granularity of file modification times would look unchanged, so a
+ * file modified less than two seconds before it was read
+ * is indexed again at each lookup, and not saved, until its entry can
+ * be trusted. Indexes are saved in the <code>search-index</code>
+ * directory of the settings directory, one per search root.
+ *
+ * @version $Id$
+ * @since jEdit 5.1pre1
+ */
+class SearchIndex
+{
+	//{{{ createQuery() method
+	/**
+	 * Returns a query looking up the files of the file set that may
+	 * contain matches of the matcher, or null if the index can not be
+	 * used for this search.
+	 */
+	static Query createQuery(SearchFileSet fileset, SearchMatcher matcher)
+	{
+		if(!(fileset instanceof DirectoryListSet)
+			|| !jEdit.getBooleanProperty("search.index"))
+			return null;
+
+		byte[] needle = FilePrefilter.getNeedle(matcher);
+		if(needle == null || needle.length < 3)
+			return null;
+
+		SearchIndex index = getIndex(
+			((DirectoryListSet)fileset).getDirectory());
+		if(index == null)
+			return null;
+
+		int[] trigrams = new int[needle.length - 2];
+		for(int i = 0; i < trigrams.length; i++)
+		{
+			trigrams[i] = trigram(needle[i],needle[i + 1],
+				needle[i + 2]);
+		}
+		return new Query(index,trigrams);
+	} //}}}
+
+	//{{{ Query class
+	/**
+	 * Looks up the files that may contain a given text.
+	 */
+	static class Query
+	{
+		//{{{ mayMatch() method
+		/**
+		 * Returns false if the file is known not to contain a match.
+		 * The file is indexed if needed. This method is thread-safe.
+		 */
+		boolean mayMatch(String path)
+		{
+			// the index knows about the file on disk, not about
+			// the changes made in an open buffer
+			if(jEdit.getBuffer(path) != null)
+				return true;
+			return index.mayMatch(path,trigrams);
+		} //}}}
+
+		//{{{ done() method
+		/**
+		 * Saves the index in the background, if files were indexed
+		 * by this query.
+		 */
+		void done()
+		{
+			if(!index.dirty)
+				return;
+
+			ThreadUtilities.runInBackground(new Task()
+			{
+				@Override
+				public void _run()
+				{
+					setLabel(jEdit.getProperty("search-index.saving",
+						new Object[] { index.root }));
+					index.save();
+				}
+			});
+		} //}}}
+
+		private final SearchIndex index;
+		private final int[] trigrams;
+
+		Query(SearchIndex index, int[] trigrams)
+		{
+			this.index = index;
+			this.trigrams = trigrams;
+		}
+	} //}}}
+
+	//{{{ Private members
+
+	private static final int MAGIC = 0x6a454958;
+	private static final int VERSION = 1;
+
+	/**
+	 * Coarsest file modification time resolution in common use, that
+	 * of FAT file systems, in milliseconds.
+	 */
+	private static final long MTIME_GRANULARITY = 2000L;
+
+	/** Larger files are not indexed, and always looked at. */
+	private static final long MAX_INDEXED_SIZE = 16 << 20;
+
+	/** Bloom filter bits per distinct trigram. */
+	private static final int BITS_PER_TRIGRAM = 4;
+
+	/** The loaded indexes, by search root. */
+	private static final Map<String,SoftReference<SearchIndex>> indexes
+		= new HashMap<String,SoftReference<SearchIndex>>();
+	private static EBComponent updateHandler;
+
+	/** Trigrams seen in the file being indexed, one bit each. */
+	private static final ThreadLocal<long[]> seenTrigrams = new ThreadLocal<long[]>()
+	{
+		@Override
+		protected long[] initialValue()
+		{
+			return new long[1 << 18];
+		}
+	};
+
+	private final String root;
+	private final File file;
+	private final Map<String,Entry> entries
+		= new ConcurrentHashMap<String,Entry>();
+	private volatile boolean dirty;
+
+	//{{{ SearchIndex constructor
+	private SearchIndex(String root, File file)
+	{
+		this.root = root;
+		this.file = file;
+	} //}}}
+
+	//{{{ getIndex() method
+	private static SearchIndex getIndex(String root)
+	{
+		String settings = jEdit.getSettingsDirectory();
+		if(settings == null
+			|| !(VFSManager.getVFSForPath(root) instanceof FileVFS))
+			return null;
+
+		synchronized(indexes)
+		{
+			if(updateHandler == null)
+			{
+				updateHandler = new EBComponent()
+				{
+					public void handleMessage(EBMessage msg)
+					{
+						if(msg instanceof VFSUpdate)
+							invalidate(((VFSUpdate)msg).getPath());
+					}
+				};
+				EditBus.addToBus(updateHandler);
+			}
+
+			SoftReference<SearchIndex> ref = indexes.get(root);
+			SearchIndex index = ref == null ? null : ref.get();
+			if(index == null)
+			{
+				String name = Integer.toHexString(root.hashCode())
+					+ '-' + MiscUtilities.getFileName(root)
+					.replaceAll("[^\\w.-]","_") + ".idx";
+				index = new SearchIndex(root,new File(
+					MiscUtilities.constructPath(settings,
+					"search-index"),name));
+				index.load();
+				indexes.put(root,new SoftReference<SearchIndex>(index));
+			}
+			return index;
+		}
+	} //}}}
+
+	//{{{ invalidate() method
+	private static void invalidate(String path)
+	{
+		synchronized(indexes)
+		{
+			for(SoftReference<SearchIndex> ref : indexes.values())
+			{
+				SearchIndex index = ref.get();
+				if(index != null && index.entries.remove(path) != null)
+					index.dirty = true;
+			}
+		}
+	} //}}}
+
+	//{{{ mayMatch() method
+	private boolean mayMatch(String path, int[] trigrams)
+	{
+		File f = new File(path);
+		long modTime = f.lastModified();
+		long length = f.length();
+		Entry entry = entries.get(path);
+		if(entry == null || entry.racy || entry.modTime != modTime
+			|| entry.length != length)
+		{
+			if(!f.isFile())
+				return true;
+			entry = createEntry(f,modTime,length);
+			if(entry == null)
+				return true;
+			entries.put(path,entry);
+			dirty = true;
+		}
+		return entry.mayContain(trigrams);
+	} //}}}
+
+	//{{{ createEntry() method
+	/**
+	 * Indexes a file, returns null if it can not be read.
+	 */
+	private static Entry createEntry(File f, long modTime, long length)
+	{
+		// a later rewrite can keep this modification time
+		boolean racy = modTime + MTIME_GRANULARITY
+			> System.currentTimeMillis();
+
+		if(length > MAX_INDEXED_SIZE)
+			return new Entry(modTime,length,null);
+
+		RandomAccessFile in = null;
+		try
+		{
+			in = new RandomAccessFile(f,"r");
+			int len = (int)length;
+			ByteBuffer bytes = FilePrefilter.read(in,len);
+			if(!FilePrefilter.isAsciiCompatible(bytes,len))
+				return new Entry(modTime,length,null);
+
+			// collect the distinct trigrams first, to size the
+			// filter
+			long[] seen = seenTrigrams.get();
+			int[] found = new int[Math.min(len,4096)];
+			int count = 0;
+			for(int i = 0; i + 2 < len; i++)
+			{
+				int t = trigram(bytes.get(i),bytes.get(i + 1),
+					bytes.get(i + 2));
+				long bit = 1L << (t & 63);
+				if((seen[t >>> 6] & bit) != 0)
+					continue;
+				seen[t >>> 6] |= bit;
+				if(count == found.length)
+				{
+					int[] newFound = new int[found.length * 2];
+					System.arraycopy(found,0,newFound,0,count);
+					found = newFound;
+				}
+				found[count++] = t;
+			}
+
+			long[] bits = new long[Math.max(1,
+				(count * BITS_PER_TRIGRAM + 63) >> 6)];
+			for(int i = 0; i < count; i++)
+			{
+				int t = found[i];
+				seen[t >>> 6] = 0L;
+				Entry.add(bits,t);
+			}
+			return new Entry(modTime,length,bits,racy);
+		}
+		catch(IOException e)
+		{
+			Log.log(Log.DEBUG,SearchIndex.class,e);
+			return null;
+		}
+		finally
+		{
+			IOUtilities.closeQuietly(in);
+		}
+	} //}}}
+
+	//{{{ trigram() method
+	private static int trigram(byte b0, byte b1, byte b2)
+	{
+		return fold(b0) << 16 | fold(b1) << 8 | fold(b2);
+	} //}}}
+
+	//{{{ fold() method
+	private static int fold(byte b)
+	{
+		int ch = b & 0xff;
+		return ch >= 'A' && ch <= 'Z' ? ch - 'A' + 'a' : ch;
+	} //}}}
+
+	//{{{ load() method
+	private void load()
+	{
+		if(!file.exists())
+			return;
+
+		DataInputStream in = null;
+		try
+		{
+			in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(file)));
+			if(in.readInt() != MAGIC || in.readInt() != VERSION
+				|| !root.equals(in.readUTF()))
+				return;
+
+			int count = in.readInt();
+			for(int i = 0; i < count; i++)
+			{
+				String path = in.readUTF();
+				long modTime = in.readLong();
+				long length = in.readLong();
+				int words = in.readInt();
+				long[] bits = null;
+				if(words >= 0)
+				{
+					bits = new long[words];
+					for(int j = 0; j < words; j++)
+						bits[j] = in.readLong();
+				}
+				entries.put(path,new Entry(modTime,length,bits));
+			}
+		}
+		catch(IOException e)
+		{
+			Log.log(Log.WARNING,this,"Cannot load search index " + file);
+			Log.log(Log.WARNING,this,e);
+			entries.clear();
+		}
+		finally
+		{
+			IOUtilities.closeQuietly(in);
+		}
+	} //}}}
+
+	//{{{ save() method
+	private synchronized void save()
+	{
+		if(!dirty)
+			return;
+		dirty = false;
+
+		// forget the files that were deleted
+		Iterator<String> iter = entries.keySet().iterator();
+		while(iter.hasNext())
+		{
+			if(!new File(iter.next()).isFile())
+				iter.remove();
+		}
+
+		file.getParentFile().mkdirs();
+		File temp = new File(file.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try
+		{
+			out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(temp)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(root);
+
+			// copied since the files indexed meanwhile would
+			// break the count; entries that can't be trusted
+			// yet are left out
+			Map<String,Entry> copy = new HashMap<String,Entry>();
+			for(Map.Entry<String,Entry> e : entries.entrySet())
+			{
+				if(!e.getValue().racy)
+					copy.put(e.getKey(),e.getValue());
+			}
+			out.writeInt(copy.size());
+			for(Map.Entry<String,Entry> e : copy.entrySet())
+			{
+				Entry entry = e.getValue();
+				out.writeUTF(e.getKey());
+				out.writeLong(entry.modTime);
+				out.writeLong(entry.length);
+				if(entry.bits == null)
+					out.writeInt(-1);
+				else
+				{
+					out.writeInt(entry.bits.length);
+					for(int i = 0; i < entry.bits.length; i++)
+						out.writeLong(entry.bits[i]);
+				}
+			}
+			out.close();
+			out = null;
+
+			file.delete();
+			if(!temp.renameTo(file))
+				throw new IOException("Cannot rename " + temp + " to " + file);
+		}
+		catch(IOException e)
+		{
+			Log.log(Log.ERROR,this,e);
+			temp.delete();
+		}
+		finally
+		{
+			IOUtilities.closeQuietly(out);
+		}
+	} //}}}
+
+	//}}}
+
+	//{{{ Entry class
+	/** What the index knows about one file. */
+	private static class Entry
+	{
+		final long modTime;
+		final long length;
+		/** The Bloom filter, null if the file could not be indexed. */
+		final long[] bits;
+		/**
+		 * True if the file was read so soon after it was modified
+		 * that it could have changed without changing its time.
+		 */
+		final boolean racy;
+
+		Entry(long modTime, long length, long[] bits)
+		{
+			this(modTime,length,bits,false);
+		}
+
+		Entry(long modTime, long length, long[] bits, boolean racy)
+		{
+			this.modTime = modTime;
+			this.length = length;
+			this.bits = bits;
+			this.racy = racy;
+		}
+
+		boolean mayContain(int[] trigrams)
+		{
+			if(bits == null)
+				return true;
+			for(int i = 0; i < trigrams.length; i++)
+			{
+				if(!contains(bits,trigrams[i]))
+					return false;
+			}
+			return true;
+		}
+
+		static void add(long[] bits, int trigram)
+		{
+			long hash = trigram * 0x9e3779b97f4a7c15L;
+			int size = bits.length << 6;
+			int h1 = ((int)(hash >>> 32) & 0x7fffffff) % size;
+			int h2 = ((int)hash & 0x7fffffff) % size;
+			bits[h1 >> 6] |= 1L << h1;
+			bits[h2 >> 6] |= 1L << h2;
+		}
+
+		static boolean contains(long[] bits, int trigram)
+		{
+			long hash = trigram * 0x9e3779b97f4a7c15L;
+			int size = bits.length << 6;
+			int h1 = ((int)(hash >>> 32) & 0x7fffffff) % size;
+			int h2 = ((int)hash & 0x7fffffff) % size;
+			return (bits[h1 >> 6] & 1L << h1) != 0
+				&& (bits[h2 >> 6] & 1L << h2) != 0;
+		}
+	} //}}}
+}
@@ -29,7 +29,7 @@ import org.gjt.sp.jedit.TextUtilities;
  * @author Slava Pestov
  * @version $Id$
  */
-public abstract class SearchMatcher
+public abstract class SearchMatcher implements Cloneable
 {
 	public SearchMatcher()
 	{
@@ -52,6 +52,28 @@ public abstract class SearchMatcher
 	public abstract Match nextMatch(CharSequence text, boolean start,
 		boolean end, boolean firstTime, boolean reverse);
 
+	//{{{ copy() method
+	/**
+	 * Returns a matcher equivalent to this one, that can be used by
+	 * another thread while this one is in use. Matchers are not thread
+	 * safe since they reuse the returned {@link Match}; subclasses
+	 * keeping other per search state must override this method.
+	 * @since jEdit 5.1pre1
+	 */
+	public SearchMatcher copy()
+	{
+		try
+		{
+			SearchMatcher copy = (SearchMatcher)clone();
+			copy.returnValue = new Match();
+			return copy;
+		}
+		catch(CloneNotSupportedException e)
+		{
+			throw new InternalError(e.toString());
+		}
+	} //}}}
+
 	/**
 	 * @param noWordSep the chars that are considered as word chars for this search
 	 * @since jEdit 4.5pre1
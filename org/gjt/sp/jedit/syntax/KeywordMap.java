@@ -25,6 +25,8 @@ package org.gjt.sp.jedit.syntax;
 import javax.swing.text.Segment;
 import java.util.List;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * A <code>KeywordMap</code> is similar to a hashtable in that it maps keys
@@ -73,20 +75,15 @@ public class KeywordMap
 	{
 		if(length == 0)
 			return Token.NULL;
-		Keyword k = map[getSegmentMapKey(text, offset, length)];
-		while(k != null)
+		KeywordTrie trie = this.trie;
+		if(trie == null)
 		{
-			if(length != k.keyword.length)
-			{
-				k = k.next;
-				continue;
-			}
-			if(SyntaxUtilities.regionMatches(ignoreCase,text,offset,
-				k.keyword))
-				return k.id;
-			k = k.next;
+			// token markers are shared by threads, so build it in
+			// a local variable and publish it once complete
+			trie = new KeywordTrie(map,ignoreCase);
+			this.trie = trie;
 		}
-		return Token.NULL;
+		return trie.lookup(text.array,offset,length);
 	} //}}}
 
 	//{{{ add() method
@@ -129,6 +126,7 @@ loop:		for(int i = 0; i < keyword.length; i++)
 		}
 
 		map[key] = new Keyword(keyword,id,map[key]);
+		trie = null;
 	} //}}}
 
 	//{{{ getNonAlphaNumericChars() method
@@ -183,6 +181,7 @@ loop:		for(int i = 0; i < keyword.length; i++)
 	public void setIgnoreCase(boolean ignoreCase)
 	{
 		this.ignoreCase = ignoreCase;
+		trie = null;
 	} //}}}
 
 	//{{{ add() method
@@ -210,6 +209,8 @@ loop:		for(int i = 0; i < keyword.length; i++)
 	private Keyword[] map;
 	private boolean ignoreCase;
 	private StringBuilder noWordSep;
+	/** The keywords compiled for lookups, built when first needed. */
+	private volatile KeywordTrie trie;
 	//}}}
 
 	//{{{ getStringMapKey() method
@@ -244,4 +245,131 @@ loop:		for(int i = 0; i < keyword.length; i++)
 		public byte id;
 		public Keyword next;
 	} //}}}
+
+	//{{{ KeywordTrie class
+	/**
+	 * The keywords stored as a trie, in flat arrays so that a lookup
+	 * walks the text once and allocates nothing. The children of node
+	 * <code>n</code> are the edges <code>childStart[n]</code> to
+	 * <code>childStart[n + 1] - 1</code>, sorted by character; the
+	 * root is node 0.
+	 */
+	private static class KeywordTrie
+	{
+		private final boolean ignoreCase;
+		private final int maxLength;
+		private final int[] childStart;
+		private final char[] edgeChar;
+		private final int[] edgeTarget;
+		/** The token type of each node, or -1 if no keyword ends there. */
+		private final byte[] ids;
+
+		//{{{ KeywordTrie constructor
+		KeywordTrie(Keyword[] map, boolean ignoreCase)
+		{
+			this.ignoreCase = ignoreCase;
+
+			Node root = new Node();
+			int nodeCount = 1;
+			int max = 0;
+			for(int i = 0; i < map.length; i++)
+			{
+				for(Keyword k = map[i]; k != null; k = k.next)
+				{
+					Node node = root;
+					for(int j = 0; j < k.keyword.length; j++)
+					{
+						char ch = k.keyword[j];
+						if(ignoreCase)
+							ch = Character.toUpperCase(ch);
+						Node child = node.children.get(ch);
+						if(child == null)
+						{
+							child = new Node();
+							node.children.put(ch,child);
+							nodeCount++;
+						}
+						node = child;
+					}
+					// the chains start with the most recently
+					// added keyword, which is the one lookups
+					// used to find
+					if(node.id == -1)
+						node.id = k.id;
+					max = Math.max(max,k.keyword.length);
+				}
+			}
+			maxLength = max;
+
+			childStart = new int[nodeCount + 1];
+			edgeChar = new char[nodeCount - 1];
+			edgeTarget = new int[nodeCount - 1];
+			ids = new byte[nodeCount];
+
+			// number the nodes breadth first, so that the children
+			// of each node are stored next to each other
+			List<Node> queue = new ArrayList<Node>(nodeCount);
+			queue.add(root);
+			int edges = 0;
+			for(int n = 0; n < queue.size(); n++)
+			{
+				Node node = queue.get(n);
+				ids[n] = node.id;
+				childStart[n] = edges;
+				for(Map.Entry<Character,Node> e
+					: node.children.entrySet())
+				{
+					edgeChar[edges] = e.getKey();
+					edgeTarget[edges] = queue.size();
+					queue.add(e.getValue());
+					edges++;
+				}
+			}
+			childStart[nodeCount] = edges;
+		} //}}}
+
+		//{{{ lookup() method
+		byte lookup(char[] text, int offset, int length)
+		{
+			if(length > maxLength)
+				return Token.NULL;
+			int node = 0;
+			for(int i = offset, end = offset + length; i < end; i++)
+			{
+				char ch = text[i];
+				if(ignoreCase)
+					ch = Character.toUpperCase(ch);
+				int low = childStart[node];
+				int high = childStart[node + 1] - 1;
+				node = -1;
+				while(low <= high)
+				{
+					int mid = (low + high) >>> 1;
+					char midChar = edgeChar[mid];
+					if(midChar < ch)
+						low = mid + 1;
+					else if(midChar > ch)
+						high = mid - 1;
+					else
+					{
+						node = edgeTarget[mid];
+						break;
+					}
+				}
+				if(node == -1)
+					return Token.NULL;
+			}
+			byte id = ids[node];
+			return id == -1 ? Token.NULL : id;
+		} //}}}
+
+		//{{{ Node class
+		/** A trie node, only used while building the arrays. */
+		private static class Node
+		{
+			final Map<Character,Node> children
+				= new TreeMap<Character,Node>();
+			byte id = -1;
+		} //}}}
+	} //}}}
 }
@@ -135,6 +135,7 @@ public class ParserRuleSet
 	public void addRule(ParserRule r)
 	{
 		ruleCount++;
+		ruleTable = null;
 		Character[] keys;
 		if (null == r.upHashChars)
 		{
@@ -200,6 +201,28 @@ public class ParserRuleSet
 		}
 	} //}}}
 
+	//{{{ getRules() method
+	/**
+	 * Returns the rules that may match at a character, in the order
+	 * they must be checked, like {@link #getRules(Character)} but
+	 * without allocating anything. The returned array must not be
+	 * modified.
+	 * @param ch The character
+	 * @since jEdit 5.1pre1
+	 */
+	public ParserRule[] getRules(char ch)
+	{
+		RuleTable table = ruleTable;
+		if(table == null)
+		{
+			// token markers are shared by threads, so build it in
+			// a local variable and publish it once complete
+			table = new RuleTable(ruleMap);
+			ruleTable = table;
+		}
+		return table.get(ch);
+	} //}}}
+
 	//{{{ getRuleCount() method
 	public int getRuleCount()
 	{
@@ -299,15 +322,17 @@ public class ParserRuleSet
 	//{{{ getNoWordSep() method
 	public String getNoWordSep()
 	{
-		if(_noWordSep == null)
+		// computed in a local variable, since token markers may call
+		// this from several threads at once
+		String sep = _noWordSep;
+		if(sep == null)
 		{
-			_noWordSep = noWordSep;
-			if(noWordSep == null)
-				noWordSep = "";
+			sep = noWordSep == null ? "" : noWordSep;
 			if(keywords != null)
-				noWordSep += keywords.getNonAlphaNumericChars();
+				sep += keywords.getNonAlphaNumericChars();
+			_noWordSep = sep;
 		}
-		return noWordSep;
+		return sep;
 	} //}}}
 
 	//{{{ setNoWordSep() method
@@ -358,6 +383,9 @@ public class ParserRuleSet
 
 	private final Map<Character, List<ParserRule>> ruleMap;
 
+	/** ruleMap compiled for lookups, built when first needed. */
+	private volatile RuleTable ruleTable;
+
 	private final List<ParserRuleSet> imports;
 
 	/**
@@ -372,9 +400,80 @@ public class ParserRuleSet
 	private boolean highlightDigits;
 	private Pattern digitRE;
 
-	private String _noWordSep;
+	/** noWordSep and the non alphanumeric keyword characters. */
+	private volatile String _noWordSep;
 	private String noWordSep;
 
 	private boolean builtIn;
 	//}}}
+
+	//{{{ RuleTable class
+	/**
+	 * The rules of a rule set, grouped by the upper case character they
+	 * start with. The rules that can start with any character are
+	 * appended to each group, so finding the rules to check at a
+	 * position is a single array access for ASCII characters.
+	 */
+	private static class RuleTable
+	{
+		private static final ParserRule[] EMPTY = new ParserRule[0];
+
+		private final ParserRule[][] ascii = new ParserRule[128][];
+		/** Sorted start characters above 127, and their rules. */
+		private final char[] otherKeys;
+		private final ParserRule[][] otherRules;
+		/** Rules not depending on the start character. */
+		private final ParserRule[] anyRules;
+
+		//{{{ RuleTable constructor
+		RuleTable(Map<Character, List<ParserRule>> ruleMap)
+		{
+			List<ParserRule> rulesForNull = ruleMap.get(null);
+			anyRules = merge(null,rulesForNull);
+			for(char ch = 0; ch < ascii.length; ch++)
+				ascii[ch] = merge(ruleMap.get(ch),rulesForNull);
+
+			List<Character> keys = new ArrayList<Character>();
+			for(Character key : ruleMap.keySet())
+			{
+				if(key != null && key.charValue() >= ascii.length)
+					keys.add(key);
+			}
+			Collections.sort(keys);
+			otherKeys = new char[keys.size()];
+			otherRules = new ParserRule[keys.size()][];
+			for(int i = 0; i < otherKeys.length; i++)
+			{
+				otherKeys[i] = keys.get(i);
+				otherRules[i] = merge(ruleMap.get(keys.get(i)),
+					rulesForNull);
+			}
+		} //}}}
+
+		//{{{ get() method
+		ParserRule[] get(char ch)
+		{
+			char upper = Character.toUpperCase(ch);
+			if(upper < ascii.length)
+				return ascii[upper];
+			int index = Arrays.binarySearch(otherKeys,upper);
+			return index < 0 ? anyRules : otherRules[index];
+		} //}}}
+
+		//{{{ merge() method
+		private static ParserRule[] merge(List<ParserRule> rulesForKey,
+			List<ParserRule> rulesForNull)
+		{
+			int size = (rulesForKey == null ? 0 : rulesForKey.size())
+				+ (rulesForNull == null ? 0 : rulesForNull.size());
+			if(size == 0)
+				return EMPTY;
+			List<ParserRule> rules = new ArrayList<ParserRule>(size);
+			if(rulesForKey != null)
+				rules.addAll(rulesForKey);
+			if(rulesForNull != null)
+				rules.addAll(rulesForNull);
+			return rules.toArray(new ParserRule[size]);
+		} //}}}
+	} //}}}
 }
@@ -84,817 +84,835 @@ public class TokenMarker
 	//{{{ markTokens() method
 	/**
 	 * Do not call this method directly; call Buffer.markTokens() instead.
+	 * This method is thread-safe, the parsing state is kept in an object
+	 * created for each call, so a token marker can be shared by buffers
+	 * tokenized in different threads.
 	 *
 	 * @param prevContext the context of the previous line, it can be null
 	 * @param tokenHandler the token handler
 	 * @param line a segment containing the content of the line
 	 */
-	public synchronized LineContext markTokens(LineContext prevContext,
+	public LineContext markTokens(LineContext prevContext,
 		TokenHandler tokenHandler, Segment line)
 	{
-		//{{{ Set up some instance variables
-		// this is to avoid having to pass around lots and lots of
-		// parameters.
-		this.tokenHandler = tokenHandler;
-		this.line = line;
+		return new LineParser(mainRuleSet,tokenHandler,line)
+			.markTokens(prevContext);
+	} //}}}
 
-		lastOffset = line.offset;
-		lineLength = line.count + line.offset;
+	//{{{ Private members
 
-		context = new LineContext();
+	//{{{ Instance variables
+	private final Map<String, ParserRuleSet> ruleSets = new Hashtable<String, ParserRuleSet>(64);
+	private ParserRuleSet mainRuleSet;
+	//}}}
 
-		if(prevContext == null)
-		{
-			context.rules = getMainRuleSet();
-			context.escapeRule = context.rules.getEscapeRule();
-		}
-		else
+	//{{{ substitute() method
+	/**
+	 * Perform substitution references in <code>end</code> to the matched groups in
+	 * <code>match</code>. In particular, "$1" is replaced with the first match group in
+	 * <code>match</code>, $2 is replaced with the second, all the way up to "$9". Moreover,
+	 * if group <code>i</code> matched a single bracket character, then "~i" is replaced with
+	 * the complementary bracket.
+	 * @param match the <code>Matcher</code> produced by matching the "start" regex
+	 * @param end the pattern to substitute in to
+	 * @param escape if true, then escape matched text before inserting into <code>end</code>, so that
+	 * 	the result can be interpreted as a regex pattern.
+	 * @return the substituted pattern
+	 */
+	private static char[] substitute(Matcher match, char[] end, boolean escape)
+	{
+		StringBuilder buf = new StringBuilder();
+		for(int i = 0; i < end.length; i++)
 		{
-			context.parent = prevContext.parent;
-			context.setInRule(prevContext.inRule);
-			context.rules = prevContext.rules;
-			context.spanEndSubst = prevContext.spanEndSubst;
-			context.spanEndSubstRegex = prevContext.spanEndSubstRegex;
+			char ch = end[i];
+			if(ch == '$' || ch == '~')
+			{
+				if(i == end.length - 1)
+					buf.append(ch);
+				else
+				{
+					char digit = end[i + 1];
+					if(!Character.isDigit(digit))
+						buf.append(ch);
+					else if (ch == '$')
+					{
+						String text = match.group(digit - '0');
+						if (escape)
+							text = TextUtilities.escapeText(text);
+						buf.append(text);
+						i++;
+					}
+					else
+					{
+						String s = match.group(digit - '0');
+						if (s.length() == 1)
+						{
+							char b = TextUtilities.getComplementaryBracket(s.charAt(0), null);
+							if (b == '\0')
+								b = s.charAt(0);
+							buf.append(b);
+						}
+						else
+							buf.append(ch);
+						i++;
+					}
+				}
+			}
+			else
+				buf.append(ch);
 		}
 
-		keywords = context.rules.getKeywords();
+		char[] returnValue = new char[buf.length()];
+		buf.getChars(0,buf.length(),returnValue,0);
+		return returnValue;
+	} //}}}
 
-		seenWhitespaceEnd = false;
-		whitespaceEnd = line.offset;
-		//}}}
+	//}}}
 
-		//{{{ Main parser loop
-		int terminateChar = context.rules.getTerminateChar();
-		boolean terminated = false;
-main_loop:	for(pos = line.offset; pos < lineLength; pos++)
+	//{{{ LineParser class
+	/**
+	 * The state of the parsing of one line. Instead of passing these
+	 * around to each method, we just store them as instance variables.
+	 */
+	private static class LineParser
+	{
+		private final ParserRuleSet mainRuleSet;
+		private final TokenHandler tokenHandler;
+		/** The line from which we will mark the tokens. */
+		private final Segment line;
+		/** The context of the current line. */
+		private LineContext context;
+		private KeywordMap keywords;
+		private final Segment pattern = new Segment();
+		private int lastOffset;
+		private int lineLength;
+		private int pos;
+
+		private int whitespaceEnd;
+		private boolean seenWhitespaceEnd;
+
+		//{{{ LineParser constructor
+		LineParser(ParserRuleSet mainRuleSet, TokenHandler tokenHandler,
+			Segment line)
 		{
-			//{{{ check if we have to stop parsing (happens if the terminateChar has been exceeded)
-			if(terminateChar >= 0 && pos - line.offset >= terminateChar
-				&& !terminated)
-			{
-				terminated = true;
-				context = new LineContext(ParserRuleSet
-					.getStandardRuleSet(context.rules
-					.getDefault()),context);
-				keywords = context.rules.getKeywords();
-			} //}}}
+			this.mainRuleSet = mainRuleSet;
+			this.tokenHandler = tokenHandler;
+			this.line = line;
+		} //}}}
 
-			//{{{ Check for the escape rule before anything else.
-			if (context.escapeRule != null &&
-				handleRuleStart(context.escapeRule))
-			{
-				continue main_loop;
-			} //}}}
+		//{{{ markTokens() method
+		LineContext markTokens(LineContext prevContext)
+		{
+			//{{{ Set up some instance variables
+			lastOffset = line.offset;
+			lineLength = line.count + line.offset;
 
-			//{{{ check for end of delegate
-			if (context.parent != null
-			    && context.parent.inRule != null
-			    && checkDelegateEnd(context.parent.inRule))
-			{
-				seenWhitespaceEnd = true;
-				continue main_loop;
-			} //}}}
+			context = new LineContext();
 
-			//{{{ check every rule
-			Character ch = Character.valueOf(line.array[pos]);
-			List<ParserRule> rules = context.rules.getRules(ch);
-			for (ParserRule rule : rules)
+			if(prevContext == null)
 			{
-				// stop checking rules if there was a match
-				if (handleRuleStart(rule))
-				{
-					seenWhitespaceEnd = true;
-					continue main_loop;
-				}
-			} //}}}
-
-			//{{{ check if current character is a word separator
-			if(Character.isWhitespace(ch))
+				context.rules = mainRuleSet;
+				context.escapeRule = context.rules.getEscapeRule();
+			}
+			else
 			{
-				if(!seenWhitespaceEnd)
-					whitespaceEnd = pos + 1;
+				context.parent = prevContext.parent;
+				context.setInRule(prevContext.inRule);
+				context.rules = prevContext.rules;
+				context.spanEndSubst = prevContext.spanEndSubst;
+				context.spanEndSubstRegex = prevContext.spanEndSubstRegex;
+			}
 
-				if(context.inRule != null)
-					handleRuleEnd(context.inRule);
+			keywords = context.rules.getKeywords();
 
-				handleNoWordBreak();
+			seenWhitespaceEnd = false;
+			whitespaceEnd = line.offset;
+			//}}}
 
-				markKeyword(false);
+			//{{{ Main parser loop
+			int terminateChar = context.rules.getTerminateChar();
+			boolean terminated = false;
+	main_loop:	for(pos = line.offset; pos < lineLength; pos++)
+			{
+				//{{{ check if we have to stop parsing (happens if the terminateChar has been exceeded)
+				if(terminateChar >= 0 && pos - line.offset >= terminateChar
+					&& !terminated)
+				{
+					terminated = true;
+					context = new LineContext(ParserRuleSet
+						.getStandardRuleSet(context.rules
+						.getDefault()),context);
+					keywords = context.rules.getKeywords();
+				} //}}}
 
-				if(lastOffset != pos)
+				//{{{ Check for the escape rule before anything else.
+				if (context.escapeRule != null &&
+					handleRuleStart(context.escapeRule))
 				{
-					tokenHandler.handleToken(line,
-						context.rules.getDefault(),
-						lastOffset - line.offset,
-						pos - lastOffset,
-						context);
-				}
+					continue main_loop;
+				} //}}}
 
-				tokenHandler.handleToken(line,
-					context.rules.getDefault(),
-					pos - line.offset,1,context);
-				lastOffset = pos + 1;
-			}
-			else
-			{
-				if(keywords != null || context.rules.getRuleCount() != 0)
+				//{{{ check for end of delegate
+				if (context.parent != null
+				    && context.parent.inRule != null
+				    && checkDelegateEnd(context.parent.inRule))
 				{
-					String noWordSep = context.rules.getNoWordSep();
+					seenWhitespaceEnd = true;
+					continue main_loop;
+				} //}}}
 
-					if(!Character.isLetterOrDigit(ch)
-						&& noWordSep.indexOf(ch) == -1)
+				//{{{ check every rule
+				char ch = line.array[pos];
+				ParserRule[] rules = context.rules.getRules(ch);
+				for (int i = 0; i < rules.length; i++)
+				{
+					// stop checking rules if there was a match
+					if (handleRuleStart(rules[i]))
 					{
-						if(context.inRule != null)
-							handleRuleEnd(context.inRule);
+						seenWhitespaceEnd = true;
+						continue main_loop;
+					}
+				} //}}}
+
+				//{{{ check if current character is a word separator
+				if(Character.isWhitespace(ch))
+				{
+					if(!seenWhitespaceEnd)
+						whitespaceEnd = pos + 1;
+
+					if(context.inRule != null)
+						handleRuleEnd(context.inRule);
 
-						handleNoWordBreak();
+					handleNoWordBreak();
 
-						markKeyword(true);
+					markKeyword(false);
 
+					if(lastOffset != pos)
+					{
 						tokenHandler.handleToken(line,
 							context.rules.getDefault(),
-							lastOffset - line.offset,1,
+							lastOffset - line.offset,
+							pos - lastOffset,
 							context);
-						lastOffset = pos + 1;
 					}
+
+					tokenHandler.handleToken(line,
+						context.rules.getDefault(),
+						pos - line.offset,1,context);
+					lastOffset = pos + 1;
 				}
+				else
+				{
+					if(keywords != null || context.rules.getRuleCount() != 0)
+					{
+						String noWordSep = context.rules.getNoWordSep();
 
-				seenWhitespaceEnd = true;
-			} //}}}
-		} //}}}
+						if(!Character.isLetterOrDigit(ch)
+							&& noWordSep.indexOf(ch) == -1)
+						{
+							if(context.inRule != null)
+								handleRuleEnd(context.inRule);
 
-		//{{{ Mark all remaining characters
-		pos = lineLength;
+							handleNoWordBreak();
 
-		if(context.inRule != null)
-			handleRuleEnd(context.inRule);
+							markKeyword(true);
 
-		handleNoWordBreak();
-		markKeyword(true);
-		//}}}
+							tokenHandler.handleToken(line,
+								context.rules.getDefault(),
+								lastOffset - line.offset,1,
+								context);
+							lastOffset = pos + 1;
+						}
+					}
 
-		//{{{ Unwind any NO_LINE_BREAK parent delegates
-unwind:		while(context.parent != null)
-		{
-			ParserRule rule = context.parent.inRule;
-			if((rule != null && (rule.action
-				& ParserRule.NO_LINE_BREAK) == ParserRule.NO_LINE_BREAK)
-				|| terminated)
-			{
-				context = context.parent;
-				keywords = context.rules.getKeywords();
-				context.setInRule(null);
-			}
-			else
-				break unwind;
-		} //}}}
+					seenWhitespaceEnd = true;
+				} //}}}
+			} //}}}
 
-		tokenHandler.handleToken(line,Token.END,
-			pos - line.offset,0,context);
+			//{{{ Mark all remaining characters
+			pos = lineLength;
 
-		context = context.intern();
-		tokenHandler.setLineContext(context);
+			if(context.inRule != null)
+				handleRuleEnd(context.inRule);
 
-		/* for GC. */
-		this.tokenHandler = null;
-		this.line = null;
+			handleNoWordBreak();
+			markKeyword(true);
+			//}}}
 
-		return context;
-	} //}}}
+			//{{{ Unwind any NO_LINE_BREAK parent delegates
+	unwind:		while(context.parent != null)
+			{
+				ParserRule rule = context.parent.inRule;
+				if((rule != null && (rule.action
+					& ParserRule.NO_LINE_BREAK) == ParserRule.NO_LINE_BREAK)
+					|| terminated)
+				{
+					context = context.parent;
+					keywords = context.rules.getKeywords();
+					context.setInRule(null);
+				}
+				else
+					break unwind;
+			} //}}}
 
-	//{{{ Private members
+			tokenHandler.handleToken(line,Token.END,
+				pos - line.offset,0,context);
 
-	//{{{ Instance variables
-	private final Map<String, ParserRuleSet> ruleSets = new Hashtable<String, ParserRuleSet>(64);
-	private ParserRuleSet mainRuleSet;
+			context = context.intern();
+			tokenHandler.setLineContext(context);
 
-	// Instead of passing these around to each method, we just store them
-	// as instance variables. Note that this is not thread-safe.
-	private TokenHandler tokenHandler;
-	/** The line from which we will mark the tokens. */
-	private Segment line;
-	/** The context of the current line. */
-	private LineContext context;
-	private KeywordMap keywords;
-	private final Segment pattern = new Segment();
-	private int lastOffset;
-	private int lineLength;
-	private int pos;
-
-	private int whitespaceEnd;
-	private boolean seenWhitespaceEnd;
-	//}}}
+			return context;
+		} //}}}
 
-	//{{{ checkDelegateEnd() method
-	private boolean checkDelegateEnd(ParserRule rule)
-	{
-		if(rule.end == null && rule.endRegexp == null)
-			return false;
+		//{{{ checkDelegateEnd() method
+		private boolean checkDelegateEnd(ParserRule rule)
+		{
+			if(rule.end == null && rule.endRegexp == null)
+				return false;
 
-		LineContext tempContext = context;
-		context = context.parent;
-		keywords = context.rules.getKeywords();
-		boolean handled = handleRuleEnd(rule);
-		context = tempContext;
-		keywords = context.rules.getKeywords();
+			LineContext tempContext = context;
+			context = context.parent;
+			keywords = context.rules.getKeywords();
+			boolean handled = handleRuleEnd(rule);
+			context = tempContext;
+			keywords = context.rules.getKeywords();
 
-		if (handled)
-		{
-			if(context.inRule != null)
-				handleRuleEnd(context.inRule);
+			if (handled)
+			{
+				if(context.inRule != null)
+					handleRuleEnd(context.inRule);
 
-			markKeyword(true);
+				markKeyword(true);
 
-			context = (LineContext)context.parent.clone();
+				context = (LineContext)context.parent.clone();
 
-			tokenHandler.handleToken(line,
-				matchToken(context.inRule, context.inRule, context),
-				pos - line.offset,pattern.count,context);
+				tokenHandler.handleToken(line,
+					matchToken(context.inRule, context.inRule, context),
+					pos - line.offset,pattern.count,context);
 
-			keywords = context.rules.getKeywords();
-			context.setInRule(null);
-			lastOffset = pos + pattern.count;
+				keywords = context.rules.getKeywords();
+				context.setInRule(null);
+				lastOffset = pos + pattern.count;
 
-			// move pos to last character of match sequence
-			pos += pattern.count - 1;
+				// move pos to last character of match sequence
+				pos += pattern.count - 1;
 
-			return true;
-		}
+				return true;
+			}
 
-		return false;
-	} //}}}
+			return false;
+		} //}}}
 
-	//{{{ offsetMatches
-	/**
-	 * Checks if the offset matches given position-match-hint of
-	 * ParserRule.
-	 */
-	private boolean offsetMatches(int offset, int posMatch)
-	{
-		if((posMatch & ParserRule.AT_LINE_START)
-			== ParserRule.AT_LINE_START)
+		//{{{ offsetMatches
+		/**
+		 * Checks if the offset matches given position-match-hint of
+		 * ParserRule.
+		 */
+		private boolean offsetMatches(int offset, int posMatch)
 		{
-			if(offset != line.offset)
+			if((posMatch & ParserRule.AT_LINE_START)
+				== ParserRule.AT_LINE_START)
 			{
-				return false;
+				if(offset != line.offset)
+				{
+					return false;
+				}
 			}
-		}
-		else if((posMatch & ParserRule.AT_WHITESPACE_END)
-			== ParserRule.AT_WHITESPACE_END)
-		{
-			if(offset != whitespaceEnd)
+			else if((posMatch & ParserRule.AT_WHITESPACE_END)
+				== ParserRule.AT_WHITESPACE_END)
 			{
-				return false;
+				if(offset != whitespaceEnd)
+				{
+					return false;
+				}
 			}
-		}
-		else if((posMatch & ParserRule.AT_WORD_START)
-			== ParserRule.AT_WORD_START)
-		{
-			if(offset != lastOffset)
+			else if((posMatch & ParserRule.AT_WORD_START)
+				== ParserRule.AT_WORD_START)
 			{
-				return false;
+				if(offset != lastOffset)
+				{
+					return false;
+				}
 			}
-		}
 
-		return true;
-	} //}}}
+			return true;
+		} //}}}
 
-	//{{{ handleRuleStart() method
-	/**
-	 * Checks if the rule matches the line at the current position
-	 * as its start and handles the rule if it does match
-	 */
-	private boolean handleRuleStart(ParserRule checkRule)
-	{
-		// Some rules can only match in certain locations
-		if (null == checkRule.upHashChars)
+		//{{{ handleRuleStart() method
+		/**
+		 * Checks if the rule matches the line at the current position
+		 * as its start and handles the rule if it does match
+		 */
+		private boolean handleRuleStart(ParserRule checkRule)
 		{
-			if (checkRule.upHashChar != null &&
-			    (pos + checkRule.upHashChar.length < line.array.length) &&
-			    !checkHashString(checkRule))
+			// Some rules can only match in certain locations
+			if (null == checkRule.upHashChars)
 			{
-				return false;
+				if (checkRule.upHashChar != null &&
+				    (pos + checkRule.upHashChar.length < line.array.length) &&
+				    !checkHashString(checkRule))
+				{
+					return false;
+				}
 			}
-		}
-		else
-		{
-			if (-1 == Arrays.binarySearch(
-					checkRule.upHashChars,
-					Character.toUpperCase(line.array[pos])))
+			else
 			{
-				return false;
+				if (-1 == Arrays.binarySearch(
+						checkRule.upHashChars,
+						Character.toUpperCase(line.array[pos])))
+				{
+					return false;
+				}
 			}
-		}
-
-		int offset = (checkRule.action & ParserRule.MARK_PREVIOUS) != 0 ? lastOffset : pos;
-		if(!offsetMatches(offset, checkRule.startPosMatch))
-		{
-			return false;
-		}
-
-		int matchedChars;
-		Matcher match = null;
 
-		// See if the rule's start sequence matches here
-		if((checkRule.action & ParserRule.REGEXP) == 0)
-		{
-			pattern.array = checkRule.start;
-			pattern.offset = 0;
-			pattern.count = pattern.array.length;
-			matchedChars = pattern.count;
-
-			if(!SyntaxUtilities.regionMatches(context.rules
-				.getIgnoreCase(),line,pos,pattern.array))
+			int offset = (checkRule.action & ParserRule.MARK_PREVIOUS) != 0 ? lastOffset : pos;
+			if(!offsetMatches(offset, checkRule.startPosMatch))
 			{
 				return false;
 			}
-		}
-		else
-		{
-			// note that all regexps start with \A so they only
-			// match the start of the string
-			//int matchStart = pos - line.offset;
-			CharSequence charSeq = new SegmentCharSequence(line, pos - line.offset,
-				line.count - (pos - line.offset));
-			match = checkRule.startRegexp.matcher(charSeq);
-			if(!match.lookingAt())
-			{
-				return false;
-			}
-			else if(match.start() != 0)
-			{
-				throw new InternalError("Can't happen");
-			}
-			else
-			{
-				matchedChars = match.end();
-				/* workaround for hang if match was
-				 * zero-width. not sure if there is
-				 * a better way to handle this */
-				if(matchedChars == 0)
-					matchedChars = 1;
-			}
-		}
-
-		if((checkRule.action & ParserRule.IS_ESCAPE) == ParserRule.IS_ESCAPE)
-		{
-			pos += pattern.count;
-		}
-		else
-		{
-			if(context.inRule != null)
-				handleRuleEnd(context.inRule);
 
-			markKeyword((checkRule.action & ParserRule.MARK_PREVIOUS)
-				!= ParserRule.MARK_PREVIOUS);
+			int matchedChars;
+			Matcher match = null;
 
-			switch(checkRule.action & ParserRule.MAJOR_ACTIONS)
+			// See if the rule's start sequence matches here
+			if((checkRule.action & ParserRule.REGEXP) == 0)
 			{
-			//{{{ SEQ
-			case ParserRule.SEQ:
-				context.spanEndSubst = null;
-				context.spanEndSubstRegex = null;
+				pattern.array = checkRule.start;
+				pattern.offset = 0;
+				pattern.count = pattern.array.length;
+				matchedChars = pattern.count;
 
-				if((checkRule.action & ParserRule.REGEXP) != 0)
-				{
-					handleTokenWithSpaces(tokenHandler,
-						checkRule.token,
-						pos - line.offset,
-						matchedChars,
-						context);
-				}
-				else
+				if(!SyntaxUtilities.regionMatches(context.rules
+					.getIgnoreCase(),line,pos,pattern.array))
 				{
-					tokenHandler.handleToken(line,
-						checkRule.token,
-						pos - line.offset,
-						matchedChars,context);
+					return false;
 				}
-
-				// a DELEGATE attribute on a SEQ changes the
-				// ruleset from the end of the SEQ onwards
-				if(checkRule.delegate != null)
+			}
+			else
+			{
+				// note that all regexps start with \A so they only
+				// match the start of the string
+				//int matchStart = pos - line.offset;
+				CharSequence charSeq = new SegmentCharSequence(line, pos - line.offset,
+					line.count - (pos - line.offset));
+				match = checkRule.startRegexp.matcher(charSeq);
+				if(!match.lookingAt())
 				{
-					context = new LineContext(
-						checkRule.delegate,
-						context.parent);
-					keywords = context.rules.getKeywords();
+					return false;
 				}
-				break;
-			//}}}
-			//{{{ SPAN, EOL_SPAN
-			case ParserRule.SPAN:
-			case ParserRule.EOL_SPAN:
-				context.setInRule(checkRule);
-
-				byte tokenType = matchToken(checkRule,
-							context.inRule, context);
-
-				if((checkRule.action & ParserRule.REGEXP) != 0)
+				else if(match.start() != 0)
 				{
-					handleTokenWithSpaces(tokenHandler,
-						tokenType,
-						pos - line.offset,
-						matchedChars,
-						context);
+					throw new InternalError("Can't happen");
 				}
 				else
 				{
-					tokenHandler.handleToken(line,tokenType,
-						pos - line.offset,
-						matchedChars,context);
+					matchedChars = match.end();
+					/* workaround for hang if match was
+					 * zero-width. not sure if there is
+					 * a better way to handle this */
+					if(matchedChars == 0)
+						matchedChars = 1;
 				}
+			}
+
+			if((checkRule.action & ParserRule.IS_ESCAPE) == ParserRule.IS_ESCAPE)
+			{
+				pos += pattern.count;
+			}
+			else
+			{
+				if(context.inRule != null)
+					handleRuleEnd(context.inRule);
 
-				char[] spanEndSubst = null;
-				Pattern spanEndSubstRegex = null;
-				/* substitute result of matching the rule start
-				 * into the end string.
-				 *
-				 * eg, in shell script mode, <<\s*(\w+) is
-				 * matched into \<$1\> to construct rules for
-				 * highlighting read-ins like this <<EOF
-				 * ...
-				 * EOF
-				 */
-				if(match != null && match.groupCount() > 0)
+				markKeyword((checkRule.action & ParserRule.MARK_PREVIOUS)
+					!= ParserRule.MARK_PREVIOUS);
+
+				switch(checkRule.action & ParserRule.MAJOR_ACTIONS)
 				{
-					if (checkRule.end != null)
+				//{{{ SEQ
+				case ParserRule.SEQ:
+					context.spanEndSubst = null;
+					context.spanEndSubstRegex = null;
+
+					if((checkRule.action & ParserRule.REGEXP) != 0)
+					{
+						handleTokenWithSpaces(tokenHandler,
+							checkRule.token,
+							pos - line.offset,
+							matchedChars,
+							context);
+					}
+					else
+					{
+						tokenHandler.handleToken(line,
+							checkRule.token,
+							pos - line.offset,
+							matchedChars,context);
+					}
+
+					// a DELEGATE attribute on a SEQ changes the
+					// ruleset from the end of the SEQ onwards
+					if(checkRule.delegate != null)
+					{
+						context = new LineContext(
+							checkRule.delegate,
+							context.parent);
+						keywords = context.rules.getKeywords();
+					}
+					break;
+				//}}}
+				//{{{ SPAN, EOL_SPAN
+				case ParserRule.SPAN:
+				case ParserRule.EOL_SPAN:
+					context.setInRule(checkRule);
+
+					byte tokenType = matchToken(checkRule,
+								context.inRule, context);
+
+					if((checkRule.action & ParserRule.REGEXP) != 0)
 					{
-						spanEndSubst = substitute(match, checkRule.end, false);
+						handleTokenWithSpaces(tokenHandler,
+							tokenType,
+							pos - line.offset,
+							matchedChars,
+							context);
+					}
+					else
+					{
+						tokenHandler.handleToken(line,tokenType,
+							pos - line.offset,
+							matchedChars,context);
 					}
-					else if (checkRule.endRegexp != null)
+
+					char[] spanEndSubst = null;
+					Pattern spanEndSubstRegex = null;
+					/* substitute result of matching the rule start
+					 * into the end string.
+					 *
+					 * eg, in shell script mode, <<\s*(\w+) is
+					 * matched into \<$1\> to construct rules for
+					 * highlighting read-ins like this <<EOF
+					 * ...
+					 * EOF
+					 */
+					if(match != null && match.groupCount() > 0)
 					{
-						char[] pattern =
-							checkRule.endRegexp.pattern().toCharArray();
-						pattern = substitute(match, pattern, true);
+						if (checkRule.end != null)
+						{
+							spanEndSubst = substitute(match, checkRule.end, false);
+						}
+						else if (checkRule.endRegexp != null)
+						{
+							char[] pattern =
+								checkRule.endRegexp.pattern().toCharArray();
+							pattern = substitute(match, pattern, true);
 						
-						spanEndSubstRegex = Pattern.compile(new String(pattern));
+							spanEndSubstRegex = Pattern.compile(new String(pattern));
+						}
 					}
-				}
 
-				context.spanEndSubst = spanEndSubst;
-				context.spanEndSubstRegex = spanEndSubstRegex;
-				context = new LineContext(
-					checkRule.delegate,
-					context);
-				keywords = context.rules.getKeywords();
+					context.spanEndSubst = spanEndSubst;
+					context.spanEndSubstRegex = spanEndSubstRegex;
+					context = new LineContext(
+						checkRule.delegate,
+						context);
+					keywords = context.rules.getKeywords();
 
-				break;
-			//}}}
-			//{{{ MARK_FOLLOWING
-			case ParserRule.MARK_FOLLOWING:
-				tokenHandler.handleToken(line,
-					matchToken(checkRule, checkRule, context),
-					pos - line.offset,
-					pattern.count,context);
-
-				context.spanEndSubst = null;
-				context.spanEndSubstRegex = null;
-				context.setInRule(checkRule);
-				break;
-			//}}}
-			//{{{ MARK_PREVIOUS
-			case ParserRule.MARK_PREVIOUS:
-				context.spanEndSubst = null;
-				context.spanEndSubstRegex = null;
+					break;
+				//}}}
+				//{{{ MARK_FOLLOWING
+				case ParserRule.MARK_FOLLOWING:
+					tokenHandler.handleToken(line,
+						matchToken(checkRule, checkRule, context),
+						pos - line.offset,
+						pattern.count,context);
+
+					context.spanEndSubst = null;
+					context.spanEndSubstRegex = null;
+					context.setInRule(checkRule);
+					break;
+				//}}}
+				//{{{ MARK_PREVIOUS
+				case ParserRule.MARK_PREVIOUS:
+					context.spanEndSubst = null;
+					context.spanEndSubstRegex = null;
+
+					if(pos != lastOffset)
+					{
+						tokenHandler.handleToken(line,
+							checkRule.token,
+							lastOffset - line.offset,
+							pos - lastOffset,
+							context);
+					}
 
-				if(pos != lastOffset)
-				{
 					tokenHandler.handleToken(line,
-						checkRule.token,
-						lastOffset - line.offset,
-						pos - lastOffset,
+						matchToken(checkRule, checkRule, context),
+						pos - line.offset,pattern.count,
 						context);
+
+					break;
+				//}}}
+				default:
+					throw new InternalError("Unhandled major action");
 				}
 
-				tokenHandler.handleToken(line,
-					matchToken(checkRule, checkRule, context),
-					pos - line.offset,pattern.count,
-					context);
+				// move pos to last character of match sequence
+				pos += matchedChars - 1;
+				lastOffset = pos + 1;
 
-				break;
-			//}}}
-			default:
-				throw new InternalError("Unhandled major action");
+				// break out of inner for loop to check next char
 			}
 
-			// move pos to last character of match sequence
-			pos += matchedChars - 1;
-			lastOffset = pos + 1;
-
-			// break out of inner for loop to check next char
-		}
-
-		return true;
-	} //}}}
-
-	//{{{ handleRuleEnd() method
-	/**
-	 * Checks if the rule matches the line at the current position
-	 * as its end and handles the rule if it does match
-	 */
-	private boolean handleRuleEnd(ParserRule checkRule)
-	{
-		// Some rules can only match in certain locations
-		int offset = (checkRule.action & ParserRule.MARK_PREVIOUS) != 0 ? lastOffset : pos;
-		if (!offsetMatches(offset, checkRule.endPosMatch))
-		{
-			return false;
-		}
+			return true;
+		} //}}}
 
-		// See if the rule's end sequence matches here
-		if((checkRule.action & ParserRule.MARK_FOLLOWING) == 0)
+		//{{{ handleRuleEnd() method
+		/**
+		 * Checks if the rule matches the line at the current position
+		 * as its end and handles the rule if it does match
+		 */
+		private boolean handleRuleEnd(ParserRule checkRule)
 		{
-			if ((checkRule.action & ParserRule.END_REGEXP) == 0)
+			// Some rules can only match in certain locations
+			int offset = (checkRule.action & ParserRule.MARK_PREVIOUS) != 0 ? lastOffset : pos;
+			if (!offsetMatches(offset, checkRule.endPosMatch))
 			{
-				if(context.spanEndSubst != null)
-					pattern.array = context.spanEndSubst;
-				else
-					pattern.array = checkRule.end;
-				pattern.offset = 0;
-				pattern.count = pattern.array.length;
-
-				if(!SyntaxUtilities.regionMatches(context.rules
-					.getIgnoreCase(),line,pos,pattern.array))
-				{
-					return false;
-				}
+				return false;
 			}
-			else
-			{	
-				CharSequence charSeq =
-					new SegmentCharSequence(line, pos - line.offset,
-								line.count - (pos - line.offset));
-					
-				Pattern regex;
-				if (context.spanEndSubstRegex != null)
-					regex = context.spanEndSubstRegex;
-				else
-					regex = checkRule.endRegexp;
-				Matcher match = regex.matcher(charSeq);
-				if (!match.lookingAt())
+
+			// See if the rule's end sequence matches here
+			if((checkRule.action & ParserRule.MARK_FOLLOWING) == 0)
+			{
+				if ((checkRule.action & ParserRule.END_REGEXP) == 0)
 				{
-					return false;
+					if(context.spanEndSubst != null)
+						pattern.array = context.spanEndSubst;
+					else
+						pattern.array = checkRule.end;
+					pattern.offset = 0;
+					pattern.count = pattern.array.length;
+
+					if(!SyntaxUtilities.regionMatches(context.rules
+						.getIgnoreCase(),line,pos,pattern.array))
+					{
+						return false;
+					}
 				}
 				else
-				{
-					// This is used in checkDelegateEnd
-					pattern.count = match.end();
+				{	
+					CharSequence charSeq =
+						new SegmentCharSequence(line, pos - line.offset,
+									line.count - (pos - line.offset));
+					
+					Pattern regex;
+					if (context.spanEndSubstRegex != null)
+						regex = context.spanEndSubstRegex;
+					else
+						regex = checkRule.endRegexp;
+					Matcher match = regex.matcher(charSeq);
+					if (!match.lookingAt())
+					{
+						return false;
+					}
+					else
+					{
+						// This is used in checkDelegateEnd
+						pattern.count = match.end();
+					}
 				}
 			}
-		}
 
-		// Escape rules are handled in handleRuleStart()
-		assert (checkRule.action & ParserRule.IS_ESCAPE) == 0;
+			// Escape rules are handled in handleRuleStart()
+			assert (checkRule.action & ParserRule.IS_ESCAPE) == 0;
 
-		// Handle end of MARK_FOLLOWING
-		if((context.inRule.action & ParserRule.MARK_FOLLOWING) != 0)
-		{
-			if(pos != lastOffset)
-			{
-				tokenHandler.handleToken(line,
-					context.inRule.token,
-					lastOffset - line.offset,
-					pos - lastOffset,context);
-			}
-
-			lastOffset = pos;
-			context.setInRule(null);
-		}
-
-		return true;
-	} //}}}
-
-	//{{{ handleNoWordBreak() method
-	private void handleNoWordBreak()
-	{
-		if(context.parent != null)
-		{
-			ParserRule rule = context.parent.inRule;
-			if(rule != null && (context.parent.inRule.action
-				& ParserRule.NO_WORD_BREAK) != 0)
+			// Handle end of MARK_FOLLOWING
+			if((context.inRule.action & ParserRule.MARK_FOLLOWING) != 0)
 			{
 				if(pos != lastOffset)
 				{
 					tokenHandler.handleToken(line,
-						rule.token,
+						context.inRule.token,
 						lastOffset - line.offset,
 						pos - lastOffset,context);
 				}
 
 				lastOffset = pos;
-				context = context.parent;
-				keywords = context.rules.getKeywords();
 				context.setInRule(null);
 			}
-		}
-	} //}}}
 
-	//{{{ handleTokenWithSpaces() method
-	private void handleTokenWithSpaces(TokenHandler tokenHandler,
-		byte tokenType, int start, int len, LineContext context)
-	{
-		int last = start;
-		int end = start + len;
+			return true;
+		} //}}}
 
-		for(int i = start; i < end; i++)
+		//{{{ handleNoWordBreak() method
+		private void handleNoWordBreak()
 		{
-			if(Character.isWhitespace(line.array[i + line.offset]))
+			if(context.parent != null)
 			{
-				if(last != i)
+				ParserRule rule = context.parent.inRule;
+				if(rule != null && (context.parent.inRule.action
+					& ParserRule.NO_WORD_BREAK) != 0)
 				{
-					tokenHandler.handleToken(line,
-					tokenType,last,i - last,context);
+					if(pos != lastOffset)
+					{
+						tokenHandler.handleToken(line,
+							rule.token,
+							lastOffset - line.offset,
+							pos - lastOffset,context);
+					}
+
+					lastOffset = pos;
+					context = context.parent;
+					keywords = context.rules.getKeywords();
+					context.setInRule(null);
 				}
-				tokenHandler.handleToken(line,tokenType,i,1,context);
-				last = i + 1;
 			}
-		}
-
-		if(last != end)
-		{
-			tokenHandler.handleToken(line,tokenType,last,
-				end - last,context);
-		}
-	} //}}}
-
-	//{{{ markKeyword() method
-	private void markKeyword(boolean addRemaining)
-	{
-		int len = pos - lastOffset;
-		if(len == 0)
-			return;
+		} //}}}
 
-		//{{{ Do digits
-		if(context.rules.getHighlightDigits())
+		//{{{ handleTokenWithSpaces() method
+		private void handleTokenWithSpaces(TokenHandler tokenHandler,
+			byte tokenType, int start, int len, LineContext context)
 		{
-			boolean digit = false;
-			boolean mixed = false;
-
-			for(int i = lastOffset; i < pos; i++)
-			{
-				char ch = line.array[i];
-				if(Character.isDigit(ch))
-					digit = true;
-				else
-					mixed = true;
-			}
+			int last = start;
+			int end = start + len;
 
-			if(mixed)
+			for(int i = start; i < end; i++)
 			{
-				Pattern digitRE = context.rules.getDigitRegexp();
-
-				// only match against regexp if its not all
-				// digits; if all digits, no point matching
-				if(digit)
+				if(Character.isWhitespace(line.array[i + line.offset]))
 				{
-					if(digitRE == null)
-					{
-						// mixed digit/alpha keyword,
-						// and no regexp... don't
-						// highlight as DIGIT
-						digit = false;
-					}
-					else
+					if(last != i)
 					{
-						int oldCount = line.count;
-						int oldOffset = line.offset;
-						line.offset = lastOffset;
-						line.count = len;
-						CharSequence seq = new SegmentCharSequence(line);
-						digit = digitRE.matcher(seq).matches();
-						line.offset = oldOffset;
-						line.count = oldCount;
+						tokenHandler.handleToken(line,
+						tokenType,last,i - last,context);
 					}
+					tokenHandler.handleToken(line,tokenType,i,1,context);
+					last = i + 1;
 				}
 			}
 
-			if(digit)
+			if(last != end)
 			{
-				tokenHandler.handleToken(line,Token.DIGIT,
-					lastOffset - line.offset,
-					len,context);
-				lastOffset = pos;
-
-				return;
+				tokenHandler.handleToken(line,tokenType,last,
+					end - last,context);
 			}
 		} //}}}
 
-		//{{{ Do keywords
-		if(keywords != null)
+		//{{{ markKeyword() method
+		private void markKeyword(boolean addRemaining)
 		{
-			byte id = keywords.lookup(line, lastOffset, len);
-
-			if(id != Token.NULL)
-			{
-				tokenHandler.handleToken(line,id,
-					lastOffset - line.offset,
-					len,context);
-				lastOffset = pos;
+			int len = pos - lastOffset;
+			if(len == 0)
 				return;
-			}
-		} //}}}
-
-		//{{{ Handle any remaining crud
-		if(addRemaining)
-		{
-			tokenHandler.handleToken(line,context.rules.getDefault(),
-				lastOffset - line.offset,len,context);
-			lastOffset = pos;
-		} //}}}
-	} //}}}
 
-	//{{{ substitute() method
-	/**
-	 * Perform substitution references in <code>end</code> to the matched groups in
-	 * <code>match</code>. In particular, "$1" is replaced with the first match group in
-	 * <code>match</code>, $2 is replaced with the second, all the way up to "$9". Moreover,
-	 * if group <code>i</code> matched a single bracket character, then "~i" is replaced with
-	 * the complementary bracket.
-	 * @param match the <code>Matcher</code> produced by matching the "start" regex
-	 * @param end the pattern to substitute in to
-	 * @param escape if true, then escape matched text before inserting into <code>end</code>, so that
-	 * 	the result can be interpreted as a regex pattern.
-	 * @return the substituted pattern
-	 */
-	private static char[] substitute(Matcher match, char[] end, boolean escape)
-	{
-		StringBuilder buf = new StringBuilder();
-		for(int i = 0; i < end.length; i++)
-		{
-			char ch = end[i];
-			if(ch == '$' || ch == '~')
+			//{{{ Do digits
+			if(context.rules.getHighlightDigits())
 			{
-				if(i == end.length - 1)
-					buf.append(ch);
-				else
+				boolean digit = false;
+				boolean mixed = false;
+
+				for(int i = lastOffset; i < pos; i++)
 				{
-					char digit = end[i + 1];
-					if(!Character.isDigit(digit))
-						buf.append(ch);
-					else if (ch == '$')
-					{
-						String text = match.group(digit - '0');
-						if (escape)
-							text = TextUtilities.escapeText(text);
-						buf.append(text);
-						i++;
-					}
+					char ch = line.array[i];
+					if(Character.isDigit(ch))
+						digit = true;
 					else
+						mixed = true;
+				}
+
+				if(mixed)
+				{
+					Pattern digitRE = context.rules.getDigitRegexp();
+
+					// only match against regexp if its not all
+					// digits; if all digits, no point matching
+					if(digit)
 					{
-						String s = match.group(digit - '0');
-						if (s.length() == 1)
+						if(digitRE == null)
 						{
-							char b = TextUtilities.getComplementaryBracket(s.charAt(0), null);
-							if (b == '\0')
-								b = s.charAt(0);
-							buf.append(b);
+							// mixed digit/alpha keyword,
+							// and no regexp... don't
+							// highlight as DIGIT
+							digit = false;
 						}
 						else
-							buf.append(ch);
-						i++;
+						{
+							int oldCount = line.count;
+							int oldOffset = line.offset;
+							line.offset = lastOffset;
+							line.count = len;
+							CharSequence seq = new SegmentCharSequence(line);
+							digit = digitRE.matcher(seq).matches();
+							line.offset = oldOffset;
+							line.count = oldCount;
+						}
 					}
 				}
-			}
-			else
-				buf.append(ch);
-		}
 
-		char[] returnValue = new char[buf.length()];
-		buf.getChars(0,buf.length(),returnValue,0);
-		return returnValue;
-	} //}}}
+				if(digit)
+				{
+					tokenHandler.handleToken(line,Token.DIGIT,
+						lastOffset - line.offset,
+						len,context);
+					lastOffset = pos;
 
-	//{{{ matchToken() method
-	private byte matchToken(ParserRule rule, ParserRule base, LineContext ctx)
-	{
-		switch (rule.matchType)
+					return;
+				}
+			} //}}}
+
+			//{{{ Do keywords
+			if(keywords != null)
+			{
+				byte id = keywords.lookup(line, lastOffset, len);
+
+				if(id != Token.NULL)
+				{
+					tokenHandler.handleToken(line,id,
+						lastOffset - line.offset,
+						len,context);
+					lastOffset = pos;
+					return;
+				}
+			} //}}}
+
+			//{{{ Handle any remaining crud
+			if(addRemaining)
+			{
+				tokenHandler.handleToken(line,context.rules.getDefault(),
+					lastOffset - line.offset,len,context);
+				lastOffset = pos;
+			} //}}}
+		} //}}}
+
+		//{{{ matchToken() method
+		private byte matchToken(ParserRule rule, ParserRule base, LineContext ctx)
 		{
-			case ParserRule.MATCH_TYPE_RULE:
-				return base.token;
+			switch (rule.matchType)
+			{
+				case ParserRule.MATCH_TYPE_RULE:
+					return base.token;
 
-			case ParserRule.MATCH_TYPE_CONTEXT:
-				return context.rules.getDefault();
+				case ParserRule.MATCH_TYPE_CONTEXT:
+					return context.rules.getDefault();
 
-			default:
-				return rule.matchType;
-		}
-	} //}}}
+				default:
+					return rule.matchType;
+			}
+		} //}}}
 
-	//{{{ checkHashString() method
-	private boolean checkHashString(ParserRule rule)
-	{
-		for (int i = 0; i < rule.upHashChar.length; i++)
+		//{{{ checkHashString() method
+		private boolean checkHashString(ParserRule rule)
 		{
-			if (Character.toUpperCase(line.array[pos+i]) != rule.upHashChar[i])
+			for (int i = 0; i < rule.upHashChar.length; i++)
 			{
-				return false;
+				if (Character.toUpperCase(line.array[pos+i]) != rule.upHashChar[i])
+				{
+					return false;
+				}
 			}
-		}
-		return true;
-	} //}}}
+			return true;
+		} //}}}
 
-	//}}}
+	} //}}}
 
 	//{{{ LineContext class
 	/**
@@ -937,17 +955,22 @@ unwind:		while(context.parent != null)
 		//{{{ intern() method
 		public LineContext intern()
 		{
-			WeakReference<LineContext> ref = intern.get(this);
-			if(ref != null)
+			// shared by all the token markers, which may be
+			// used from several threads at once
+			synchronized(intern)
 			{
-				LineContext obj = ref.get();
-				if(obj != null)
+				WeakReference<LineContext> ref = intern.get(this);
+				if(ref != null)
 				{
-					return obj;
+					LineContext obj = ref.get();
+					if(obj != null)
+					{
+						return obj;
+					}
 				}
+				intern.put(this, new WeakReference<LineContext>(this));
+				return this;
 			}
-			intern.put(this, new WeakReference<LineContext>(this));
-			return this;
 		} //}}}
 
 		//{{{ hashCode() method
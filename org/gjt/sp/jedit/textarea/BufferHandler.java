@@ -22,7 +22,9 @@
 
 package org.gjt.sp.jedit.textarea;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import org.gjt.sp.jedit.buffer.*;
 import org.gjt.sp.jedit.Debug;
 
@@ -50,6 +52,13 @@ class BufferHandler implements BufferListener
 	private boolean delayedMultilineUpdate;
 	private int delayedUpdateStart;
 	private int delayedUpdateEnd;
+	/** The run of replacements whose removal was handled last. */
+	private Replacements replacedRun;
+	/** Where the caret goes once the run is replaced. */
+	private int replacedCaret;
+	/** The range selections, and where each goes once the run is replaced. */
+	private final List<Selection> replacedSelections = new ArrayList<Selection>();
+	private final List<int[]> replacedSelectionOffsets = new ArrayList<int[]>();
 
 	//{{{ BufferChangeHandler constructor
 	BufferHandler(DisplayManager displayManager,
@@ -118,6 +127,13 @@ class BufferHandler implements BufferListener
 				delayedUpdateEnd += numLines;
 			delayUpdate(startLine,endLine);
 
+			Replacements replacements = buffer.getReplacementsInProgress();
+			if(replacements != null && replacements == replacedRun)
+			{
+				moveReplaced(startLine,offset,numLines,length);
+				return;
+			}
+
 			//{{{ resize selections if necessary
 			
 			Iterator<Selection> iter = textArea.getSelectionIterator();
@@ -281,6 +297,16 @@ class BufferHandler implements BufferListener
 
 		if(textArea.getDisplayManager() == displayManager)
 		{
+			// a run of replacements is told as one removal and one
+			// insertion, also covering the text between the ranges:
+			// the caret and the selections are put where they would
+			// be if each range was replaced on its own once the
+			// insertion is done
+			Replacements replacements = buffer.getReplacementsInProgress();
+			replacedRun = replacements;
+			if(replacements != null)
+				saveReplaced(replacements);
+
 			//{{{ resize selections if necessary
 			int nSel = textArea.getSelectionCount();
 			Iterator<Selection> iter = textArea.getSelectionIterator();
@@ -292,8 +318,11 @@ class BufferHandler implements BufferListener
 					start,numLines,length))
 				{
 					delayUpdate(s.startLine,s.endLine);
-					if(nSel == 1 && s.start == s.end)
+					if(nSel == 1 && s.start == s.end
+						&& isRemovedSelection(s))
+					{
 						iter.remove();
+					}
 				}
 			} //}}}
 
@@ -330,6 +359,10 @@ class BufferHandler implements BufferListener
 	//{{{ transactionComplete() method
 	public void transactionComplete(JEditBuffer buffer)
 	{
+		replacedRun = null;
+		replacedSelections.clear();
+		replacedSelectionOffsets.clear();
+
 		if(textArea.getDisplayManager() != displayManager)
 		{
 			delayedUpdate = false;
@@ -446,6 +479,99 @@ class BufferHandler implements BufferListener
 		}
 	} //}}}
 
+	//{{{ saveReplaced() method
+	/**
+	 * Saves where the caret and the range selections go once a run of
+	 * replacements is made, before its removal moves them.
+	 */
+	private void saveReplaced(Replacements replacements)
+	{
+		replacedCaret = replacements.getNewOffset(
+			textArea.getCaretPosition());
+		replacedSelections.clear();
+		replacedSelectionOffsets.clear();
+		Iterator<Selection> iter = textArea.getSelectionIterator();
+		while(iter.hasNext())
+		{
+			Selection s = iter.next();
+			// rectangular selections keep their columns as the
+			// text changes, they are left to the removal and the
+			// insertion
+			if(s instanceof Selection.Range)
+			{
+				replacedSelections.add(s);
+				replacedSelectionOffsets.add(new int[] {
+					replacements.getNewOffset(s.start),
+					replacements.getNewOffset(s.end) });
+			}
+		}
+	} //}}}
+
+	//{{{ isRemovedSelection() method
+	/**
+	 * Returns if a selection emptied by a removal is to be removed: it
+	 * is unless the removal is part of a run of replacements after
+	 * which the selection isn't empty.
+	 */
+	private boolean isRemovedSelection(Selection s)
+	{
+		if(replacedRun == null)
+			return true;
+		int index = replacedSelections.indexOf(s);
+		if(index == -1)
+			return true;
+		int[] offsets = replacedSelectionOffsets.get(index);
+		return offsets[0] == offsets[1];
+	} //}}}
+
+	//{{{ moveReplaced() method
+	/**
+	 * Once the new text of a run of replacements is inserted, puts the
+	 * caret and the selections where they would be if each range had
+	 * been replaced on its own.
+	 */
+	private void moveReplaced(int startLine, int offset, int numLines,
+		int length)
+	{
+		Iterator<Selection> iter = textArea.getSelectionIterator();
+		while(iter.hasNext())
+		{
+			Selection s = iter.next();
+			int index = replacedSelections.indexOf(s);
+			if(index == -1)
+			{
+				if(s.contentInserted(buffer,startLine,offset,
+					numLines,length))
+				{
+					delayUpdate(s.startLine,s.endLine);
+				}
+				continue;
+			}
+
+			int[] offsets = replacedSelectionOffsets.get(index);
+			if(offsets[0] == offsets[1]
+				&& textArea.getSelectionCount() == 1)
+			{
+				iter.remove();
+				continue;
+			}
+			s.start = offsets[0];
+			s.end = offsets[1];
+			s.startLine = buffer.getLineOfOffset(s.start);
+			s.endLine = buffer.getLineOfOffset(s.end);
+			delayUpdate(s.startLine,s.endLine);
+		}
+
+		int scrollMode = textArea.caretAutoScroll()
+			? TextArea.ELECTRIC_SCROLL
+			: TextArea.NO_SCROLL;
+		textArea.moveCaretPosition(replacedCaret,scrollMode);
+
+		replacedRun = null;
+		replacedSelections.clear();
+		replacedSelectionOffsets.clear();
+	} //}}}
+
 	//{{{ getReadyToBreakFold() method
 	// This is a fix for black hole bug.
 	// If you modify a part of folded lines, like {{{ (followed by }}}),
@@ -39,6 +39,41 @@ public abstract class WorkRequest implements Runnable, ProgressObserver
 	 */
 	private boolean largeValues;
 
+	//{{{ Priorities
+	/**
+	 * Priority of background housekeeping such as autosave.
+	 * @since jEdit 5.1pre1
+	 */
+	public static final int LOW_PRIORITY = -10;
+
+	/**
+	 * The default priority of a work request.
+	 * @since jEdit 5.1pre1
+	 */
+	public static final int NORMAL_PRIORITY = 0;
+
+	/**
+	 * Priority of requests the user is waiting for.
+	 * @since jEdit 5.1pre1
+	 */
+	public static final int HIGH_PRIORITY = 10;
+	//}}}
+
+	//{{{ getPriority() method
+	/**
+	 * Returns the priority this request is queued with by
+	 * {@link WorkThreadPool#addWorkRequest(Runnable,boolean)}.
+	 * Requests that nobody is waiting for, such as autosave, should
+	 * return {@link #LOW_PRIORITY} so that they do not delay
+	 * interactive loads and saves.
+	 * @return the priority, {@link #NORMAL_PRIORITY} by default
+	 * @since jEdit 5.1pre1
+	 */
+	public int getPriority()
+	{
+		return NORMAL_PRIORITY;
+	} //}}}
+
 	/**
 	 * Sets if the request can be aborted.
 	 */
@@ -152,63 +152,31 @@ public class WorkThread extends Thread implements ThreadAbortMonitor
 	{
 		Log.log(Log.DEBUG,this,"Work request thread starting [" + getName() + "]");
 
-		for(;;)
-		{
-			doRequests();
-		}
+		// the pool's executor loop, which takes requests from the
+		// queue and calls doRequest() for each one
+		if(worker != null)
+			worker.run();
 	}
 
+	// package-private members
+	/** Set by the pool before the thread is started. */
+	Runnable worker;
+
 	// private members
 	private WorkThreadPool pool;
 	private final Object abortLock = new Object();
-	private boolean requestRunning;
+	private volatile boolean requestRunning;
 	private boolean abortable;
 	private boolean aborted;
 	private String status;
 	private int progressValue;
 	private int progressMaximum;
 
-	private void doRequests()
+	void doRequest(WorkThreadPool.Request request)
 	{
-		WorkThreadPool.Request request;
-		for(;;)
-		{
-			request = pool.getNextRequest();
-			if(request == null)
-				break;
-			else
-			{
-				requestRunning = true;
-				pool.fireStatusChanged(this);
-				doRequest(request);
-				requestRunning = false;
-			}
-		}
-
+		requestRunning = true;
 		pool.fireStatusChanged(this);
 
-		synchronized(pool.waitForAllLock)
-		{
-			// notify a running waitForRequests() method
-			pool.waitForAllLock.notifyAll();
-		}
-
-		synchronized(pool.lock)
-		{
-			// wait for more requests
-			try
-			{
-				pool.lock.wait();
-			}
-			catch(InterruptedException ie)
-			{
-				Log.log(Log.ERROR,this,ie);
-			}
-		}
-	}
-
-	private void doRequest(WorkThreadPool.Request request)
-	{
 		Log.log(Log.DEBUG,WorkThread.class,"Running in work thread: " + request);
 
 		try
@@ -231,6 +199,7 @@ public class WorkThread extends Thread implements ThreadAbortMonitor
 			}
 			status = null;
 			progressValue = progressMaximum = 0;
+			requestRunning = false;
 			pool.requestDone();
 			pool.fireStatusChanged(this);
 		}
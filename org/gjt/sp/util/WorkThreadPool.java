@@ -25,10 +25,26 @@ package org.gjt.sp.util;
 //{{{ Imports
 import javax.swing.event.EventListenerList;
 import java.awt.EventQueue;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 //}}}
 
 /**
- * A pool of work threads.
+ * A pool of work threads.<p>
+ *
+ * Work requests are run by a fixed set of {@link WorkThread}s fed from a
+ * priority queue: requests with a higher priority are run first, requests
+ * with the same priority in the order they were added. AWT requests are
+ * still only run once all work requests are complete, in the order they
+ * were added.
+ *
  * @author Slava Pestov
  * @version $Id$
  * @deprecated
@@ -38,6 +54,26 @@ import java.awt.EventQueue;
 @Deprecated
 public class WorkThreadPool
 {
+	//{{{ Priorities
+	/**
+	 * Same as {@link WorkRequest#LOW_PRIORITY}.
+	 * @since jEdit 5.1pre1
+	 */
+	public static final int LOW_PRIORITY = WorkRequest.LOW_PRIORITY;
+
+	/**
+	 * Same as {@link WorkRequest#NORMAL_PRIORITY}.
+	 * @since jEdit 5.1pre1
+	 */
+	public static final int NORMAL_PRIORITY = WorkRequest.NORMAL_PRIORITY;
+
+	/**
+	 * Same as {@link WorkRequest#HIGH_PRIORITY}.
+	 * @since jEdit 5.1pre1
+	 */
+	public static final int HIGH_PRIORITY = WorkRequest.HIGH_PRIORITY;
+	//}}}
+
 	//{{{ WorkThreadPool constructor
 	/**
 	 * Creates a new work thread pool with the specified number of
@@ -48,6 +84,8 @@ public class WorkThreadPool
 	public WorkThreadPool(String name, int count)
 	{
 		listenerList = new EventListenerList();
+		queue = new PriorityBlockingQueue<Runnable>();
+		awtQueue = new ArrayDeque<Request>();
 
 		if(count != 0)
 		{
@@ -57,9 +95,14 @@ public class WorkThreadPool
 			{
 				threads[i] = new WorkThread(this,threadGroup,name + " #" + (i+1));
 			}
+			executor = new ThreadPoolExecutor(count,count,
+				0L,TimeUnit.MILLISECONDS,queue,new WorkerFactory());
 		}
 		else
+		{
+			executor = null;
 			Log.log(Log.WARNING,this,"Async I/O disabled");
+		}
 	} //}}}
 
 	//{{{ start() method
@@ -68,32 +111,71 @@ public class WorkThreadPool
 	 */
 	public void start()
 	{
-		/* not really needed since threads don't start until after */
 		synchronized(lock)
 		{
 			started = true;
 
-			if(awtRequestCount != 0 && requestCount == 0)
+			if(!awtQueue.isEmpty() && requestCount == 0)
 				queueAWTRunner();
 		}
 
-		if(threads != null)
+		// requests added before this point are already in the
+		// queue and are picked up as soon as the threads start
+		if(executor != null)
+			executor.prestartAllCoreThreads();
+	} //}}}
+
+	//{{{ setExecutor() method
+	/**
+	 * Runs work requests on the specified executor instead of this
+	 * pool's work threads, for example one that starts a thread per
+	 * request. Requests run that way are not in a {@link WorkThread},
+	 * so they cannot report progress or be aborted, and they are not
+	 * ordered by priority. AWT requests still wait for them to complete.
+	 * @param executor The executor, or null to go back to the work
+	 * threads
+	 * @since jEdit 5.1pre1
+	 */
+	public void setExecutor(Executor executor)
+	{
+		if(threads == null)
+			return;
+
+		synchronized(lock)
 		{
-			for(int i = 0; i < threads.length; i++)
-			{
-				threads[i].start();
-			}
+			this.externalExecutor = executor;
 		}
 	} //}}}
 
 	//{{{ addWorkRequest() method
 	/**
-	 * Adds a work request to the queue.
+	 * Adds a work request to the queue. Work requests implementing
+	 * {@link WorkRequest} are queued with their
+	 * {@link WorkRequest#getPriority() priority}, other requests with
+	 * {@link #NORMAL_PRIORITY}.
 	 * @param run The runnable
 	 * @param inAWT If true, will be executed in AWT thread. Otherwise,
 	 * will be executed in work thread. It is never executed directly.
 	 */
 	public void addWorkRequest(Runnable run, boolean inAWT)
+	{
+		int priority = NORMAL_PRIORITY;
+		if(run instanceof WorkRequest)
+			priority = ((WorkRequest)run).getPriority();
+		addWorkRequest(run,inAWT,priority);
+	}
+
+	/**
+	 * Adds a work request to the queue.
+	 * @param run The runnable
+	 * @param inAWT If true, will be executed in AWT thread. Otherwise,
+	 * will be executed in work thread. It is never executed directly.
+	 * @param priority The priority of the request, for example
+	 * {@link #LOW_PRIORITY}. It is ignored for AWT requests, which
+	 * always run in the order they were added.
+	 * @since jEdit 5.1pre1
+	 */
+	public void addWorkRequest(Runnable run, boolean inAWT, int priority)
 	{
 		if(threads == null)
 		{
@@ -104,50 +186,37 @@ public class WorkThreadPool
 		synchronized(lock)
 		{
 			//{{{ if there are no requests, execute AWT requests immediately
-			if(started && inAWT && requestCount == 0 && awtRequestCount == 0)
+			if(started && inAWT && requestCount == 0 && awtQueue.isEmpty())
 			{
-//				Log.log(Log.DEBUG,this,"AWT immediate: " + run);
-
 				ThreadUtilities.runInDispatchThread(run);
 				return;
 			} //}}}
 
-			Request request = new Request(run);
+			Request request = new Request(this,run,priority);
 
 			//{{{ Add to AWT queue...
 			if(inAWT)
 			{
-				if(firstAWTRequest == null && lastAWTRequest == null)
-					firstAWTRequest = lastAWTRequest = request;
-				else
-				{
-					lastAWTRequest.next = request;
-					lastAWTRequest = request;
-				}
-
-				awtRequestCount++;
+				awtQueue.add(request);
 
 				// if no requests are running, requestDone()
 				// will not be called, so we must queue the
 				// AWT runner ourselves.
 				if(started && requestCount == 0)
 					queueAWTRunner();
+				return;
 			} //}}}
-			//{{{ Add to work thread queue...
-			else
-			{
-				if(firstRequest == null && lastRequest == null)
-					firstRequest = lastRequest = request;
-				else
-				{
-					lastRequest.next = request;
-					lastRequest = request;
-				}
 
-				requestCount++;
-			} //}}}
+			requestCount++;
 
-			lock.notifyAll();
+			//{{{ Add to work thread queue...
+			if(!started)
+				queue.add(request);
+			else if(externalExecutor != null)
+				externalExecutor.execute(request);
+			else
+				executor.execute(request);
+			//}}}
 		}
 	} //}}}
 
@@ -178,7 +247,10 @@ public class WorkThreadPool
 		if(EventQueue.isDispatchThread())
 		{
 			// do any queued AWT runnables
-			doAWTRequests();
+			synchronized(lock)
+			{
+				doAWTRequests();
+			}
 		}
 		else
 		{
@@ -203,6 +275,73 @@ public class WorkThreadPool
 		return requestCount;
 	} //}}}
 
+	//{{{ getQueuedRequestCount() method
+	/**
+	 * Returns the number of work requests waiting for a free thread.
+	 * Unlike {@link #getRequestCount()}, this does not include the
+	 * requests that are currently running.
+	 * @return the queue depth
+	 * @since jEdit 5.1pre1
+	 */
+	public int getQueuedRequestCount()
+	{
+		return queue.size();
+	} //}}}
+
+	//{{{ getAWTRequestCount() method
+	/**
+	 * Returns the number of AWT requests waiting for the work requests
+	 * to complete.
+	 * @return the pending AWT request count
+	 * @since jEdit 5.1pre1
+	 */
+	public int getAWTRequestCount()
+	{
+		synchronized(lock)
+		{
+			return awtQueue.size();
+		}
+	} //}}}
+
+	//{{{ getStartedRequestCount() method
+	/**
+	 * Returns the number of work requests that have been taken from the
+	 * queue by a work thread since this pool was created.
+	 * @return the started request count
+	 * @since jEdit 5.1pre1
+	 */
+	public long getStartedRequestCount()
+	{
+		return startedRequests.get();
+	} //}}}
+
+	//{{{ getAverageWaitTime() method
+	/**
+	 * Returns the average time, in milliseconds, a work request spent
+	 * in the queue before a work thread started running it.
+	 * @return the average queue wait time
+	 * @since jEdit 5.1pre1
+	 */
+	public long getAverageWaitTime()
+	{
+		long started = startedRequests.get();
+		if(started == 0L)
+			return 0L;
+		return TimeUnit.NANOSECONDS.toMillis(totalWaitTime.get() / started);
+	} //}}}
+
+	//{{{ getMaxWaitTime() method
+	/**
+	 * Returns the longest time, in milliseconds, a work request spent
+	 * in the queue before a work thread started running it.
+	 * @return the maximum queue wait time
+	 * @since jEdit 5.1pre1
+	 */
+	public long getMaxWaitTime()
+	{
+		return TimeUnit.NANOSECONDS.toMillis(maxWaitTime.get());
+	} //}}}
+
 	//{{{ getThreadCount() method
 	/**
 	 * Returns the number of threads in this pool.
@@ -305,47 +444,58 @@ public class WorkThreadPool
 		}
 	} //}}}
 
-	//{{{ requestDone() method
-	void requestDone()
+	//{{{ requestStarted() method
+	void requestStarted(Request request)
 	{
-		synchronized(lock)
+		long wait = System.nanoTime() - request.queued;
+		startedRequests.incrementAndGet();
+		totalWaitTime.addAndGet(wait);
+		for(;;)
 		{
-			requestCount--;
+			long max = maxWaitTime.get();
+			if(wait <= max || maxWaitTime.compareAndSet(max,wait))
+				break;
+		}
+	} //}}}
 
-			if(requestCount == 0 && firstAWTRequest != null)
-				queueAWTRunner();
+	//{{{ doRequest() method
+	/**
+	 * Runs a request outside of a work thread.
+	 * @param request the request to run
+	 */
+	void doRequest(Request request)
+	{
+		Log.log(Log.DEBUG,WorkThreadPool.class,"Running in I/O thread: " + request);
+
+		try
+		{
+			request.run.run();
+		}
+		catch(Throwable t)
+		{
+			Log.log(Log.ERROR,WorkThreadPool.class,"Exception in I/O thread: ", t);
+		}
+		finally
+		{
+			requestDone();
 		}
 	} //}}}
 
-	//{{{ getNextRequest() method
-	Request getNextRequest()
+	//{{{ requestDone() method
+	void requestDone()
 	{
 		synchronized(lock)
 		{
-			Request request = firstRequest;
-			if(request == null)
-				return null;
-
-			firstRequest = firstRequest.next;
-			if(firstRequest == null)
-				lastRequest = null;
-
-			if(request.alreadyRun)
-				throw new InternalError("AIEE!!! Request run twice!!! " + request.run);
-			request.alreadyRun = true;
+			requestCount--;
 
-			/* StringBuffer buf = new StringBuffer("request queue is now: ");
-			Request _request = request.next;
-			while(_request != null)
-			{
-				buf.append(_request.id);
-				if(_request.next != null)
-					buf.append(",");
-				_request = _request.next;
-			}
-			Log.log(Log.DEBUG,this,buf.toString()); */
+			if(requestCount == 0 && !awtQueue.isEmpty())
+				queueAWTRunner();
+		}
 
-			return request;
+		synchronized(waitForAllLock)
+		{
+			// notify a running waitForRequests() method
+			waitForAllLock.notifyAll();
 		}
 	} //}}}
 
@@ -359,15 +509,19 @@ public class WorkThreadPool
 	private WorkThread[] threads;
 
 	// Request queue
-	private Request firstRequest;
-	private Request lastRequest;
-	private int requestCount;
+	private final PriorityBlockingQueue<Runnable> queue;
+	private final ThreadPoolExecutor executor;
+	private Executor externalExecutor;
+	private volatile int requestCount;
+
+	// Queue metrics
+	private final AtomicLong startedRequests = new AtomicLong();
+	private final AtomicLong totalWaitTime = new AtomicLong();
+	private final AtomicLong maxWaitTime = new AtomicLong();
 
 	// AWT thread magic
 	private boolean awtRunnerQueued;
-	private Request firstAWTRequest;
-	private Request lastAWTRequest;
-	private int awtRequestCount;
+	private final Queue<Request> awtQueue;
 
 	private final EventListenerList listenerList;
 	//}}}
@@ -376,9 +530,9 @@ public class WorkThreadPool
 	/** Must always be called with the lock held. */
 	private void doAWTRequests()
 	{
-		while(requestCount == 0 && firstAWTRequest != null)
+		while(requestCount == 0 && !awtQueue.isEmpty())
 		{
-			doAWTRequest(getNextAWTRequest());
+			doAWTRequest(awtQueue.remove());
 		}
 	} //}}}
 
@@ -389,7 +543,9 @@ public class WorkThreadPool
 	 */
 	private void doAWTRequest(Request request)
 	{
-//		Log.log(Log.DEBUG,this,"Running in AWT thread: " + request);
+		if(request.alreadyRun)
+			throw new InternalError("AIEE!!! Request run twice!!! " + request.run);
+		request.alreadyRun = true;
 
 		try
 		{
@@ -401,8 +557,6 @@ public class WorkThreadPool
 				+ "in AWT thread:");
 			Log.log(Log.ERROR,WorkThread.class,t);
 		}
-
-		awtRequestCount--;
 	} //}}}
 
 	//{{{ queueAWTRunner() method
@@ -413,59 +567,90 @@ public class WorkThreadPool
 		{
 			awtRunnerQueued = true;
 			EventQueue.invokeLater(new RunRequestsInAWTThread());
-//			Log.log(Log.DEBUG,this,"AWT runner queued");
 		}
 	} //}}}
 
-	//{{{ getNextAWTRequest() method
-	private Request getNextAWTRequest()
-	{
-		Request request = firstAWTRequest;
-		firstAWTRequest = firstAWTRequest.next;
-		if(firstAWTRequest == null)
-			lastAWTRequest = null;
-
-		if(request.alreadyRun)
-			throw new InternalError("AIEE!!! Request run twice!!! " + request.run);
-		request.alreadyRun = true;
-
-		/* StringBuffer buf = new StringBuffer("AWT request queue is now: ");
-		Request _request = request.next;
-		while(_request != null)
-		{
-			buf.append(_request.id);
-			if(_request.next != null)
-				buf.append(",");
-			_request = _request.next;
-		}
-		Log.log(Log.DEBUG,this,buf.toString()); */
-
-		return request;
-	} //}}}
-
 	//}}}
 
-	static int ID;
+	private static final AtomicInteger ID = new AtomicInteger();
 
 	//{{{ Request class
-	static class Request
+	/**
+	 * A queued request. Work requests are ordered by priority, then by
+	 * the order they were added in.
+	 */
+	static class Request implements Runnable, Comparable<Request>
 	{
-		int id = ++ID;
-
-		Runnable run;
+		final int id = ID.incrementAndGet();
+		final WorkThreadPool pool;
+		final Runnable run;
+		final int priority;
+		final long queued = System.nanoTime();
 
 		boolean alreadyRun;
 
-		Request next;
-
-		Request(Runnable run)
+		Request(WorkThreadPool pool, Runnable run, int priority)
 		{
+			this.pool = pool;
 			this.run = run;
+			this.priority = priority;
+		}
+
+		/** Runs the request in the current thread. */
+		public void run()
+		{
+			if(alreadyRun)
+				throw new InternalError("AIEE!!! Request run twice!!! " + run);
+			alreadyRun = true;
+
+			pool.requestStarted(this);
+			Thread thread = Thread.currentThread();
+			if(thread instanceof WorkThread)
+				((WorkThread)thread).doRequest(this);
+			else
+				pool.doRequest(this);
+		}
+
+		public int compareTo(Request request)
+		{
+			if(priority != request.priority)
+				return priority > request.priority ? -1 : 1;
+			// ids wrap around after 2^32 requests; compare the
+			// difference so that FIFO order survives it
+			int diff = id - request.id;
+			return diff < 0 ? -1 : (diff == 0 ? 0 : 1);
 		}
 
 		public String toString()
 		{
-			return "[id=" + id + ",run=" + run + ']';
+			return "[id=" + id + ",priority=" + priority + ",run=" + run + ']';
+		}
+	} //}}}
+
+	//{{{ WorkerFactory class
+	/**
+	 * Hands the executor the work threads created by the constructor,
+	 * so that {@link #getThread(int)} keeps returning the threads that
+	 * actually run the requests.
+	 */
+	private class WorkerFactory implements ThreadFactory
+	{
+		private int next;
+
+		public synchronized Thread newThread(Runnable worker)
+		{
+			WorkThread thread;
+			if(next < threads.length)
+				thread = threads[next++];
+			else
+			{
+				// only happens if a worker died, which
+				// WorkThread.doRequest() prevents
+				thread = new WorkThread(WorkThreadPool.this,threadGroup,
+					threadGroup.getName() + " #" + (++next));
+			}
+			thread.worker = worker;
+			return thread;
 		}
 	} //}}}
 